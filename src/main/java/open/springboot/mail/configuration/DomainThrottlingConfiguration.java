@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.configuration;
+
+import open.springboot.mail.service.EmailQueueService;
+import open.springboot.mail.service.EmailService;
+import open.springboot.mail.service.impl.DomainThrottlingEmailQueueService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import java.util.Map;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Creates the {@linkplain DomainThrottlingEmailQueueService} enforcing the limits defined in
+ * {@linkplain DomainThrottlingProperties}.
+ * <p/>
+ * The domain throttling replaces the priority lanes as the {@linkplain EmailQueueService}, hence enabling both fails
+ * the startup instead of silently keeping one of them.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "email.tools.domain-throttling", name = "enabled", havingValue = "true")
+@EnableConfigurationProperties(DomainThrottlingProperties.class)
+public class DomainThrottlingConfiguration implements EnvironmentAware {
+
+    @Override
+    public void setEnvironment(final Environment environment) {
+        if (environment.getProperty("email.tools.lanes.enabled", Boolean.class, false)) {
+            throw new IllegalStateException("email.tools.lanes.enabled and email.tools.domain-throttling.enabled "
+                    + "cannot be both set, a single EmailQueueService is used");
+        }
+    }
+
+    @Bean
+    @ConditionalOnMissingBean(EmailQueueService.class)
+    public DomainThrottlingEmailQueueService domainThrottlingEmailQueueService(
+            final EmailService emailService, final DomainThrottlingProperties properties) {
+        final DomainThrottlingEmailQueueService.Limits defaults = new DomainThrottlingEmailQueueService.Limits(
+                properties.getRate(), properties.getConcurrency());
+        final Map<String, DomainThrottlingEmailQueueService.Limits> overrides = properties.getDomains().entrySet()
+                .stream()
+                .collect(toMap(Map.Entry::getKey, entry -> new DomainThrottlingEmailQueueService.Limits(
+                        firstNonNull(entry.getValue().getRate(), defaults.getRate()),
+                        firstNonNull(entry.getValue().getConcurrency(), defaults.getConcurrency()))));
+        return new DomainThrottlingEmailQueueService(emailService, properties.getWorkers(), properties.getCapacity(),
+                defaults, overrides, properties.getFailurePauseMillis(), properties.getDrainMillis());
+    }
+
+}
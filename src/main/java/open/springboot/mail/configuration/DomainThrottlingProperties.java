@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.configuration;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rate limits and concurrency caps of the recipient domains, with per-domain overrides, e.g.
+ * <p/>
+ * <code>
+ * email.tools.domain-throttling.enabled: true
+ * email.tools.domain-throttling.rate: 10
+ * email.tools.domain-throttling.concurrency: 4
+ * email.tools.domain-throttling.domains[gmail.com].rate: 50
+ * email.tools.domain-throttling.domains[gmail.com].concurrency: 10
+ * </code>
+ * <p/>
+ * A rate of zero disables the rate limit.
+ */
+@Data
+@ConfigurationProperties(prefix = "email.tools.domain-throttling")
+public class DomainThrottlingProperties {
+
+    private boolean enabled;
+
+    private int workers = 8;
+
+    /**
+     * Maximum number of emails queued, over all the domains.
+     */
+    private int capacity = 100_000;
+
+    /**
+     * Emails sent per second to each domain.
+     */
+    private double rate = 10;
+
+    /**
+     * Maximum number of emails being sent to each domain at once.
+     */
+    private int concurrency = 4;
+
+    /**
+     * Time during which a domain is not sent to after a failed send.
+     */
+    private long failurePauseMillis = 1_000;
+
+    private long drainMillis = 30_000;
+
+    private Map<String, Domain> domains = new HashMap<>();
+
+    @Data
+    public static class Domain {
+
+        private Double rate;
+
+        private Integer concurrency;
+
+    }
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.configuration;
+
+import freemarker.template.Configuration;
+import open.springboot.mail.service.EmailDigestService;
+import open.springboot.mail.service.EmailOutboxService;
+import open.springboot.mail.service.EmailQueueService;
+import open.springboot.mail.service.EmailSchedulerService;
+import open.springboot.mail.service.EmailService;
+import open.springboot.mail.service.IdempotencyStore;
+import open.springboot.mail.service.ScheduledEmailStore;
+import open.springboot.mail.service.TemplateService;
+import open.springboot.mail.service.impl.CoalescingEmailDigestService;
+import open.springboot.mail.service.impl.EmailServiceImpl;
+import open.springboot.mail.service.impl.FreemarkerTemplateService;
+import open.springboot.mail.service.impl.InMemoryIdempotencyStore;
+import open.springboot.mail.service.impl.JdbcEmailOutboxService;
+import open.springboot.mail.service.impl.JdbcScheduledEmailStore;
+import open.springboot.mail.service.impl.PriorityEmailQueueService;
+import open.springboot.mail.service.impl.TimingWheelEmailSchedulerService;
+import open.springboot.mail.utils.AdaptiveConcurrencyLimiter;
+import open.springboot.mail.utils.DkimSigner;
+import open.springboot.mail.utils.EmailSizeEstimator;
+import open.springboot.mail.utils.EmailSizeLimiter;
+import open.springboot.mail.utils.EmailToMimeMessage;
+import open.springboot.mail.utils.EmailWarmUp;
+import open.springboot.mail.utils.FreemarkerTemplateWatcher;
+import open.springboot.mail.utils.InlinePictureOptimizer;
+import open.springboot.mail.utils.InlinePictureRegistry;
+import open.springboot.mail.utils.MapModelObjectWrapper;
+import open.springboot.mail.utils.ParallelAttachmentEncoder;
+import open.springboot.mail.utils.TransferEncodingSelector;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.AutoConfigureBefore;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.mail.MailSenderAutoConfiguration;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.mail.javamail.JavaMailSender;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * <p>
+ * Auto-configuration of the email tools, registered in {@code META-INF/spring.factories}: the application does not
+ * need to scan the {@code open.springboot.mail} package. Each bean backs off when the application defines its own,
+ * and the optional features are only created when enabled by their {@code enabled} property.
+ * </p>
+ * <p>
+ * The beans sending the emails, and the caches and pools they use, are lazy: they are created by the first lookup
+ * or injection of the {@linkplain EmailService}, or of the bean depending on it. The beans running in the background,
+ * i.e. the lanes, the scheduler, the outbox, the template watcher and the warm-up, are created at startup.
+ * </p>
+ */
+@org.springframework.context.annotation.Configuration
+@AutoConfigureBefore(MailSenderAutoConfiguration.class)
+@EnableConfigurationProperties(EmailToolsProperties.class)
+@Import({MailRelaysConfiguration.class, TemplateBudgetConfiguration.class, DomainThrottlingConfiguration.class,
+        EmailToolsAutoConfiguration.OutboxConfiguration.class,
+        EmailToolsAutoConfiguration.ScheduledEmailStoreConfiguration.class})
+public class EmailToolsAutoConfiguration {
+
+    @Bean
+    @Lazy
+    @ConditionalOnMissingBean(EmailService.class)
+    public EmailServiceImpl emailService(final JavaMailSender javaMailSender, final TemplateService templateService,
+                                         final EmailToMimeMessage emailToMimeMessage) {
+        return new EmailServiceImpl(javaMailSender, templateService, emailToMimeMessage);
+    }
+
+    @Bean
+    @Lazy
+    @ConditionalOnMissingBean(TemplateService.class)
+    public FreemarkerTemplateService templateService() {
+        return new FreemarkerTemplateService();
+    }
+
+    @Bean
+    @Lazy
+    @ConditionalOnMissingBean
+    public EmailToMimeMessage emailToMimeMessage(final JavaMailSender javaMailSender) {
+        return new EmailToMimeMessage(javaMailSender);
+    }
+
+    @Bean
+    @Lazy
+    @ConditionalOnMissingBean(IdempotencyStore.class)
+    @ConditionalOnProperty(prefix = "email.tools.idempotency", name = "enabled", havingValue = "true")
+    public InMemoryIdempotencyStore idempotencyStore(final EmailToolsProperties properties) {
+        return new InMemoryIdempotencyStore(properties.getIdempotency().getMaximumSize(),
+                properties.getIdempotency().getTtlSeconds());
+    }
+
+    @Bean
+    @Lazy
+    @ConditionalOnMissingBean
+    public InlinePictureRegistry inlinePictureRegistry(final EmailToolsProperties properties) {
+        return new InlinePictureRegistry(properties.getInlinePictures().getCacheMaxBytes());
+    }
+
+    @Bean
+    @Lazy
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "email.tools.inline-pictures.optimization", name = "enabled", havingValue = "true")
+    public InlinePictureOptimizer inlinePictureOptimizer(final EmailToolsProperties properties) {
+        final EmailToolsProperties.InlinePictures.Optimization optimization =
+                properties.getInlinePictures().getOptimization();
+        return new InlinePictureOptimizer(optimization.getMaxDimension(), optimization.getQuality());
+    }
+
+    @Bean
+    @Lazy
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "email.tools.attachments.parallel", name = "enabled", havingValue = "true")
+    public ParallelAttachmentEncoder parallelAttachmentEncoder(final EmailToolsProperties properties) {
+        final EmailToolsProperties.Attachments.Parallel parallel = properties.getAttachments().getParallel();
+        return new ParallelAttachmentEncoder(parallel.getThreads(), parallel.getQueueCapacity(),
+                parallel.getMinAttachments(), parallel.getMinTotalBytes());
+    }
+
+    @Bean
+    @Lazy
+    @ConditionalOnMissingBean
+    public EmailSizeEstimator emailSizeEstimator() {
+        return new EmailSizeEstimator();
+    }
+
+    @Bean
+    @Lazy
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "email.tools.size-limit", name = "enabled", havingValue = "true")
+    public EmailSizeLimiter emailSizeLimiter(final EmailSizeEstimator emailSizeEstimator,
+                                             final EmailToolsProperties properties) {
+        final EmailToolsProperties.SizeLimit sizeLimit = properties.getSizeLimit();
+        return new EmailSizeLimiter(emailSizeEstimator, sizeLimit.getMaxBytes(), sizeLimit.isCompressAttachments(),
+                sizeLimit.getCompressionThresholdBytes());
+    }
+
+    @Bean
+    @Lazy
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "email.tools.concurrency-limit", name = "enabled", havingValue = "true")
+    public AdaptiveConcurrencyLimiter adaptiveConcurrencyLimiter(final EmailToolsProperties properties) {
+        final EmailToolsProperties.ConcurrencyLimit limit = properties.getConcurrencyLimit();
+        return new AdaptiveConcurrencyLimiter(limit.getInitialLimit(), limit.getMinLimit(), limit.getMaxLimit(),
+                limit.getLatencyTolerance(), limit.getBackoffRatio(), limit.getMaxWaitMillis());
+    }
+
+    @Bean
+    @Lazy
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "email.tools.templates.fast-wrapper", name = "enabled", havingValue = "true")
+    public MapModelObjectWrapper mapModelObjectWrapper(final Configuration freemarkerConfiguration,
+                                                       final EmailToolsProperties properties) {
+        return new MapModelObjectWrapper(freemarkerConfiguration,
+                properties.getTemplates().getFastWrapper().isIntrospectionCache());
+    }
+
+    @Bean
+    @Lazy
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "email.tools.transfer-encoding", name = "enabled", havingValue = "true")
+    public TransferEncodingSelector transferEncodingSelector(final JavaMailSender javaMailSender,
+                                                             final EmailToolsProperties properties) {
+        return new TransferEncodingSelector(javaMailSender, properties.getTransferEncoding().getEightBitMime());
+    }
+
+    /**
+     * Not lazy, so that an unusable key fails the startup.
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "email.tools.dkim", name = "enabled", havingValue = "true")
+    public DkimSigner dkimSigner(final ResourceLoader resourceLoader, final EmailToolsProperties properties)
+            throws IOException, GeneralSecurityException {
+        final EmailToolsProperties.Dkim dkim = properties.getDkim();
+        return new DkimSigner(dkim.getDomain(), dkim.getSelector(), resourceLoader.getResource(dkim.getPrivateKey()),
+                dkim.getSignedHeaders());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean(EmailQueueService.class)
+    @ConditionalOnProperty(prefix = "email.tools.lanes", name = "enabled", havingValue = "true")
+    public PriorityEmailQueueService emailQueueService(final EmailService emailService,
+                                                       final EmailToolsProperties properties) {
+        final EmailToolsProperties.Lanes lanes = properties.getLanes();
+        return new PriorityEmailQueueService(emailService,
+                lanes.getTransactional().getWorkers(), lanes.getTransactional().getCapacity(),
+                lanes.getTransactional().getSloMillis(), lanes.getBulk().getWorkers(), lanes.getBulk().getCapacity(),
+                lanes.getShutdown().getDrainMillis());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean(EmailSchedulerService.class)
+    @ConditionalOnProperty(prefix = "email.tools.scheduler", name = "enabled", havingValue = "true")
+    public TimingWheelEmailSchedulerService emailSchedulerService(final EmailService emailService,
+                                                                  final EmailToolsProperties properties) {
+        final EmailToolsProperties.Scheduler scheduler = properties.getScheduler();
+        return new TimingWheelEmailSchedulerService(emailService, scheduler.getTickMillis(),
+                scheduler.getTicksPerWheel(), scheduler.getBatchSize(), scheduler.getMaxAttempts(),
+                scheduler.getRetryDelayMillis());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean(EmailDigestService.class)
+    @ConditionalOnProperty(prefix = "email.tools.digest", name = "enabled", havingValue = "true")
+    public CoalescingEmailDigestService emailDigestService(final EmailService emailService,
+                                                           final EmailToolsProperties properties) {
+        final EmailToolsProperties.Digest digest = properties.getDigest();
+        return new CoalescingEmailDigestService(emailService, digest.getTemplate(), digest.getSubject(),
+                digest.getWindowMillis(), digest.getMaxEmails(), digest.getMaxBufferedEmails(),
+                digest.getMaxBufferedChars(), digest.getSenders());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "email.tools.templates.watch", name = "enabled", havingValue = "true")
+    public FreemarkerTemplateWatcher freemarkerTemplateWatcher(
+            final Configuration freemarkerConfiguration, final ResourceLoader resourceLoader,
+            final EmailToolsProperties properties,
+            @Value("${spring.freemarker.template-loader-path:classpath:/templates/}") final String[] loaderPaths) {
+        final String[] directories = properties.getTemplates().getWatch().getDirectories();
+        return new FreemarkerTemplateWatcher(freemarkerConfiguration, resourceLoader,
+                directories.length > 0 ? directories : loaderPaths);
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "email.tools.warm-up", name = "enabled", havingValue = "true")
+    public EmailWarmUp emailWarmUp(final JavaMailSender javaMailSender, final EmailToolsProperties properties) {
+        return new EmailWarmUp(javaMailSender, properties.getWarmUp().getConnections(),
+                properties.getWarmUp().getTimeoutMillis());
+    }
+
+    /**
+     * Separated, since spring-jdbc is an optional dependency.
+     */
+    @org.springframework.context.annotation.Configuration
+    @ConditionalOnClass(name = "org.springframework.jdbc.core.JdbcTemplate")
+    @ConditionalOnProperty(prefix = "email.tools.outbox", name = "enabled", havingValue = "true")
+    static class OutboxConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean(EmailOutboxService.class)
+        public JdbcEmailOutboxService emailOutboxService(final DataSource dataSource, final EmailService emailService,
+                                                         final EmailToolsProperties properties) {
+            final EmailToolsProperties.Outbox outbox = properties.getOutbox();
+            return new JdbcEmailOutboxService(dataSource, emailService, outbox.getNodeId(), outbox.getDispatchers(),
+                    outbox.getPartitions(), outbox.getBatchSize(), outbox.getQueueCapacity(), outbox.getLeaseMillis(),
+                    outbox.getPollMillis(), outbox.getMaxAttempts(), outbox.getRetryDelayMillis(),
+                    outbox.getShutdown().getDrainMillis(), outbox.isInitializeSchema());
+        }
+
+    }
+
+    /**
+     * Separated, since spring-jdbc is an optional dependency.
+     */
+    @org.springframework.context.annotation.Configuration
+    @ConditionalOnClass(name = "org.springframework.jdbc.core.JdbcTemplate")
+    @ConditionalOnProperty(prefix = "email.tools.scheduler.jdbc-store", name = "enabled", havingValue = "true")
+    static class ScheduledEmailStoreConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean(ScheduledEmailStore.class)
+        public JdbcScheduledEmailStore scheduledEmailStore(final DataSource dataSource,
+                                                           final EmailToolsProperties properties) {
+            return new JdbcScheduledEmailStore(dataSource,
+                    properties.getScheduler().getJdbcStore().isInitializeSchema());
+        }
+
+    }
+
+}
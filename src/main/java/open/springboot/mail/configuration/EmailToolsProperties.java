@@ -0,0 +1,369 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.configuration;
+
+import lombok.Data;
+import open.springboot.mail.utils.TransferEncodingSelector;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Typed configuration of the beans created by the {@linkplain EmailToolsAutoConfiguration}, i.e. their pools,
+ * caches and limits, e.g.
+ * <p/>
+ * <code>
+ * email.tools.idempotency.enabled: true
+ * email.tools.idempotency.maximum-size: 100000
+ * email.tools.inline-pictures.cache-max-bytes: 16777216
+ * email.tools.lanes.enabled: true
+ * email.tools.lanes.bulk.workers: 8
+ * </code>
+ * <p/>
+ * The optional features are enabled by their {@code enabled} property. The relays and the template budgets are
+ * configured by {@linkplain MailRelaysProperties} and {@linkplain TemplateBudgetProperties}.
+ * <p/>
+ * The defaults here are the only ones: the beans of the optional features are not scanned, they are created by the
+ * {@linkplain EmailToolsAutoConfiguration} only.
+ */
+@Data
+@ConfigurationProperties(prefix = "email.tools")
+public class EmailToolsProperties {
+
+    private Idempotency idempotency = new Idempotency();
+
+    private InlinePictures inlinePictures = new InlinePictures();
+
+    private Attachments attachments = new Attachments();
+
+    private SizeLimit sizeLimit = new SizeLimit();
+
+    private ConcurrencyLimit concurrencyLimit = new ConcurrencyLimit();
+
+    private Lanes lanes = new Lanes();
+
+    private Scheduler scheduler = new Scheduler();
+
+    private Outbox outbox = new Outbox();
+
+    private Dkim dkim = new Dkim();
+
+    private Templates templates = new Templates();
+
+    private TransferEncoding transferEncoding = new TransferEncoding();
+
+    private WarmUp warmUp = new WarmUp();
+
+    private Digest digest = new Digest();
+
+    @Data
+    public static class Idempotency {
+
+        private boolean enabled;
+
+        private long maximumSize = 100_000;
+
+        private long ttlSeconds = 86_400;
+
+    }
+
+    @Data
+    public static class InlinePictures {
+
+        /**
+         * Maximum size of the encoded pictures kept in cache.
+         */
+        private long cacheMaxBytes = 16_777_216;
+
+        private Optimization optimization = new Optimization();
+
+        @Data
+        public static class Optimization {
+
+            private boolean enabled;
+
+            private int maxDimension = 1200;
+
+            private float quality = 0.8f;
+
+        }
+
+    }
+
+    @Data
+    public static class Attachments {
+
+        private Parallel parallel = new Parallel();
+
+        @Data
+        public static class Parallel {
+
+            private boolean enabled;
+
+            /**
+             * Number of encoding threads, zero for the number of processors.
+             */
+            private int threads;
+
+            private int queueCapacity = 256;
+
+            private int minAttachments = 2;
+
+            private long minTotalBytes = 262_144;
+
+        }
+
+    }
+
+    @Data
+    public static class SizeLimit {
+
+        private boolean enabled;
+
+        private long maxBytes = 10_485_760;
+
+        private boolean compressAttachments;
+
+        private long compressionThresholdBytes = 1_048_576;
+
+    }
+
+    @Data
+    public static class ConcurrencyLimit {
+
+        private boolean enabled;
+
+        private int initialLimit = 10;
+
+        private int minLimit = 1;
+
+        private int maxLimit = 200;
+
+        private double latencyTolerance = 2.0;
+
+        private double backoffRatio = 0.9;
+
+        private long maxWaitMillis = 1_000;
+
+    }
+
+    @Data
+    public static class Lanes {
+
+        private boolean enabled;
+
+        private TransactionalLane transactional = new TransactionalLane();
+
+        private BulkLane bulk = new BulkLane();
+
+        private Shutdown shutdown = new Shutdown();
+
+        @Data
+        public static class TransactionalLane {
+
+            private int workers = 2;
+
+            private int capacity = 10_000;
+
+            private long sloMillis = 1_000;
+
+        }
+
+        @Data
+        public static class BulkLane {
+
+            private int workers = 4;
+
+            private int capacity = 100_000;
+
+        }
+
+        @Data
+        public static class Shutdown {
+
+            private long drainMillis = 30_000;
+
+        }
+
+    }
+
+    @Data
+    public static class Scheduler {
+
+        private boolean enabled;
+
+        private long tickMillis = 100;
+
+        private int ticksPerWheel = 4096;
+
+        private int batchSize = 500;
+
+        private int maxAttempts = 3;
+
+        private long retryDelayMillis = 60_000;
+
+        private JdbcStore jdbcStore = new JdbcStore();
+
+        @Data
+        public static class JdbcStore {
+
+            private boolean enabled;
+
+            private boolean initializeSchema = true;
+
+        }
+
+    }
+
+    @Data
+    public static class Outbox {
+
+        private boolean enabled;
+
+        /**
+         * Identifier of this node, generated when empty.
+         */
+        private String nodeId = "";
+
+        private int dispatchers = 2;
+
+        private int partitions = 64;
+
+        private int batchSize = 100;
+
+        private int queueCapacity = 10_000;
+
+        private long leaseMillis = 30_000;
+
+        private long pollMillis = 500;
+
+        private int maxAttempts = 5;
+
+        private long retryDelayMillis = 60_000;
+
+        private boolean initializeSchema = true;
+
+        private Shutdown shutdown = new Shutdown();
+
+        @Data
+        public static class Shutdown {
+
+            private long drainMillis = 30_000;
+
+        }
+
+    }
+
+    @Data
+    public static class Dkim {
+
+        private boolean enabled;
+
+        private String domain;
+
+        private String selector;
+
+        /**
+         * Location of the PKCS#8 private key, e.g. {@code classpath:dkim.der}.
+         */
+        private String privateKey;
+
+        private String[] signedHeaders = {"From", "Reply-To", "To", "Cc", "Subject", "Date", "Message-ID",
+                "MIME-Version", "Content-Type"};
+
+    }
+
+    @Data
+    public static class Templates {
+
+        private Watch watch = new Watch();
+
+        private FastWrapper fastWrapper = new FastWrapper();
+
+        @Data
+        public static class Watch {
+
+            private boolean enabled;
+
+            /**
+             * Directories to watch, the Freemarker template loader paths when empty.
+             */
+            private String[] directories = {};
+
+        }
+
+        @Data
+        public static class FastWrapper {
+
+            private boolean enabled;
+
+            private boolean introspectionCache = true;
+
+        }
+
+    }
+
+    @Data
+    public static class TransferEncoding {
+
+        private boolean enabled;
+
+        private TransferEncodingSelector.EightBitMime eightBitMime = TransferEncodingSelector.EightBitMime.AUTO;
+
+    }
+
+    @Data
+    public static class WarmUp {
+
+        private boolean enabled;
+
+        private int connections = 2;
+
+        /**
+         * Connection and read timeout of the warm-up connections, unless set in the mail properties.
+         */
+        private long timeoutMillis = 10_000;
+
+    }
+
+    @Data
+    public static class Digest {
+
+        private boolean enabled;
+
+        private String template = "digest.ftl";
+
+        /**
+         * Format of the subject of the digests, given the number of emails and the category.
+         */
+        private String subject = "%2$s: %1$d notifications";
+
+        private long windowMillis = 60000;
+
+        private int maxEmails = 50;
+
+        private int maxBufferedEmails = 10000;
+
+        private long maxBufferedChars = 10000000;
+
+        /**
+         * Threads sending the digests and the emails passed through when there is no queue.
+         */
+        private int senders = 2;
+
+    }
+
+}
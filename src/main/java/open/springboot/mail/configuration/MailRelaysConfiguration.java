@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.configuration;
+
+import open.springboot.mail.utils.LoadBalancingJavaMailSender;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import java.util.List;
+import java.util.Properties;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static java.util.Objects.nonNull;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Replaces the single {@linkplain org.springframework.mail.javamail.JavaMailSender} with a
+ * {@linkplain LoadBalancingJavaMailSender} over the relays defined in {@linkplain MailRelaysProperties}.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "email.tools.relays", name = "enabled", havingValue = "true")
+@EnableConfigurationProperties(MailRelaysProperties.class)
+public class MailRelaysConfiguration {
+
+    @Bean
+    @Primary
+    public LoadBalancingJavaMailSender loadBalancingJavaMailSender(final MailRelaysProperties properties) {
+        checkArgument(!properties.getServers().isEmpty(), "No relay defined in email.tools.relays.servers");
+        final List<LoadBalancingJavaMailSender.Relay> relays = properties.getServers().stream()
+                .map(MailRelaysConfiguration::relay)
+                .collect(toList());
+        return new LoadBalancingJavaMailSender(relays, properties.getEjectionThreshold(),
+                properties.getEjectionMillis(), properties.getSlowStartMillis());
+    }
+
+    private static LoadBalancingJavaMailSender.Relay relay(final MailRelaysProperties.Server server) {
+        final JavaMailSenderImpl sender = new JavaMailSenderImpl();
+        sender.setHost(server.getHost());
+        if (nonNull(server.getPort())) {
+            sender.setPort(server.getPort());
+        }
+        sender.setUsername(server.getUsername());
+        sender.setPassword(server.getPassword());
+        sender.setProtocol(server.getProtocol());
+        sender.setDefaultEncoding(server.getDefaultEncoding());
+        final Properties javaMailProperties = new Properties();
+        javaMailProperties.putAll(server.getProperties());
+        sender.setJavaMailProperties(javaMailProperties);
+
+        final String name = isNullOrEmpty(server.getName()) ?
+                server.getHost() + ':' + sender.getPort() : server.getName();
+        return new LoadBalancingJavaMailSender.Relay(name, sender, server.getWeight());
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.configuration;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Configuration of the SMTP relays the emails are spread over, e.g.
+ * <p/>
+ * <code>
+ * email.tools.relays.enabled: true
+ * email.tools.relays.servers[0].host: smtp1.example.com
+ * email.tools.relays.servers[0].weight: 2
+ * email.tools.relays.servers[1].host: smtp2.example.com
+ * </code>
+ */
+@Data
+@ConfigurationProperties(prefix = "email.tools.relays")
+public class MailRelaysProperties {
+
+    private boolean enabled;
+
+    private List<Server> servers = new ArrayList<>();
+
+    /**
+     * Number of consecutive failures after which a relay is ejected.
+     */
+    private int ejectionThreshold = 3;
+
+    private long ejectionMillis = 30_000;
+
+    /**
+     * Time needed by an ejected relay to get back to its full weight.
+     */
+    private long slowStartMillis = 30_000;
+
+    @Data
+    public static class Server {
+
+        private String name;
+
+        private String host;
+
+        private Integer port;
+
+        private String username;
+
+        private String password;
+
+        private String protocol = "smtp";
+
+        private String defaultEncoding = "UTF-8";
+
+        private int weight = 1;
+
+        private Map<String, String> properties = new HashMap<>();
+
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.configuration;
+
+import open.springboot.mail.utils.TemplateRenderBudget;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Map;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * Creates the {@linkplain TemplateRenderBudget} enforcing the budgets defined in {@linkplain TemplateBudgetProperties}.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "email.tools.templates.budget", name = "enabled", havingValue = "true")
+@EnableConfigurationProperties(TemplateBudgetProperties.class)
+public class TemplateBudgetConfiguration {
+
+    @Bean
+    public TemplateRenderBudget templateRenderBudget(final TemplateBudgetProperties properties) {
+        final TemplateRenderBudget.Limits defaults = new TemplateRenderBudget.Limits(
+                properties.getMaxRenderMillis(), properties.getMaxOutputChars());
+        final Map<String, TemplateRenderBudget.Limits> overrides = properties.getTemplates().entrySet().stream()
+                .collect(toMap(Map.Entry::getKey, entry -> new TemplateRenderBudget.Limits(
+                        firstNonNull(entry.getValue().getMaxRenderMillis(), defaults.getMaxRenderMillis()),
+                        firstNonNull(entry.getValue().getMaxOutputChars(), defaults.getMaxOutputChars()))));
+        return new TemplateRenderBudget(defaults, overrides);
+    }
+
+}
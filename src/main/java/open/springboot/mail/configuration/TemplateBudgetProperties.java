@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.configuration;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Render time and output size budgets of the templates, with per-template overrides, e.g.
+ * <p/>
+ * <code>
+ * email.tools.templates.budget.enabled: true
+ * email.tools.templates.budget.max-render-millis: 2000
+ * email.tools.templates.budget.max-output-chars: 1048576
+ * email.tools.templates.budget.templates[newsletter.ftl].max-output-chars: 4194304
+ * </code>
+ * <p/>
+ * A value of zero disables the budget.
+ */
+@Data
+@ConfigurationProperties(prefix = "email.tools.templates.budget")
+public class TemplateBudgetProperties {
+
+    private boolean enabled;
+
+    private long maxRenderMillis = 2_000;
+
+    private long maxOutputChars = 1_048_576;
+
+    private Map<String, Budget> templates = new HashMap<>();
+
+    @Data
+    public static class Budget {
+
+        private Long maxRenderMillis;
+
+        private Long maxOutputChars;
+
+    }
+
+}
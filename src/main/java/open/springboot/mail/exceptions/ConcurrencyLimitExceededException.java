@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.exceptions;
+
+import lombok.Getter;
+
+/**
+ * Thrown when an email cannot be sent because the number of sends in flight reached the adaptive limit, and no send
+ * completed within the maximum wait.
+ */
+@Getter
+public class ConcurrencyLimitExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = -6273841091763452185L;
+
+    private final int limit;
+
+    public ConcurrencyLimitExceededException(final int limit, final long maxWaitMillis) {
+        super(String.format("The limit of %d sends in flight has been reached, and no send completed within %d ms",
+                limit, maxWaitMillis));
+        this.limit = limit;
+    }
+
+}
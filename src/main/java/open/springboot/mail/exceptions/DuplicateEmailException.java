@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.exceptions;
+
+import lombok.Getter;
+
+/**
+ * Thrown instead of sending an email whose idempotency key belongs to an email already sent.
+ */
+@Getter
+public class DuplicateEmailException extends RuntimeException {
+
+    private static final long serialVersionUID = -6183746508937342671L;
+
+    private final String idempotencyKey;
+
+    public DuplicateEmailException(final String idempotencyKey) {
+        super(String.format("An email with the idempotency key %s has already been sent", idempotencyKey));
+        this.idempotencyKey = idempotencyKey;
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.exceptions;
+
+import lombok.Getter;
+
+/**
+ * Thrown before sending an email whose estimated size exceeds the configured limit.
+ */
+@Getter
+public class EmailTooLargeException extends RuntimeException {
+
+    private static final long serialVersionUID = 2745329811562306093L;
+
+    private final long estimatedSize;
+
+    private final long maximumSize;
+
+    public EmailTooLargeException(final long estimatedSize, final long maximumSize) {
+        super(String.format("The email is estimated to be %d bytes, more than the maximum of %d bytes",
+                estimatedSize, maximumSize));
+        this.estimatedSize = estimatedSize;
+        this.maximumSize = maximumSize;
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.exceptions;
+
+import lombok.Getter;
+
+import java.io.IOException;
+
+/**
+ * Thrown by the rendering writer when a template exceeds its render time or output size budget. It is an
+ * {@linkplain IOException} so that Freemarker propagates it as is, aborting the rendering.
+ */
+@Getter
+public class TemplateBudgetExceededException extends IOException {
+
+    private static final long serialVersionUID = 4316271928413672044L;
+
+    public enum Budget {
+        RENDER_TIME, OUTPUT_SIZE
+    }
+
+    private final String template;
+
+    private final Budget budget;
+
+    private final long limit;
+
+    private final long actual;
+
+    public TemplateBudgetExceededException(final String template, final Budget budget,
+                                           final long limit, final long actual) {
+        super(String.format(budget == Budget.RENDER_TIME
+                        ? "The template %s has been rendering for %4$d ms, more than the budget of %3$d ms"
+                        : "The template %s produced %4$d characters, more than the budget of %3$d characters",
+                template, budget, limit, actual));
+        this.template = template;
+        this.budget = budget;
+        this.limit = limit;
+        this.actual = actual;
+    }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.model;
+
+import lombok.NonNull;
+import lombok.Value;
+
+import java.util.Date;
+
+/**
+ * A notification merged into a digest, as exposed to the digest template.
+ */
+@Value
+public class DigestEntry {
+
+    @NonNull
+    String subject;
+
+    @NonNull
+    String body;
+
+    @NonNull
+    Date receivedAt;
+
+}
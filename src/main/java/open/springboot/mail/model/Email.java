@@ -54,4 +54,37 @@ public interface Email {
 
     void setSentAt(Date sentAt);
 
+    /**
+     * Return the key used to recognize retries of the same email.
+     * <p/>
+     * Two emails carrying the same key are considered to be the same email, so only the first one is sent.
+     *
+     * @return the idempotency key, or null if the email does not need to be deduplicated.
+     */
+    default String getIdempotencyKey() {
+        return null;
+    }
+
+    /**
+     * Return the class of service of the email, used when it is queued.
+     * <p/>
+     * Transactional emails must be marked as such, so that unclassified emails cannot starve them.
+     *
+     * @return the priority of the email, {@linkplain EmailPriority#BULK} if not given.
+     */
+    default EmailPriority getPriority() {
+        return EmailPriority.BULK;
+    }
+
+    /**
+     * Return the category of notifications the email belongs to, used to merge it into a digest.
+     * <p/>
+     * The emails of the same category sent to the same recipients within the digest window are merged into one email.
+     *
+     * @return the digest category, or null if the email cannot be merged into a digest.
+     */
+    default String getDigestCategory() {
+        return null;
+    }
+
 }
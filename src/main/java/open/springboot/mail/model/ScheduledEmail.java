@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.model;
+
+import lombok.NonNull;
+import lombok.Value;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * An email waiting to be sent at a given time.
+ * <p/>
+ * If the template is null, the email is sent as is, otherwise its body is obtained by processing the template.
+ */
+@Value
+public class ScheduledEmail implements Serializable {
+
+    private static final long serialVersionUID = 2873950186213347103L;
+
+    @NonNull
+    String id;
+
+    @NonNull
+    Email email;
+
+    @NonNull
+    Date sendAt;
+
+    String template;
+
+    Map<String, Object> modelObject;
+
+    InlinePicture[] inlinePictures;
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.model.impl;
+
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+import lombok.ToString;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.EmailPriority;
+
+import javax.mail.internet.InternetAddress;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static java.nio.charset.Charset.forName;
+import static java.util.Objects.isNull;
+
+/**
+ * Memory efficient, immutable email.
+ * <p/>
+ * Meant for holding large backlogs of queued emails: sender identities, recipients, charset, locale,
+ * subject and body are shared among all the emails having the same values, and the recipients are
+ * stored in a single flat array instead of one collection per recipient type.
+ * The only mutable field is the send date, which is set by the {@linkplain open.springboot.mail.service.EmailService}.
+ * Since the addresses are shared, the returned {@linkplain InternetAddress} objects must not be modified.
+ */
+@EqualsAndHashCode
+@ToString(exclude = "attachments")
+public final class CompactEmail implements Email, Serializable {
+
+    private static final long serialVersionUID = -2781398217836454297L;
+
+    private static final InternetAddress[] NO_ADDRESSES = new InternetAddress[0];
+
+    private static final EmailAttachmentImpl[] NO_ATTACHMENTS = new EmailAttachmentImpl[0];
+
+    private final InternetAddress from;
+
+    private final InternetAddress replyTo;
+
+    /**
+     * To, cc and bcc recipients, in this order.
+     */
+    private final InternetAddress[] recipients;
+
+    private final int toCount;
+
+    private final int ccCount;
+
+    private final String subject;
+
+    private final String body;
+
+    private final EmailAttachmentImpl[] attachments;
+
+    /**
+     * Not serializable, restored from its name when deserializing.
+     */
+    private final transient Charset encoding;
+
+    private final String encodingName;
+
+    private final Locale locale;
+
+    private final String idempotencyKey;
+
+    private final EmailPriority priority;
+
+    private volatile long sentAt;
+
+    private CompactEmail(final InternetAddress from, final InternetAddress replyTo,
+                         final InternetAddress[] recipients, final int toCount, final int ccCount,
+                         final String subject, final String body, final EmailAttachmentImpl[] attachments,
+                         final Charset encoding, final Locale locale, final String idempotencyKey,
+                         final EmailPriority priority, final long sentAt) {
+        this.from = EmailInterner.intern(from);
+        this.replyTo = EmailInterner.intern(replyTo);
+        this.recipients = EmailInterner.intern(recipients);
+        this.toCount = toCount;
+        this.ccCount = ccCount;
+        this.subject = EmailInterner.intern(subject);
+        this.body = EmailInterner.intern(body);
+        this.attachments = attachments;
+        this.encoding = EmailInterner.intern(encoding);
+        this.encodingName = encoding.name();
+        this.locale = EmailInterner.intern(locale);
+        this.idempotencyKey = idempotencyKey;
+        this.priority = isNull(priority) ? EmailPriority.BULK : priority;
+        this.sentAt = sentAt;
+    }
+
+    @Builder
+    private static CompactEmail create(final @NonNull InternetAddress from, final InternetAddress replyTo,
+                                       final Collection<InternetAddress> to,
+                                       final Collection<InternetAddress> cc,
+                                       final Collection<InternetAddress> bcc,
+                                       final @NonNull String subject, final @NonNull String body,
+                                       final Collection<EmailAttachmentImpl> attachments,
+                                       final Charset encoding, final Locale locale,
+                                       final String idempotencyKey, final EmailPriority priority,
+                                       final Date sentAt) {
+        final int toCount = sizeOf(to);
+        final int ccCount = sizeOf(cc);
+        final InternetAddress[] recipients = toCount + ccCount + sizeOf(bcc) == 0 ?
+                NO_ADDRESSES : new InternetAddress[toCount + ccCount + sizeOf(bcc)];
+        copy(to, recipients, 0);
+        copy(cc, recipients, toCount);
+        copy(bcc, recipients, toCount + ccCount);
+
+        return new CompactEmail(from, replyTo, recipients, toCount, ccCount, subject, body,
+                isNull(attachments) || attachments.isEmpty() ?
+                        NO_ATTACHMENTS : attachments.toArray(new EmailAttachmentImpl[attachments.size()]),
+                isNull(encoding) ? forName("UTF-8") : encoding, locale, idempotencyKey, priority,
+                isNull(sentAt) ? 0L : sentAt.getTime());
+    }
+
+    /**
+     * Create a compact copy of the given email.
+     *
+     * @param email the email to be copied
+     * @return a compact email with the same content of the given one
+     */
+    public static CompactEmail copyOf(final @NonNull Email email) {
+        if (email instanceof CompactEmail) {
+            return (CompactEmail) email;
+        }
+        return create(email.getFrom(), email.getReplyTo(), email.getTo(), email.getCc(), email.getBcc(),
+                email.getSubject(), email.getBody(), email.getAttachments(), email.getEncoding(), email.getLocale(),
+                email.getIdempotencyKey(), email.getPriority(), email.getSentAt());
+    }
+
+    private static int sizeOf(final Collection<?> collection) {
+        return isNull(collection) ? 0 : collection.size();
+    }
+
+    private static void copy(final Collection<InternetAddress> source, final InternetAddress[] target, int offset) {
+        if (isNull(source)) {
+            return;
+        }
+        for (final InternetAddress address : source) {
+            target[offset++] = address;
+        }
+    }
+
+    private List<InternetAddress> recipients(final int from, final int to) {
+        return Collections.unmodifiableList(Arrays.asList(recipients).subList(from, to));
+    }
+
+    @Override
+    public InternetAddress getFrom() {
+        return from;
+    }
+
+    @Override
+    public InternetAddress getReplyTo() {
+        return replyTo;
+    }
+
+    @Override
+    public Collection<InternetAddress> getTo() {
+        return recipients(0, toCount);
+    }
+
+    @Override
+    public Collection<InternetAddress> getCc() {
+        return recipients(toCount, toCount + ccCount);
+    }
+
+    @Override
+    public Collection<InternetAddress> getBcc() {
+        return recipients(toCount + ccCount, recipients.length);
+    }
+
+    @Override
+    public String getSubject() {
+        return subject;
+    }
+
+    @Override
+    public String getBody() {
+        return body;
+    }
+
+    @Override
+    public Collection<EmailAttachmentImpl> getAttachments() {
+        return Collections.unmodifiableList(Arrays.asList(attachments));
+    }
+
+    @Override
+    public Charset getEncoding() {
+        return encoding;
+    }
+
+    @Override
+    public Locale getLocale() {
+        return locale;
+    }
+
+    @Override
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    @Override
+    public EmailPriority getPriority() {
+        return priority;
+    }
+
+    @Override
+    public Date getSentAt() {
+        return sentAt == 0L ? null : new Date(sentAt);
+    }
+
+    @Override
+    public void setSentAt(final Date sentAt) {
+        this.sentAt = isNull(sentAt) ? 0L : sentAt.getTime();
+    }
+
+    /**
+     * Share the canonical instances also with emails that are deserialized, e.g. when read back from a queue.
+     */
+    private Object readResolve() {
+        return new CompactEmail(from, replyTo, recipients, toCount, ccCount, subject, body, attachments,
+                forName(encodingName), locale, idempotencyKey, priority, sentAt);
+    }
+
+}
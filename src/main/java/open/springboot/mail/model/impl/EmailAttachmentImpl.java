@@ -34,6 +34,7 @@ import org.springframework.http.MediaType;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Serializable;
 import java.util.Optional;
 
 import static java.util.Optional.ofNullable;
@@ -50,7 +51,7 @@ import static java.util.Optional.ofNullable;
 @ToString(exclude = "attachmentData")
 @EqualsAndHashCode
 @Slf4j
-public class EmailAttachmentImpl implements EmailAttachment {
+public class EmailAttachmentImpl implements EmailAttachment, Serializable {
 
     private static final long serialVersionUID = -3307831714212032363L;
 
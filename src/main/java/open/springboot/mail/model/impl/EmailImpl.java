@@ -24,6 +24,7 @@ import lombok.NoArgsConstructor;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import open.springboot.mail.model.Email;
+import open.springboot.mail.model.EmailPriority;
 
 import javax.mail.internet.InternetAddress;
 import java.io.Serializable;
@@ -73,6 +74,12 @@ public class EmailImpl implements Email, Serializable {
 
     private Date sentAt;
 
+    private String idempotencyKey;
+
+    private EmailPriority priority = EmailPriority.BULK;
+
+    private String digestCategory;
+
 }
 
 
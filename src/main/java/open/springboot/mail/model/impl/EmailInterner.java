@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.model.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import lombok.NonNull;
+
+import javax.mail.internet.InternetAddress;
+import java.util.concurrent.ExecutionException;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Canonicalizes the values that repeat across many emails, so that queued emails share a single instance of them.
+ * <p/>
+ * Canonical instances are weakly referenced, hence they are collected once no email refers to them anymore.
+ */
+final class EmailInterner {
+
+    private static final Interner<Object> VALUES = Interners.newWeakInterner();
+
+    private static final Cache<String, InternetAddress> ADDRESSES = CacheBuilder.newBuilder().weakValues().build();
+
+    private EmailInterner() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T intern(final T value) {
+        return isNull(value) ? null : (T) VALUES.intern(value);
+    }
+
+    /**
+     * Return the canonical copy of the given address.
+     * <p/>
+     * Since {@linkplain InternetAddress} is mutable and its equality ignores the personal name,
+     * the canonical instance is a private copy looked up by both the address and the personal name.
+     *
+     * @param address the address to be interned
+     * @return the shared copy of the given address
+     */
+    static InternetAddress intern(final InternetAddress address) {
+        if (isNull(address)) {
+            return null;
+        }
+        final String key = address.getAddress() + '\u0000' + address.getPersonal();
+        try {
+            return ADDRESSES.get(key, () -> (InternetAddress) address.clone());
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    static InternetAddress[] intern(final @NonNull InternetAddress[] addresses) {
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = intern(addresses[i]);
+        }
+        return addresses;
+    }
+
+}
@@ -25,12 +25,15 @@ import open.springboot.mail.model.ImageType;
 import open.springboot.mail.model.InlinePicture;
 
 import java.io.File;
+import java.io.Serializable;
 
 @NoArgsConstructor
 @AllArgsConstructor
 @Data
 @Builder
-public class InlinePictureImpl implements InlinePicture {
+public class InlinePictureImpl implements InlinePicture, Serializable {
+
+    private static final long serialVersionUID = 5018722468134592371L;
 
     private
     @NonNull
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.model.impl;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import open.springboot.mail.model.ImageType;
+import open.springboot.mail.model.InlinePicture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * An inline picture carrying its content, so that it can be stored and sent by another node or after a restart,
+ * when the original file is not available anymore.
+ * <p/>
+ * The content is written to a file in a spool directory, under the original file name, the first time the file is
+ * needed. The file is deleted by {@linkplain #discard}; whatever is left in the spool directory, e.g. by a crash, is
+ * deleted the next time the class is loaded.
+ */
+@Getter
+@EqualsAndHashCode
+@ToString(exclude = {"data", "file"})
+public class StoredInlinePicture implements InlinePicture, Serializable {
+
+    private static final long serialVersionUID = -1720638209153604512L;
+
+    static final Path SPOOL = Paths.get(System.getProperty("java.io.tmpdir"), "email-tools-pictures");
+
+    static {
+        cleanSpool();
+    }
+
+    private final ImageType imageType;
+
+    private final String fileName;
+
+    private final String templateName;
+
+    private final byte[] data;
+
+    @Getter(lombok.AccessLevel.NONE)
+    private transient File file;
+
+    public StoredInlinePicture(final @NonNull ImageType imageType, final @NonNull String fileName,
+                               final @NonNull String templateName, final @NonNull byte[] data) {
+        this.imageType = imageType;
+        this.fileName = fileName;
+        this.templateName = templateName;
+        this.data = data;
+    }
+
+    /**
+     * Read the content of the given picture.
+     *
+     * @param inlinePicture the picture to be stored
+     * @return a copy of the picture holding its content
+     * @throws UncheckedIOException if the picture file cannot be read
+     */
+    public static StoredInlinePicture copyOf(final @NonNull InlinePicture inlinePicture) {
+        if (inlinePicture instanceof StoredInlinePicture) {
+            return (StoredInlinePicture) inlinePicture;
+        }
+        final File source = inlinePicture.getFile();
+        try {
+            return new StoredInlinePicture(inlinePicture.getImageType(), source.getName(),
+                    inlinePicture.getTemplateName(), Files.readAllBytes(source.toPath()));
+        } catch (IOException e) {
+            throw new UncheckedIOException("The inline picture " + source + " cannot be read", e);
+        }
+    }
+
+    @Override
+    public synchronized File getFile() {
+        if (isNull(file) || !file.exists()) {
+            try {
+                final Path directory = Files.createTempDirectory(Files.createDirectories(SPOOL), "picture");
+                file = Files.write(directory.resolve(fileName), data).toFile();
+            } catch (IOException e) {
+                throw new UncheckedIOException("The inline picture " + fileName + " cannot be written", e);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Delete the spooled file, if any. It is written again if needed.
+     */
+    public synchronized void discard() {
+        if (nonNull(file)) {
+            final File directory = file.getParentFile();
+            if (file.delete()) {
+                directory.delete();
+            }
+            file = null;
+        }
+    }
+
+    private static void cleanSpool() {
+        if (Files.isDirectory(SPOOL)) {
+            try (Stream<Path> paths = Files.walk(SPOOL)) {
+                paths.sorted(Comparator.reverseOrder())
+                        .filter(path -> !path.equals(SPOOL))
+                        .forEach(path -> path.toFile().delete());
+            } catch (IOException | UncheckedIOException e) {
+                //the leftovers are deleted at the next start
+            }
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service;
+
+import lombok.Value;
+
+/**
+ * Snapshot of the counters of the queue of a recipient domain.
+ */
+@Value
+public class DomainStatistics {
+
+    String domain;
+
+    int queueDepth;
+
+    int inFlight;
+
+    long submitted;
+
+    long sent;
+
+    long failed;
+
+    /**
+     * Emails sent, or failed, per second over the last complete second.
+     */
+    double sendRate;
+
+    /**
+     * Number of times the domain has been paused after a failed send.
+     */
+    long pauses;
+
+}
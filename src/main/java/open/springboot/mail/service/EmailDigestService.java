@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service;
+
+import open.springboot.mail.model.Email;
+
+import javax.mail.internet.MimeMessage;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Defines a service merging the notifications sent to the same recipients into digests.
+ */
+public interface EmailDigestService {
+
+    /**
+     * Send an email message, merged into a digest if it has a digest category.
+     * <p/>
+     * The email is held until the digest of its recipients and category is flushed, when the digest window expires,
+     * the digest is full, the buffered emails exceed the memory bounds or the service is shut down. An email without
+     * digest category, or with attachments, is sent as is.
+     *
+     * @param mimeEmail an email to be send
+     * @return the future of the sent message, the digest if the email has been merged with others
+     */
+    CompletableFuture<MimeMessage> send(Email mimeEmail);
+
+    /**
+     * Flush all the pending digests.
+     */
+    void flush();
+
+}
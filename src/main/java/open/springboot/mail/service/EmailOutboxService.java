@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service;
+
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.InlinePicture;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Defines a durable outbox shared by several nodes: emails stored by any node are sent by the dispatchers of all the
+ * nodes, so the load is spread evenly and the emails of a crashed node are sent by the others.
+ * <p/>
+ * Emails are sent at least once: an email may be sent twice if a dispatcher loses its lease while sending it, hence
+ * emails that must not be duplicated should carry an idempotency key.
+ */
+public interface EmailOutboxService {
+
+    /**
+     * Store an email message in the outbox.
+     *
+     * @param mimeEmail an email to be send
+     * @return a future completed once the email is stored
+     * @throws java.util.concurrent.RejectedExecutionException if too many emails are waiting to be stored
+     */
+    CompletableFuture<Void> enqueue(Email mimeEmail);
+
+    /**
+     * Store in the outbox an email message whose body is obtained by processing the given template when sent.
+     *
+     * @param mimeEmail      an email to be send
+     * @param template       the reference to the template file
+     * @param modelObject    the model object to be used for the template engine, it may be null. Its values must be
+     *                       serializable
+     * @param inlinePictures list of pictures to be rendered inline in the template
+     * @return a future completed once the email is stored
+     * @throws java.util.concurrent.RejectedExecutionException if too many emails are waiting to be stored
+     */
+    CompletableFuture<Void> enqueue(Email mimeEmail,
+                                    String template, Map<String, Object> modelObject,
+                                    InlinePicture... inlinePictures);
+
+}
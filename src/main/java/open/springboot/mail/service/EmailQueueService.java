@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service;
+
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.InlinePicture;
+
+import javax.mail.internet.MimeMessage;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Defines a service queueing emails to be sent asynchronously by an {@linkplain EmailService}.
+ */
+public interface EmailQueueService {
+
+    /**
+     * Queue an email message.
+     *
+     * @param mimeEmail an email to be send
+     * @return a future completed with the sent message, or failed with a
+     * {@linkplain open.springboot.mail.exceptions.DuplicateEmailException} if the email has already been sent
+     * @throws java.util.concurrent.RejectedExecutionException if the queue is full or shutting down
+     */
+    CompletableFuture<MimeMessage> enqueue(Email mimeEmail);
+
+    /**
+     * Queue an email message whose body is obtained by processing the given template.
+     *
+     * @param mimeEmail      an email to be send
+     * @param template       the reference to the template file
+     * @param modelObject    the model object to be used for the template engine, it may be null
+     * @param inlinePictures list of pictures to be rendered inline in the template
+     * @return a future completed with the sent message, or failed with a
+     * {@linkplain open.springboot.mail.exceptions.DuplicateEmailException} if the email has already been sent
+     * @throws java.util.concurrent.RejectedExecutionException if the queue is full or shutting down
+     */
+    CompletableFuture<MimeMessage> enqueue(Email mimeEmail,
+                                           String template, Map<String, Object> modelObject,
+                                           InlinePicture... inlinePictures);
+
+    /**
+     * Tell whether the queue still accepts emails, i.e. it is not shutting down.
+     * <p/>
+     * A queue accepting emails may still reject them while it is full.
+     *
+     * @return false once the queue is shutting down
+     */
+    default boolean isAccepting() {
+        return true;
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service;
+
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.InlinePicture;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Defines a service holding emails until the time they have to be sent.
+ */
+public interface EmailSchedulerService {
+
+    /**
+     * Schedule an email message.
+     * <p/>
+     * The send date of the email is set when the email is actually sent.
+     *
+     * @param mimeEmail an email to be send
+     * @param sendAt    the time when the email has to be sent, if in the past the email is sent as soon as possible
+     * @return the identifier of the scheduled email
+     */
+    String schedule(Email mimeEmail, Date sendAt);
+
+    /**
+     * Schedule an email message whose body is obtained by processing the given template at the send time.
+     *
+     * @param mimeEmail      an email to be send
+     * @param sendAt         the time when the email has to be sent
+     * @param template       the reference to the template file
+     * @param modelObject    the model object to be used for the template engine, it may be null
+     * @param inlinePictures list of pictures to be rendered inline in the template
+     * @return the identifier of the scheduled email
+     */
+    String schedule(Email mimeEmail, Date sendAt,
+                    String template, Map<String, Object> modelObject,
+                    InlinePicture... inlinePictures);
+
+    /**
+     * Cancel a scheduled email.
+     *
+     * @param scheduledEmailId the identifier returned when the email has been scheduled
+     * @return true if the email was pending, false if it has already been sent or cancelled
+     */
+    boolean cancel(String scheduledEmailId);
+
+}
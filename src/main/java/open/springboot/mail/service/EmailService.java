@@ -29,8 +29,15 @@ public interface EmailService {
      * Send an email message.
      * <p/>
      * The send date is set or overridden if any is present.
+     * The email is rejected with a {@linkplain open.springboot.mail.exceptions.DuplicateEmailException} if its
+     * idempotency key belongs to an email already sent.
+     * The email is rejected with an {@linkplain open.springboot.mail.exceptions.EmailTooLargeException} before being
+     * built if a size limit is configured and its estimated size exceeds it.
+     * The email is rejected with a {@linkplain open.springboot.mail.exceptions.ConcurrencyLimitExceededException}
+     * if a concurrency limit is configured and no slot became available in time.
      *
      * @param mimeEmail an email to be send
+     * @return the sent message
      */
     MimeMessage send(Email mimeEmail);
 
@@ -39,11 +46,18 @@ public interface EmailService {
      * <p/>
      * The body is ignored if present.
      * The send date is set or overridden if any is present.
+     * The email is rejected with a {@linkplain open.springboot.mail.exceptions.DuplicateEmailException} if its
+     * idempotency key belongs to an email already sent.
+     * The email is rejected with an {@linkplain open.springboot.mail.exceptions.EmailTooLargeException} before being
+     * built if a size limit is configured and its estimated size exceeds it.
+     * The email is rejected with a {@linkplain open.springboot.mail.exceptions.ConcurrencyLimitExceededException}
+     * if a concurrency limit is configured and no slot became available in time.
      *
      * @param mimeEmail      an email to be send
      * @param template       the reference to the template file
      * @param modelObject    the model object to be used for the template engine, it may be null
      * @param inlinePictures list of pictures to be rendered inline in the template
+     * @return the sent message
      */
     MimeMessage send(Email mimeEmail,
                      String template, Map<String, Object> modelObject,
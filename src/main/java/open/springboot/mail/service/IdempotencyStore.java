@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service;
+
+/**
+ * Defines a store of idempotency keys, used to drop emails that have already been sent.
+ */
+public interface IdempotencyStore {
+
+    /**
+     * Record the given key, unless it is already known.
+     *
+     * @param idempotencyKey the key of the email to be sent
+     * @return true if the key was not known and has been recorded, false if the email is a duplicate
+     */
+    boolean putIfAbsent(String idempotencyKey);
+
+    /**
+     * Forget the given key, e.g. because the email could not be sent and may be retried.
+     *
+     * @param idempotencyKey the key to be removed
+     */
+    void remove(String idempotencyKey);
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service;
+
+import lombok.Value;
+import open.springboot.mail.model.EmailPriority;
+
+/**
+ * Snapshot of the counters of a priority lane.
+ */
+@Value
+public class LaneStatistics {
+
+    EmailPriority priority;
+
+    int queueDepth;
+
+    long submitted;
+
+    long sent;
+
+    long failed;
+
+    long rejected;
+
+    /**
+     * Average time spent in the queue by the emails taken so far.
+     */
+    double averageTimeInQueueMillis;
+
+    long maxTimeInQueueMillis;
+
+    /**
+     * Number of emails that waited in the queue longer than the latency objective of the lane.
+     */
+    long sloViolations;
+
+    /**
+     * Number of emails sent, or failed, while draining the lane on shutdown.
+     */
+    long drained;
+
+    /**
+     * Number of emails still queued when the drain deadline expired.
+     */
+    long abandoned;
+
+    /**
+     * Number of abandoned emails stored in the outbox, to be sent later.
+     */
+    long persisted;
+
+}
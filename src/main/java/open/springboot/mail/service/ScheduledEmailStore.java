@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service;
+
+import open.springboot.mail.model.ScheduledEmail;
+
+import java.util.Collection;
+
+/**
+ * Defines a durable store for the scheduled emails, so that they survive a restart.
+ */
+public interface ScheduledEmailStore {
+
+    void save(ScheduledEmail scheduledEmail);
+
+    void delete(String scheduledEmailId);
+
+    /**
+     * Return all the emails scheduled and not yet sent or cancelled.
+     *
+     * @return the pending scheduled emails
+     */
+    Collection<ScheduledEmail> findAll();
+
+}
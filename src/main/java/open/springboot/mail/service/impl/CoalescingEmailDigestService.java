@@ -0,0 +1,408 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.model.DigestEntry;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.impl.EmailImpl;
+import open.springboot.mail.service.DigestStatistics;
+import open.springboot.mail.service.EmailDigestService;
+import open.springboot.mail.service.EmailQueueService;
+import open.springboot.mail.service.EmailService;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PreDestroy;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Buffers the emails sent to the same recipients with the same digest category, and merges them into one email
+ * through the digest template.
+ * <p/>
+ * A digest is flushed when its window expires, counted from its first email, when it holds the maximum number of
+ * emails, or on shutdown. The buffered emails are bounded in number and in characters: the oldest digests are flushed
+ * early to make room for the new emails. A digest holding a single email is sent as the original email.
+ * <p/>
+ * The digests are handed to the {@linkplain EmailQueueService}, if any, otherwise they are sent by the
+ * {@linkplain EmailService} from a pool of sender threads, apart from the thread expiring the windows so that a slow
+ * relay does not delay the other digests. The emails passed through, e.g. with attachments, are sent by the same pool,
+ * to be sized for both.
+ */
+@Slf4j
+public class CoalescingEmailDigestService implements EmailDigestService {
+
+    private enum FlushReason {TIME, SIZE, MEMORY, SHUTDOWN}
+
+    private final EmailService emailService;
+
+    private final String template;
+
+    private final String subjectFormat;
+
+    private final long windowMillis;
+
+    private final int maxEmailsPerDigest;
+
+    private final int maxBufferedEmails;
+
+    private final long maxBufferedChars;
+
+    private final ScheduledThreadPoolExecutor timer;
+
+    private final ExecutorService sender;
+
+    /**
+     * The pending digests by recipients and category, oldest first, guarded by itself.
+     */
+    private final Map<String, Digest> digests = new LinkedHashMap<>();
+
+    private int bufferedEmails;
+
+    private long bufferedChars;
+
+    private long submitted;
+
+    private long coalesced;
+
+    private long sent;
+
+    private long failed;
+
+    private final long[] flushed = new long[FlushReason.values().length];
+
+    private EmailQueueService emailQueueService;
+
+    private volatile boolean accepting = true;
+
+    public CoalescingEmailDigestService(final @NonNull EmailService emailService,
+                                        final @NonNull String template,
+                                        final @NonNull String subjectFormat,
+                                        final long windowMillis,
+                                        final int maxEmailsPerDigest,
+                                        final int maxBufferedEmails,
+                                        final long maxBufferedChars,
+                                        final int senders) {
+        checkArgument(windowMillis > 0, "The digest window must be positive");
+        checkArgument(maxEmailsPerDigest > 1, "A digest must hold at least two emails");
+        checkArgument(maxBufferedEmails > 0, "The maximum number of buffered emails must be positive");
+        checkArgument(maxBufferedChars > 0, "The maximum number of buffered characters must be positive");
+        checkArgument(senders > 0, "The digests need at least a sender");
+        this.emailService = emailService;
+        this.template = template;
+        this.subjectFormat = subjectFormat;
+        this.windowMillis = windowMillis;
+        this.maxEmailsPerDigest = maxEmailsPerDigest;
+        this.maxBufferedEmails = maxBufferedEmails;
+        this.maxBufferedChars = maxBufferedChars;
+        timer = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("email-digest-timer").setDaemon(true).build());
+        timer.setRemoveOnCancelPolicy(true);
+        timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        sender = Executors.newFixedThreadPool(senders,
+                new ThreadFactoryBuilder().setNameFormat("email-digest-sender-%d").setDaemon(true).build());
+    }
+
+    @Autowired(required = false)
+    public void setEmailQueueService(final EmailQueueService emailQueueService) {
+        this.emailQueueService = emailQueueService;
+    }
+
+    @Override
+    public CompletableFuture<MimeMessage> send(final @NonNull Email email) {
+        checkAccepting();
+        final CompletableFuture<MimeMessage> future = new CompletableFuture<>();
+        final String category = email.getDigestCategory();
+        final DigestEntry entry = isNull(category) ? null : new DigestEntry(nullToEmpty(email.getSubject()),
+                nullToEmpty(email.getBody()), new Date());
+        final long chars = isNull(entry) ? 0 : entry.getSubject().length() + entry.getBody().length();
+        final boolean hasAttachments = nonNull(email.getAttachments()) && !email.getAttachments().isEmpty();
+        if (isNull(entry) || hasAttachments || chars > maxBufferedChars) {
+            synchronized (digests) {
+                checkAccepting();
+                submitted++;
+            }
+            dispatch(email, null, future);
+            return future;
+        }
+
+        final List<Digest> toFlush = new ArrayList<>();
+        synchronized (digests) {
+            //Checked again under the lock, so that no email is buffered once the digests are flushed on shutdown
+            checkAccepting();
+            submitted++;
+            //Make room for the email, oldest digests first
+            final Iterator<Digest> oldest = digests.values().iterator();
+            while (oldest.hasNext()
+                    && (bufferedEmails >= maxBufferedEmails || bufferedChars + chars > maxBufferedChars)) {
+                final Digest digest = oldest.next();
+                oldest.remove();
+                release(digest, FlushReason.MEMORY);
+                toFlush.add(digest);
+            }
+            final String key = key(email, category);
+            Digest digest = digests.get(key);
+            if (isNull(digest)) {
+                final Digest created = new Digest(key, email, category);
+                created.timer = timer.schedule(() -> expire(created), windowMillis, TimeUnit.MILLISECONDS);
+                digests.put(key, created);
+                digest = created;
+            }
+            digest.add(entry, chars, future);
+            bufferedEmails++;
+            bufferedChars += chars;
+            if (digest.entries.size() >= maxEmailsPerDigest) {
+                digests.remove(key);
+                release(digest, FlushReason.SIZE);
+                toFlush.add(digest);
+            }
+        }
+        toFlush.forEach(this::flush);
+        return future;
+    }
+
+    @Override
+    public void flush() {
+        flushAll(FlushReason.TIME);
+    }
+
+    /**
+     * @return a snapshot of the counters of the digests
+     */
+    public DigestStatistics getStatistics() {
+        synchronized (digests) {
+            return new DigestStatistics(submitted, coalesced, sent, failed, flushed[FlushReason.TIME.ordinal()],
+                    flushed[FlushReason.SIZE.ordinal()], flushed[FlushReason.MEMORY.ordinal()],
+                    flushed[FlushReason.SHUTDOWN.ordinal()], digests.size(), bufferedEmails, bufferedChars);
+        }
+    }
+
+    /**
+     * Reject new emails, then flush the pending digests and wait for them to be sent.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        accepting = false;
+        flushAll(FlushReason.SHUTDOWN);
+        timer.shutdown();
+        final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        timer.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        sender.shutdown();
+        if (!sender.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            log.warn("Shutting down with digests still being sent");
+        }
+    }
+
+    private void checkAccepting() {
+        if (!accepting) {
+            throw new RejectedExecutionException("The digest service has been shut down");
+        }
+    }
+
+    private void flushAll(final FlushReason reason) {
+        final List<Digest> toFlush;
+        synchronized (digests) {
+            toFlush = new ArrayList<>(digests.values());
+            digests.clear();
+            toFlush.forEach(digest -> release(digest, reason));
+        }
+        toFlush.forEach(this::flush);
+    }
+
+    private void expire(final Digest digest) {
+        synchronized (digests) {
+            if (digests.get(digest.key) != digest) {
+                //Already flushed
+                return;
+            }
+            digests.remove(digest.key);
+            release(digest, FlushReason.TIME);
+        }
+        flush(digest);
+    }
+
+    /**
+     * Account for a digest removed from the buffers, while holding their lock.
+     */
+    private void release(final Digest digest, final FlushReason reason) {
+        digest.timer.cancel(false);
+        bufferedEmails -= digest.entries.size();
+        bufferedChars -= digest.chars;
+        flushed[reason.ordinal()]++;
+        if (digest.entries.size() > 1) {
+            coalesced += digest.entries.size();
+        }
+    }
+
+    private void flush(final Digest digest) {
+        if (digest.entries.size() == 1) {
+            dispatch(digest.first, null, digest.futures.get(0));
+            return;
+        }
+        final EmailImpl merged = EmailImpl.builder()
+                .from(digest.first.getFrom())
+                .replyTo(digest.first.getReplyTo())
+                .to(digest.first.getTo())
+                .cc(digest.first.getCc())
+                .bcc(digest.first.getBcc())
+                .subject(String.format(subjectFormat, digest.entries.size(), digest.category))
+                .body("")
+                .encoding(digest.first.getEncoding())
+                .locale(digest.first.getLocale())
+                .priority(digest.first.getPriority())
+                .build();
+        final Map<String, Object> model = ImmutableMap.of("category", digest.category,
+                "count", digest.entries.size(), "entries", digest.entries);
+        final CompletableFuture<MimeMessage> future = new CompletableFuture<>();
+        future.whenComplete((mimeMessage, e) -> digest.futures.forEach(entryFuture -> {
+            if (isNull(e)) {
+                entryFuture.complete(mimeMessage);
+            } else {
+                entryFuture.completeExceptionally(e);
+            }
+        }));
+        dispatch(merged, model, future);
+    }
+
+    /**
+     * Send an email, through the template if a model is given, and report the outcome to the future.
+     */
+    private void dispatch(final Email email, final Map<String, Object> model,
+                          final CompletableFuture<MimeMessage> future) {
+        CompletableFuture<MimeMessage> sending;
+        if (nonNull(emailQueueService)) {
+            try {
+                sending = isNull(model) ? emailQueueService.enqueue(email)
+                        : emailQueueService.enqueue(email, template, model);
+            } catch (RuntimeException e) {
+                //e.g. the queue is full or shut down
+                sending = new CompletableFuture<>();
+                sending.completeExceptionally(e);
+            }
+        } else {
+            sending = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return isNull(model) ? emailService.send(email) : emailService.send(email, template, model);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, command -> {
+                try {
+                    sender.execute(command);
+                } catch (RejectedExecutionException e) {
+                    //Shutting down
+                    command.run();
+                }
+            });
+        }
+        sending.whenComplete((mimeMessage, e) -> {
+            synchronized (digests) {
+                if (isNull(e)) {
+                    sent++;
+                } else {
+                    failed++;
+                }
+            }
+            if (isNull(e)) {
+                future.complete(mimeMessage);
+            } else {
+                final Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                log.error("Cannot send an email merging {} notifications", isNull(model) ? 1 : model.get("count"),
+                        cause);
+                future.completeExceptionally(cause);
+            }
+        });
+    }
+
+    private static String key(final Email email, final String category) {
+        return category + '\n' + email.getFrom().getAddress().toLowerCase(Locale.ROOT)
+                + '\n' + addresses(email.getTo()) + '\n' + addresses(email.getCc()) + '\n' + addresses(email.getBcc());
+    }
+
+    private static String addresses(final Collection<InternetAddress> addresses) {
+        final TreeSet<String> sorted = new TreeSet<>();
+        if (nonNull(addresses)) {
+            addresses.forEach(address -> sorted.add(String.valueOf(address.getAddress()).toLowerCase(Locale.ROOT)));
+        }
+        return String.join(",", sorted);
+    }
+
+    private static String nullToEmpty(final String value) {
+        return isNull(value) ? "" : value;
+    }
+
+    /**
+     * The emails buffered for a recipient and category, guarded by the lock of the buffers.
+     */
+    private static final class Digest {
+
+        private final String key;
+
+        /**
+         * The first email, giving the sender, the recipients and the encoding of the digest.
+         */
+        private final Email first;
+
+        private final String category;
+
+        private final List<DigestEntry> entries = new ArrayList<>();
+
+        private final List<CompletableFuture<MimeMessage>> futures = new ArrayList<>();
+
+        private long chars;
+
+        private ScheduledFuture<?> timer;
+
+        private Digest(final String key, final Email first, final String category) {
+            this.key = key;
+            this.first = first;
+            this.category = category;
+        }
+
+        private void add(final DigestEntry entry, final long entryChars, final CompletableFuture<MimeMessage> future) {
+            entries.add(entry);
+            futures.add(future);
+            chars += entryChars;
+        }
+    }
+
+}
@@ -0,0 +1,627 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.InlinePicture;
+import open.springboot.mail.service.DomainStatistics;
+import open.springboot.mail.service.EmailOutboxService;
+import open.springboot.mail.service.EmailQueueService;
+import open.springboot.mail.service.EmailService;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PreDestroy;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+
+/**
+ * <p>
+ * Queues the emails by recipient domain, and sends them with a rate limit and a concurrency cap for each domain, so
+ * that the throttling of each provider is respected.
+ * </p>
+ * <p>
+ * The workers serve the domains in turn, skipping the domains over their rate or concurrency limits: a slow or
+ * throttled domain does not stall the others. The emails are paced evenly at the rate of their domain, without
+ * bursts. A domain is paused for a while after a failed send, since the provider is likely deferring.
+ * </p>
+ * <p>
+ * An email is queued on the domain of its first recipient, in To, Cc then Bcc order. It is only sent while its other
+ * recipient domains are neither paused nor at their concurrency caps, the next emails of its domain being sent in the
+ * meantime, and it is then counted in flight for each of them and against their rates.
+ * </p>
+ * <p>
+ * The queues of the domains not sent to for a while are dropped, along with their counters, so that sending to many
+ * distinct domains does not grow the memory.
+ * </p>
+ * <p>
+ * On shutdown, new emails are rejected and the queued ones are still sent until the queues are empty or the drain
+ * deadline expires. The emails left are stored in the {@linkplain EmailOutboxService} if any, and reported otherwise.
+ * </p>
+ */
+@Slf4j
+public class DomainThrottlingEmailQueueService implements EmailQueueService {
+
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    /**
+     * Time after which the queue of a domain not sent to is dropped.
+     */
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final EmailService emailService;
+
+    private final int capacity;
+
+    private final Limits defaults;
+
+    private final Map<String, Limits> overrides;
+
+    private final long failurePauseNanos;
+
+    private final long drainMillis;
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    /**
+     * The queues of all the domains sent to, guarded by the lock.
+     */
+    private final Map<String, DomainQueue> domains = new HashMap<>();
+
+    /**
+     * The queues with emails, in the order they are served, guarded by the lock.
+     */
+    private final Deque<DomainQueue> ring = new ArrayDeque<>();
+
+    private int queued;
+
+    private long nextEvictionAt = System.nanoTime() + IDLE_NANOS;
+
+    private EmailOutboxService emailOutboxService;
+
+    private volatile boolean accepting = true;
+
+    private volatile boolean running = true;
+
+    public DomainThrottlingEmailQueueService(final @NonNull EmailService emailService, final int workerCount,
+                                             final int capacity, final @NonNull Limits defaults,
+                                             final @NonNull Map<String, Limits> overrides,
+                                             final long failurePauseMillis, final long drainMillis) {
+        checkArgument(workerCount > 0, "At least a worker is needed");
+        checkArgument(capacity > 0, "The capacity must be positive");
+        checkArgument(failurePauseMillis >= 0, "The failure pause cannot be negative");
+        checkArgument(drainMillis >= 0, "The drain deadline cannot be negative");
+        this.emailService = emailService;
+        this.capacity = capacity;
+        this.defaults = defaults;
+        this.overrides = ImmutableMap.copyOf(overrides.entrySet().stream()
+                .collect(toMap(entry -> normalize(entry.getKey()), Map.Entry::getValue)));
+        this.failurePauseNanos = TimeUnit.MILLISECONDS.toNanos(failurePauseMillis);
+        this.drainMillis = drainMillis;
+
+        final ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("email-domain-%d").setDaemon(true).build();
+        for (int i = 0; i < workerCount; i++) {
+            final Thread worker = threadFactory.newThread(this::work);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Set the outbox storing the emails still queued when the drain deadline expires on shutdown.
+     */
+    @Autowired(required = false)
+    public void setEmailOutboxService(final EmailOutboxService emailOutboxService) {
+        this.emailOutboxService = emailOutboxService;
+    }
+
+    @Override
+    public CompletableFuture<MimeMessage> enqueue(final @NonNull Email email) {
+        return offer(email, () -> emailService.send(email), outbox -> outbox.enqueue(email));
+    }
+
+    @Override
+    public CompletableFuture<MimeMessage> enqueue(final @NonNull Email email,
+                                                  final @NonNull String template,
+                                                  final Map<String, Object> modelObject,
+                                                  final @NonNull InlinePicture... inlinePictures) {
+        return offer(email, () -> emailService.send(email, template, modelObject, inlinePictures),
+                outbox -> outbox.enqueue(email, template, modelObject, inlinePictures));
+    }
+
+    @Override
+    public boolean isAccepting() {
+        return accepting;
+    }
+
+    /**
+     * @return the counters of the queue of the given domain, if any email has been queued for it recently
+     */
+    public Optional<DomainStatistics> getStatistics(final @NonNull String domain) {
+        lock.lock();
+        try {
+            return Optional.ofNullable(domains.get(normalize(domain)))
+                    .map(queue -> queue.statistics(System.nanoTime()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the counters of the queues of all the domains sent to recently
+     */
+    public List<DomainStatistics> getStatistics() {
+        lock.lock();
+        try {
+            final long now = System.nanoTime();
+            return domains.values().stream().map(queue -> queue.statistics(now)).collect(toList());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reject new emails, then send the queued ones until the queues are empty or the drain deadline expires. The
+     * futures of the emails left are cancelled, once the emails are stored in the outbox if any.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        signal(() -> accepting = false);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        for (final Thread worker : workers) {
+            final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis > 0) {
+                worker.join(remainingMillis);
+            }
+        }
+        signal(() -> running = false);
+        for (final Thread worker : workers) {
+            worker.join(POLL_TIMEOUT_MILLIS);
+        }
+        final List<Task> abandoned = new ArrayList<>();
+        lock.lock();
+        try {
+            for (final DomainQueue queue : ring) {
+                abandoned.addAll(queue.tasks);
+                queue.tasks.clear();
+            }
+            ring.clear();
+            queued = 0;
+        } finally {
+            lock.unlock();
+        }
+        if (!abandoned.isEmpty()) {
+            log.warn("Shutting down with {} emails still queued after {} ms, {} stored in the outbox",
+                    abandoned.size(), drainMillis, persist(abandoned));
+        }
+        abandoned.forEach(task -> task.future.cancel(false));
+    }
+
+    private long persist(final List<Task> tasks) {
+        if (isNull(emailOutboxService)) {
+            return 0;
+        }
+        long persisted = 0;
+        for (final Task task : tasks) {
+            try {
+                task.persist.apply(emailOutboxService);
+                persisted++;
+            } catch (RuntimeException e) {
+                log.error("Cannot store an email queued for {} in the outbox", task.domains.iterator().next(), e);
+            }
+        }
+        return persisted;
+    }
+
+    private void signal(final Runnable change) {
+        lock.lock();
+        try {
+            change.run();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private CompletableFuture<MimeMessage> offer(final Email email, final Send send,
+                                                 final Function<EmailOutboxService, ?> persist) {
+        final Task task = new Task(domainsOf(email), send, persist);
+        lock.lock();
+        try {
+            if (!accepting) {
+                throw new RejectedExecutionException("The email queue has been shut down");
+            }
+            if (queued >= capacity) {
+                throw new RejectedExecutionException("The email queue is full");
+            }
+            final DomainQueue queue = domainQueue(task.domains.iterator().next());
+            queue.tasks.addLast(task);
+            queue.submitted++;
+            queue.lastActiveAt = System.nanoTime();
+            queued++;
+            if (!queue.inRing) {
+                queue.inRing = true;
+                ring.addLast(queue);
+            }
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        return task.future;
+    }
+
+    private DomainQueue domainQueue(final String domain) {
+        return domains.computeIfAbsent(domain, name -> new DomainQueue(name, overrides.getOrDefault(name, defaults)));
+    }
+
+    private static Set<String> domainsOf(final Email email) {
+        final Set<String> domains = new LinkedHashSet<>();
+        addDomains(domains, email.getTo());
+        addDomains(domains, email.getCc());
+        addDomains(domains, email.getBcc());
+        if (domains.isEmpty()) {
+            domains.add("");
+        }
+        return domains;
+    }
+
+    private static void addDomains(final Set<String> domains, final Collection<InternetAddress> addresses) {
+        if (nonNull(addresses)) {
+            for (final InternetAddress address : addresses) {
+                final String value = address.getAddress();
+                domains.add(isNull(value) ? "" : normalize(value.substring(value.lastIndexOf('@') + 1)));
+            }
+        }
+    }
+
+    private static String normalize(final String domain) {
+        return domain.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private void work() {
+        while (true) {
+            final Dispatch dispatch;
+            lock.lock();
+            try {
+                dispatch = next();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            if (isNull(dispatch)) {
+                return;
+            }
+            run(dispatch);
+        }
+    }
+
+    /**
+     * Wait for an email of a domain within its limits, serving the domains in turn.
+     *
+     * @return the email to send, or null if the workers must stop
+     */
+    private Dispatch next() throws InterruptedException {
+        while (true) {
+            if (!running || (!accepting && queued == 0)) {
+                return null;
+            }
+            final long now = System.nanoTime();
+            if (now - nextEvictionAt >= 0) {
+                evictIdleDomains(now);
+                nextEvictionAt = now + IDLE_NANOS;
+            }
+            long waitNanos = TimeUnit.MILLISECONDS.toNanos(POLL_TIMEOUT_MILLIS);
+            for (int i = ring.size(); i > 0; i--) {
+                final DomainQueue queue = ring.pollFirst();
+                ring.addLast(queue);
+                final long delay = queue.delay(now);
+                if (delay > 0) {
+                    waitNanos = Math.min(waitNanos, delay);
+                    continue;
+                }
+                //The emails blocked by their other domains are skipped, the scan stops at the first single domain one
+                for (final Iterator<Task> tasks = queue.tasks.iterator(); tasks.hasNext(); ) {
+                    final Task task = tasks.next();
+                    final long otherDelay = otherDomainsDelay(task, now);
+                    if (otherDelay == 0) {
+                        tasks.remove();
+                        queued--;
+                        if (queue.tasks.isEmpty()) {
+                            queue.inRing = false;
+                            ring.pollLast();
+                        }
+                        final List<DomainQueue> others = task.domains.stream().skip(1).map(this::domainQueue)
+                                .collect(toList());
+                        queue.take(now);
+                        others.forEach(other -> other.take(now));
+                        return new Dispatch(queue, others, task);
+                    }
+                    waitNanos = Math.min(waitNanos, otherDelay);
+                }
+            }
+            changed.awaitNanos(waitNanos);
+        }
+    }
+
+    /**
+     * @return zero if none of the other domains of the email is paused or at its concurrency cap, the time to wait
+     * otherwise; their rates are not waited for
+     */
+    private long otherDomainsDelay(final Task task, final long now) {
+        return task.domains.stream().skip(1)
+                .map(domains::get)
+                .filter(Objects::nonNull)
+                .mapToLong(other -> other.blockedFor(now))
+                .max().orElse(0);
+    }
+
+    /**
+     * Drop the queues of the domains not sent to for a while, once their rate and pause have expired.
+     *
+     * @return the number of queues dropped
+     */
+    int evictIdleDomains(final long now) {
+        lock.lock();
+        try {
+            final int size = domains.size();
+            domains.values().removeIf(queue -> queue.isIdle(now));
+            return size - domains.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run(final Dispatch dispatch) {
+        MimeMessage mimeMessage = null;
+        Exception failure = null;
+        try {
+            mimeMessage = dispatch.task.send.send();
+        } catch (Exception e) {
+            log.error("Cannot send queued email to {}", dispatch.queue.domain, e);
+            failure = e;
+        }
+        //The outcome is recorded first, so that the domain is paused before the sender learns about the failure
+        final boolean success = isNull(failure);
+        signal(() -> {
+            final long now = System.nanoTime();
+            dispatch.queue.completed(now, success, failurePauseNanos);
+            dispatch.others.forEach(other -> other.released(now));
+        });
+        if (success) {
+            dispatch.task.future.complete(mimeMessage);
+        } else {
+            dispatch.task.future.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Rate, in emails per second, and concurrency limits of a domain. A rate of zero disables the rate limit.
+     */
+    @lombok.Value
+    public static class Limits {
+
+        double rate;
+
+        int concurrency;
+
+        public Limits(final double rate, final int concurrency) {
+            checkArgument(rate >= 0, "The rate cannot be negative");
+            checkArgument(concurrency > 0, "The concurrency must be positive");
+            this.rate = rate;
+            this.concurrency = concurrency;
+        }
+
+    }
+
+    @FunctionalInterface
+    private interface Send {
+        MimeMessage send() throws Exception;
+    }
+
+    /**
+     * The emails and counters of a domain, guarded by the lock of the service.
+     */
+    private static final class DomainQueue {
+
+        private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final String domain;
+
+        private final int concurrency;
+
+        /**
+         * Time between two emails, zero for no rate limit.
+         */
+        private final long intervalNanos;
+
+        private final Deque<Task> tasks = new ArrayDeque<>();
+
+        private boolean inRing;
+
+        private int inFlight;
+
+        /**
+         * Time from which the next email may be sent, pushed forward by each email sent.
+         */
+        private long nextSendAt = System.nanoTime();
+
+        private long pausedUntil = nextSendAt;
+
+        private long lastActiveAt = nextSendAt;
+
+        private long submitted;
+
+        private long sent;
+
+        private long failed;
+
+        private long pauses;
+
+        private long rateWindowStart = nextSendAt;
+
+        private long rateWindowCount;
+
+        private double sendRate;
+
+        private DomainQueue(final String domain, final Limits limits) {
+            this.domain = domain;
+            this.concurrency = limits.getConcurrency();
+            this.intervalNanos = limits.getRate() == 0 ? 0 : (long) (SECOND_NANOS / limits.getRate());
+        }
+
+        /**
+         * @return zero if an email can be sent now, the time to wait otherwise
+         */
+        private long delay(final long now) {
+            if (inFlight >= concurrency) {
+                return Long.MAX_VALUE;
+            }
+            return Math.max(0, Math.max(nextSendAt, pausedUntil) - now);
+        }
+
+        /**
+         * @return zero if an email queued on another domain can be sent to this one now, the time to wait otherwise
+         */
+        private long blockedFor(final long now) {
+            if (inFlight >= concurrency) {
+                return Long.MAX_VALUE;
+            }
+            return Math.max(0, pausedUntil - now);
+        }
+
+        /**
+         * Count an email in flight and against the rate limit, even if over it.
+         */
+        private void take(final long now) {
+            inFlight++;
+            nextSendAt = Math.max(nextSendAt, now) + intervalNanos;
+            lastActiveAt = now;
+        }
+
+        /**
+         * Release an email queued on another domain.
+         */
+        private void released(final long now) {
+            inFlight--;
+            lastActiveAt = now;
+        }
+
+        private boolean isIdle(final long now) {
+            return tasks.isEmpty() && inFlight == 0 && now - lastActiveAt >= IDLE_NANOS && now - nextSendAt >= 0
+                    && now - pausedUntil >= 0;
+        }
+
+        private void completed(final long now, final boolean success, final long failurePauseNanos) {
+            inFlight--;
+            lastActiveAt = now;
+            if (success) {
+                sent++;
+            } else {
+                failed++;
+                if (failurePauseNanos > 0) {
+                    pauses++;
+                    pausedUntil = now + failurePauseNanos;
+                }
+            }
+            rateWindowCount++;
+            if (now - rateWindowStart >= SECOND_NANOS) {
+                sendRate = rateWindowCount * (double) SECOND_NANOS / (now - rateWindowStart);
+                rateWindowStart = now;
+                rateWindowCount = 0;
+            }
+        }
+
+        private DomainStatistics statistics(final long now) {
+            //The rate drops to zero once no email has been sent for a whole window
+            final double rate = now - rateWindowStart >= 2 * SECOND_NANOS ? 0 : sendRate;
+            return new DomainStatistics(domain, tasks.size(), inFlight, submitted, sent, failed, rate, pauses);
+        }
+    }
+
+    private static final class Task {
+
+        private final Set<String> domains;
+
+        private final Send send;
+
+        private final Function<EmailOutboxService, ?> persist;
+
+        private final CompletableFuture<MimeMessage> future = new CompletableFuture<>();
+
+        private Task(final Set<String> domains, final Send send, final Function<EmailOutboxService, ?> persist) {
+            this.domains = domains;
+            this.send = send;
+            this.persist = persist;
+        }
+    }
+
+    private static final class Dispatch {
+
+        private final DomainQueue queue;
+
+        /**
+         * The queues of the other recipient domains, counting the email in flight.
+         */
+        private final List<DomainQueue> others;
+
+        private final Task task;
+
+        private Dispatch(final DomainQueue queue, final List<DomainQueue> others, final Task task) {
+            this.queue = queue;
+            this.others = others;
+            this.task = task;
+        }
+    }
+
+}
@@ -20,16 +20,28 @@ import com.google.common.collect.ImmutableMap;
 import freemarker.template.TemplateException;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.exceptions.DuplicateEmailException;
+import open.springboot.mail.exceptions.EmailTooLargeException;
+import open.springboot.mail.exceptions.TemplateBudgetExceededException;
 import open.springboot.mail.model.Email;
 import open.springboot.mail.model.InlinePicture;
 import open.springboot.mail.service.EmailService;
 import open.springboot.mail.service.Exception.CannotSendEmailException;
+import open.springboot.mail.service.IdempotencyStore;
 import open.springboot.mail.service.TemplateService;
+import open.springboot.mail.utils.AdaptiveConcurrencyLimiter;
+import open.springboot.mail.utils.EmailSizeLimiter;
 import open.springboot.mail.utils.EmailToMimeMessage;
+import open.springboot.mail.utils.InlinePictureRegistry;
+import open.springboot.mail.utils.PipelineEvent;
+import open.springboot.mail.utils.PipelineEvents;
+import open.springboot.mail.utils.PipelineStage;
+import open.springboot.mail.utils.TransferEncodingSelector;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.stereotype.Service;
 
+import javax.mail.Address;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
@@ -37,10 +49,13 @@ import javax.mail.internet.MimeMultipart;
 import javax.validation.constraints.NotNull;
 import java.io.IOException;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Set;
 
 import static com.google.common.base.Optional.fromNullable;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
 
 /**
  * @author rtrunfio
@@ -55,6 +70,16 @@ public class EmailServiceImpl implements EmailService {
 
     private EmailToMimeMessage emailToMimeMessage;
 
+    private IdempotencyStore idempotencyStore;
+
+    private InlinePictureRegistry inlinePictureRegistry = new InlinePictureRegistry();
+
+    private EmailSizeLimiter emailSizeLimiter;
+
+    private AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+    private TransferEncodingSelector transferEncodingSelector;
+
     @Autowired
     public EmailServiceImpl(final @NonNull JavaMailSender javaMailSender,
                             final @NonNull TemplateService templateService,
@@ -64,48 +89,104 @@ public class EmailServiceImpl implements EmailService {
         this.emailToMimeMessage = emailToMimeMessage;
     }
 
+    @Autowired(required = false)
+    public void setIdempotencyStore(final IdempotencyStore idempotencyStore) {
+        this.idempotencyStore = idempotencyStore;
+    }
+
+    @Autowired(required = false)
+    public void setInlinePictureRegistry(final InlinePictureRegistry inlinePictureRegistry) {
+        this.inlinePictureRegistry = inlinePictureRegistry;
+    }
+
+    @Autowired(required = false)
+    public void setEmailSizeLimiter(final EmailSizeLimiter emailSizeLimiter) {
+        this.emailSizeLimiter = emailSizeLimiter;
+    }
+
+    @Autowired(required = false)
+    public void setConcurrencyLimiter(final AdaptiveConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    @Autowired(required = false)
+    public void setTransferEncodingSelector(final TransferEncodingSelector transferEncodingSelector) {
+        this.transferEncodingSelector = transferEncodingSelector;
+    }
+
     @Override
     public MimeMessage send(final @NonNull Email email) {
-        email.setSentAt(new Date());
-        final MimeMessage mimeMessage = toMimeMessage(email);
-        javaMailSender.send(mimeMessage);
-        return mimeMessage;
+        checkNotDuplicate(email);
+        boolean sent = false;
+        try {
+            email.setSentAt(new Date());
+            final MimeMessage mimeMessage = toMimeMessage(enforceSizeLimit(email));
+            transmit(mimeMessage, null);
+            sent = true;
+            return mimeMessage;
+        } finally {
+            if (!sent) {
+                releaseIdempotencyKey(email);
+            }
+        }
     }
 
     public MimeMessage send(final @NonNull Email email,
                             final @NonNull String template,
                             final Map<String, Object> modelObject,
                             final @NonNull InlinePicture... inlinePictures) throws CannotSendEmailException {
-        email.setSentAt(new Date());
-        final MimeMessage mimeMessage = toMimeMessage(email);
+        checkNotDuplicate(email);
+        boolean sent = false;
+        final MimeMessage mimeMessage;
         try {
-            final MimeMultipart content = new MimeMultipart("related");
+            email.setSentAt(new Date());
+            String text = mergeTemplate(template, modelObject);
 
-            String text = templateService.mergeTemplateIntoString(template,
-                    fromNullable(modelObject).or(ImmutableMap.of()));
+            //Enforced once rendered, as the text replaces the body
+            mimeMessage = toMimeMessage(enforceSizeLimit(email, text, inlinePictures));
 
+            final MimeMultipart content = new MimeMultipart("related");
+
+            final Set<String> embeddedPictures = new HashSet<>();
             for (final InlinePicture inlinePicture : inlinePictures) {
-                final String cid = UUID.randomUUID().toString();
-
-                //Set the cid in the template
-                text = text.replace(inlinePicture.getTemplateName(), "cid:" + cid);
-
-                //Set the image part
-                final MimeBodyPart imagePart = new MimeBodyPart();
-                imagePart.attachFile(inlinePicture.getFile());
-                imagePart.setContentID('<' + cid + '>');
-                imagePart.setDisposition(MimeBodyPart.INLINE);
-                imagePart.setHeader("Content-Type", inlinePicture.getImageType().getContentType());
-                content.addBodyPart(imagePart);
+                final PipelineEvent event = PipelineEvents.begin(PipelineStage.INLINE_PICTURE)
+                        .templateName(template)
+                        .fileName(inlinePicture.getFile().getName())
+                        .mediaType(inlinePicture.getImageType().getContentType());
+                try {
+                    final InlinePictureRegistry.EncodedPicture encodedPicture = inlinePictureRegistry.encode(inlinePicture);
+
+                    //Set the cid in the template
+                    text = text.replace(inlinePicture.getTemplateName(), "cid:" + encodedPicture.getContentId());
+
+                    //Set the image part, once for each distinct picture
+                    if (embeddedPictures.add(encodedPicture.getContentId())) {
+                        content.addBodyPart(encodedPicture.toMimeBodyPart(inlinePicture.getImageType().getContentType(),
+                                inlinePicture.getFile().getName()));
+                    }
+                    event.bytes(encodedPicture.getEncodedSize()).success();
+                } finally {
+                    event.end();
+                }
             }
 
             //Set the HTML text part
             final MimeBodyPart textPart = new MimeBodyPart();
             textPart.setText(text, email.getEncoding().displayName(), "html");
+            if (nonNull(transferEncodingSelector)) {
+                transferEncodingSelector.apply(textPart, text, email.getEncoding());
+            }
             content.addBodyPart(textPart);
 
             mimeMessage.setContent(content);
-            javaMailSender.send(mimeMessage);
+            transmit(mimeMessage, template);
+            sent = true;
+        } catch (EmailTooLargeException e) {
+            log.error("The email exceeds the size limit", e);
+            throw new CannotSendEmailException("Error while sending the email beyond the size limit", e);
+        } catch (TemplateBudgetExceededException e) {
+            log.error("The template exceeded its render budget", e);
+            throw new CannotSendEmailException("Error while processing the template file beyond its render budget", e);
         } catch (IOException e) {
             log.error("The template file cannot be read", e);
             throw new CannotSendEmailException("Error while sending the email due to problems with the template file", e);
@@ -115,10 +196,74 @@ public class EmailServiceImpl implements EmailService {
         } catch (MessagingException e) {
             log.error("The mime message cannot be created", e);
             throw new CannotSendEmailException("Error while sending the email due to problems with the mime content", e);
+        } finally {
+            if (!sent) {
+                releaseIdempotencyKey(email);
+            }
         }
         return mimeMessage;
     }
 
+    private String mergeTemplate(final String template, final Map<String, Object> modelObject)
+            throws IOException, TemplateException {
+        final PipelineEvent event = PipelineEvents.begin(PipelineStage.TEMPLATE_MERGE).templateName(template);
+        try {
+            final String text = templateService.mergeTemplateIntoString(template,
+                    fromNullable(modelObject).or(ImmutableMap.of()));
+            event.bytes(text.length()).success();
+            return text;
+        } finally {
+            event.end();
+        }
+    }
+
+    private void transmit(final MimeMessage mimeMessage, final String template) {
+        final PipelineEvent event = PipelineEvents.begin(PipelineStage.SMTP_TRANSMISSION).templateName(template);
+        try {
+            if (event.isRecorded()) {
+                event.recipients(recipientCount(mimeMessage));
+            }
+            if (isNull(concurrencyLimiter)) {
+                javaMailSender.send(mimeMessage);
+            } else {
+                concurrencyLimiter.run(() -> javaMailSender.send(mimeMessage));
+            }
+            event.success();
+        } finally {
+            event.end();
+        }
+    }
+
+    private static int recipientCount(final MimeMessage mimeMessage) {
+        try {
+            final Address[] recipients = mimeMessage.getAllRecipients();
+            return isNull(recipients) ? 0 : recipients.length;
+        } catch (MessagingException e) {
+            return 0;
+        }
+    }
+
+    private void checkNotDuplicate(final Email email) {
+        if (nonNull(idempotencyStore) && nonNull(email.getIdempotencyKey())
+                && !idempotencyStore.putIfAbsent(email.getIdempotencyKey())) {
+            throw new DuplicateEmailException(email.getIdempotencyKey());
+        }
+    }
+
+    private void releaseIdempotencyKey(final Email email) {
+        if (nonNull(idempotencyStore) && nonNull(email.getIdempotencyKey())) {
+            idempotencyStore.remove(email.getIdempotencyKey());
+        }
+    }
+
+    private Email enforceSizeLimit(final Email email) {
+        return isNull(emailSizeLimiter) ? email : emailSizeLimiter.enforce(email);
+    }
+
+    private Email enforceSizeLimit(final Email email, final String text, final InlinePicture... inlinePictures) {
+        return isNull(emailSizeLimiter) ? email : emailSizeLimiter.enforce(email, text, inlinePictures);
+    }
+
     private MimeMessage toMimeMessage(@NotNull Email email) {
         return emailToMimeMessage.apply(email);
     }
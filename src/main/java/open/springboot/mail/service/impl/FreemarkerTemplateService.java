@@ -17,14 +17,17 @@
 package open.springboot.mail.service.impl;
 
 import freemarker.template.Configuration;
+import freemarker.template.Template;
 import freemarker.template.TemplateException;
 import lombok.NonNull;
 import open.springboot.mail.service.TemplateService;
+import open.springboot.mail.utils.MapModelObjectWrapper;
+import open.springboot.mail.utils.TemplateRenderBudget;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.ui.freemarker.FreeMarkerTemplateUtils;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.nio.charset.Charset;
 import java.util.Map;
 import java.util.Objects;
@@ -32,13 +35,33 @@ import java.util.Objects;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Strings.isNullOrEmpty;
 import static com.google.common.io.Files.getFileExtension;
+import static java.util.Objects.isNull;
 
 @Service
 public class FreemarkerTemplateService implements TemplateService {
 
+    public static final String TEMPLATE_ENCODING = Charset.forName("UTF-8").name();
+
     @Autowired
     private Configuration freemarkerConfiguration;
 
+    private TemplateRenderBudget templateRenderBudget;
+
+    private MapModelObjectWrapper objectWrapper;
+
+    @Autowired(required = false)
+    public void setTemplateRenderBudget(final TemplateRenderBudget templateRenderBudget) {
+        this.templateRenderBudget = templateRenderBudget;
+    }
+
+    /**
+     * Sets the wrapper used instead of the one of the Freemarker configuration.
+     */
+    @Autowired(required = false)
+    public void setObjectWrapper(final MapModelObjectWrapper objectWrapper) {
+        this.objectWrapper = objectWrapper;
+    }
+
     public
     @NonNull
     String mergeTemplateIntoString(final @NonNull String template,
@@ -47,8 +70,14 @@ public class FreemarkerTemplateService implements TemplateService {
         checkArgument(!isNullOrEmpty(template.trim()), "The given template is null, empty or blank");
         checkArgument(Objects.equals(getFileExtension(template), "ftl"), "Expected a Freemarker template file");
 
-        return FreeMarkerTemplateUtils.processTemplateIntoString(
-                freemarkerConfiguration.getTemplate(template, Charset.forName("UTF-8").name()), model);
+        final Template freemarkerTemplate = freemarkerConfiguration.getTemplate(template, TEMPLATE_ENCODING);
+        if (isNull(templateRenderBudget)) {
+            final StringWriter writer = new StringWriter();
+            freemarkerTemplate.process(model, writer, objectWrapper);
+            return writer.toString();
+        }
+        return templateRenderBudget.render(template,
+                writer -> freemarkerTemplate.process(model, writer, objectWrapper));
     }
 
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.service.IdempotencyStore;
+import open.springboot.mail.service.PersistentIdempotencyStore;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.nonNull;
+
+/**
+ * Bounded dedup window of idempotency keys.
+ * <p/>
+ * Keys are kept in a concurrent cache evicting the least recently used entries once the maximum size is reached,
+ * and any entry older than the configured time to live. A {@linkplain PersistentIdempotencyStore}, if any,
+ * is consulted on a miss.
+ */
+@Slf4j
+public class InMemoryIdempotencyStore implements IdempotencyStore {
+
+    private final ConcurrentMap<String, Boolean> keys;
+
+    private final AtomicLong duplicateCount = new AtomicLong();
+
+    private PersistentIdempotencyStore persistentStore;
+
+    public InMemoryIdempotencyStore(final long maximumSize,
+                                    final long ttlSeconds) {
+        checkArgument(maximumSize > 0, "The maximum size must be positive");
+        checkArgument(ttlSeconds > 0, "The time to live must be positive");
+        final Cache<String, Boolean> cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+        keys = cache.asMap();
+    }
+
+    @Autowired(required = false)
+    public void setPersistentStore(final PersistentIdempotencyStore persistentStore) {
+        this.persistentStore = persistentStore;
+    }
+
+    @Override
+    public boolean putIfAbsent(final @NonNull String idempotencyKey) {
+        if (nonNull(keys.putIfAbsent(idempotencyKey, Boolean.TRUE))) {
+            return duplicate(idempotencyKey);
+        }
+        if (nonNull(persistentStore) && !persistentStore.putIfAbsent(idempotencyKey)) {
+            return duplicate(idempotencyKey);
+        }
+        return true;
+    }
+
+    @Override
+    public void remove(final @NonNull String idempotencyKey) {
+        keys.remove(idempotencyKey);
+        if (nonNull(persistentStore)) {
+            persistentStore.remove(idempotencyKey);
+        }
+    }
+
+    /**
+     * Return the number of emails rejected so far because their idempotency key was already known.
+     *
+     * @return the number of dedup hits
+     */
+    public long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    /**
+     * Return the number of keys currently held in memory.
+     *
+     * @return the number of keys in the dedup window
+     */
+    public long size() {
+        return keys.size();
+    }
+
+    private boolean duplicate(final String idempotencyKey) {
+        duplicateCount.incrementAndGet();
+        log.info("Rejecting duplicate email with idempotency key {}", idempotencyKey);
+        return false;
+    }
+
+}
@@ -0,0 +1,673 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.exceptions.DuplicateEmailException;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.InlinePicture;
+import open.springboot.mail.model.impl.CompactEmail;
+import open.springboot.mail.model.impl.StoredInlinePicture;
+import open.springboot.mail.service.EmailOutboxService;
+import open.springboot.mail.service.EmailService;
+import open.springboot.mail.utils.PooledByteArrayOutputStream;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * An outbox stored in a relational database, shared by all the nodes using the same database.
+ * <p/>
+ * Emails are inserted in batches by a writer thread, so that many emails are stored with a single commit. The outbox
+ * is split in partitions, and the dispatchers of all the nodes share the partitions through leases: each live
+ * dispatcher heartbeats, takes its fair share of the partitions and releases the extra ones, so the partitions are
+ * rebalanced when nodes come and go, and the partitions of a crashed node are taken over once its leases expire.
+ * A dispatcher only reads the emails of its own partitions, hence dispatchers never contend on the same rows.
+ * <p/>
+ * Sent emails are deleted, failed ones are retried after a delay and kept as failed after the last attempt. Leases
+ * are compared against the clock of each node, so the clocks of the nodes must be synchronized well within the lease
+ * duration.
+ */
+@Slf4j
+public class JdbcEmailOutboxService implements EmailOutboxService {
+
+    private static final String SCHEMA = "email-outbox-schema.sql";
+
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    private static final String INSERT_EMAIL = "INSERT INTO email_outbox "
+            + "(partition_id, available_at, attempts, failed, payload) VALUES (?, ?, 0, FALSE, ?)";
+
+    /**
+     * One partition at a time, in the order of the dispatch index, so that the database does not sort the backlog.
+     */
+    private static final String SELECT_EMAILS = "SELECT id, attempts, partition_id, payload FROM email_outbox "
+            + "WHERE partition_id = ? AND failed = FALSE AND available_at <= ? ORDER BY partition_id, failed, id";
+
+    private static final String DELETE_EMAIL = "DELETE FROM email_outbox WHERE id = ?";
+
+    private static final String RETRY_EMAIL = "UPDATE email_outbox SET attempts = ?, available_at = ? WHERE id = ?";
+
+    private static final String FAIL_EMAIL = "UPDATE email_outbox SET attempts = ?, failed = TRUE WHERE id = ?";
+
+    private static final String INSERT_PARTITION = "INSERT INTO email_outbox_partition "
+            + "(partition_id, owner, lease_until, version) VALUES (?, NULL, 0, 0)";
+
+    private static final String SELECT_PARTITIONS = "SELECT partition_id, owner, lease_until, version "
+            + "FROM email_outbox_partition ORDER BY partition_id";
+
+    private static final String RENEW_PARTITIONS = "UPDATE email_outbox_partition "
+            + "SET lease_until = ?, version = version + 1 WHERE owner = ?";
+
+    private static final String ACQUIRE_PARTITION = "UPDATE email_outbox_partition "
+            + "SET owner = ?, lease_until = ?, version = version + 1 WHERE partition_id = ? AND version = ?";
+
+    private static final String RELEASE_PARTITION = "UPDATE email_outbox_partition "
+            + "SET owner = NULL, lease_until = 0, version = version + 1 "
+            + "WHERE partition_id = ? AND owner = ? AND version = ?";
+
+    private static final String RELEASE_PARTITIONS = "UPDATE email_outbox_partition "
+            + "SET owner = NULL, lease_until = 0, version = version + 1 WHERE owner = ?";
+
+    private static final String HEARTBEAT = "UPDATE email_outbox_dispatcher SET heartbeat_until = ? WHERE owner = ?";
+
+    private static final String INSERT_DISPATCHER = "INSERT INTO email_outbox_dispatcher "
+            + "(owner, heartbeat_until) VALUES (?, ?)";
+
+    private static final String DELETE_DISPATCHER = "DELETE FROM email_outbox_dispatcher WHERE owner = ?";
+
+    private static final String DELETE_DEAD_DISPATCHERS = "DELETE FROM email_outbox_dispatcher "
+            + "WHERE heartbeat_until < ?";
+
+    private static final String SELECT_LIVE_DISPATCHERS = "SELECT owner FROM email_outbox_dispatcher "
+            + "WHERE heartbeat_until > ? ORDER BY owner";
+
+    private final EmailService emailService;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final JdbcTemplate batchJdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final int partitions;
+
+    private final int batchSize;
+
+    private final long leaseMillis;
+
+    private final long pollMillis;
+
+    private final int maxAttempts;
+
+    private final long retryDelayMillis;
+
+    private final long drainMillis;
+
+    private final BlockingQueue<PendingEmail> pending;
+
+    private final AtomicInteger nextPartition = new AtomicInteger();
+
+    private final List<Dispatcher> dispatchers = new ArrayList<>();
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    private final AtomicLong stored = new AtomicLong();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong retried = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    public JdbcEmailOutboxService(final @NonNull DataSource dataSource,
+                                  final @NonNull EmailService emailService,
+                                  final String nodeId,
+                                  final int dispatcherCount,
+                                  final int partitions,
+                                  final int batchSize,
+                                  final int queueCapacity,
+                                  final long leaseMillis,
+                                  final long pollMillis,
+                                  final int maxAttempts,
+                                  final long retryDelayMillis,
+                                  final long drainMillis,
+                                  final boolean initializeSchema) {
+        checkArgument(dispatcherCount >= 0, "The number of dispatchers cannot be negative");
+        checkArgument(partitions > 0, "The outbox needs at least a partition");
+        checkArgument(batchSize > 0, "The batch size must be positive");
+        checkArgument(leaseMillis >= 3, "The lease is too short");
+        checkArgument(maxAttempts > 0, "An email must be attempted at least once");
+        checkArgument(drainMillis >= 0, "The drain deadline cannot be negative");
+        this.emailService = emailService;
+        this.partitions = partitions;
+        this.batchSize = batchSize;
+        this.leaseMillis = leaseMillis;
+        this.pollMillis = pollMillis;
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMillis = retryDelayMillis;
+        this.drainMillis = drainMillis;
+        pending = new LinkedBlockingQueue<>(queueCapacity);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        batchJdbcTemplate = new JdbcTemplate(dataSource);
+        batchJdbcTemplate.setMaxRows(batchSize);
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+
+        if (initializeSchema) {
+            new ResourceDatabasePopulator(new ClassPathResource(SCHEMA)).execute(dataSource);
+        }
+        createPartitions();
+
+        final String node = isNullOrEmpty(nodeId)
+                ? ManagementFactory.getRuntimeMXBean().getName() + '-' + UUID.randomUUID().toString().substring(0, 8)
+                : nodeId;
+        final ThreadFactory writerFactory = new ThreadFactoryBuilder().setNameFormat("email-outbox-writer")
+                .setDaemon(true).build();
+        threads.add(writerFactory.newThread(this::write));
+        final ThreadFactory dispatcherFactory = new ThreadFactoryBuilder().setNameFormat("email-outbox-dispatcher-%d")
+                .setDaemon(true).build();
+        for (int i = 0; i < dispatcherCount; i++) {
+            final Dispatcher dispatcher = new Dispatcher(node + '/' + i);
+            dispatchers.add(dispatcher);
+            threads.add(dispatcherFactory.newThread(() -> dispatch(dispatcher)));
+        }
+        threads.forEach(Thread::start);
+    }
+
+    @Override
+    public CompletableFuture<Void> enqueue(final @NonNull Email email) {
+        return store(new OutboxEmail(CompactEmail.copyOf(email), null, null, null));
+    }
+
+    @Override
+    public CompletableFuture<Void> enqueue(final @NonNull Email email,
+                                           final @NonNull String template,
+                                           final Map<String, Object> modelObject,
+                                           final @NonNull InlinePicture... inlinePictures) {
+        //The content is stored, the files may not exist on the node sending the email
+        final StoredInlinePicture[] pictures = Arrays.stream(inlinePictures)
+                .map(StoredInlinePicture::copyOf)
+                .toArray(StoredInlinePicture[]::new);
+        return store(new OutboxEmail(CompactEmail.copyOf(email), template,
+                isNull(modelObject) ? null : new HashMap<>(modelObject), pictures));
+    }
+
+    public long getStoredCount() {
+        return stored.get();
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getRetriedCount() {
+        return retried.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Return the partitions currently leased by the dispatchers of this node.
+     *
+     * @return the identifiers of the partitions
+     */
+    public Set<Integer> getOwnedPartitions() {
+        final Set<Integer> owned = new HashSet<>();
+        dispatchers.forEach(dispatcher -> owned.addAll(dispatcher.partitions));
+        return Collections.unmodifiableSet(owned);
+    }
+
+    /**
+     * Store the emails still waiting to be stored, then release the partitions so that the other nodes take them over
+     * immediately. The threads still running when the drain deadline expires are interrupted, and the futures of the
+     * emails not stored yet are failed.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        for (final Thread thread : threads) {
+            final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis > 0) {
+                thread.join(remainingMillis);
+            }
+        }
+        final long alive = threads.stream().filter(Thread::isAlive).peek(Thread::interrupt).count();
+        final List<PendingEmail> abandoned = new ArrayList<>();
+        pending.drainTo(abandoned);
+        if (alive > 0 || !abandoned.isEmpty()) {
+            log.warn("Shutting down the outbox after {} ms with {} threads still running and {} emails not stored",
+                    drainMillis, alive, abandoned.size());
+        }
+        abandoned.forEach(pendingEmail -> pendingEmail.future.completeExceptionally(
+                new RejectedExecutionException("The email outbox has been shut down before storing the email")));
+    }
+
+    private CompletableFuture<Void> store(final OutboxEmail outboxEmail) {
+        if (!running) {
+            throw new RejectedExecutionException("The email outbox has been shut down");
+        }
+        final PendingEmail pendingEmail = new PendingEmail(
+                Math.floorMod(nextPartition.getAndIncrement(), partitions), serialize(outboxEmail));
+        if (!pending.offer(pendingEmail)) {
+            throw new RejectedExecutionException("Too many emails are waiting to be stored in the outbox");
+        }
+        return pendingEmail.future;
+    }
+
+    private void createPartitions() {
+        final Set<Integer> existing = new HashSet<>(jdbcTemplate.queryForList(
+                "SELECT partition_id FROM email_outbox_partition", Integer.class));
+        for (int partition = 0; partition < partitions; partition++) {
+            if (!existing.contains(partition)) {
+                try {
+                    jdbcTemplate.update(INSERT_PARTITION, partition);
+                } catch (DuplicateKeyException e) {
+                    //Created meanwhile by another node
+                }
+            }
+        }
+    }
+
+    private void write() {
+        final List<PendingEmail> batch = new ArrayList<>(batchSize);
+        while (running || !pending.isEmpty()) {
+            try {
+                final PendingEmail first = pending.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (isNull(first)) {
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch, batchSize - 1);
+                insert(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void insert(final List<PendingEmail> batch) {
+        final long now = System.currentTimeMillis();
+        try {
+            transactionTemplate.execute(status -> jdbcTemplate.batchUpdate(INSERT_EMAIL, batch, batch.size(),
+                    (statement, pendingEmail) -> {
+                        statement.setInt(1, pendingEmail.partition);
+                        statement.setLong(2, now);
+                        statement.setBytes(3, pendingEmail.payload);
+                    }));
+        } catch (RuntimeException e) {
+            log.error("Cannot store {} emails in the outbox", batch.size(), e);
+            batch.forEach(pendingEmail -> pendingEmail.future.completeExceptionally(e));
+            return;
+        }
+        stored.addAndGet(batch.size());
+        batch.forEach(pendingEmail -> pendingEmail.future.complete(null));
+    }
+
+    private void dispatch(final Dispatcher dispatcher) {
+        while (running) {
+            int dispatched;
+            try {
+                final long now = System.currentTimeMillis();
+                if (now >= dispatcher.nextRebalance) {
+                    dispatcher.rebalance(now);
+                }
+                dispatched = dispatcher.dispatchBatch();
+            } catch (RuntimeException e) {
+                log.error("Error while dispatching the outbox emails", e);
+                dispatched = 0;
+            }
+            if (dispatched == 0) {
+                try {
+                    Thread.sleep(Math.max(1, Math.min(pollMillis,
+                            dispatcher.nextRebalance - System.currentTimeMillis())));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        try {
+            dispatcher.leave();
+        } catch (RuntimeException e) {
+            log.warn("Cannot release the partitions of {}, they will be taken over when their leases expire",
+                    dispatcher.owner, e);
+        }
+    }
+
+    private boolean send(final long id, final byte[] payload) {
+        OutboxEmail outboxEmail = null;
+        try {
+            outboxEmail = deserialize(payload);
+            if (isNull(outboxEmail.getTemplate())) {
+                emailService.send(outboxEmail.getEmail());
+            } else {
+                emailService.send(outboxEmail.getEmail(), outboxEmail.getTemplate(), outboxEmail.getModelObject(),
+                        outboxEmail.getInlinePictures());
+            }
+        } catch (DuplicateEmailException e) {
+            //Already sent, e.g. before a crash
+            log.info("The outbox email {} has already been sent", id);
+        } catch (Exception e) {
+            log.error("Cannot send the outbox email {}", id, e);
+            return false;
+        } finally {
+            if (nonNull(outboxEmail) && nonNull(outboxEmail.getInlinePictures())) {
+                Arrays.stream(outboxEmail.getInlinePictures()).forEach(StoredInlinePicture::discard);
+            }
+        }
+        sent.incrementAndGet();
+        return true;
+    }
+
+    private static byte[] serialize(final OutboxEmail outboxEmail) {
+        //Closing the object stream gives the pooled buffers back, hence the content is read just before
+        final PooledByteArrayOutputStream outputStream = new PooledByteArrayOutputStream();
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream)) {
+            objectOutputStream.writeObject(outboxEmail);
+            objectOutputStream.flush();
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("The email cannot be stored in the outbox", e);
+        }
+    }
+
+    private static OutboxEmail deserialize(final byte[] payload) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return (OutboxEmail) objectInputStream.readObject();
+        }
+    }
+
+    /**
+     * A dispatcher, identified in the database by its owner name, with the partitions it leases.
+     */
+    private final class Dispatcher {
+
+        private final String owner;
+
+        private volatile Set<Integer> partitions = Collections.emptySet();
+
+        /**
+         * The partition read last, the partitions being read in turn so that none is starved.
+         */
+        private int cursor = -1;
+
+        private long leaseDeadline;
+
+        private long nextRebalance;
+
+        private Dispatcher(final String owner) {
+            this.owner = owner;
+        }
+
+        /**
+         * Heartbeat and renew the leases, then release the partitions beyond the fair share and acquire the free or
+         * expired ones missing.
+         */
+        private void rebalance(final long now) {
+            final long leaseUntil = now + leaseMillis;
+            if (jdbcTemplate.update(HEARTBEAT, leaseUntil, owner) == 0) {
+                jdbcTemplate.update(INSERT_DISPATCHER, owner, leaseUntil);
+            }
+            jdbcTemplate.update(DELETE_DEAD_DISPATCHERS, now - leaseMillis);
+            //Renewed at once, the version change makes the concurrent acquisitions based on the expired lease fail
+            jdbcTemplate.update(RENEW_PARTITIONS, leaseUntil, owner);
+            final List<String> live = jdbcTemplate.queryForList(SELECT_LIVE_DISPATCHERS, String.class, now);
+            final List<PartitionLease> leases = jdbcTemplate.query(SELECT_PARTITIONS, (resultSet, rowNum) ->
+                    new PartitionLease(resultSet.getInt(1), resultSet.getString(2), resultSet.getLong(3),
+                            resultSet.getLong(4)));
+            //The remainder goes to the first dispatchers, in the same order for all of them
+            final int index = Math.max(0, live.indexOf(owner));
+            final int dispatcherCount = Math.max(1, live.size());
+            int missing = leases.size() / dispatcherCount + (index < leases.size() % dispatcherCount ? 1 : 0);
+
+            final Set<Integer> owned = new TreeSet<>();
+            for (final PartitionLease lease : leases) {
+                if (owner.equals(lease.owner)) {
+                    if (missing > 0) {
+                        owned.add(lease.partition);
+                        missing--;
+                    } else {
+                        update(RELEASE_PARTITION, lease.partition, owner, lease.version);
+                    }
+                }
+            }
+            for (final PartitionLease lease : leases) {
+                if (missing > 0 && !owner.equals(lease.owner) && (isNull(lease.owner) || lease.leaseUntil <= now)
+                        && update(ACQUIRE_PARTITION, owner, leaseUntil, lease.partition, lease.version)) {
+                    owned.add(lease.partition);
+                    missing--;
+                }
+            }
+            if (!owned.equals(partitions)) {
+                log.debug("Dispatcher {} leases the partitions {}", owner, owned);
+            }
+            partitions = ImmutableSet.copyOf(owned);
+            leaseDeadline = leaseUntil;
+            nextRebalance = now + leaseMillis / 3;
+        }
+
+        /**
+         * Send the next batch of emails of the next leased partition having any. The leases are renewed during long
+         * batches, and the emails of the partitions lost meanwhile are left to their new owner.
+         *
+         * @return the number of emails read, zero if none of the leased partitions has emails to be sent
+         */
+        private int dispatchBatch() {
+            final long now = System.currentTimeMillis();
+            final List<Integer> leased = new ArrayList<>(partitions);
+            if (leased.isEmpty() || now >= leaseDeadline) {
+                return 0;
+            }
+            //The rows are read before sending, so that no connection is held while talking to the SMTP server
+            List<OutboxRow> rows = Collections.emptyList();
+            for (int i = 0; i < leased.size() && rows.isEmpty(); i++) {
+                final int partition = nextPartition(leased);
+                rows = batchJdbcTemplate.query(SELECT_EMAILS, new Object[]{partition, now},
+                        (resultSet, rowNum) -> new OutboxRow(resultSet.getLong(1), resultSet.getInt(2),
+                                resultSet.getInt(3), resultSet.getBytes(4)));
+            }
+            final Outcomes outcomes = new Outcomes();
+            for (final OutboxRow row : rows) {
+                final long time = System.currentTimeMillis();
+                if (!running) {
+                    break;
+                }
+                if (time >= nextRebalance) {
+                    //The outcomes are stored first, so that a new owner does not send the same emails again
+                    outcomes.store();
+                    rebalance(time);
+                }
+                if (!partitions.contains(row.partition) || time >= leaseDeadline) {
+                    continue;
+                }
+                final int attempts = row.attempts + 1;
+                if (send(row.id, row.payload)) {
+                    outcomes.sent.add(new Object[]{row.id});
+                } else if (attempts >= maxAttempts) {
+                    outcomes.failures.add(new Object[]{attempts, row.id});
+                } else {
+                    outcomes.retries.add(new Object[]{attempts, System.currentTimeMillis() + retryDelayMillis,
+                            row.id});
+                }
+            }
+            outcomes.store();
+            return rows.size();
+        }
+
+        private int nextPartition(final List<Integer> leased) {
+            for (final int partition : leased) {
+                if (partition > cursor) {
+                    cursor = partition;
+                    return partition;
+                }
+            }
+            cursor = leased.get(0);
+            return cursor;
+        }
+
+        private void leave() {
+            partitions = Collections.emptySet();
+            jdbcTemplate.update(RELEASE_PARTITIONS, owner);
+            jdbcTemplate.update(DELETE_DISPATCHER, owner);
+        }
+
+        /**
+         * Run a compare and set update, failing when another dispatcher changed the row meanwhile.
+         */
+        private boolean update(final String sql, final Object... arguments) {
+            try {
+                return jdbcTemplate.update(sql, arguments) == 1;
+            } catch (DataAccessException e) {
+                log.debug("Lost the race on a partition lease", e);
+                return false;
+            }
+        }
+    }
+
+    @lombok.Value
+    private static class PartitionLease {
+
+        int partition;
+
+        String owner;
+
+        long leaseUntil;
+
+        long version;
+
+    }
+
+    @lombok.Value
+    private static class OutboxRow {
+
+        long id;
+
+        int attempts;
+
+        int partition;
+
+        byte[] payload;
+
+    }
+
+    @lombok.Value
+    private static class OutboxEmail implements Serializable {
+
+        private static final long serialVersionUID = -4107349917630648520L;
+
+        CompactEmail email;
+
+        String template;
+
+        HashMap<String, Object> modelObject;
+
+        StoredInlinePicture[] inlinePictures;
+
+    }
+
+    /**
+     * The outcomes of the emails sent by a dispatcher, not stored yet.
+     */
+    private final class Outcomes {
+
+        private final List<Object[]> sent = new ArrayList<>();
+
+        private final List<Object[]> retries = new ArrayList<>();
+
+        private final List<Object[]> failures = new ArrayList<>();
+
+        private void store() {
+            if (!sent.isEmpty()) {
+                jdbcTemplate.batchUpdate(DELETE_EMAIL, sent);
+                sent.clear();
+            }
+            if (!retries.isEmpty()) {
+                jdbcTemplate.batchUpdate(RETRY_EMAIL, retries);
+                retried.addAndGet(retries.size());
+                retries.clear();
+            }
+            if (!failures.isEmpty()) {
+                jdbcTemplate.batchUpdate(FAIL_EMAIL, failures);
+                failed.addAndGet(failures.size());
+                failures.clear();
+            }
+        }
+    }
+
+    private static final class PendingEmail {
+
+        private final int partition;
+
+        private final byte[] payload;
+
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingEmail(final int partition, final byte[] payload) {
+            this.partition = partition;
+            this.payload = payload;
+        }
+    }
+
+}
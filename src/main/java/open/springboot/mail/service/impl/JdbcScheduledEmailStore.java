@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.model.InlinePicture;
+import open.springboot.mail.model.ScheduledEmail;
+import open.springboot.mail.model.impl.CompactEmail;
+import open.springboot.mail.model.impl.StoredInlinePicture;
+import open.springboot.mail.service.ScheduledEmailStore;
+import open.springboot.mail.utils.PooledByteArrayOutputStream;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Objects;
+
+import static java.util.Objects.isNull;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * A {@linkplain ScheduledEmailStore} backed by a relational database, so that the scheduled emails survive a restart.
+ * <p/>
+ * The emails are stored as serialized payloads, along with their send time. A payload that cannot be read back, e.g.
+ * after an incompatible upgrade, is reported and skipped when the emails are restored.
+ */
+@Slf4j
+public class JdbcScheduledEmailStore implements ScheduledEmailStore {
+
+    private static final String SCHEMA = "email-scheduler-schema.sql";
+
+    private static final String INSERT_EMAIL = "INSERT INTO email_scheduled (id, send_at, payload) VALUES (?, ?, ?)";
+
+    private static final String DELETE_EMAIL = "DELETE FROM email_scheduled WHERE id = ?";
+
+    private static final String SELECT_EMAILS = "SELECT id, payload FROM email_scheduled ORDER BY send_at";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public JdbcScheduledEmailStore(final @NonNull DataSource dataSource,
+                                   final boolean initializeSchema) {
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        if (initializeSchema) {
+            new ResourceDatabasePopulator(new ClassPathResource(SCHEMA)).execute(dataSource);
+        }
+    }
+
+    @Override
+    public void save(final @NonNull ScheduledEmail scheduledEmail) {
+        jdbcTemplate.update(INSERT_EMAIL, scheduledEmail.getId(), scheduledEmail.getSendAt().getTime(),
+                serialize(scheduledEmail));
+    }
+
+    @Override
+    public void delete(final @NonNull String scheduledEmailId) {
+        jdbcTemplate.update(DELETE_EMAIL, scheduledEmailId);
+    }
+
+    @Override
+    public Collection<ScheduledEmail> findAll() {
+        return jdbcTemplate.query(SELECT_EMAILS, (resultSet, row) -> {
+            final String id = resultSet.getString(1);
+            try {
+                return deserialize(resultSet.getBytes(2));
+            } catch (IOException | ClassNotFoundException e) {
+                log.error("Cannot read the scheduled email {}, skipping it", id, e);
+                return null;
+            }
+        }).stream().filter(Objects::nonNull).collect(toList());
+    }
+
+    private static byte[] serialize(final ScheduledEmail scheduledEmail) {
+        final InlinePicture[] inlinePictures = scheduledEmail.getInlinePictures();
+        final ScheduledEmail storable = new ScheduledEmail(scheduledEmail.getId(),
+                CompactEmail.copyOf(scheduledEmail.getEmail()), scheduledEmail.getSendAt(),
+                scheduledEmail.getTemplate(),
+                isNull(scheduledEmail.getModelObject()) ? null : new HashMap<>(scheduledEmail.getModelObject()),
+                isNull(inlinePictures) ? null : Arrays.stream(inlinePictures)
+                        .map(StoredInlinePicture::copyOf)
+                        .toArray(InlinePicture[]::new));
+        //Closing the object stream gives the pooled buffers back, hence the content is read just before
+        final PooledByteArrayOutputStream outputStream = new PooledByteArrayOutputStream();
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream)) {
+            objectOutputStream.writeObject(storable);
+            objectOutputStream.flush();
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("The scheduled email cannot be stored", e);
+        }
+    }
+
+    private static ScheduledEmail deserialize(final byte[] payload) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return (ScheduledEmail) objectInputStream.readObject();
+        }
+    }
+
+}
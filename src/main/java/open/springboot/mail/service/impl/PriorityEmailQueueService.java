@@ -0,0 +1,361 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.EmailPriority;
+import open.springboot.mail.model.InlinePicture;
+import open.springboot.mail.service.EmailOutboxService;
+import open.springboot.mail.service.EmailQueueService;
+import open.springboot.mail.service.EmailService;
+import open.springboot.mail.service.LaneStatistics;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.annotation.PreDestroy;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import static com.google.common.base.Optional.fromNullable;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Queues emails in one lane per {@linkplain EmailPriority}, each one with its own bounded queue and workers.
+ * <p/>
+ * Transactional emails have dedicated workers, so they are never starved by bulk emails. Bulk workers take
+ * transactional emails first whenever any is waiting, hence bulk emails get whatever capacity is left.
+ * Emails waiting in the transactional lane longer than its latency objective are counted and logged.
+ * <p/>
+ * On shutdown, new emails are rejected and the queued ones are still sent until the lanes are empty or the drain
+ * deadline expires. The emails left are stored in the {@linkplain EmailOutboxService} if any, and reported otherwise.
+ */
+@Slf4j
+public class PriorityEmailQueueService implements EmailQueueService {
+
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    private final EmailService emailService;
+
+    private final Map<EmailPriority, Lane> lanes = new EnumMap<>(EmailPriority.class);
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final long drainMillis;
+
+    private EmailOutboxService emailOutboxService;
+
+    /**
+     * Shared by the enqueues, which check that the queue is accepting and offer the email at once, and taken
+     * exclusively to stop accepting, so that no email is queued once the lanes may have been drained.
+     */
+    private final ReadWriteLock acceptingLock = new ReentrantReadWriteLock();
+
+    private volatile boolean accepting = true;
+
+    private volatile boolean running = true;
+
+    public PriorityEmailQueueService(final @NonNull EmailService emailService,
+                                     final int transactionalWorkers,
+                                     final int transactionalCapacity,
+                                     final long transactionalSloMillis,
+                                     final int bulkWorkers,
+                                     final int bulkCapacity,
+                                     final long drainMillis) {
+        checkArgument(transactionalWorkers > 0, "The transactional lane needs at least a worker");
+        checkArgument(bulkWorkers > 0, "The bulk lane needs at least a worker");
+        checkArgument(drainMillis >= 0, "The drain deadline cannot be negative");
+        this.emailService = emailService;
+        this.drainMillis = drainMillis;
+
+        final Lane transactional = new Lane(EmailPriority.TRANSACTIONAL, transactionalCapacity, transactionalSloMillis);
+        final Lane bulk = new Lane(EmailPriority.BULK, bulkCapacity, 0);
+        lanes.put(EmailPriority.TRANSACTIONAL, transactional);
+        lanes.put(EmailPriority.BULK, bulk);
+
+        startWorkers("email-transactional-%d", transactionalWorkers, transactional, null);
+        startWorkers("email-bulk-%d", bulkWorkers, bulk, transactional);
+    }
+
+    /**
+     * Set the outbox storing the emails still queued when the drain deadline expires on shutdown.
+     */
+    @Autowired(required = false)
+    public void setEmailOutboxService(final EmailOutboxService emailOutboxService) {
+        this.emailOutboxService = emailOutboxService;
+    }
+
+    @Override
+    public CompletableFuture<MimeMessage> enqueue(final @NonNull Email email) {
+        return offer(email, () -> emailService.send(email), outbox -> outbox.enqueue(email));
+    }
+
+    @Override
+    public CompletableFuture<MimeMessage> enqueue(final @NonNull Email email,
+                                                  final @NonNull String template,
+                                                  final Map<String, Object> modelObject,
+                                                  final @NonNull InlinePicture... inlinePictures) {
+        return offer(email, () -> emailService.send(email, template, modelObject, inlinePictures),
+                outbox -> outbox.enqueue(email, template, modelObject, inlinePictures));
+    }
+
+    @Override
+    public boolean isAccepting() {
+        return accepting;
+    }
+
+    /**
+     * Return the counters of the lane serving the given priority.
+     *
+     * @param priority the priority of the lane
+     * @return a snapshot of the lane statistics
+     */
+    public LaneStatistics getStatistics(final @NonNull EmailPriority priority) {
+        return lanes.get(priority).statistics();
+    }
+
+    /**
+     * Reject new emails, then send the queued ones until the lanes are empty or the drain deadline expires. The
+     * futures of the emails left are cancelled, once the emails are stored in the outbox if any.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        final Lock lock = acceptingLock.writeLock();
+        lock.lock();
+        try {
+            accepting = false;
+        } finally {
+            lock.unlock();
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        for (final Thread worker : workers) {
+            final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis > 0) {
+                worker.join(remainingMillis);
+            }
+        }
+        running = false;
+        long inFlight = 0;
+        for (final Thread worker : workers) {
+            worker.join(POLL_TIMEOUT_MILLIS);
+            inFlight += worker.isAlive() ? 1 : 0;
+        }
+        if (inFlight > 0) {
+            log.warn("Shutting down with {} emails still being sent", inFlight);
+        }
+        for (final Lane lane : lanes.values()) {
+            final List<Task> abandoned = new ArrayList<>();
+            lane.queue.drainTo(abandoned);
+            if (!abandoned.isEmpty()) {
+                lane.abandoned.addAndGet(abandoned.size());
+                final long persisted = persist(abandoned);
+                lane.persisted.addAndGet(persisted);
+                log.warn("Shutting down with {} emails still queued in the {} lane after {} ms, "
+                        + "{} stored in the outbox", abandoned.size(), lane.priority, drainMillis, persisted);
+            }
+            abandoned.forEach(task -> task.future.cancel(false));
+        }
+    }
+
+    private long persist(final List<Task> tasks) {
+        if (isNull(emailOutboxService)) {
+            return 0;
+        }
+        long persisted = 0;
+        for (final Task task : tasks) {
+            try {
+                task.persist.apply(emailOutboxService);
+                persisted++;
+            } catch (RuntimeException e) {
+                log.error("Cannot store a queued {} email in the outbox", task.lane.priority, e);
+            }
+        }
+        return persisted;
+    }
+
+    private CompletableFuture<MimeMessage> offer(final Email email, final Send send,
+                                                 final Function<EmailOutboxService, ?> persist) {
+        final Lock lock = acceptingLock.readLock();
+        lock.lock();
+        try {
+            if (!accepting) {
+                throw new RejectedExecutionException("The email queue has been shut down");
+            }
+            return lanes.get(fromNullable(email.getPriority()).or(EmailPriority.BULK)).offer(send, persist);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void startWorkers(final String nameFormat, final int count, final Lane lane, final Lane helpedLane) {
+        final ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+        for (int i = 0; i < count; i++) {
+            final Thread worker = threadFactory.newThread(() -> work(lane, helpedLane));
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    private void work(final Lane lane, final Lane helpedLane) {
+        while (running) {
+            try {
+                Task task = isNull(helpedLane) ? null : helpedLane.queue.poll();
+                if (isNull(task)) {
+                    task = lane.queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (nonNull(task)) {
+                    task.run();
+                    if (!accepting) {
+                        task.lane.drained.incrementAndGet();
+                    }
+                } else if (!accepting) {
+                    //Drained
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Send {
+        MimeMessage send() throws Exception;
+    }
+
+    private static final class Lane {
+
+        private final EmailPriority priority;
+
+        private final BlockingQueue<Task> queue;
+
+        private final long sloNanos;
+
+        private final AtomicLong submitted = new AtomicLong();
+
+        private final AtomicLong sent = new AtomicLong();
+
+        private final AtomicLong failed = new AtomicLong();
+
+        private final AtomicLong rejected = new AtomicLong();
+
+        private final AtomicLong taken = new AtomicLong();
+
+        private final AtomicLong totalTimeInQueueNanos = new AtomicLong();
+
+        private final AtomicLong maxTimeInQueueNanos = new AtomicLong();
+
+        private final AtomicLong sloViolations = new AtomicLong();
+
+        private final AtomicLong drained = new AtomicLong();
+
+        private final AtomicLong abandoned = new AtomicLong();
+
+        private final AtomicLong persisted = new AtomicLong();
+
+        private Lane(final EmailPriority priority, final int capacity, final long sloMillis) {
+            checkArgument(capacity > 0, "The capacity of a lane must be positive");
+            this.priority = priority;
+            this.queue = new LinkedBlockingQueue<>(capacity);
+            this.sloNanos = TimeUnit.MILLISECONDS.toNanos(sloMillis);
+        }
+
+        private CompletableFuture<MimeMessage> offer(final Send send,
+                                                     final Function<EmailOutboxService, ?> persist) {
+            final Task task = new Task(this, send, persist);
+            if (!queue.offer(task)) {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("The " + priority + " lane is full");
+            }
+            submitted.incrementAndGet();
+            return task.future;
+        }
+
+        private void taken(final long timeInQueueNanos) {
+            taken.incrementAndGet();
+            totalTimeInQueueNanos.addAndGet(timeInQueueNanos);
+            maxTimeInQueueNanos.accumulateAndGet(timeInQueueNanos, Math::max);
+            if (sloNanos > 0 && timeInQueueNanos > sloNanos) {
+                sloViolations.incrementAndGet();
+                log.warn("A {} email waited {} ms in queue, over the objective of {} ms", priority,
+                        TimeUnit.NANOSECONDS.toMillis(timeInQueueNanos), TimeUnit.NANOSECONDS.toMillis(sloNanos));
+            }
+        }
+
+        private LaneStatistics statistics() {
+            final long takenCount = taken.get();
+            return new LaneStatistics(priority, queue.size(), submitted.get(), sent.get(), failed.get(), rejected.get(),
+                    takenCount == 0 ? 0 : totalTimeInQueueNanos.get() / 1e6 / takenCount,
+                    TimeUnit.NANOSECONDS.toMillis(maxTimeInQueueNanos.get()), sloViolations.get(), drained.get(),
+                    abandoned.get(), persisted.get());
+        }
+    }
+
+    private static final class Task {
+
+        private final Lane lane;
+
+        private final Send send;
+
+        private final Function<EmailOutboxService, ?> persist;
+
+        private final long enqueuedAt = System.nanoTime();
+
+        private final CompletableFuture<MimeMessage> future = new CompletableFuture<>();
+
+        private Task(final Lane lane, final Send send, final Function<EmailOutboxService, ?> persist) {
+            this.lane = lane;
+            this.send = send;
+            this.persist = persist;
+        }
+
+        private void run() {
+            lane.taken(System.nanoTime() - enqueuedAt);
+            final MimeMessage mimeMessage;
+            try {
+                mimeMessage = send.send();
+            } catch (Exception e) {
+                log.error("Cannot send queued {} email", lane.priority, e);
+                lane.failed.incrementAndGet();
+                future.completeExceptionally(e);
+                return;
+            }
+            lane.sent.incrementAndGet();
+            future.complete(mimeMessage);
+        }
+    }
+
+}
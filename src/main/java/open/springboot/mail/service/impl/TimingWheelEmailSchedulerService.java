@@ -0,0 +1,328 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.exceptions.DuplicateEmailException;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.InlinePicture;
+import open.springboot.mail.model.ScheduledEmail;
+import open.springboot.mail.model.impl.StoredInlinePicture;
+import open.springboot.mail.service.EmailQueueService;
+import open.springboot.mail.service.EmailSchedulerService;
+import open.springboot.mail.service.EmailService;
+import open.springboot.mail.service.Exception.CannotSendEmailException;
+import open.springboot.mail.service.ScheduledEmailStore;
+import open.springboot.mail.utils.HashedTimingWheel;
+import open.springboot.mail.utils.MailFailures;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mail.MailException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.mail.internet.MimeMessage;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Holds the scheduled emails in a {@linkplain HashedTimingWheel} and releases the due ones in batches.
+ * <p/>
+ * Due emails are handed to the {@linkplain EmailQueueService}, if any, otherwise they are sent by the
+ * {@linkplain EmailService} from a dedicated thread. Scheduled emails are saved in the
+ * {@linkplain ScheduledEmailStore}, if any, and restored from it at startup.
+ * <p/>
+ * Emails failing because of the relay, i.e. not {@linkplain MailFailures#isPermanent permanently}, are retried after
+ * a delay, up to the maximum number of attempts.
+ */
+@Slf4j
+public class TimingWheelEmailSchedulerService implements EmailSchedulerService {
+
+    private final EmailService emailService;
+
+    private final HashedTimingWheel<ScheduledEmail> timingWheel;
+
+    private final ConcurrentMap<String, HashedTimingWheel.Timeout<ScheduledEmail>> pending = new ConcurrentHashMap<>();
+
+    private final long tickMillis;
+
+    private final int batchSize;
+
+    private final int maxAttempts;
+
+    private final long retryDelayMillis;
+
+    private final ConcurrentMap<String, Integer> attempts = new ConcurrentHashMap<>();
+
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("email-scheduler-dispatcher").setDaemon(true).build());
+
+    private ScheduledExecutorService ticker;
+
+    private EmailQueueService emailQueueService;
+
+    private ScheduledEmailStore scheduledEmailStore;
+
+    private volatile boolean accepting = true;
+
+    public TimingWheelEmailSchedulerService(final @NonNull EmailService emailService,
+                                            final long tickMillis,
+                                            final int ticksPerWheel,
+                                            final int batchSize,
+                                            final int maxAttempts,
+                                            final long retryDelayMillis) {
+        checkArgument(batchSize > 0, "The batch size must be positive");
+        checkArgument(maxAttempts > 0, "An email must be attempted at least once");
+        this.emailService = emailService;
+        this.tickMillis = tickMillis;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMillis = retryDelayMillis;
+        timingWheel = new HashedTimingWheel<>(tickMillis, TimeUnit.MILLISECONDS, ticksPerWheel,
+                System.currentTimeMillis());
+    }
+
+    @Autowired(required = false)
+    public void setEmailQueueService(final EmailQueueService emailQueueService) {
+        this.emailQueueService = emailQueueService;
+    }
+
+    @Autowired(required = false)
+    public void setScheduledEmailStore(final ScheduledEmailStore scheduledEmailStore) {
+        this.scheduledEmailStore = scheduledEmailStore;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (nonNull(scheduledEmailStore)) {
+            scheduledEmailStore.findAll().forEach(this::add);
+            log.info("Restored {} scheduled emails", pending.size());
+        }
+        ticker = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("email-scheduler-ticker").setDaemon(true).build());
+        ticker.scheduleAtFixedRate(() -> tick(System.currentTimeMillis()), tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reject new emails, then wait for the running tick, if any, before stopping the dispatcher. The due emails not
+     * dispatched yet are kept in the store, if any.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        accepting = false;
+        if (nonNull(ticker)) {
+            ticker.shutdown();
+            ticker.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        dispatcher.shutdown();
+    }
+
+    @Override
+    public String schedule(final @NonNull Email email, final @NonNull Date sendAt) {
+        return schedule(new ScheduledEmail(UUID.randomUUID().toString(), email, sendAt, null, null, null));
+    }
+
+    @Override
+    public String schedule(final @NonNull Email email, final @NonNull Date sendAt,
+                           final @NonNull String template, final Map<String, Object> modelObject,
+                           final @NonNull InlinePicture... inlinePictures) {
+        return schedule(new ScheduledEmail(UUID.randomUUID().toString(), email, sendAt, template, modelObject,
+                inlinePictures));
+    }
+
+    @Override
+    public boolean cancel(final @NonNull String scheduledEmailId) {
+        final HashedTimingWheel.Timeout<ScheduledEmail> timeout = pending.remove(scheduledEmailId);
+        if (isNull(timeout) || !timeout.cancel()) {
+            return false;
+        }
+        if (nonNull(scheduledEmailStore)) {
+            scheduledEmailStore.delete(scheduledEmailId);
+        }
+        return true;
+    }
+
+    /**
+     * Return the number of emails waiting for their send time.
+     *
+     * @return the number of pending scheduled emails
+     */
+    public int getPendingCount() {
+        return timingWheel.size();
+    }
+
+    /**
+     * Release the emails due at the given time.
+     *
+     * @param nowMillis the current time
+     */
+    void tick(final long nowMillis) {
+        final List<ScheduledEmail> due = timingWheel.expire(nowMillis);
+        if (due.isEmpty()) {
+            return;
+        }
+        due.forEach(scheduledEmail -> pending.remove(scheduledEmail.getId()));
+        log.debug("Releasing {} scheduled emails", due.size());
+        for (final List<ScheduledEmail> batch : Lists.partition(due, batchSize)) {
+            try {
+                dispatcher.execute(() -> batch.forEach(this::dispatch));
+            } catch (RejectedExecutionException e) {
+                batch.forEach(this::abandon);
+            }
+        }
+    }
+
+    private String schedule(final ScheduledEmail scheduledEmail) {
+        if (!accepting) {
+            throw new RejectedExecutionException("The email scheduler has been shut down");
+        }
+        if (nonNull(scheduledEmailStore)) {
+            scheduledEmailStore.save(scheduledEmail);
+        }
+        add(scheduledEmail);
+        return scheduledEmail.getId();
+    }
+
+    private void add(final ScheduledEmail scheduledEmail) {
+        pending.put(scheduledEmail.getId(),
+                timingWheel.schedule(scheduledEmail, scheduledEmail.getSendAt().getTime()));
+    }
+
+    private void dispatch(final ScheduledEmail scheduledEmail) {
+        if (nonNull(emailQueueService)) {
+            final CompletableFuture<MimeMessage> future;
+            try {
+                future = isNull(scheduledEmail.getTemplate()) ?
+                        emailQueueService.enqueue(scheduledEmail.getEmail()) :
+                        emailQueueService.enqueue(scheduledEmail.getEmail(), scheduledEmail.getTemplate(),
+                                scheduledEmail.getModelObject(), scheduledEmail.getInlinePictures());
+            } catch (RejectedExecutionException e) {
+                if (!accepting || !emailQueueService.isAccepting()) {
+                    abandon(scheduledEmail);
+                    return;
+                }
+                log.warn("The email queue is full, retrying scheduled email {} later", scheduledEmail.getId());
+                add(new ScheduledEmail(scheduledEmail.getId(), scheduledEmail.getEmail(),
+                        new Date(System.currentTimeMillis() + tickMillis), scheduledEmail.getTemplate(),
+                        scheduledEmail.getModelObject(), scheduledEmail.getInlinePictures()));
+                return;
+            }
+            future.whenComplete((mimeMessage, throwable) -> completed(scheduledEmail, throwable));
+        } else {
+            try {
+                if (isNull(scheduledEmail.getTemplate())) {
+                    emailService.send(scheduledEmail.getEmail());
+                } else {
+                    emailService.send(scheduledEmail.getEmail(), scheduledEmail.getTemplate(),
+                            scheduledEmail.getModelObject(), scheduledEmail.getInlinePictures());
+                }
+                completed(scheduledEmail, null);
+            } catch (CannotSendEmailException | RuntimeException e) {
+                completed(scheduledEmail, e);
+            }
+        }
+    }
+
+    /**
+     * Schedule the email again after the retry delay, keeping it in the store meanwhile.
+     */
+    private void retry(final ScheduledEmail scheduledEmail, final int attempt, final Throwable throwable) {
+        if (!accepting) {
+            abandon(scheduledEmail);
+            return;
+        }
+        log.warn("Cannot send scheduled email {} at attempt {}, retrying in {} ms", scheduledEmail.getId(), attempt,
+                retryDelayMillis, throwable);
+        add(new ScheduledEmail(scheduledEmail.getId(), scheduledEmail.getEmail(),
+                new Date(System.currentTimeMillis() + retryDelayMillis), scheduledEmail.getTemplate(),
+                scheduledEmail.getModelObject(), scheduledEmail.getInlinePictures()));
+    }
+
+    /**
+     * Tell whether the failure is caused by the relay, so that a later attempt may succeed.
+     */
+    private static boolean isTransient(final Throwable throwable) {
+        final Throwable cause = unwrap(throwable);
+        return cause instanceof MailException && !MailFailures.isPermanent((MailException) cause);
+    }
+
+    private static Throwable unwrap(final Throwable throwable) {
+        Throwable cause = throwable;
+        while ((cause instanceof CompletionException || cause instanceof CannotSendEmailException)
+                && nonNull(cause.getCause())) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    /**
+     * Give up a due email while shutting down: it is kept in the store, if any, to be sent at the next start.
+     */
+    private void abandon(final ScheduledEmail scheduledEmail) {
+        if (nonNull(scheduledEmailStore)) {
+            log.warn("Shutting down, scheduled email {} is kept in the store until the next start",
+                    scheduledEmail.getId());
+        } else {
+            log.error("Shutting down, scheduled email {} cannot be sent and is dropped", scheduledEmail.getId());
+        }
+    }
+
+    private void completed(final ScheduledEmail scheduledEmail, final Throwable throwable) {
+        if (unwrap(throwable) instanceof DuplicateEmailException) {
+            log.info("Scheduled email {} has already been sent", scheduledEmail.getId());
+        } else if (nonNull(throwable)) {
+            if (isTransient(throwable)) {
+                final int attempt = attempts.merge(scheduledEmail.getId(), 1, Integer::sum);
+                if (attempt < maxAttempts) {
+                    retry(scheduledEmail, attempt, throwable);
+                    return;
+                }
+            }
+            log.error("Cannot send scheduled email {}", scheduledEmail.getId(), throwable);
+        }
+        attempts.remove(scheduledEmail.getId());
+        if (nonNull(scheduledEmailStore)) {
+            scheduledEmailStore.delete(scheduledEmail.getId());
+        }
+        if (nonNull(scheduledEmail.getInlinePictures())) {
+            Arrays.stream(scheduledEmail.getInlinePictures())
+                    .filter(StoredInlinePicture.class::isInstance)
+                    .map(StoredInlinePicture.class::cast)
+                    .forEach(StoredInlinePicture::discard);
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.exceptions.ConcurrencyLimitExceededException;
+import org.springframework.mail.MailException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>
+ * Limits the number of SMTP sends in flight, adapting the limit with an AIMD algorithm: the limit grows by one per
+ * round of successful sends while it is actually used, and is cut by the backoff ratio on a congestion signal, i.e. a
+ * send failed by the relay or a send slower than the no-load latency times the tolerance. The limit is cut at most once per round
+ * trip, only for sends started after the previous cut, as the sends already in flight reflect the old limit.
+ * </p>
+ * <p>
+ * The no-load latency is the lowest latency observed, slowly drifting upwards so that the limiter follows a relay
+ * becoming permanently slower. Once the limit is reached, sends wait for a slot up to the maximum wait, then are
+ * rejected with a {@linkplain ConcurrencyLimitExceededException}.
+ * </p>
+ */
+@Slf4j
+public class AdaptiveConcurrencyLimiter {
+
+    /**
+     * Weight of a latency sample in the upward drift of the no-load latency.
+     */
+    private static final double DRIFT = 0.001;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double latencyTolerance;
+
+    private final double backoffRatio;
+
+    private final long maxWaitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+
+    private final Condition released = lock.newCondition();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong congestionCount = new AtomicLong();
+
+    private double limit;
+
+    private int inFlight;
+
+    private double noLoadLatencyNanos = Double.MAX_VALUE;
+
+    private long lastDecreaseNanos = System.nanoTime();
+
+    public AdaptiveConcurrencyLimiter(final int initialLimit,
+                                      final int minLimit,
+                                      final int maxLimit,
+                                      final double latencyTolerance,
+                                      final double backoffRatio,
+                                      final long maxWaitMillis) {
+        checkArgument(minLimit > 0, "The minimum limit must be positive");
+        checkArgument(minLimit <= initialLimit && initialLimit <= maxLimit,
+                "The initial limit must be between the minimum and the maximum limits");
+        checkArgument(latencyTolerance > 1, "The latency tolerance must be greater than one");
+        checkArgument(backoffRatio > 0 && backoffRatio < 1, "The backoff ratio must be between zero and one");
+        checkArgument(maxWaitMillis >= 0, "The maximum wait cannot be negative");
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTolerance = latencyTolerance;
+        this.backoffRatio = backoffRatio;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.limit = initialLimit;
+    }
+
+    /**
+     * Run the given send once a slot is available, measuring it to adapt the limit.
+     *
+     * @param send the send to be run
+     * @throws ConcurrencyLimitExceededException if no slot became available within the maximum wait
+     */
+    public void run(final @NonNull Runnable send) {
+        acquire();
+        final long start = System.nanoTime();
+        boolean succeeded = false;
+        boolean measured = true;
+        try {
+            send.run();
+            succeeded = true;
+        } catch (MailException e) {
+            //A failure caused by the message, e.g. an invalid recipient, says nothing about the relay
+            measured = !MailFailures.isPermanent(e);
+            throw e;
+        } finally {
+            release(start, System.nanoTime() - start, succeeded, measured);
+        }
+    }
+
+    /**
+     * Return the number of sends currently allowed in flight.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getCongestionCount() {
+        return congestionCount.get();
+    }
+
+    private void acquire() {
+        lock.lock();
+        try {
+            long remainingNanos = maxWaitNanos;
+            while (inFlight >= (int) limit) {
+                if (remainingNanos <= 0) {
+                    rejectedCount.incrementAndGet();
+                    throw new ConcurrencyLimitExceededException((int) limit,
+                            TimeUnit.NANOSECONDS.toMillis(maxWaitNanos));
+                }
+                try {
+                    remainingNanos = released.awaitNanos(remainingNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    rejectedCount.incrementAndGet();
+                    throw new ConcurrencyLimitExceededException((int) limit,
+                            TimeUnit.NANOSECONDS.toMillis(maxWaitNanos));
+                }
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(final long start, final long latencyNanos, final boolean succeeded, final boolean measured) {
+        lock.lock();
+        try {
+            if (measured) {
+                adapt(start, latencyNanos, succeeded);
+            }
+            inFlight--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adapt(final long start, final long latencyNanos, final boolean succeeded) {
+        final boolean slow = succeeded && latencyNanos > noLoadLatencyNanos * latencyTolerance;
+        if (succeeded) {
+            noLoadLatencyNanos = latencyNanos < noLoadLatencyNanos
+                    ? latencyNanos : noLoadLatencyNanos + (latencyNanos - noLoadLatencyNanos) * DRIFT;
+        }
+        if (!succeeded || slow) {
+            congestionCount.incrementAndGet();
+            if (start - lastDecreaseNanos > 0) {
+                final double previous = limit;
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastDecreaseNanos = System.nanoTime();
+                log.debug("Concurrency limit cut from {} to {} after a {} send", (int) previous, (int) limit,
+                        succeeded ? "slow" : "failed");
+            }
+        } else if (inFlight * 2 >= limit) {
+            //Only grow a limit in use, a limit never reached says nothing about the relay capacity
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>
+ * A pool of byte buffers reused by the transient buffers of the send path, i.e. the DKIM body hash chunk, the
+ * attachment archive and the optimised inline pictures, so that large emails do not churn through the young
+ * generation nor get promoted.
+ * </p>
+ * <p>
+ * The MIME message itself, the base64 encoding of the parts and the transport buffers are not pooled: they are
+ * allocated inside JavaMail, and the encoded parts are retained by the message until it is written.
+ * </p>
+ * <p>
+ * Buffers are grouped in power of two size classes, and each size class is split into stripes selected by the
+ * current thread, so that concurrent senders rarely contend on the same queue. A borrowed buffer is at least as large
+ * as requested; requests larger than the largest size class are plainly allocated and never retained. The memory
+ * retained by the pool is bounded: released buffers that do not fit are left to the garbage collector.
+ * </p>
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    private static final long DEFAULT_MAX_RETAINED_BYTES = 16L * 1024 * 1024;
+
+    private static final int MAX_STRIPES = 64;
+
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE)
+            - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE) + 1;
+
+    private final BlockingQueue<byte[]>[][] stripes;
+
+    private final int stripeMask;
+
+    private final LongAdder borrowed = new LongAdder();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder released = new LongAdder();
+
+    private final LongAdder discarded = new LongAdder();
+
+    private final LongAdder outstandingBytes = new LongAdder();
+
+    private final LongAdder pooledBytes = new LongAdder();
+
+    public BufferPool() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * @param concurrency      expected number of threads using the pool at once, rounded up to a power of two
+     * @param maxRetainedBytes upper bound of the memory kept by the pool between two borrows
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(final int concurrency, final long maxRetainedBytes) {
+        checkArgument(concurrency > 0, "The concurrency must be positive");
+        checkArgument(maxRetainedBytes >= 0, "The retained bytes cannot be negative");
+        final int stripeCount = concurrency == 1
+                ? 1 : Integer.highestOneBit(Math.min(concurrency, MAX_STRIPES) - 1) << 1;
+        stripeMask = stripeCount - 1;
+        stripes = new BlockingQueue[stripeCount][SIZE_CLASSES];
+        final long bytesPerSizeClass = maxRetainedBytes / SIZE_CLASSES;
+        for (int sizeClass = 0; sizeClass < SIZE_CLASSES; sizeClass++) {
+            final long buffersPerStripe = bytesPerSizeClass / stripeCount / sizeOf(sizeClass);
+            final int capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, buffersPerStripe));
+            for (int stripe = 0; stripe < stripeCount; stripe++) {
+                stripes[stripe][sizeClass] = new ArrayBlockingQueue<>(capacity);
+            }
+        }
+    }
+
+    public static BufferPool bufferPool() {
+        return Singleton.INSTANCE.singleton;
+    }
+
+    /**
+     * Borrow a buffer of at least the given size. It must be given back with {@linkplain #release(byte[])} once
+     * not used anymore, and must not be used after that.
+     *
+     * @param minimumSize the minimum length of the buffer
+     * @return a buffer whose content is undefined
+     */
+    public byte[] borrow(final int minimumSize) {
+        checkArgument(minimumSize >= 0, "The buffer size cannot be negative");
+        borrowed.increment();
+        final byte[] buffer;
+        if (minimumSize > MAX_BUFFER_SIZE) {
+            buffer = new byte[minimumSize];
+        } else {
+            final int sizeClass = sizeClassOf(minimumSize);
+            final byte[] pooled = stripe()[sizeClass].poll();
+            if (pooled != null) {
+                hits.increment();
+                pooledBytes.add(-pooled.length);
+                buffer = pooled;
+            } else {
+                buffer = new byte[sizeOf(sizeClass)];
+            }
+        }
+        outstandingBytes.add(buffer.length);
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer obtained from {@linkplain #borrow(int)}.
+     *
+     * @param buffer the buffer, can be null
+     */
+    public void release(final byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        released.increment();
+        outstandingBytes.add(-buffer.length);
+        final int length = buffer.length;
+        if (length < MIN_BUFFER_SIZE || length > MAX_BUFFER_SIZE || Integer.bitCount(length) != 1
+                || !stripe()[sizeClassOf(length)].offer(buffer)) {
+            discarded.increment();
+        } else {
+            pooledBytes.add(length);
+        }
+    }
+
+    public BufferPoolStatistics getStatistics() {
+        return new BufferPoolStatistics(borrowed.sum(), hits.sum(), released.sum(), discarded.sum(),
+                outstandingBytes.sum(), pooledBytes.sum());
+    }
+
+    private BlockingQueue<byte[]>[] stripe() {
+        return stripes[(int) Thread.currentThread().getId() & stripeMask];
+    }
+
+    static int sizeClassOf(final int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    private static int sizeOf(final int sizeClass) {
+        return MIN_BUFFER_SIZE << sizeClass;
+    }
+
+    private enum Singleton {
+        INSTANCE;
+
+        final BufferPool singleton = new BufferPool();
+    }
+
+    /**
+     * A point in time snapshot of the pool counters.
+     */
+    @lombok.Value
+    public static class BufferPoolStatistics {
+
+        long borrowed;
+
+        long hits;
+
+        long released;
+
+        long discarded;
+
+        /**
+         * Bytes borrowed and not released yet.
+         */
+        long outstandingBytes;
+
+        /**
+         * Bytes retained by the pool, ready to be borrowed.
+         */
+        long pooledBytes;
+
+        public long getMisses() {
+            return borrowed - hits;
+        }
+
+        public double getHitRate() {
+            return borrowed == 0 ? 0 : (double) hits / borrowed;
+        }
+
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import lombok.NonNull;
+
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * <p>
+ * Computes the DKIM relaxed body hash of a message written into it, skipping the headers: whitespaces are reduced
+ * to a single space, trailing whitespaces and trailing empty lines are dropped.
+ * </p>
+ * <p>
+ * The canonicalized body is fed to the digest in small chunks while it is written, hence it is never buffered.
+ * The chunk is borrowed from a {@linkplain BufferPool} and given back when the stream is closed.
+ * </p>
+ */
+class DkimBodyHashOutputStream extends OutputStream {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final MessageDigest digest;
+
+    private final BufferPool bufferPool;
+
+    private byte[] chunk;
+
+    private int chunkLength;
+
+    /**
+     * Number of consecutive line breaks at the end of the headers, used to find the body.
+     */
+    private int headerLineBreaks;
+
+    private boolean inBody;
+
+    private boolean pendingWhitespace;
+
+    private int pendingLineBreaks;
+
+    private boolean bodyStarted;
+
+    DkimBodyHashOutputStream(final @NonNull MessageDigest digest, final @NonNull BufferPool bufferPool) {
+        this.digest = digest;
+        this.bufferPool = bufferPool;
+        chunk = bufferPool.borrow(BufferPool.MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * JavaMail writes mostly byte by byte, hence this path does not go through the array one.
+     */
+    @Override
+    public void write(final int b) {
+        if (inBody) {
+            canonicalize((byte) b);
+        } else {
+            skipHeaders(b);
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+        final int end = off + len;
+        int i = off;
+        while (!inBody && i < end) {
+            skipHeaders(b[i++]);
+        }
+        for (; i < end; i++) {
+            canonicalize(b[i]);
+        }
+    }
+
+    /**
+     * Complete the hash, and reset the underlying digest.
+     *
+     * @return the body hash
+     */
+    public byte[] digest() {
+        //A non empty body ends with exactly one line break, an empty one is hashed as such
+        if (bodyStarted) {
+            append(CRLF[0]);
+            append(CRLF[1]);
+        }
+        flushChunk();
+        return digest.digest();
+    }
+
+    /**
+     * Give the chunk back to the pool, the hash cannot be computed anymore.
+     */
+    @Override
+    public void close() {
+        if (chunk != null) {
+            bufferPool.release(chunk);
+            chunk = null;
+        }
+    }
+
+    private void canonicalize(final byte c) {
+        if (c == ' ' || c == '\t') {
+            pendingWhitespace = true;
+        } else if (c == '\n') {
+            //Trailing whitespaces are dropped, and line breaks are kept until some content follows them
+            pendingWhitespace = false;
+            pendingLineBreaks++;
+        } else if (c != '\r') {
+            if (pendingLineBreaks > 0 || pendingWhitespace) {
+                appendPending();
+            }
+            append(c);
+            bodyStarted = true;
+        }
+    }
+
+    private void appendPending() {
+        for (; pendingLineBreaks > 0; pendingLineBreaks--) {
+            append(CRLF[0]);
+            append(CRLF[1]);
+        }
+        if (pendingWhitespace) {
+            append(' ');
+            pendingWhitespace = false;
+        }
+    }
+
+    private void skipHeaders(final int b) {
+        if (b == '\n') {
+            headerLineBreaks++;
+            inBody = headerLineBreaks == 2;
+        } else if (b != '\r') {
+            headerLineBreaks = 0;
+        }
+    }
+
+    private void append(final int b) {
+        if (chunkLength == chunk.length) {
+            flushChunk();
+        }
+        chunk[chunkLength++] = (byte) b;
+    }
+
+    private void flushChunk() {
+        digest.update(chunk, 0, chunkLength);
+        chunkLength = 0;
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import lombok.NonNull;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * <p>
+ * A {@linkplain MimeMessage} signed with DKIM when written, i.e. when sent.
+ * </p>
+ * <p>
+ * The message is first streamed through the body hash, without being buffered, then the DKIM-Signature header is
+ * written before the message itself. The headers are not modified, so the message can be written several times.
+ * </p>
+ */
+public class DkimSignedMimeMessage extends MimeMessage {
+
+    private final DkimSigner dkimSigner;
+
+    public DkimSignedMimeMessage(final Session session, final @NonNull DkimSigner dkimSigner) {
+        super(session);
+        this.dkimSigner = dkimSigner;
+    }
+
+    @Override
+    public void writeTo(final OutputStream os, final String[] ignoreList) throws IOException, MessagingException {
+        if (!saved) {
+            saveChanges();
+        }
+        final byte[] bodyHash;
+        try (DkimBodyHashOutputStream bodyHashOutputStream = dkimSigner.newBodyHashOutputStream()) {
+            super.writeTo(bodyHashOutputStream, ignoreList);
+            bodyHash = bodyHashOutputStream.digest();
+        }
+        os.write(dkimSigner.sign(this, bodyHash).getBytes(US_ASCII));
+        super.writeTo(os, ignoreList);
+    }
+
+}
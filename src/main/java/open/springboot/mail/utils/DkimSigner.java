@@ -0,0 +1,190 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import lombok.Getter;
+import lombok.NonNull;
+import org.springframework.core.io.Resource;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static com.google.common.io.ByteStreams.toByteArray;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.isNull;
+
+/**
+ * <p>
+ * Signs the messages with DKIM (RFC 6376), using rsa-sha256 and the relaxed canonicalization for both headers and body.
+ * </p>
+ * <p>
+ * The private key is parsed once, and each thread keeps its own initialized {@linkplain Signature} and
+ * {@linkplain MessageDigest}, so that signing a message costs only the hashing. The body hash is computed while the
+ * message is written, see {@linkplain DkimSignedMimeMessage}. The private key must be an unencrypted PKCS#8 key,
+ * either PEM or DER encoded, e.g. obtained with {@code openssl pkcs8 -topk8 -nocrypt}.
+ * </p>
+ */
+public class DkimSigner {
+
+    public static final String DKIM_SIGNATURE_HEADER = "DKIM-Signature";
+
+    private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final Pattern FOLDING = Pattern.compile("\r?\n");
+
+    private static final Pattern WHITESPACES = Pattern.compile("[ \t]+");
+
+    private static final Pattern PEM_BOUNDARY = Pattern.compile("-----[A-Z ]+-----");
+
+    @Getter
+    private final String domain;
+
+    @Getter
+    private final String selector;
+
+    private final List<String> signedHeaders;
+
+    private final ThreadLocal<Signature> signatures;
+
+    private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(DkimSigner::newDigest);
+
+    public DkimSigner(final String domain,
+                      final String selector,
+                      final Resource privateKey,
+                      final String[] signedHeaders) throws IOException, GeneralSecurityException {
+        this(domain, selector, readPrivateKey(privateKey), Arrays.asList(signedHeaders));
+    }
+
+    public DkimSigner(final @NonNull String domain, final @NonNull String selector,
+                      final @NonNull PrivateKey privateKey, final @NonNull List<String> signedHeaders)
+            throws GeneralSecurityException {
+        checkArgument(!isNullOrEmpty(domain), "The DKIM domain is mandatory");
+        checkArgument(!isNullOrEmpty(selector), "The DKIM selector is mandatory");
+        checkArgument(signedHeaders.stream().anyMatch("From"::equalsIgnoreCase), "The From header must be signed");
+        this.domain = domain;
+        this.selector = selector;
+        this.signedHeaders = ImmutableList.copyOf(signedHeaders);
+        //Fail fast on unusable keys
+        newSignature(privateKey);
+        signatures = ThreadLocal.withInitial(() -> {
+            try {
+                return newSignature(privateKey);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Return a stream computing the relaxed body hash of the message written into it.
+     */
+    DkimBodyHashOutputStream newBodyHashOutputStream() {
+        final MessageDigest digest = digests.get();
+        digest.reset();
+        return new DkimBodyHashOutputStream(digest, BufferPool.bufferPool());
+    }
+
+    /**
+     * Return the DKIM-Signature header line, terminated by CRLF, to be written before the other headers.
+     *
+     * @param message  the message, with its headers already updated
+     * @param bodyHash the hash of the canonicalized body
+     * @return the DKIM-Signature header line
+     * @throws MessagingException if the headers cannot be read or signed
+     */
+    String sign(final MimeMessage message, final byte[] bodyHash) throws MessagingException {
+        final List<String> headerNames = new ArrayList<>();
+        final StringBuilder canonicalHeaders = new StringBuilder(512);
+        for (final String name : signedHeaders) {
+            final String[] values = message.getHeader(name);
+            if (isNull(values)) {
+                continue;
+            }
+            //Multiple occurrences are signed from the bottom up
+            for (int i = values.length - 1; i >= 0; i--) {
+                canonicalHeaders.append(canonicalizeHeader(name, values[i])).append("\r\n");
+                headerNames.add(name);
+            }
+        }
+        final String value = "v=1; a=rsa-sha256; c=relaxed/relaxed; d=" + domain + "; s=" + selector
+                + "; t=" + System.currentTimeMillis() / 1000 + ";\r\n\th=" + Joiner.on(':').join(headerNames)
+                + ";\r\n\tbh=" + Base64.getEncoder().encodeToString(bodyHash) + ";\r\n\tb=";
+        canonicalHeaders.append(canonicalizeHeader(DKIM_SIGNATURE_HEADER, value));
+
+        final Signature signature = signatures.get();
+        try {
+            signature.update(canonicalHeaders.toString().getBytes(UTF_8));
+            return DKIM_SIGNATURE_HEADER + ": " + value + Base64.getEncoder().encodeToString(signature.sign()) + "\r\n";
+        } catch (GeneralSecurityException e) {
+            throw new MessagingException("Cannot sign the message with DKIM", e);
+        }
+    }
+
+    static String canonicalizeHeader(final String name, final String value) {
+        final String unfolded = FOLDING.matcher(value).replaceAll("");
+        return name.trim().toLowerCase(Locale.ROOT) + ':' + WHITESPACES.matcher(unfolded).replaceAll(" ").trim();
+    }
+
+    static PrivateKey readPrivateKey(final Resource resource) throws IOException, GeneralSecurityException {
+        final byte[] bytes;
+        try (InputStream inputStream = resource.getInputStream()) {
+            bytes = toByteArray(inputStream);
+        }
+        final String text = new String(bytes, US_ASCII);
+        final byte[] der = text.contains("-----BEGIN") ?
+                Base64.getMimeDecoder().decode(PEM_BOUNDARY.matcher(text).replaceAll("")) : bytes;
+        return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(der));
+    }
+
+    private static Signature newSignature(final PrivateKey privateKey) throws GeneralSecurityException {
+        final Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        signature.initSign(privateKey);
+        return signature;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.base.Utf8;
+import lombok.NonNull;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.InlinePicture;
+import open.springboot.mail.model.impl.EmailAttachmentImpl;
+import org.springframework.stereotype.Component;
+
+import javax.mail.internet.InternetAddress;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+import static com.google.common.base.CharMatcher.ascii;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * <p>
+ * Estimates the size of an email once converted to a MIME message and transfer encoded, from its content only:
+ * nothing is serialized or encoded.
+ * </p>
+ * <p>
+ * Attachments and inline pictures are counted as base64, with its 4/3 overhead and line breaks every 76 characters.
+ * Texts are counted as they are when ASCII, and as base64 otherwise. The headers are counted from the addresses and
+ * the subject, plus a fixed allowance for the generated headers and MIME boundaries.
+ * </p>
+ */
+@Component
+public class EmailSizeEstimator {
+
+    /**
+     * Generated headers, i.e. Date, Message-ID, MIME-Version, Content-Type and Content-Transfer-Encoding.
+     */
+    static final int MESSAGE_HEADERS_SIZE = 250;
+
+    /**
+     * Boundary and headers of each part, without the file name.
+     */
+    static final int PART_HEADERS_SIZE = 200;
+
+    private static final int ADDRESS_HEADER_SIZE = 16;
+
+    private static final int BASE64_LINE_LENGTH = 76;
+
+    /**
+     * Return the estimated size of the MIME message for the given email.
+     *
+     * @param email          the email to be sent
+     * @param inlinePictures the pictures embedded in the email, if any
+     * @return the estimated size in bytes
+     */
+    public long estimate(final @NonNull Email email, final InlinePicture... inlinePictures) {
+        return estimate(email, email.getBody(), inlinePictures);
+    }
+
+    /**
+     * Return the estimated size of the MIME message for the given email, whose body is replaced by the given text,
+     * e.g. rendered from a template.
+     *
+     * @param email          the email to be sent
+     * @param text           the text sent instead of the body of the email
+     * @param inlinePictures the pictures embedded in the email, if any
+     * @return the estimated size in bytes
+     */
+    public long estimate(final @NonNull Email email, final String text, final InlinePicture... inlinePictures) {
+        final Charset charset = isNull(email.getEncoding()) ? StandardCharsets.UTF_8 : email.getEncoding();
+        long size = MESSAGE_HEADERS_SIZE
+                + addressesSize(email.getFrom())
+                + addressesSize(email.getReplyTo())
+                + addressesSize(email.getTo())
+                + addressesSize(email.getCc())
+                + addressesSize(email.getBcc())
+                + textSize(email.getSubject(), charset)
+                + textSize(text, charset);
+        if (nonNull(email.getAttachments()) && !email.getAttachments().isEmpty()) {
+            //The body becomes a part of the multipart message
+            size += PART_HEADERS_SIZE;
+            for (final EmailAttachmentImpl attachment : email.getAttachments()) {
+                size += attachmentSize(attachment);
+            }
+        }
+        if (nonNull(inlinePictures)) {
+            for (final InlinePicture inlinePicture : inlinePictures) {
+                size += PART_HEADERS_SIZE + inlinePicture.getFile().getName().length()
+                        + base64Size(inlinePicture.getFile().length());
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Return the estimated size of the attachment part, i.e. its headers and base64 encoded content.
+     *
+     * @param attachment the attachment
+     * @return the estimated size in bytes
+     */
+    public long attachmentSize(final @NonNull EmailAttachmentImpl attachment) {
+        return PART_HEADERS_SIZE + 2L * attachment.getAttachmentName().length()
+                + base64Size(attachment.getAttachmentData().length);
+    }
+
+    static long base64Size(final long length) {
+        final long encoded = (length + 2) / 3 * 4;
+        return encoded + (encoded + BASE64_LINE_LENGTH - 1) / BASE64_LINE_LENGTH * 2;
+    }
+
+    private static long textSize(final String text, final Charset charset) {
+        if (isNull(text)) {
+            return 0;
+        }
+        if (ascii().matchesAllOf(text)) {
+            return text.length();
+        }
+        final long encodedLength = StandardCharsets.UTF_8.equals(charset) ? Utf8.encodedLength(text) :
+                (long) Math.ceil(text.length() * charset.newEncoder().maxBytesPerChar());
+        return base64Size(encodedLength);
+    }
+
+    private static long addressesSize(final InternetAddress address) {
+        return isNull(address) ? 0 : ADDRESS_HEADER_SIZE + address.toString().length();
+    }
+
+    private static long addressesSize(final Collection<InternetAddress> addresses) {
+        long size = 0;
+        if (nonNull(addresses)) {
+            for (final InternetAddress address : addresses) {
+                size += addressesSize(address);
+            }
+        }
+        return size;
+    }
+
+}
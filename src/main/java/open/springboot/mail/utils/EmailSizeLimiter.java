@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.exceptions.EmailConversionException;
+import open.springboot.mail.exceptions.EmailTooLargeException;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.InlinePicture;
+import open.springboot.mail.model.impl.CompactEmail;
+import open.springboot.mail.model.impl.EmailAttachmentImpl;
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.io.Files.getFileExtension;
+import static com.google.common.io.Files.getNameWithoutExtension;
+import static java.util.Objects.isNull;
+import static java.util.Optional.ofNullable;
+
+/**
+ * <p>
+ * Rejects the emails whose estimated size exceeds the limit, before they are converted to MIME messages.
+ * </p>
+ * <p>
+ * Optionally, the attachments larger than a threshold are first moved into a single compressed archive, and the
+ * email is rejected only if still too large.
+ * </p>
+ */
+@Slf4j
+public class EmailSizeLimiter {
+
+    static final String ARCHIVE_NAME = "attachments.zip";
+
+    private static final MediaType ZIP = MediaType.valueOf("application/zip");
+
+    private final EmailSizeEstimator emailSizeEstimator;
+
+    private final long maximumBytes;
+
+    private final boolean compressAttachments;
+
+    private final long compressionThresholdBytes;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong compressedCount = new AtomicLong();
+
+    public EmailSizeLimiter(final @NonNull EmailSizeEstimator emailSizeEstimator,
+                            final long maximumBytes,
+                            final boolean compressAttachments,
+                            final long compressionThresholdBytes) {
+        checkArgument(maximumBytes > 0, "The maximum size must be positive");
+        checkArgument(compressionThresholdBytes >= 0, "The compression threshold cannot be negative");
+        this.emailSizeEstimator = emailSizeEstimator;
+        this.maximumBytes = maximumBytes;
+        this.compressAttachments = compressAttachments;
+        this.compressionThresholdBytes = compressionThresholdBytes;
+    }
+
+    /**
+     * Return the email to be sent, i.e. the given one or a copy with the large attachments compressed.
+     *
+     * @param email          the email to be sent
+     * @param inlinePictures the pictures embedded in the email, if any
+     * @return the email to be sent
+     * @throws EmailTooLargeException if the email exceeds the limit
+     */
+    public Email enforce(final @NonNull Email email, final InlinePicture... inlinePictures) {
+        return enforce(email, email.getBody(), inlinePictures);
+    }
+
+    /**
+     * Return the email to be sent, i.e. the given one or a copy with the large attachments compressed, given the text
+     * sent instead of its body, e.g. rendered from a template.
+     *
+     * @param email          the email to be sent
+     * @param text           the text sent instead of the body of the email
+     * @param inlinePictures the pictures embedded in the email, if any
+     * @return the email to be sent
+     * @throws EmailTooLargeException if the email exceeds the limit
+     */
+    public Email enforce(final @NonNull Email email, final String text, final InlinePicture... inlinePictures) {
+        final long estimatedSize = emailSizeEstimator.estimate(email, text, inlinePictures);
+        if (estimatedSize <= maximumBytes) {
+            return email;
+        }
+        if (compressAttachments) {
+            final Email compressed = compressLargeAttachments(email);
+            if (compressed != email) {
+                final long compressedSize = emailSizeEstimator.estimate(compressed, text, inlinePictures);
+                if (compressedSize <= maximumBytes) {
+                    log.info("Compressed the large attachments, from {} to {} bytes", estimatedSize, compressedSize);
+                    compressedCount.incrementAndGet();
+                    return compressed;
+                }
+                log.warn("Compressing the large attachments is not enough, the email is still {} bytes", compressedSize);
+            }
+        }
+        rejectedCount.incrementAndGet();
+        throw new EmailTooLargeException(estimatedSize, maximumBytes);
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getCompressedCount() {
+        return compressedCount.get();
+    }
+
+    private Email compressLargeAttachments(final Email email) {
+        if (isNull(email.getAttachments())) {
+            return email;
+        }
+        final List<EmailAttachmentImpl> attachments = new ArrayList<>();
+        final List<EmailAttachmentImpl> largeAttachments = new ArrayList<>();
+        for (final EmailAttachmentImpl attachment : email.getAttachments()) {
+            (attachment.getAttachmentData().length > compressionThresholdBytes ? largeAttachments : attachments)
+                    .add(attachment);
+        }
+        if (largeAttachments.isEmpty()) {
+            return email;
+        }
+        attachments.add(new EmailAttachmentImpl(ARCHIVE_NAME, archive(largeAttachments), ZIP));
+
+        return CompactEmail.builder()
+                .from(email.getFrom())
+                .replyTo(email.getReplyTo())
+                .to(email.getTo())
+                .cc(email.getCc())
+                .bcc(email.getBcc())
+                .subject(ofNullable(email.getSubject()).orElse(""))
+                .body(ofNullable(email.getBody()).orElse(""))
+                .attachments(attachments)
+                .encoding(email.getEncoding())
+                .locale(email.getLocale())
+                .idempotencyKey(email.getIdempotencyKey())
+                .priority(email.getPriority())
+                .sentAt(email.getSentAt())
+                .build();
+    }
+
+    private static byte[] archive(final List<EmailAttachmentImpl> attachments) {
+        //Closing the archive gives the pooled buffers back, hence the content is read just before
+        final PooledByteArrayOutputStream outputStream = new PooledByteArrayOutputStream();
+        final Set<String> names = new HashSet<>();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream)) {
+            for (final EmailAttachmentImpl attachment : attachments) {
+                zipOutputStream.putNextEntry(new ZipEntry(uniqueName(attachment.getAttachmentName(), names)));
+                zipOutputStream.write(attachment.getAttachmentData());
+                zipOutputStream.closeEntry();
+            }
+            zipOutputStream.finish();
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            log.error("Error while compressing the attachments");
+            throw new EmailConversionException(e);
+        }
+    }
+
+    /**
+     * Return the name of the archive entry, with a counter if the name is already taken.
+     */
+    private static String uniqueName(final String name, final Set<String> names) {
+        String uniqueName = name;
+        for (int i = 1; !names.add(uniqueName); i++) {
+            final String extension = getFileExtension(name);
+            uniqueName = getNameWithoutExtension(name) + '-' + i + (extension.isEmpty() ? "" : '.' + extension);
+        }
+        return uniqueName;
+    }
+
+}
@@ -23,82 +23,227 @@ import open.springboot.mail.model.Email;
 import open.springboot.mail.model.impl.EmailAttachmentImpl;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
 import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Component;
 
+import javax.mail.Address;
+import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.HeaderTokenizer;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Function;
 
-import static com.google.common.base.Optional.fromNullable;
+import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
-import static java.util.Optional.ofNullable;
 
 @Component
 @Slf4j
 public class EmailToMimeMessage implements Function<Email, MimeMessage> {
 
+    private static final CharsetMetadata DEFAULT_CHARSET_METADATA = new CharsetMetadata(StandardCharsets.UTF_8);
+
+    private final ConcurrentMap<Charset, CharsetMetadata> charsets = new ConcurrentHashMap<>();
+
     private JavaMailSender javaMailSender;
 
+    private volatile Session session;
+
+    private DkimSigner dkimSigner;
+
+    private ParallelAttachmentEncoder parallelAttachmentEncoder;
+
+    private TransferEncodingSelector transferEncodingSelector;
+
     @Autowired
     public EmailToMimeMessage(final @NonNull JavaMailSender javaMailSender) {
         this.javaMailSender = javaMailSender;
     }
 
+    @Autowired(required = false)
+    public void setDkimSigner(final DkimSigner dkimSigner) {
+        this.dkimSigner = dkimSigner;
+    }
+
+    @Autowired(required = false)
+    public void setParallelAttachmentEncoder(final ParallelAttachmentEncoder parallelAttachmentEncoder) {
+        this.parallelAttachmentEncoder = parallelAttachmentEncoder;
+    }
+
+    @Autowired(required = false)
+    public void setTransferEncodingSelector(final TransferEncodingSelector transferEncodingSelector) {
+        this.transferEncodingSelector = transferEncodingSelector;
+    }
+
     @Override
     public MimeMessage apply(final Email email) {
-        final MimeMessage mimeMessage = javaMailSender.createMimeMessage();
-        final MimeMessageHelper messageHelper = new MimeMessageHelper(mimeMessage,
-                fromNullable(email.getEncoding()).or(Charset.forName("UTF-8")).displayName());
-
+        final PipelineEvent event = PipelineEvents.begin(PipelineStage.MIME_CONVERSION);
         try {
-            messageHelper.setFrom(email.getFrom());
-            if (ofNullable(email.getReplyTo()).isPresent()) {
-                messageHelper.setReplyTo(email.getReplyTo());
-            }
-            if (ofNullable(email.getTo()).isPresent()) {
-                for (final InternetAddress address : email.getTo()) {
-                    messageHelper.addTo(address);
-                }
+            final MimeMessage mimeMessage = convert(email);
+            if (event.isRecorded()) {
+                event.recipients(sizeOf(email.getTo()) + sizeOf(email.getCc()) + sizeOf(email.getBcc()))
+                        .bytes(attachmentBytes(email.getAttachments()));
             }
-            if (ofNullable(email.getCc()).isPresent()) {
-                for (final InternetAddress address : email.getCc()) {
-                    messageHelper.addCc(address);
-                }
-            }
-            if (ofNullable(email.getBcc()).isPresent()) {
-                for (final InternetAddress address : email.getBcc()) {
-                    messageHelper.addBcc(address);
-                }
+            event.success();
+            return mimeMessage;
+        } finally {
+            event.end();
+        }
+    }
+
+    private MimeMessage convert(final Email email) {
+        final MimeMessage mimeMessage = createMimeMessage();
+        final CharsetMetadata charset = charsetMetadata(email.getEncoding());
+        try {
+            mimeMessage.setFrom(email.getFrom());
+            if (nonNull(email.getReplyTo())) {
+                mimeMessage.setReplyTo(new Address[]{email.getReplyTo()});
             }
-            if (ofNullable(email.getAttachments()).isPresent()) {
-                for (final EmailAttachmentImpl attachment : email.getAttachments()) {
-                    try {
-                        messageHelper.addAttachment(attachment.getAttachmentName(),
-                                attachment.getInputStream(), attachment.getContentType().getType());
-                    } catch (IOException e) {
-                        log.error("Error while converting Email to MimeMessage");
-                        throw new EmailConversionException(e);
-                    }
-                }
+            setRecipients(mimeMessage, Message.RecipientType.TO, email.getTo());
+            setRecipients(mimeMessage, Message.RecipientType.CC, email.getCc());
+            setRecipients(mimeMessage, Message.RecipientType.BCC, email.getBcc());
+            mimeMessage.setSubject(isNull(email.getSubject()) ? "" : email.getSubject(), charset.name);
+
+            final String body = isNull(email.getBody()) ? "" : email.getBody();
+            if (isNull(email.getAttachments()) || email.getAttachments().isEmpty()) {
+                mimeMessage.setContent(body, charset.plainTextContentType);
+                selectTransferEncoding(mimeMessage, body, charset);
+            } else {
+                setMultipartContent(mimeMessage, charset, body, email.getAttachments());
             }
-            messageHelper.setSubject(ofNullable(email.getSubject()).orElse(""));
-            messageHelper.setText(ofNullable(email.getBody()).orElse(""));
 
             if (nonNull(email.getSentAt())) {
-                messageHelper.setSentDate(email.getSentAt());
+                mimeMessage.setSentDate(email.getSentAt());
             }
         } catch (MessagingException e) {
             log.error("Error while converting Email to MimeMessage");
             throw new EmailConversionException(e);
         }
 
-
         return mimeMessage;
     }
 
+    private static int sizeOf(final Collection<?> collection) {
+        return isNull(collection) ? 0 : collection.size();
+    }
+
+    private static long attachmentBytes(final Collection<EmailAttachmentImpl> attachments) {
+        long bytes = 0;
+        if (nonNull(attachments)) {
+            for (final EmailAttachmentImpl attachment : attachments) {
+                bytes += attachment.getAttachmentData().length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Set all the recipients of the given type at once, rather than parsing and writing the header again for each one.
+     */
+    private static void setRecipients(final MimeMessage mimeMessage, final Message.RecipientType type,
+                                      final Collection<InternetAddress> addresses) throws MessagingException {
+        if (nonNull(addresses) && !addresses.isEmpty()) {
+            mimeMessage.setRecipients(type, addresses.toArray(new InternetAddress[addresses.size()]));
+        }
+    }
+
+    private void setMultipartContent(final MimeMessage mimeMessage, final CharsetMetadata charset, final String body,
+                                     final Collection<EmailAttachmentImpl> attachments) throws MessagingException {
+        final MimeMessageHelper messageHelper = new MimeMessageHelper(mimeMessage, true, charset.name);
+        if (nonNull(parallelAttachmentEncoder) && parallelAttachmentEncoder.isWorthParallelizing(attachments)) {
+            for (final MimeBodyPart bodyPart : parallelAttachmentEncoder.encode(attachments)) {
+                messageHelper.getRootMimeMultipart().addBodyPart(bodyPart);
+            }
+        } else {
+            for (final EmailAttachmentImpl attachment : attachments) {
+                try {
+                    messageHelper.addAttachment(attachment.getAttachmentName(),
+                            attachment.getInputStream(), attachment.getContentType().toString());
+                } catch (IOException e) {
+                    log.error("Error while converting Email to MimeMessage");
+                    throw new EmailConversionException(e);
+                }
+            }
+        }
+        if (isNull(transferEncodingSelector)) {
+            messageHelper.setText(body);
+        } else {
+            final MimeBodyPart textPart = new MimeBodyPart();
+            textPart.setText(body, charset.name);
+            selectTransferEncoding(textPart, body, charset);
+            messageHelper.getMimeMultipart().addBodyPart(textPart);
+        }
+    }
+
+    private void selectTransferEncoding(final MimePart part, final String text, final CharsetMetadata charset)
+            throws MessagingException {
+        if (nonNull(transferEncodingSelector)) {
+            transferEncodingSelector.apply(part, text, charset.charset);
+        }
+    }
+
+    private CharsetMetadata charsetMetadata(final Charset encoding) {
+        return isNull(encoding) ? DEFAULT_CHARSET_METADATA : charsets.computeIfAbsent(encoding, CharsetMetadata::new);
+    }
+
+    /**
+     * Create a message to be signed with DKIM when sent, if a signer is available.
+     */
+    private MimeMessage createMimeMessage() {
+        if (isNull(dkimSigner)) {
+            return javaMailSender.createMimeMessage();
+        }
+        return new DkimSignedMimeMessage(session(), dkimSigner);
+    }
+
+    /**
+     * Return the session of the sender, taken once from a message it creates when it is not a
+     * {@linkplain JavaMailSenderImpl}, so that its properties are kept and the providers are not loaded again for each
+     * message.
+     */
+    private Session session() {
+        if (javaMailSender instanceof JavaMailSenderImpl) {
+            return ((JavaMailSenderImpl) javaMailSender).getSession();
+        }
+        Session current = session;
+        if (isNull(current)) {
+            current = javaMailSender.createMimeMessage().getSession();
+            if (isNull(current)) {
+                current = Session.getInstance(new Properties());
+            }
+            session = current;
+        }
+        return current;
+    }
+
+    /**
+     * The charset name and the derived content type, computed once per charset.
+     */
+    private static final class CharsetMetadata {
+
+        private final Charset charset;
+
+        private final String name;
+
+        private final String plainTextContentType;
+
+        private CharsetMetadata(final Charset charset) {
+            this.charset = charset;
+            name = charset.name();
+            plainTextContentType = "text/plain; charset=" + MimeUtility.quote(name, HeaderTokenizer.MIME);
+        }
+    }
 
 }
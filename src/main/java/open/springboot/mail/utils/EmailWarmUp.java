@@ -0,0 +1,237 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.nonNull;
+import static open.springboot.mail.utils.TikaDetector.tikaDetector;
+
+/**
+ * <p>
+ * Warms up at startup what the first emails would otherwise initialise lazily, in parallel and in the background:
+ * the {@linkplain TikaDetector} configuration, the JavaMail sessions and a number of connections to each SMTP relay.
+ * </p>
+ * <p>
+ * The {@linkplain JavaMailSenderImpl} opens a connection for each send, so the warm-up connections are closed once
+ * opened: they resolve the relay address, load the transport classes, establish the TLS sessions to be resumed and
+ * check that the relays are reachable. A connection failed or timed out is logged and counted, it does not fail the
+ * startup.
+ * </p>
+ * <p>
+ * The application is ready, see {@linkplain #isReady()}, once the warm-up completed, failed or was shut down.
+ * </p>
+ */
+@Slf4j
+public class EmailWarmUp {
+
+    private final List<JavaMailSenderImpl> senders;
+
+    private final int connections;
+
+    private final long timeoutMillis;
+
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    private final AtomicLong openedConnections = new AtomicLong();
+
+    private final AtomicLong failedConnections = new AtomicLong();
+
+    private final AtomicLong maxConnectMillis = new AtomicLong();
+
+    private volatile long tikaMillis;
+
+    private volatile long sessionMillis;
+
+    private volatile long totalMillis;
+
+    private ExecutorService executor;
+
+    public EmailWarmUp(final @NonNull JavaMailSender javaMailSender,
+                       final int connections,
+                       final long timeoutMillis) {
+        checkArgument(connections >= 0, "The number of warm-up connections cannot be negative");
+        checkArgument(timeoutMillis > 0, "The warm-up timeout must be positive");
+        this.senders = senders(javaMailSender);
+        this.connections = connections;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    private static List<JavaMailSenderImpl> senders(final JavaMailSender javaMailSender) {
+        final List<JavaMailSender> senders = javaMailSender instanceof LoadBalancingJavaMailSender ?
+                ((LoadBalancingJavaMailSender) javaMailSender).getSenders() : ImmutableList.of(javaMailSender);
+        return senders.stream()
+                .filter(sender -> sender instanceof JavaMailSenderImpl)
+                .map(sender -> (JavaMailSenderImpl) sender)
+                .collect(Collectors.toList());
+    }
+
+    @PostConstruct
+    public void start() {
+        final long start = System.nanoTime();
+        executor = Executors.newFixedThreadPool(Math.max(1, senders.size() * connections + 1),
+                new ThreadFactoryBuilder().setNameFormat("email-warm-up-%d").setDaemon(true).build());
+
+        final List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        tasks.add(CompletableFuture.runAsync(this::warmUpTika, executor));
+        final CompletableFuture<Void> sessions = CompletableFuture.runAsync(this::warmUpSessions, executor);
+        tasks.add(sessions);
+        for (final JavaMailSenderImpl sender : senders) {
+            for (int i = 0; i < connections; i++) {
+                tasks.add(sessions.thenRunAsync(() -> warmUpConnection(sender), executor));
+            }
+        }
+
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[tasks.size()])).whenComplete((result, e) -> {
+            totalMillis = millisSince(start);
+            if (nonNull(e)) {
+                log.warn("The warm-up failed after {} ms", totalMillis, e);
+            } else {
+                log.info("Warmed up in {} ms: Tika in {} ms, sessions in {} ms, {} connections opened, {} failed",
+                        totalMillis, tikaMillis, sessionMillis, openedConnections.get(), failedConnections.get());
+            }
+            ready.countDown();
+            executor.shutdown();
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (nonNull(executor)) {
+            executor.shutdownNow();
+        }
+        //The tasks dropped or stuck in a connection would never complete the warm-up
+        ready.countDown();
+    }
+
+    /**
+     * @return true once the warm-up completed, successfully or not, or was shut down
+     */
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * Waits for the warm-up to complete.
+     *
+     * @return true if the warm-up completed within the timeout
+     */
+    public boolean awaitReady(final long timeout, final @NonNull TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+
+    public WarmUpStatistics getStatistics() {
+        return new WarmUpStatistics(isReady(), tikaMillis, sessionMillis, openedConnections.get(),
+                failedConnections.get(), maxConnectMillis.get(), totalMillis);
+    }
+
+    private void warmUpTika() {
+        final long start = System.nanoTime();
+        try {
+            tikaDetector().detect(new ByteArrayInputStream("<html></html>".getBytes(UTF_8)), "warm-up.html");
+        } catch (IOException e) {
+            log.warn("Cannot warm up the Tika detector", e);
+        }
+        tikaMillis = millisSince(start);
+    }
+
+    private void warmUpSessions() {
+        final long start = System.nanoTime();
+        senders.forEach(JavaMailSenderImpl::getSession);
+        sessionMillis = millisSince(start);
+    }
+
+    private void warmUpConnection(final JavaMailSenderImpl sender) {
+        final long start = System.nanoTime();
+        final String protocol = nonNull(sender.getProtocol()) ?
+                sender.getProtocol() : JavaMailSenderImpl.DEFAULT_PROTOCOL;
+        try {
+            final Transport transport = timedSession(sender.getSession(), protocol).getTransport(protocol);
+            transport.connect(sender.getHost(), sender.getPort(), sender.getUsername(), sender.getPassword());
+            transport.close();
+            openedConnections.incrementAndGet();
+        } catch (MessagingException e) {
+            failedConnections.incrementAndGet();
+            log.warn("Cannot open a warm-up connection to {}:{}", sender.getHost(), sender.getPort(), e);
+        }
+        maxConnectMillis.accumulateAndGet(millisSince(start), Math::max);
+    }
+
+    /**
+     * Return a session like the given one, with the warm-up timeout as connection and read timeouts unless set, since
+     * JavaMail waits forever by default. The given session is left untouched, as it keeps sending the emails.
+     */
+    private Session timedSession(final Session session, final String protocol) {
+        final Properties sessionProperties = session.getProperties();
+        final Properties properties = new Properties();
+        sessionProperties.stringPropertyNames()
+                .forEach(name -> properties.setProperty(name, sessionProperties.getProperty(name)));
+        properties.putIfAbsent("mail." + protocol + ".connectiontimeout", String.valueOf(timeoutMillis));
+        properties.putIfAbsent("mail." + protocol + ".timeout", String.valueOf(timeoutMillis));
+        return Session.getInstance(properties);
+    }
+
+    private static long millisSince(final long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @lombok.Value
+    public static class WarmUpStatistics {
+
+        boolean ready;
+
+        long tikaMillis;
+
+        long sessionMillis;
+
+        long openedConnections;
+
+        long failedConnections;
+
+        long maxConnectMillis;
+
+        long totalMillis;
+
+    }
+
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableList;
+import freemarker.template.Configuration;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.service.impl.FreemarkerTemplateService;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * <p>
+ * Reloads the Freemarker templates when they change on disk, using a {@linkplain WatchService} on the template
+ * directories rather than the Freemarker staleness checks: the cached templates are never checked on render.
+ * </p>
+ * <p>
+ * When a template changes, only the template and the ones including or importing it, directly or not, are removed
+ * from the Freemarker cache. The includes are found by scanning the templates for {@code #include} and
+ * {@code #import} directives with a literal name. Localized variants, e.g. {@code welcome_it.ftl}, invalidate
+ * the template they are looked up for, e.g. {@code welcome.ftl}.
+ * </p>
+ * <p>
+ * The template loader paths which are not directories on the file system, e.g. in a jar, cannot be watched and
+ * their templates are never reloaded.
+ * </p>
+ */
+@Slf4j
+public class FreemarkerTemplateWatcher {
+
+    private static final Pattern INCLUDE = Pattern.compile("[<\\[]#(?:include|import)\\s+(?:\"([^\"]+)\"|'([^']+)')");
+
+    private static final Pattern LOCALIZED_NAME = Pattern.compile("^(.+?)_[a-z]{2}(?:_[A-Z]{2})?(\\.[^./]+)$");
+
+    private final Configuration configuration;
+
+    private final List<Path> directories;
+
+    /**
+     * Templates including or importing each template.
+     */
+    private final Map<String, Set<String>> includers = new HashMap<>();
+
+    /**
+     * Templates included or imported by each template.
+     */
+    private final Map<String, Set<String>> includes = new HashMap<>();
+
+    private final Map<WatchKey, WatchedDirectory> watchedDirectories = new HashMap<>();
+
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    private WatchService watchService;
+
+    private Thread watcher;
+
+    public FreemarkerTemplateWatcher(final @NonNull Configuration freemarkerConfiguration,
+                                     final @NonNull ResourceLoader resourceLoader,
+                                     final String[] directories) {
+        this(freemarkerConfiguration, resolveDirectories(resourceLoader, directories));
+    }
+
+    public FreemarkerTemplateWatcher(final @NonNull Configuration freemarkerConfiguration,
+                                     final @NonNull List<Path> directories) {
+        this.configuration = freemarkerConfiguration;
+        this.directories = ImmutableList.copyOf(directories);
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        //The watch service tells when a template changes, renders never need to check
+        configuration.setTemplateUpdateDelayMilliseconds(Long.MAX_VALUE);
+        watchService = FileSystems.getDefault().newWatchService();
+        for (final Path directory : directories) {
+            register(directory, directory);
+        }
+        watcher = new Thread(this::watch, "email-template-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        log.info("Watching the templates in {}", directories);
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (nonNull(watcher)) {
+            watcher.interrupt();
+        }
+        if (nonNull(watchService)) {
+            watchService.close();
+        }
+    }
+
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    /**
+     * Remove the template and its includers from the Freemarker cache.
+     *
+     * @param templateName the name of the changed template
+     * @return the names of the templates removed from the cache
+     */
+    synchronized Set<String> invalidate(final String templateName) {
+        final Set<String> invalidated = new LinkedHashSet<>();
+        final Deque<String> pending = new ArrayDeque<>();
+        pending.add(templateName);
+        final Matcher localized = LOCALIZED_NAME.matcher(templateName);
+        if (localized.matches()) {
+            pending.add(localized.group(1) + localized.group(2));
+        }
+        while (!pending.isEmpty()) {
+            final String name = pending.poll();
+            if (invalidated.add(name)) {
+                removeFromCache(name);
+                pending.addAll(includers.getOrDefault(name, Collections.emptySet()));
+            }
+        }
+        invalidationCount.addAndGet(invalidated.size());
+        log.debug("Template {} changed, removed {} from the cache", templateName, invalidated);
+        return invalidated;
+    }
+
+    private void watch() {
+        while (!Thread.currentThread().isInterrupted()) {
+            final WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            final WatchedDirectory watchedDirectory = watchedDirectories.get(key);
+            if (isNull(watchedDirectory)) {
+                key.reset();
+                continue;
+            }
+            for (final WatchEvent<?> event : key.pollEvents()) {
+                try {
+                    handle(watchedDirectory, event);
+                } catch (IOException | RuntimeException e) {
+                    log.error("Cannot handle the change of {} in {}", event.context(), watchedDirectory.getDirectory(), e);
+                }
+            }
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    private synchronized void handle(final WatchedDirectory watchedDirectory, final WatchEvent<?> event)
+            throws IOException {
+        if (event.kind() == OVERFLOW) {
+            log.warn("Too many template changes at once, clearing the template cache");
+            configuration.clearTemplateCache();
+            return;
+        }
+        final Path path = watchedDirectory.getDirectory().resolve((Path) event.context());
+        if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+            register(watchedDirectory.getRoot(), path);
+            return;
+        }
+        final String templateName = templateName(watchedDirectory.getRoot(), path);
+        updateIncludes(templateName, Files.isRegularFile(path) ? path : null);
+        invalidate(templateName);
+    }
+
+    /**
+     * Watch the directory and its subdirectories, and scan the templates they contain.
+     */
+    private synchronized void register(final Path root, final Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs)
+                    throws IOException {
+                watchedDirectories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE),
+                        new WatchedDirectory(root, dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                final String templateName = templateName(root, file);
+                updateIncludes(templateName, file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void updateIncludes(final String templateName, final Path file) throws IOException {
+        final Set<String> previous = includes.remove(templateName);
+        if (nonNull(previous)) {
+            for (final String included : previous) {
+                final Set<String> includingTemplates = includers.get(included);
+                if (nonNull(includingTemplates)) {
+                    includingTemplates.remove(templateName);
+                }
+            }
+        }
+        if (isNull(file)) {
+            return;
+        }
+        final Set<String> current = new HashSet<>();
+        final Matcher matcher = INCLUDE.matcher(new String(Files.readAllBytes(file), UTF_8));
+        while (matcher.find()) {
+            final String target = nonNull(matcher.group(1)) ? matcher.group(1) : matcher.group(2);
+            final String included = resolve(templateName, target);
+            current.add(included);
+            includers.computeIfAbsent(included, name -> new HashSet<>()).add(templateName);
+        }
+        if (!current.isEmpty()) {
+            includes.put(templateName, current);
+        }
+    }
+
+    private void removeFromCache(final String templateName) {
+        try {
+            configuration.removeTemplateFromCache(templateName, configuration.getLocale(),
+                    FreemarkerTemplateService.TEMPLATE_ENCODING, true);
+            configuration.removeTemplateFromCache(templateName);
+        } catch (IOException e) {
+            log.error("Cannot remove the template {} from the cache", templateName, e);
+        }
+    }
+
+    /**
+     * Return the name of the included template, as resolved by Freemarker, relative to the including one.
+     */
+    static String resolve(final String includingTemplate, final String target) {
+        final List<String> segments = new ArrayList<>();
+        if (!target.startsWith("/")) {
+            final int slash = includingTemplate.lastIndexOf('/');
+            if (slash > 0) {
+                Collections.addAll(segments, includingTemplate.substring(0, slash).split("/"));
+            }
+        }
+        for (final String segment : target.split("/")) {
+            if (segment.equals("..")) {
+                if (!segments.isEmpty()) {
+                    segments.remove(segments.size() - 1);
+                }
+            } else if (!segment.isEmpty() && !segment.equals(".")) {
+                segments.add(segment);
+            }
+        }
+        return String.join("/", segments);
+    }
+
+    private static String templateName(final Path root, final Path file) {
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    private static List<Path> resolveDirectories(final ResourceLoader resourceLoader, final String[] locations) {
+        final List<Path> directories = new ArrayList<>();
+        for (final String location : locations) {
+            final Resource resource = resourceLoader.getResource(location.trim());
+            try {
+                final File directory = resource.getFile();
+                if (directory.isDirectory()) {
+                    directories.add(directory.toPath());
+                    continue;
+                }
+            } catch (IOException e) {
+                //Not on the file system
+            }
+            log.warn("The template location {} is not a directory, its templates are not reloaded", location);
+        }
+        return directories;
+    }
+
+    @lombok.Value
+    private static class WatchedDirectory {
+
+        Path root;
+
+        Path directory;
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * <p>
+ * A hashed timing wheel, i.e. a timer holding a large number of pending entries with O(1) insertion and cancellation.
+ * </p>
+ * <p>
+ * Time is split in ticks of fixed duration, and each entry is hashed into the bucket of the tick of its deadline.
+ * Entries whose deadline is farther than a whole revolution of the wheel count the revolutions left before expiring.
+ * The wheel does not own any thread: time advances when {@linkplain #expire(long)} is called.
+ * </p>
+ *
+ * @param <T> the type of the values held by the wheel
+ */
+public final class HashedTimingWheel<T> {
+
+    private final long tickMillis;
+
+    private final long startMillis;
+
+    private final Bucket<T>[] wheel;
+
+    private final int mask;
+
+    private long currentTick;
+
+    private int size;
+
+    /**
+     * Create a new timing wheel.
+     *
+     * @param tickDuration  the duration of a tick, i.e. the precision of the timer
+     * @param unit          the time unit of the tick duration
+     * @param ticksPerWheel the number of buckets, rounded up to the next power of two
+     * @param startMillis   the time of the first tick, in milliseconds since the epoch
+     */
+    @SuppressWarnings("unchecked")
+    public HashedTimingWheel(final long tickDuration, final @NonNull TimeUnit unit, final int ticksPerWheel,
+                             final long startMillis) {
+        checkArgument(tickDuration > 0, "The tick duration must be positive");
+        checkArgument(ticksPerWheel > 0 && ticksPerWheel <= 1 << 30, "The ticks per wheel must be in (0, 2^30]");
+        tickMillis = Math.max(1, unit.toMillis(tickDuration));
+        this.startMillis = startMillis;
+        int buckets = 1;
+        while (buckets < ticksPerWheel) {
+            buckets <<= 1;
+        }
+        wheel = new Bucket[buckets];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket<>();
+        }
+        mask = wheel.length - 1;
+    }
+
+    /**
+     * Add the given value, to be expired at the given time.
+     *
+     * @param value          the value to be held
+     * @param deadlineMillis the time when the value expires, in milliseconds since the epoch
+     * @return a handle to cancel the entry
+     */
+    public synchronized Timeout<T> schedule(final @NonNull T value, final long deadlineMillis) {
+        final long deadlineTick = Math.max((deadlineMillis - startMillis) / tickMillis, currentTick);
+        final Timeout<T> timeout = new Timeout<>(this, value, deadlineMillis, (deadlineTick - currentTick) / wheel.length);
+        wheel[(int) (deadlineTick & mask)].add(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Advance the wheel up to the given time and remove all the entries whose deadline has passed.
+     *
+     * @param nowMillis the current time, in milliseconds since the epoch
+     * @return the expired values, in no particular order
+     */
+    public synchronized List<T> expire(final long nowMillis) {
+        final List<T> expired = new ArrayList<>();
+        while (startMillis + (currentTick + 1) * tickMillis <= nowMillis) {
+            wheel[(int) (currentTick & mask)].expire(expired);
+            currentTick++;
+        }
+        size -= expired.size();
+        return expired;
+    }
+
+    /**
+     * Return the number of pending entries.
+     *
+     * @return the number of entries neither expired nor cancelled
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private synchronized boolean cancel(final Timeout<T> timeout) {
+        if (isNull(timeout.bucket)) {
+            return false;
+        }
+        timeout.bucket.remove(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * Handle of an entry of the wheel.
+     *
+     * @param <T> the type of the value
+     */
+    public static final class Timeout<T> {
+
+        private final HashedTimingWheel<T> timingWheel;
+
+        @Getter
+        private final T value;
+
+        @Getter
+        private final long deadlineMillis;
+
+        private long remainingRounds;
+
+        private Bucket<T> bucket;
+
+        private Timeout<T> previous;
+
+        private Timeout<T> next;
+
+        private Timeout(final HashedTimingWheel<T> timingWheel, final T value, final long deadlineMillis,
+                        final long remainingRounds) {
+            this.timingWheel = timingWheel;
+            this.value = value;
+            this.deadlineMillis = deadlineMillis;
+            this.remainingRounds = remainingRounds;
+        }
+
+        /**
+         * Remove the entry from the wheel.
+         *
+         * @return true if the entry was pending, false if it was already expired or cancelled
+         */
+        public boolean cancel() {
+            return timingWheel.cancel(this);
+        }
+
+    }
+
+    /**
+     * Doubly linked list of the entries hashed in the same tick.
+     */
+    private static final class Bucket<T> {
+
+        private Timeout<T> head;
+
+        private Timeout<T> tail;
+
+        private void add(final Timeout<T> timeout) {
+            timeout.bucket = this;
+            if (isNull(head)) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        private void expire(final List<T> expired) {
+            Timeout<T> timeout = head;
+            while (nonNull(timeout)) {
+                final Timeout<T> next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    expired.add(timeout.value);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(final Timeout<T> timeout) {
+            if (nonNull(timeout.previous)) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (nonNull(timeout.next)) {
+                timeout.next.previous = timeout.previous;
+            } else {
+                tail = timeout.previous;
+            }
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.model.ImageType;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.isNull;
+
+/**
+ * <p>
+ * Shrinks the inline pictures with the JDK ImageIO only: pictures larger than the maximum dimension are downscaled,
+ * JPEG pictures are compressed again with the given quality, and the metadata (e.g. EXIF) are dropped.
+ * </p>
+ * <p>
+ * The optimized picture is used only if smaller than the original one. GIF pictures are left untouched, since
+ * they may be animated. The optimization is costly, hence it is meant to be cached by the
+ * {@linkplain InlinePictureRegistry}.
+ * </p>
+ */
+@Slf4j
+public class InlinePictureOptimizer {
+
+    private final int maximumDimension;
+
+    private final float quality;
+
+    /**
+     * Identifies the settings, so that pictures optimized with different settings are cached separately.
+     */
+    @Getter
+    private final String settingsKey;
+
+    public InlinePictureOptimizer(final int maximumDimension,
+                                  final float quality) {
+        checkArgument(maximumDimension > 0, "The maximum dimension must be positive");
+        checkArgument(quality > 0 && quality <= 1, "The quality must be in (0, 1]");
+        this.maximumDimension = maximumDimension;
+        this.quality = quality;
+        settingsKey = String.format(Locale.ROOT, "max%d-q%.2f", maximumDimension, quality);
+    }
+
+    /**
+     * Return the optimized picture.
+     *
+     * @param picture   the bytes of the picture
+     * @param imageType the type of the picture, which is kept
+     * @return the optimized picture, or the given one if it cannot be made smaller
+     */
+    public byte[] optimize(final @NonNull byte[] picture, final @NonNull ImageType imageType) {
+        if (imageType == ImageType.GIF) {
+            return picture;
+        }
+        try {
+            final BufferedImage image = ImageIO.read(new ByteArrayInputStream(picture));
+            if (isNull(image)) {
+                log.warn("Cannot decode the {} picture, sending it as is", imageType);
+                return picture;
+            }
+            final byte[] optimized = write(downscale(image, imageType), imageType);
+            return optimized.length < picture.length ? optimized : picture;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cannot optimize the {} picture, sending it as is", imageType, e);
+            return picture;
+        }
+    }
+
+    private BufferedImage downscale(final BufferedImage image, final ImageType imageType) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        //JPEG cannot hold an alpha channel, and PNG pictures keep it only if they have one
+        final boolean opaque = imageType != ImageType.PNG || !image.getColorModel().hasAlpha();
+        if (width <= maximumDimension && height <= maximumDimension) {
+            return opaque && image.getColorModel().hasAlpha() ? resize(image, width, height, true) : image;
+        }
+        final double scale = (double) maximumDimension / Math.max(width, height);
+        final int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        final int targetHeight = Math.max(1, (int) Math.round(height * scale));
+
+        //Halve the picture step by step, since a single bicubic pass loses details on large reductions
+        BufferedImage scaled = image;
+        int currentWidth = width;
+        int currentHeight = height;
+        do {
+            currentWidth = Math.max(targetWidth, currentWidth / 2);
+            currentHeight = Math.max(targetHeight, currentHeight / 2);
+            scaled = resize(scaled, currentWidth, currentHeight, opaque);
+        } while (currentWidth != targetWidth || currentHeight != targetHeight);
+        return scaled;
+    }
+
+    private static BufferedImage resize(final BufferedImage image, final int width, final int height,
+                                        final boolean opaque) {
+        final BufferedImage resized = new BufferedImage(width, height,
+                opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = resized.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return resized;
+    }
+
+    /**
+     * Write the picture without any metadata.
+     */
+    private byte[] write(final BufferedImage image, final ImageType imageType) throws IOException {
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(imageType.getExtension());
+        if (!writers.hasNext()) {
+            throw new IOException("No ImageIO writer for " + imageType);
+        }
+        final ImageWriter writer = writers.next();
+        try (PooledByteArrayOutputStream outputStream = new PooledByteArrayOutputStream()) {
+            try (ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(outputStream)) {
+                writer.setOutput(imageOutputStream);
+                final ImageWriteParam param = writer.getDefaultWriteParam();
+                if (param.canWriteCompressed() && imageType != ImageType.PNG) {
+                    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                    param.setCompressionQuality(quality);
+                }
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+            return outputStream.toByteArray();
+        }
+    }
+
+}
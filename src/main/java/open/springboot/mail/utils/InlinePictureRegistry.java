@@ -0,0 +1,215 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hashing;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.model.InlinePicture;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Base64;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * <p>
+ * Content addressed registry of the inline pictures.
+ * </p>
+ * <p>
+ * Each picture is identified by the digest of its bytes, which is also the left-hand side of its Content-ID, e.g.
+ * {@code <digest>@email-tools}, so that identical pictures get the same Content-ID whatever the file they come from.
+ * The base64 encoded bytes are cached by digest, and shared by all the body parts created for the same picture:
+ * pictures are read and encoded only once.
+ * </p>
+ * <p>
+ * If an {@linkplain InlinePictureOptimizer} is available, pictures are optimized before being encoded. The result is
+ * cached by digest of the original picture and optimization settings, so each picture is optimized only once.
+ * </p>
+ */
+@Slf4j
+public class InlinePictureRegistry {
+
+    /**
+     * The right-hand side of the Content-IDs, making them valid {@code msg-id} (RFC 2392).
+     */
+    private static final String CONTENT_ID_DOMAIN = "email-tools";
+
+    private static final long DEFAULT_MAXIMUM_CACHE_BYTES = 16 * 1024 * 1024;
+
+    private static final int MAXIMUM_CACHED_FILES = 10_000;
+
+    /**
+     * Encoded pictures by digest of the original picture, and optimization settings if any.
+     */
+    private final Cache<String, EncodedPicture> encodedPictures;
+
+    /**
+     * Digest of the files, to avoid reading them when they did not change.
+     */
+    private final Cache<File, FileDigest> fileDigests = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_CACHED_FILES)
+            .build();
+
+    private InlinePictureOptimizer optimizer;
+
+    public InlinePictureRegistry() {
+        this(DEFAULT_MAXIMUM_CACHE_BYTES);
+    }
+
+    public InlinePictureRegistry(final long maximumCacheBytes) {
+        encodedPictures = CacheBuilder.newBuilder()
+                .maximumWeight(maximumCacheBytes)
+                .<String, EncodedPicture>weigher((digest, picture) -> picture.encodedBytes.length)
+                .recordStats()
+                .build();
+    }
+
+    @Autowired(required = false)
+    public void setOptimizer(final InlinePictureOptimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    /**
+     * Return the encoded picture, reading and encoding the file only if not yet done.
+     *
+     * @param inlinePicture the picture to be embedded
+     * @return the encoded picture
+     * @throws IOException if the picture file cannot be read
+     */
+    public EncodedPicture encode(final @NonNull InlinePicture inlinePicture) throws IOException {
+        final File file = inlinePicture.getFile();
+        final FileDigest fileDigest = fileDigests.getIfPresent(file);
+        if (nonNull(fileDigest) && fileDigest.isUpToDate(file)) {
+            final EncodedPicture encodedPicture = encodedPictures.getIfPresent(cacheKey(fileDigest.getDigest()));
+            if (nonNull(encodedPicture)) {
+                return encodedPicture;
+            }
+        }
+
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        final String digest = digest(bytes);
+        fileDigests.put(file, new FileDigest(length, lastModified, digest));
+
+        final String cacheKey = cacheKey(digest);
+        final EncodedPicture encodedPicture = encodedPictures.getIfPresent(cacheKey);
+        if (nonNull(encodedPicture)) {
+            return encodedPicture;
+        }
+        final EncodedPicture newEncodedPicture;
+        if (isNull(optimizer)) {
+            newEncodedPicture = new EncodedPicture(digest, Base64.getMimeEncoder().encode(bytes));
+        } else {
+            final byte[] optimized = optimizer.optimize(bytes, inlinePicture.getImageType());
+            log.debug("Optimized picture {} from {} to {} bytes", file, bytes.length, optimized.length);
+            newEncodedPicture = new EncodedPicture(digest(optimized), Base64.getMimeEncoder().encode(optimized));
+        }
+        encodedPictures.put(cacheKey, newEncodedPicture);
+        return newEncodedPicture;
+    }
+
+    private String cacheKey(final String digest) {
+        return isNull(optimizer) ? digest : digest + '/' + optimizer.getSettingsKey();
+    }
+
+    private static String digest(final byte[] bytes) {
+        return Hashing.sha256().hashBytes(bytes).toString();
+    }
+
+    /**
+     * Return the statistics of the cache of the encoded pictures.
+     *
+     * @return hits and misses of the cache
+     */
+    public CacheStats getCacheStatistics() {
+        return encodedPictures.stats();
+    }
+
+    /**
+     * An inline picture already base64 encoded.
+     */
+    public static final class EncodedPicture {
+
+        /**
+         * The Content-ID of the picture, without angle brackets.
+         */
+        @Getter
+        private final String contentId;
+
+        private final byte[] encodedBytes;
+
+        private EncodedPicture(final String digest, final byte[] encodedBytes) {
+            this.contentId = digest + '@' + CONTENT_ID_DOMAIN;
+            this.encodedBytes = encodedBytes;
+        }
+
+        /**
+         * Create an inline body part for the picture, sharing the encoded bytes.
+         *
+         * @param contentType the MIME type of the picture
+         * @param fileName    the file name of the picture
+         * @return a new body part, which is written without being encoded again
+         * @throws MessagingException if the body part cannot be created
+         */
+        public MimeBodyPart toMimeBodyPart(final @NonNull String contentType, final String fileName)
+                throws MessagingException {
+            final InternetHeaders headers = new InternetHeaders();
+            headers.setHeader("Content-Type", contentType);
+            headers.setHeader("Content-Transfer-Encoding", "base64");
+            final MimeBodyPart bodyPart = new MimeBodyPart(headers, encodedBytes);
+            bodyPart.setContentID('<' + contentId + '>');
+            bodyPart.setDisposition(MimeBodyPart.INLINE);
+            if (nonNull(fileName)) {
+                bodyPart.setFileName(fileName);
+            }
+            return bodyPart;
+        }
+
+        public int getEncodedSize() {
+            return encodedBytes.length;
+        }
+    }
+
+    @lombok.Value
+    private static class FileDigest {
+
+        long length;
+
+        long lastModified;
+
+        String digest;
+
+        boolean isUpToDate(final File file) {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+
+}
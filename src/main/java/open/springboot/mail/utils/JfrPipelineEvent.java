@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A {@linkplain PipelineEvent} backed by a JFR event. This is the only class referring to the JFR API, and it is
+ * loaded only when JFR is available, see {@linkplain PipelineEvents}.
+ */
+final class JfrPipelineEvent extends PipelineEvent {
+
+    private static final EventType[] EVENT_TYPES = {
+            EventType.getEventType(TemplateMergeEvent.class),
+            EventType.getEventType(MimeConversionEvent.class),
+            EventType.getEventType(ContentDetectionEvent.class),
+            EventType.getEventType(InlinePictureEvent.class),
+            EventType.getEventType(SmtpTransmissionEvent.class)
+    };
+
+    private final EmailPipelineEvent event;
+
+    JfrPipelineEvent(final PipelineStage stage) {
+        event = newEvent(stage);
+        event.begin();
+    }
+
+    static boolean isEnabled(final PipelineStage stage) {
+        return EVENT_TYPES[stage.ordinal()].isEnabled();
+    }
+
+    @Override
+    public void end() {
+        event.end();
+        if (event.shouldCommit()) {
+            event.templateName = templateName;
+            event.fileName = fileName;
+            event.mediaType = mediaType;
+            event.bytes = bytes;
+            event.recipients = recipients;
+            event.successful = successful;
+            event.commit();
+        }
+    }
+
+    private static EmailPipelineEvent newEvent(final PipelineStage stage) {
+        switch (stage) {
+            case TEMPLATE_MERGE:
+                return new TemplateMergeEvent();
+            case MIME_CONVERSION:
+                return new MimeConversionEvent();
+            case CONTENT_DETECTION:
+                return new ContentDetectionEvent();
+            case INLINE_PICTURE:
+                return new InlinePictureEvent();
+            default:
+                return new SmtpTransmissionEvent();
+        }
+    }
+
+    @Category("Email")
+    @StackTrace(false)
+    abstract static class EmailPipelineEvent extends Event {
+
+        @Label("Template")
+        String templateName;
+
+        @Label("File Name")
+        String fileName;
+
+        @Label("Media Type")
+        String mediaType;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Successful")
+        boolean successful;
+    }
+
+    @Name("open.springboot.mail.TemplateMerge")
+    @Label("Template Merge")
+    @Description("Merge of a template with its model, the size being the length of the output")
+    static final class TemplateMergeEvent extends EmailPipelineEvent {
+    }
+
+    @Name("open.springboot.mail.MimeConversion")
+    @Label("MIME Conversion")
+    @Description("Conversion of an email to a MIME message, the size being the one of the attachments")
+    static final class MimeConversionEvent extends EmailPipelineEvent {
+    }
+
+    @Name("open.springboot.mail.ContentDetection")
+    @Label("Content Detection")
+    @Description("Detection of the media type of an attachment or a picture")
+    static final class ContentDetectionEvent extends EmailPipelineEvent {
+    }
+
+    @Name("open.springboot.mail.InlinePicture")
+    @Label("Inline Picture")
+    @Description("Encoding and embedding of an inline picture, the size being the encoded one")
+    static final class InlinePictureEvent extends EmailPipelineEvent {
+    }
+
+    @Name("open.springboot.mail.SmtpTransmission")
+    @Label("SMTP Transmission")
+    @Description("Transmission of a message to the SMTP server")
+    static final class SmtpTransmissionEvent extends EmailPipelineEvent {
+    }
+
+}
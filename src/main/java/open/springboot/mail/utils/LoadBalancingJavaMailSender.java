@@ -0,0 +1,314 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableList;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.MailPreparationException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.SimpleMailMessage;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMailMessage;
+import org.springframework.mail.javamail.MimeMessagePreparator;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * <p>
+ * A {@linkplain JavaMailSender} spreading the messages over a set of weighted SMTP relays.
+ * </p>
+ * <p>
+ * Each message goes to the relay with the lowest load, i.e. the number of outstanding sends times the observed latency,
+ * divided by the weight of the relay. On a failure of the relay the message is sent again through the next best relay,
+ * while a failure caused by the message, as told by {@linkplain MailFailures}, is thrown at once and not held against
+ * the relay. A relay failing several times in a row is ejected for a while, then it is brought back gradually by ramping up
+ * its weight. If all the relays are ejected, the one closest to be brought back is used anyway.
+ * </p>
+ */
+@Slf4j
+public class LoadBalancingJavaMailSender implements JavaMailSender {
+
+    private static final double LATENCY_SMOOTHING = 0.3;
+
+    private static final double MINIMUM_SLOW_START_FACTOR = 0.1;
+
+    private final List<Relay> relays;
+
+    private final int ejectionThreshold;
+
+    private final long ejectionNanos;
+
+    private final long slowStartNanos;
+
+    /**
+     * Create a new load balancing sender.
+     *
+     * @param relays            the relays to spread the messages over
+     * @param ejectionThreshold the number of consecutive failures after which a relay is ejected
+     * @param ejectionMillis    how long an ejected relay is left out
+     * @param slowStartMillis   how long it takes to an ejected relay to be brought back to its full weight
+     */
+    public LoadBalancingJavaMailSender(final @NonNull List<Relay> relays, final int ejectionThreshold,
+                                       final long ejectionMillis, final long slowStartMillis) {
+        checkArgument(!relays.isEmpty(), "At least a relay is needed");
+        checkArgument(ejectionThreshold > 0, "The ejection threshold must be positive");
+        this.relays = ImmutableList.copyOf(relays);
+        this.ejectionThreshold = ejectionThreshold;
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+        this.slowStartNanos = TimeUnit.MILLISECONDS.toNanos(slowStartMillis);
+    }
+
+    @Override
+    public MimeMessage createMimeMessage() {
+        return relays.get(0).sender.createMimeMessage();
+    }
+
+    @Override
+    public MimeMessage createMimeMessage(final InputStream contentStream) throws MailException {
+        return relays.get(0).sender.createMimeMessage(contentStream);
+    }
+
+    @Override
+    public void send(final MimeMessage mimeMessage) throws MailException {
+        sendThroughBestRelay(mimeMessage);
+    }
+
+    @Override
+    public void send(final MimeMessage... mimeMessages) throws MailException {
+        final Map<Object, Exception> failedMessages = new LinkedHashMap<>();
+        for (final MimeMessage mimeMessage : mimeMessages) {
+            try {
+                sendThroughBestRelay(mimeMessage);
+            } catch (MailException e) {
+                failedMessages.put(mimeMessage, e);
+            }
+        }
+        if (!failedMessages.isEmpty()) {
+            throw new MailSendException(failedMessages);
+        }
+    }
+
+    @Override
+    public void send(final MimeMessagePreparator mimeMessagePreparator) throws MailException {
+        send(new MimeMessagePreparator[]{mimeMessagePreparator});
+    }
+
+    @Override
+    public void send(final MimeMessagePreparator... mimeMessagePreparators) throws MailException {
+        final MimeMessage[] mimeMessages = new MimeMessage[mimeMessagePreparators.length];
+        for (int i = 0; i < mimeMessagePreparators.length; i++) {
+            mimeMessages[i] = createMimeMessage();
+            try {
+                mimeMessagePreparators[i].prepare(mimeMessages[i]);
+            } catch (MailException e) {
+                throw e;
+            } catch (MessagingException e) {
+                throw new MailParseException(e);
+            } catch (Exception e) {
+                throw new MailPreparationException(e);
+            }
+        }
+        send(mimeMessages);
+    }
+
+    @Override
+    public void send(final SimpleMailMessage simpleMessage) throws MailException {
+        send(new SimpleMailMessage[]{simpleMessage});
+    }
+
+    @Override
+    public void send(final SimpleMailMessage... simpleMessages) throws MailException {
+        final MimeMessage[] mimeMessages = new MimeMessage[simpleMessages.length];
+        for (int i = 0; i < simpleMessages.length; i++) {
+            final MimeMailMessage message = new MimeMailMessage(createMimeMessage());
+            simpleMessages[i].copyTo(message);
+            mimeMessages[i] = message.getMimeMessage();
+        }
+        send(mimeMessages);
+    }
+
+    /**
+     * @return the senders of the relays, in the configured order
+     */
+    public List<JavaMailSender> getSenders() {
+        return relays.stream().map(relay -> relay.sender).collect(toList());
+    }
+
+    /**
+     * Return the counters of each relay.
+     *
+     * @return a snapshot of the statistics of the relays
+     */
+    public List<RelayStatistics> getStatistics() {
+        final long now = System.nanoTime();
+        return relays.stream().map(relay -> relay.statistics(now)).collect(toList());
+    }
+
+    private void sendThroughBestRelay(final MimeMessage mimeMessage) {
+        final Set<Relay> tried = new HashSet<>();
+        MailException lastException = null;
+        Relay relay;
+        while (nonNull(relay = choose(tried))) {
+            tried.add(relay);
+            relay.outstanding.incrementAndGet();
+            final long start = System.nanoTime();
+            try {
+                relay.sender.send(mimeMessage);
+                relay.succeeded(System.nanoTime() - start);
+                return;
+            } catch (MailException e) {
+                if (MailFailures.isPermanent(e)) {
+                    //The message is at fault, not the relay
+                    throw e;
+                }
+                failed(relay, System.nanoTime());
+                log.warn("Cannot send the message through relay {}, failing over", relay.name, e);
+                lastException = e;
+            } finally {
+                relay.outstanding.decrementAndGet();
+            }
+        }
+        throw lastException;
+    }
+
+    private Relay choose(final Set<Relay> tried) {
+        final long now = System.nanoTime();
+        Relay best = null;
+        double bestLoad = Double.MAX_VALUE;
+        Relay leastEjected = null;
+        for (final Relay relay : relays) {
+            if (tried.contains(relay)) {
+                continue;
+            }
+            if (relay.isEjected(now)) {
+                if (isNull(leastEjected) || relay.ejectedUntil < leastEjected.ejectedUntil) {
+                    leastEjected = relay;
+                }
+                continue;
+            }
+            final double load = (relay.outstanding.get() + 1) * Math.max(relay.latencyMillis, 1.0)
+                    / relay.effectiveWeight(now, slowStartNanos);
+            if (load < bestLoad) {
+                best = relay;
+                bestLoad = load;
+            }
+        }
+        return nonNull(best) ? best : leastEjected;
+    }
+
+    private void failed(final Relay relay, final long now) {
+        if (relay.failed(now, ejectionThreshold, ejectionNanos)) {
+            log.warn("Ejecting relay {} for {} ms after {} consecutive failures", relay.name,
+                    TimeUnit.NANOSECONDS.toMillis(ejectionNanos), ejectionThreshold);
+        }
+    }
+
+    /**
+     * An SMTP relay with its weight.
+     */
+    public static final class Relay {
+
+        @Getter
+        private final String name;
+
+        private final JavaMailSender sender;
+
+        @Getter
+        private final int weight;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private final AtomicLong sent = new AtomicLong();
+
+        private final AtomicLong failed = new AtomicLong();
+
+        private volatile double latencyMillis;
+
+        private volatile long ejectedUntil;
+
+        private volatile boolean everEjected;
+
+        private int consecutiveFailures;
+
+        public Relay(final @NonNull String name, final @NonNull JavaMailSender sender, final int weight) {
+            checkArgument(weight > 0, "The weight of a relay must be positive");
+            this.name = name;
+            this.sender = sender;
+            this.weight = weight;
+        }
+
+        private synchronized void succeeded(final long latencyNanos) {
+            sent.incrementAndGet();
+            consecutiveFailures = 0;
+            final double millis = latencyNanos / 1e6;
+            latencyMillis = latencyMillis == 0 ?
+                    millis : LATENCY_SMOOTHING * millis + (1 - LATENCY_SMOOTHING) * latencyMillis;
+        }
+
+        /**
+         * @return true if the relay has just been ejected
+         */
+        private synchronized boolean failed(final long now, final int ejectionThreshold, final long ejectionNanos) {
+            failed.incrementAndGet();
+            if (++consecutiveFailures < ejectionThreshold || isEjected(now)) {
+                return false;
+            }
+            consecutiveFailures = 0;
+            ejectedUntil = now + ejectionNanos;
+            everEjected = true;
+            return true;
+        }
+
+        private boolean isEjected(final long now) {
+            return everEjected && now - ejectedUntil < 0;
+        }
+
+        private double effectiveWeight(final long now, final long slowStartNanos) {
+            final long sinceBack = now - ejectedUntil;
+            if (!everEjected || slowStartNanos <= 0 || sinceBack >= slowStartNanos) {
+                return weight;
+            }
+            return weight * Math.max(MINIMUM_SLOW_START_FACTOR, (double) sinceBack / slowStartNanos);
+        }
+
+        private RelayStatistics statistics(final long now) {
+            return new RelayStatistics(name, weight, outstanding.get(), sent.get(), failed.get(), latencyMillis,
+                    isEjected(now));
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import lombok.NonNull;
+import org.springframework.mail.MailAuthenticationException;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import java.util.Map;
+
+import static java.util.Objects.nonNull;
+
+/**
+ * <p>
+ * Tells the failures caused by the message itself, which no relay and no retry can fix, from the failures of the
+ * relay, e.g. connection and authentication errors or temporary 4xx SMTP replies.
+ * </p>
+ * <p>
+ * Only the failures of the relay say something about its health, so they are the only ones counted to eject a relay
+ * or to lower the concurrency limit.
+ * </p>
+ */
+public final class MailFailures {
+
+    private MailFailures() {
+    }
+
+    /**
+     * Tell whether the failure is caused by the message, i.e. it would fail the same way through any relay.
+     * <p/>
+     * Parse and preparation errors, invalid recipients and permanent 5xx SMTP replies are permanent. Authentication
+     * and connection errors, as well as 4xx SMTP replies, are not.
+     *
+     * @param exception the failure of a send
+     * @return true if the failure is permanent
+     */
+    public static boolean isPermanent(final @NonNull MailException exception) {
+        if (exception instanceof MailAuthenticationException) {
+            return false;
+        }
+        if (!(exception instanceof MailSendException)) {
+            //Parse and preparation errors
+            return true;
+        }
+        final Map<Object, Exception> failedMessages = ((MailSendException) exception).getFailedMessages();
+        return !failedMessages.isEmpty() && failedMessages.values().stream().allMatch(MailFailures::isPermanent);
+    }
+
+    private static boolean isPermanent(final Exception exception) {
+        if (exception instanceof SMTPSendFailedException) {
+            return isPermanentReply(((SMTPSendFailedException) exception).getReturnCode());
+        }
+        if (exception instanceof SendFailedException) {
+            final SendFailedException sendFailed = (SendFailedException) exception;
+            if (nonNull(sendFailed.getInvalidAddresses()) && sendFailed.getInvalidAddresses().length > 0) {
+                return true;
+            }
+            //The rejected recipients are chained, with the reply of the relay
+            Exception next = sendFailed.getNextException();
+            while (next instanceof MessagingException) {
+                if (next instanceof SMTPAddressFailedException) {
+                    return isPermanentReply(((SMTPAddressFailedException) next).getReturnCode());
+                }
+                next = ((MessagingException) next).getNextException();
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPermanentReply(final int returnCode) {
+        return returnCode >= 500 && returnCode < 600;
+    }
+
+}
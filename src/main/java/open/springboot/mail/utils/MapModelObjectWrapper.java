@@ -0,0 +1,313 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import freemarker.ext.util.WrapperTemplateModel;
+import freemarker.template.Configuration;
+import freemarker.template.DefaultObjectWrapper;
+import freemarker.template.SimpleCollection;
+import freemarker.template.SimpleNumber;
+import freemarker.template.SimpleScalar;
+import freemarker.template.TemplateBooleanModel;
+import freemarker.template.TemplateCollectionModel;
+import freemarker.template.TemplateHashModelEx;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateScalarModel;
+import freemarker.template.TemplateSequenceModel;
+import freemarker.template.Version;
+import lombok.NonNull;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * <p>
+ * {@linkplain freemarker.template.ObjectWrapper} specialised for the models made of {@linkplain Map}s,
+ * {@linkplain List}s, strings, numbers and booleans. The maps and lists are wrapped by adapters instead of being
+ * copied or introspected, and each adapter caches the models of the values it wraps, so that reading the same value
+ * twice during a rendering does not wrap it again.
+ * </p>
+ * <p>
+ * With the introspection cache enabled, the properties of the other objects are read through getters introspected
+ * once per class; anything else, e.g. method calls, falls back to the {@linkplain DefaultObjectWrapper}.
+ * </p>
+ * <p>
+ * The adapters assume the model is not modified during the rendering.
+ * </p>
+ */
+public class MapModelObjectWrapper extends DefaultObjectWrapper {
+
+    private final boolean introspectionCache;
+
+    private final ConcurrentMap<Class<?>, Map<String, Method>> getters = new ConcurrentHashMap<>();
+
+    public MapModelObjectWrapper(final @NonNull Configuration freemarkerConfiguration,
+                                 final boolean introspectionCache) {
+        this(freemarkerConfiguration.getIncompatibleImprovements(), introspectionCache);
+    }
+
+    public MapModelObjectWrapper(final @NonNull Version incompatibleImprovements, final boolean introspectionCache) {
+        super(incompatibleImprovements);
+        this.introspectionCache = introspectionCache;
+    }
+
+    @Override
+    public TemplateModel wrap(final Object object) throws TemplateModelException {
+        if (object instanceof TemplateModel) {
+            return (TemplateModel) object;
+        }
+        if (object instanceof String) {
+            return new SimpleScalar((String) object);
+        }
+        if (object instanceof Number) {
+            return new SimpleNumber((Number) object);
+        }
+        if (object instanceof Boolean) {
+            return (Boolean) object ? TemplateBooleanModel.TRUE : TemplateBooleanModel.FALSE;
+        }
+        if (object instanceof Map) {
+            return new MapModel((Map<?, ?>) object);
+        }
+        if (object instanceof List && object instanceof RandomAccess) {
+            return new ListModel((List<?>) object);
+        }
+        if (introspectionCache && nonNull(object)) {
+            final Map<String, Method> properties = getters.computeIfAbsent(object.getClass(),
+                    MapModelObjectWrapper::introspect);
+            if (!properties.isEmpty()) {
+                return new PojoModel(object, properties);
+            }
+        }
+        return super.wrap(object);
+    }
+
+    /**
+     * @return the public getters of the class by property name, none when the class is not public or is handled
+     * specifically by the {@linkplain DefaultObjectWrapper}, e.g. a collection or a date.
+     */
+    private static Map<String, Method> introspect(final Class<?> type) {
+        if (!Modifier.isPublic(type.getModifiers()) || type.getName().startsWith("java.") || type.isArray()
+                || type.isEnum() || Iterable.class.isAssignableFrom(type) || Iterator.class.isAssignableFrom(type)
+                || Enumeration.class.isAssignableFrom(type) || Date.class.isAssignableFrom(type)) {
+            return Collections.emptyMap();
+        }
+        try {
+            final Map<String, Method> properties = new HashMap<>();
+            for (final PropertyDescriptor descriptor : Introspector.getBeanInfo(type, Object.class)
+                    .getPropertyDescriptors()) {
+                if (nonNull(descriptor.getReadMethod())) {
+                    properties.put(descriptor.getName(), descriptor.getReadMethod());
+                }
+            }
+            return properties;
+        } catch (IntrospectionException e) {
+            return Collections.emptyMap();
+        }
+    }
+
+    private class MapModel implements TemplateHashModelEx, WrapperTemplateModel {
+
+        private final Map<?, ?> map;
+
+        private final Map<String, TemplateModel> models = new HashMap<>();
+
+        MapModel(final Map<?, ?> map) {
+            this.map = map;
+        }
+
+        @Override
+        public TemplateModel get(final String key) throws TemplateModelException {
+            TemplateModel model = models.get(key);
+            if (isNull(model)) {
+                final Object value = map.get(key);
+                if (isNull(value)) {
+                    return null;
+                }
+                model = wrap(value);
+                models.put(key, model);
+            }
+            return model;
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return map.isEmpty();
+        }
+
+        @Override
+        public TemplateCollectionModel keys() {
+            return new SimpleCollection(map.keySet(), MapModelObjectWrapper.this);
+        }
+
+        @Override
+        public TemplateCollectionModel values() {
+            return new SimpleCollection(map.values(), MapModelObjectWrapper.this);
+        }
+
+        @Override
+        public Object getWrappedObject() {
+            return map;
+        }
+
+    }
+
+    private class ListModel implements TemplateSequenceModel, WrapperTemplateModel {
+
+        private final List<?> list;
+
+        private final TemplateModel[] models;
+
+        ListModel(final List<?> list) {
+            this.list = list;
+            this.models = new TemplateModel[list.size()];
+        }
+
+        @Override
+        public TemplateModel get(final int index) throws TemplateModelException {
+            if (index < 0 || index >= models.length) {
+                return null;
+            }
+            TemplateModel model = models[index];
+            if (isNull(model)) {
+                model = wrap(list.get(index));
+                models[index] = model;
+            }
+            return model;
+        }
+
+        @Override
+        public int size() {
+            return models.length;
+        }
+
+        @Override
+        public Object getWrappedObject() {
+            return list;
+        }
+
+    }
+
+    /**
+     * Reads the introspected properties directly; the rest, e.g. methods, the string value or the keys, is delegated
+     * to the model of the {@linkplain DefaultObjectWrapper}.
+     */
+    private class PojoModel implements TemplateHashModelEx, TemplateScalarModel, WrapperTemplateModel {
+
+        private final Object object;
+
+        private final Map<String, Method> properties;
+
+        private final Map<String, TemplateModel> models = new HashMap<>();
+
+        private TemplateHashModelEx fallback;
+
+        PojoModel(final Object object, final Map<String, Method> properties) {
+            this.object = object;
+            this.properties = properties;
+        }
+
+        @Override
+        public TemplateModel get(final String key) throws TemplateModelException {
+            TemplateModel model = models.get(key);
+            if (isNull(model)) {
+                final Method getter = properties.get(key);
+                if (isNull(getter)) {
+                    return fallback().get(key);
+                }
+                final Object value;
+                try {
+                    value = getter.invoke(object);
+                } catch (IllegalAccessException | InvocationTargetException e) {
+                    throw new TemplateModelException("Cannot read the property " + key + " of " + object.getClass(), e);
+                }
+                if (isNull(value)) {
+                    return null;
+                }
+                model = wrap(value);
+                models.put(key, model);
+            }
+            return model;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+
+        @Override
+        public int size() throws TemplateModelException {
+            return fallback().size();
+        }
+
+        @Override
+        public TemplateCollectionModel keys() throws TemplateModelException {
+            return fallback().keys();
+        }
+
+        @Override
+        public TemplateCollectionModel values() throws TemplateModelException {
+            return fallback().values();
+        }
+
+        @Override
+        public String getAsString() throws TemplateModelException {
+            final TemplateModel model = fallback();
+            if (!(model instanceof TemplateScalarModel)) {
+                throw new TemplateModelException(object.getClass() + " cannot be converted to a string");
+            }
+            return ((TemplateScalarModel) model).getAsString();
+        }
+
+        @Override
+        public Object getWrappedObject() {
+            return object;
+        }
+
+        private TemplateHashModelEx fallback() throws TemplateModelException {
+            if (isNull(fallback)) {
+                fallback = (TemplateHashModelEx) MapModelObjectWrapper.super.wrap(object);
+            }
+            return fallback;
+        }
+
+    }
+
+}
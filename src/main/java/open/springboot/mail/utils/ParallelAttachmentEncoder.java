@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.exceptions.EmailConversionException;
+import open.springboot.mail.model.impl.EmailAttachmentImpl;
+
+import javax.annotation.PreDestroy;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>
+ * Detects the content type of the attachments and base64 encodes them in parallel, on a bounded pool.
+ * </p>
+ * <p>
+ * The attachments are turned into body parts holding the encoded bytes, which are written as they are, and returned
+ * in the order of the attachments. When the pool is saturated, the attachments are processed by the calling thread.
+ * Emails with few or small attachments are better processed serially, see {@linkplain #isWorthParallelizing}.
+ * </p>
+ */
+@Slf4j
+public class ParallelAttachmentEncoder {
+
+    private final int minimumAttachments;
+
+    private final long minimumTotalBytes;
+
+    private final ThreadPoolExecutor executor;
+
+    public ParallelAttachmentEncoder(final int threads,
+                                     final int queueCapacity,
+                                     final int minimumAttachments,
+                                     final long minimumTotalBytes) {
+        checkArgument(threads >= 0, "The number of threads cannot be negative");
+        checkArgument(queueCapacity > 0, "The queue capacity must be positive");
+        checkArgument(minimumAttachments > 1, "At least two attachments are needed to work in parallel");
+        this.minimumAttachments = minimumAttachments;
+        this.minimumTotalBytes = minimumTotalBytes;
+        final int poolSize = threads == 0 ? Runtime.getRuntime().availableProcessors() : threads;
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                new ThreadFactoryBuilder().setNameFormat("email-attachment-encoder-%d").setDaemon(true).build(),
+                ParallelAttachmentEncoder::runInCaller);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Tell whether the attachments are many and large enough to be processed in parallel.
+     *
+     * @param attachments the attachments of the email
+     * @return true if the attachments should be given to {@linkplain #encode}
+     */
+    public boolean isWorthParallelizing(final Collection<EmailAttachmentImpl> attachments) {
+        if (attachments.size() < minimumAttachments) {
+            return false;
+        }
+        long totalBytes = 0;
+        for (final EmailAttachmentImpl attachment : attachments) {
+            totalBytes += attachment.getAttachmentData().length;
+        }
+        return totalBytes >= minimumTotalBytes;
+    }
+
+    /**
+     * Return the attachment body parts, in the order of the attachments.
+     *
+     * @param attachments the attachments of the email
+     * @return the body parts, already encoded
+     * @throws EmailConversionException if an attachment cannot be converted
+     */
+    public List<MimeBodyPart> encode(final @NonNull Collection<EmailAttachmentImpl> attachments) {
+        final List<Future<MimeBodyPart>> futures = new ArrayList<>(attachments.size());
+        for (final EmailAttachmentImpl attachment : attachments) {
+            futures.add(submit(attachment));
+        }
+        final List<MimeBodyPart> bodyParts = new ArrayList<>(attachments.size());
+        try {
+            for (final Future<MimeBodyPart> future : futures) {
+                bodyParts.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmailConversionException("Interrupted while encoding the attachments", e);
+        } catch (ExecutionException e) {
+            log.error("Error while converting Email to MimeMessage");
+            throw new EmailConversionException(e.getCause());
+        } finally {
+            futures.forEach(future -> future.cancel(false));
+        }
+        return bodyParts;
+    }
+
+    /**
+     * Submit the encoding of an attachment, or run it in the calling thread once the pool is shut down.
+     */
+    private Future<MimeBodyPart> submit(final EmailAttachmentImpl attachment) {
+        final Callable<MimeBodyPart> encoding = () -> toMimeBodyPart(attachment);
+        try {
+            return executor.submit(encoding);
+        } catch (RejectedExecutionException e) {
+            final FutureTask<MimeBodyPart> task = new FutureTask<>(encoding);
+            task.run();
+            return task;
+        }
+    }
+
+    /**
+     * Run the rejected task in the calling thread when the pool is saturated. Once the pool is shut down, the task is
+     * rejected instead, since {@linkplain ThreadPoolExecutor.CallerRunsPolicy} would silently discard it.
+     */
+    private static void runInCaller(final Runnable task, final ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("The attachment encoder has been shut down");
+        }
+        task.run();
+    }
+
+    /**
+     * Create the same body part as {@linkplain org.springframework.mail.javamail.MimeMessageHelper#addAttachment},
+     * with the content already base64 encoded.
+     */
+    static MimeBodyPart toMimeBodyPart(final EmailAttachmentImpl attachment) throws IOException, MessagingException {
+        final InternetHeaders headers = new InternetHeaders();
+        headers.setHeader("Content-Type", attachment.getContentType().toString());
+        headers.setHeader("Content-Transfer-Encoding", "base64");
+        final MimeBodyPart bodyPart = new MimeBodyPart(headers,
+                Base64.getMimeEncoder().encode(attachment.getAttachmentData()));
+        bodyPart.setDisposition(Part.ATTACHMENT);
+        bodyPart.setFileName(MimeUtility.encodeText(attachment.getAttachmentName()));
+        return bodyPart;
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+/**
+ * <p>
+ * A stage of the send pipeline being timed, obtained from {@linkplain PipelineEvents#begin}.
+ * </p>
+ * <p>
+ * The attributes are set along the way, the stage is marked as successful once completed, and the event is ended
+ * in a finally block:
+ * </p>
+ * <pre>
+ * final PipelineEvent event = PipelineEvents.begin(PipelineStage.TEMPLATE_MERGE).templateName(template);
+ * try {
+ *     ...
+ *     event.bytes(text.length()).success();
+ * } finally {
+ *     event.end();
+ * }
+ * </pre>
+ * <p>
+ * When the event is not recorded, a shared instance ignoring everything is returned, so nothing is allocated.
+ * </p>
+ */
+public abstract class PipelineEvent {
+
+    static final PipelineEvent DISABLED = new PipelineEvent() {
+
+        @Override
+        public PipelineEvent templateName(final String templateName) {
+            return this;
+        }
+
+        @Override
+        public PipelineEvent fileName(final String fileName) {
+            return this;
+        }
+
+        @Override
+        public PipelineEvent mediaType(final String mediaType) {
+            return this;
+        }
+
+        @Override
+        public PipelineEvent bytes(final long bytes) {
+            return this;
+        }
+
+        @Override
+        public PipelineEvent recipients(final int recipients) {
+            return this;
+        }
+
+        @Override
+        public PipelineEvent success() {
+            return this;
+        }
+
+        @Override
+        public boolean isRecorded() {
+            return false;
+        }
+
+        @Override
+        public void end() {
+            //Not recorded
+        }
+    };
+
+    String templateName;
+
+    String fileName;
+
+    String mediaType;
+
+    long bytes;
+
+    int recipients;
+
+    boolean successful;
+
+    public PipelineEvent templateName(final String templateName) {
+        this.templateName = templateName;
+        return this;
+    }
+
+    public PipelineEvent fileName(final String fileName) {
+        this.fileName = fileName;
+        return this;
+    }
+
+    public PipelineEvent mediaType(final String mediaType) {
+        this.mediaType = mediaType;
+        return this;
+    }
+
+    public PipelineEvent bytes(final long bytes) {
+        this.bytes = bytes;
+        return this;
+    }
+
+    public PipelineEvent recipients(final int recipients) {
+        this.recipients = recipients;
+        return this;
+    }
+
+    /**
+     * Mark the stage as successful, otherwise it is recorded as failed.
+     *
+     * @return this event
+     */
+    public PipelineEvent success() {
+        this.successful = true;
+        return this;
+    }
+
+    /**
+     * Tell whether the event is recorded, to skip computing costly attributes otherwise.
+     *
+     * @return true if the event is recorded
+     */
+    public boolean isRecorded() {
+        return true;
+    }
+
+    /**
+     * End the stage and record the event.
+     */
+    public abstract void end();
+
+}
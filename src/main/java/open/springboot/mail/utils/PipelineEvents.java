@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * <p>
+ * Records the stages of the send pipeline as Java Flight Recorder events, in the "Email" category.
+ * </p>
+ * <p>
+ * JFR is used only if available at runtime, i.e. on JDK 8u262 or later. When JFR is not available, or the event of a
+ * stage is not enabled in the running recordings, {@linkplain #begin} returns a shared event ignoring everything,
+ * so that the pipeline costs only a flag check.
+ * </p>
+ */
+@Slf4j
+public final class PipelineEvents {
+
+    private static final boolean AVAILABLE = isJfrAvailable();
+
+    private PipelineEvents() {
+    }
+
+    /**
+     * Begin timing a stage of the send pipeline.
+     *
+     * @param stage the stage
+     * @return the event, to be ended once the stage is completed
+     */
+    public static PipelineEvent begin(final @NonNull PipelineStage stage) {
+        if (!AVAILABLE || !JfrPipelineEvent.isEnabled(stage)) {
+            return PipelineEvent.DISABLED;
+        }
+        return new JfrPipelineEvent(stage);
+    }
+
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, PipelineEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            log.debug("Java Flight Recorder not available, the send pipeline is not recorded");
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+/**
+ * The stages of the send pipeline, recorded as {@linkplain PipelineEvent}s.
+ */
+public enum PipelineStage {
+    TEMPLATE_MERGE,
+    MIME_CONVERSION,
+    CONTENT_DETECTION,
+    INLINE_PICTURE,
+    SMTP_TRANSMISSION
+}
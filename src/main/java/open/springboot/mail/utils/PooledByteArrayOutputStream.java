@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>
+ * An in-memory output stream made of buffers borrowed from a {@linkplain BufferPool}, each one twice as large as
+ * the previous one. Unlike {@linkplain java.io.ByteArrayOutputStream}, growing never copies the data written so far,
+ * and only the final array is allocated.
+ * </p>
+ * <p>
+ * The buffers are given back to the pool when the stream is closed, so it must be closed once the content has been
+ * read.
+ * </p>
+ */
+public class PooledByteArrayOutputStream extends OutputStream {
+
+    private final BufferPool bufferPool;
+
+    private final List<byte[]> segments = new ArrayList<>();
+
+    private byte[] current;
+
+    private int position;
+
+    private int size;
+
+    private boolean closed;
+
+    public PooledByteArrayOutputStream() {
+        this(BufferPool.bufferPool());
+    }
+
+    public PooledByteArrayOutputStream(final @NonNull BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        ensureWritable();
+        current[position++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            ensureWritable();
+            final int length = Math.min(remaining, current.length - position);
+            System.arraycopy(b, offset, current, position, length);
+            position += length;
+            offset += length;
+            remaining -= length;
+            size += length;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return a copy of the content written so far, the only allocation proportional to the content size. Prefer
+     * {@linkplain #writeTo} when the content is only to be written elsewhere.
+     */
+    public byte[] toByteArray() {
+        checkState(!closed, "The stream is closed");
+        final byte[] bytes = new byte[size];
+        int offset = 0;
+        for (final byte[] segment : segments) {
+            final int length = Math.min(segment.length, size - offset);
+            System.arraycopy(segment, 0, bytes, offset, length);
+            offset += length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Write the content written so far to the given stream, without copying it.
+     */
+    public void writeTo(final OutputStream outputStream) throws IOException {
+        checkState(!closed, "The stream is closed");
+        int offset = 0;
+        for (final byte[] segment : segments) {
+            final int length = Math.min(segment.length, size - offset);
+            outputStream.write(segment, 0, length);
+            offset += length;
+        }
+    }
+
+    /**
+     * Give the buffers back to the pool. The content cannot be read anymore.
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            segments.forEach(bufferPool::release);
+            segments.clear();
+            current = null;
+        }
+    }
+
+    private void ensureWritable() throws IOException {
+        if (closed) {
+            throw new IOException("The stream is closed");
+        }
+        if (current == null || position == current.length) {
+            final int length = current == null
+                    ? BufferPool.MIN_BUFFER_SIZE : Math.min(current.length * 2, BufferPool.MAX_BUFFER_SIZE);
+            current = bufferPool.borrow(length);
+            segments.add(current);
+            position = 0;
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import lombok.Value;
+
+/**
+ * Snapshot of the counters of a relay of a {@linkplain LoadBalancingJavaMailSender}.
+ */
+@Value
+public class RelayStatistics {
+
+    String name;
+
+    int weight;
+
+    int outstanding;
+
+    long sent;
+
+    long failed;
+
+    /**
+     * Exponentially weighted moving average of the send latency.
+     */
+    double averageLatencyMillis;
+
+    boolean ejected;
+
+}
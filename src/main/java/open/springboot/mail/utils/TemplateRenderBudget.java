@@ -0,0 +1,264 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableMap;
+import freemarker.template.TemplateException;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.exceptions.TemplateBudgetExceededException;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.stream.Collectors.toMap;
+import static open.springboot.mail.exceptions.TemplateBudgetExceededException.Budget.OUTPUT_SIZE;
+import static open.springboot.mail.exceptions.TemplateBudgetExceededException.Budget.RENDER_TIME;
+
+/**
+ * <p>
+ * Renders the templates into a writer enforcing a render time and an output size budget, so that a model making a
+ * template iterate over a huge collection aborts the rendering with a {@linkplain TemplateBudgetExceededException}
+ * instead of stalling the sender thread while building a massive String.
+ * </p>
+ * <p>
+ * The budgets are checked on each write, so a template spinning without producing any output is only stopped at
+ * its next write. The output size is counted in characters, before the text is encoded in the email charset.
+ * </p>
+ * <p>
+ * The render cost of each template, i.e. the time spent and the output produced, is kept to spot the expensive
+ * templates.
+ * </p>
+ */
+@Slf4j
+public class TemplateRenderBudget {
+
+    @FunctionalInterface
+    public interface Renderer {
+
+        void render(Writer writer) throws IOException, TemplateException;
+
+    }
+
+    private final Limits defaults;
+
+    private final Map<String, Limits> overrides;
+
+    private final ConcurrentMap<String, RenderCost> costs = new ConcurrentHashMap<>();
+
+    public TemplateRenderBudget(final @NonNull Limits defaults, final @NonNull Map<String, Limits> overrides) {
+        this.defaults = defaults;
+        this.overrides = ImmutableMap.copyOf(overrides);
+    }
+
+    public Limits getLimits(final @NonNull String template) {
+        return overrides.getOrDefault(template, defaults);
+    }
+
+    public String render(final @NonNull String template, final @NonNull Renderer renderer)
+            throws IOException, TemplateException {
+        final Limits limits = getLimits(template);
+        final long start = System.nanoTime();
+        final BudgetedWriter writer = new BudgetedWriter(template, limits, start);
+        final RenderCost cost = costs.computeIfAbsent(template, name -> new RenderCost());
+        boolean aborted = false;
+        try {
+            renderer.render(writer);
+            return writer.toString();
+        } catch (TemplateBudgetExceededException e) {
+            aborted = true;
+            log.warn("Aborted the rendering of the template {}: {}", template, e.getMessage());
+            throw e;
+        } finally {
+            cost.record(System.nanoTime() - start, writer.written, aborted);
+        }
+    }
+
+    public Optional<TemplateRenderStatistics> getStatistics(final @NonNull String template) {
+        return Optional.ofNullable(costs.get(template)).map(cost -> cost.toStatistics(template));
+    }
+
+    /**
+     * @return the render cost of each template rendered so far, by template name.
+     */
+    public Map<String, TemplateRenderStatistics> getStatistics() {
+        return costs.entrySet().stream()
+                .collect(toMap(Map.Entry::getKey, entry -> entry.getValue().toStatistics(entry.getKey())));
+    }
+
+    @lombok.Value
+    public static class Limits {
+
+        /**
+         * Maximum render time, zero for no limit.
+         */
+        long maxRenderMillis;
+
+        /**
+         * Maximum number of characters rendered, zero for no limit.
+         */
+        long maxOutputChars;
+
+        public Limits(final long maxRenderMillis, final long maxOutputChars) {
+            checkArgument(maxRenderMillis >= 0, "The maximum render time cannot be negative");
+            checkArgument(maxOutputChars >= 0, "The maximum output size cannot be negative");
+            this.maxRenderMillis = maxRenderMillis;
+            this.maxOutputChars = maxOutputChars;
+        }
+
+    }
+
+    @lombok.Value
+    public static class TemplateRenderStatistics {
+
+        String template;
+
+        long renderCount;
+
+        long abortedCount;
+
+        long totalRenderNanos;
+
+        long maxRenderNanos;
+
+        long totalOutputChars;
+
+        long maxOutputChars;
+
+        public double getAverageRenderMillis() {
+            return renderCount == 0 ? 0 : (double) totalRenderNanos / renderCount / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        public long getAverageOutputChars() {
+            return renderCount == 0 ? 0 : totalOutputChars / renderCount;
+        }
+
+    }
+
+    private static class RenderCost {
+
+        private final LongAdder renders = new LongAdder();
+
+        private final LongAdder aborted = new LongAdder();
+
+        private final LongAdder totalNanos = new LongAdder();
+
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private final LongAdder totalChars = new LongAdder();
+
+        private final AtomicLong maxChars = new AtomicLong();
+
+        void record(final long nanos, final long chars, final boolean abort) {
+            renders.increment();
+            if (abort) {
+                aborted.increment();
+            }
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            totalChars.add(chars);
+            maxChars.accumulateAndGet(chars, Math::max);
+        }
+
+        TemplateRenderStatistics toStatistics(final String template) {
+            return new TemplateRenderStatistics(template, renders.sum(), aborted.sum(), totalNanos.sum(),
+                    maxNanos.get(), totalChars.sum(), maxChars.get());
+        }
+
+    }
+
+    /**
+     * Collects the rendered text, checking the budgets before appending each write.
+     */
+    private static class BudgetedWriter extends Writer {
+
+        private final StringBuilder buffer = new StringBuilder();
+
+        private final String template;
+
+        private final Limits limits;
+
+        private final long start;
+
+        private final long deadline;
+
+        private long written;
+
+        BudgetedWriter(final String template, final Limits limits, final long start) {
+            this.template = template;
+            this.limits = limits;
+            this.start = start;
+            this.deadline = start + TimeUnit.MILLISECONDS.toNanos(limits.getMaxRenderMillis());
+        }
+
+        @Override
+        public void write(final int c) throws IOException {
+            checkBudget(1);
+            buffer.append((char) c);
+        }
+
+        @Override
+        public void write(final char[] chars, final int offset, final int length) throws IOException {
+            checkBudget(length);
+            buffer.append(chars, offset, length);
+        }
+
+        @Override
+        public void write(final String string, final int offset, final int length) throws IOException {
+            checkBudget(length);
+            buffer.append(string, offset, offset + length);
+        }
+
+        private void checkBudget(final int length) throws TemplateBudgetExceededException {
+            written += length;
+            if (limits.getMaxOutputChars() > 0 && written > limits.getMaxOutputChars()) {
+                throw new TemplateBudgetExceededException(template, OUTPUT_SIZE, limits.getMaxOutputChars(), written);
+            }
+            if (limits.getMaxRenderMillis() > 0) {
+                final long now = System.nanoTime();
+                if (now - deadline > 0) {
+                    throw new TemplateBudgetExceededException(template, RENDER_TIME, limits.getMaxRenderMillis(),
+                            TimeUnit.NANOSECONDS.toMillis(now - start));
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return buffer.toString();
+        }
+
+    }
+
+}
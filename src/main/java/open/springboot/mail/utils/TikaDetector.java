@@ -80,10 +80,22 @@ public class TikaDetector {
     }
 
     private org.springframework.http.MediaType detect(final TikaInputStream stream, final String fileName) throws IOException {
-        final Metadata metadata = new Metadata();
-        metadata.add(RESOURCE_NAME_KEY, fileName);
-        final MediaType mediaType = detector.detect(stream, metadata);
-        return toSpringMediaType(mediaType);
+        final PipelineEvent event = PipelineEvents.begin(PipelineStage.CONTENT_DETECTION).fileName(fileName);
+        try {
+            final Metadata metadata = new Metadata();
+            metadata.add(RESOURCE_NAME_KEY, fileName);
+            final MediaType mediaType = detector.detect(stream, metadata);
+            if (event.isRecorded()) {
+                event.mediaType(mediaType.toString());
+                if (stream.hasLength()) {
+                    event.bytes(stream.getLength());
+                }
+            }
+            event.success();
+            return toSpringMediaType(mediaType);
+        } finally {
+            event.end();
+        }
     }
 
     private enum Singleton {
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.mail.smtp.SMTPTransport;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import javax.annotation.PostConstruct;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import javax.mail.internet.MimePart;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * <p>
+ * Chooses the Content-Transfer-Encoding of the text parts in a single pass over the text, instead of letting JavaMail
+ * scan the encoded content, and sets it on the part so that JavaMail keeps it.
+ * </p>
+ * <p>
+ * ASCII texts with lines shorter than 998 bytes are sent as {@code 7bit}. The other texts are sent as {@code 8bit}
+ * when the relays accept it, as they advertise 8BITMIME or SMTPUTF8, otherwise as the smaller of
+ * {@code quoted-printable} and {@code base64}, where JavaMail picks quoted-printable for any mostly ASCII text.
+ * The bytes saved against the encoding JavaMail would have picked are counted.
+ * </p>
+ * <p>
+ * With {@linkplain EightBitMime#AUTO}, the relays are asked for their extensions once at startup, in the background,
+ * and the texts are not sent as {@code 8bit} until all the relays answered that they accept it. Once accepted, the
+ * JavaMail sessions of the relays declare {@code BODY=8BITMIME} in the MAIL FROM command. The texts in a charset with
+ * multi-byte sequences other than UTF-8 are left to JavaMail.
+ * </p>
+ * <p>
+ * The texts are never sent as {@code 8bit} when the emails are signed by a {@linkplain DkimSigner}, as a relay
+ * converting them to {@code 7bit} on the way would break the body hash.
+ * </p>
+ */
+@Slf4j
+public class TransferEncodingSelector {
+
+    public static final String CONTENT_TRANSFER_ENCODING = "Content-Transfer-Encoding";
+
+    /**
+     * Maximum length of a line, without the CRLF, of a {@code 7bit} or {@code 8bit} content.
+     */
+    static final int MAX_LINE_BYTES = 998;
+
+    private static final int QUOTED_PRINTABLE_LINE = 76;
+
+    private static final int BASE64_LINE = 76;
+
+    private static final String BODY_8BITMIME = "BODY=8BITMIME";
+
+    public enum EightBitMime {
+        /**
+         * Send as {@code 8bit} when all the relays advertise 8BITMIME or SMTPUTF8.
+         */
+        AUTO,
+        ALWAYS,
+        NEVER
+    }
+
+    public enum TransferEncoding {
+        SEVEN_BIT("7bit"), EIGHT_BIT("8bit"), QUOTED_PRINTABLE("quoted-printable"), BASE64("base64");
+
+        private final String value;
+
+        TransferEncoding(final String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+    }
+
+    private final List<JavaMailSenderImpl> senders;
+
+    private final EightBitMime eightBitMime;
+
+    private volatile boolean eightBitAccepted;
+
+    private DkimSigner dkimSigner;
+
+    private final LongAdder[] selected = new LongAdder[TransferEncoding.values().length];
+
+    private final LongAdder skipped = new LongAdder();
+
+    private final LongAdder bytesSaved = new LongAdder();
+
+    public TransferEncodingSelector(final @NonNull JavaMailSender javaMailSender,
+                                    final EightBitMime eightBitMime) {
+        final List<JavaMailSender> senders = javaMailSender instanceof LoadBalancingJavaMailSender ?
+                ((LoadBalancingJavaMailSender) javaMailSender).getSenders() : ImmutableList.of(javaMailSender);
+        this.senders = senders.stream()
+                .filter(sender -> sender instanceof JavaMailSenderImpl)
+                .map(sender -> (JavaMailSenderImpl) sender)
+                .collect(toList());
+        this.eightBitMime = eightBitMime;
+        for (int i = 0; i < selected.length; i++) {
+            selected[i] = new LongAdder();
+        }
+        if (eightBitMime == EightBitMime.ALWAYS) {
+            acceptEightBit();
+        }
+    }
+
+    @Autowired(required = false)
+    public void setDkimSigner(final DkimSigner dkimSigner) {
+        this.dkimSigner = dkimSigner;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (nonNull(dkimSigner)) {
+            log.info("The emails are DKIM signed, the texts are not sent as 8bit");
+        } else if (eightBitMime == EightBitMime.AUTO) {
+            new ThreadFactoryBuilder().setNameFormat("email-smtp-extensions").setDaemon(true).build()
+                    .newThread(this::probeRelays)
+                    .start();
+        }
+    }
+
+    public boolean isEightBitAccepted() {
+        return eightBitAccepted;
+    }
+
+    /**
+     * Set the transfer encoding of the part, once its text content has been set.
+     *
+     * @return the selected encoding, or null if left to JavaMail
+     */
+    public TransferEncoding apply(final @NonNull MimePart part, final @NonNull String text,
+                                  final @NonNull Charset charset) throws MessagingException {
+        final TransferEncoding encoding = select(text, charset);
+        if (nonNull(encoding)) {
+            part.setHeader(CONTENT_TRANSFER_ENCODING, encoding.getValue());
+        }
+        return encoding;
+    }
+
+    /**
+     * @return the cheapest valid encoding of the text, or null if the charset is not supported
+     */
+    public TransferEncoding select(final @NonNull String text, final @NonNull Charset charset) {
+        final boolean utf8 = StandardCharsets.UTF_8.equals(charset);
+        if (!utf8 && charset.newEncoder().maxBytesPerChar() > 1) {
+            skipped.increment();
+            return null;
+        }
+        long bytes = 0;
+        //Bytes that are not printable ASCII, as counted by JavaMail
+        long nonAscii = 0;
+        long quotedPrintable = 0;
+        int lineBytes = 0;
+        int maxLineBytes = 0;
+        boolean nul = false;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            final int charBytes;
+            if (c < 0x80) {
+                charBytes = 1;
+                if (c == '\n' || c == '\r') {
+                    maxLineBytes = Math.max(maxLineBytes, lineBytes);
+                    lineBytes = 0;
+                    bytes++;
+                    quotedPrintable++;
+                    continue;
+                }
+                if (c == 0x7f || (c < 0x20 && c != '\t')) {
+                    nonAscii++;
+                    quotedPrintable += 3;
+                    nul |= c == 0;
+                } else {
+                    quotedPrintable += c == '=' ? 3 : 1;
+                }
+            } else {
+                charBytes = !utf8 ? 1 : c < 0x800 ? 2 : Character.isHighSurrogate(c) ? 4 :
+                        Character.isLowSurrogate(c) ? 0 : 3;
+                nonAscii += charBytes;
+                quotedPrintable += 3 * charBytes;
+            }
+            bytes += charBytes;
+            lineBytes += charBytes;
+        }
+        maxLineBytes = Math.max(maxLineBytes, lineBytes);
+        quotedPrintable += quotedPrintable / (QUOTED_PRINTABLE_LINE - 1) * 3;
+        long base64 = (bytes + 2) / 3 * 4;
+        base64 += base64 / BASE64_LINE * 2;
+
+        final TransferEncoding encoding;
+        final long size;
+        if (nonAscii == 0 && maxLineBytes <= MAX_LINE_BYTES) {
+            encoding = TransferEncoding.SEVEN_BIT;
+            size = bytes;
+        } else if (eightBitAccepted && isNull(dkimSigner) && !nul && maxLineBytes <= MAX_LINE_BYTES) {
+            encoding = TransferEncoding.EIGHT_BIT;
+            size = bytes;
+        } else if (quotedPrintable <= base64) {
+            encoding = TransferEncoding.QUOTED_PRINTABLE;
+            size = quotedPrintable;
+        } else {
+            encoding = TransferEncoding.BASE64;
+            size = base64;
+        }
+        //JavaMail picks 7bit for short ASCII lines, quoted-printable for mostly ASCII texts and base64 otherwise
+        final long javaMailSize = nonAscii == 0 && maxLineBytes <= MAX_LINE_BYTES ? bytes :
+                bytes - nonAscii > nonAscii ? quotedPrintable : base64;
+        selected[encoding.ordinal()].increment();
+        bytesSaved.add(javaMailSize - size);
+        return encoding;
+    }
+
+    public TransferEncodingStatistics getStatistics() {
+        return new TransferEncodingStatistics(eightBitAccepted,
+                selected[TransferEncoding.SEVEN_BIT.ordinal()].sum(),
+                selected[TransferEncoding.EIGHT_BIT.ordinal()].sum(),
+                selected[TransferEncoding.QUOTED_PRINTABLE.ordinal()].sum(),
+                selected[TransferEncoding.BASE64.ordinal()].sum(),
+                skipped.sum(), bytesSaved.sum());
+    }
+
+    /**
+     * Ask each relay whether it accepts {@code 8bit} contents, i.e. advertises 8BITMIME or SMTPUTF8, which
+     * requires 8BITMIME.
+     */
+    void probeRelays() {
+        if (senders.isEmpty()) {
+            return;
+        }
+        for (final JavaMailSenderImpl sender : senders) {
+            if (!acceptsEightBit(sender)) {
+                log.info("The relay {}:{} does not accept 8bit contents", sender.getHost(), sender.getPort());
+                return;
+            }
+        }
+        acceptEightBit();
+        log.info("All the relays accept 8bit contents");
+    }
+
+    private void acceptEightBit() {
+        for (final JavaMailSenderImpl sender : senders) {
+            //The session reads the properties of the sender, even once created
+            final String property = "mail." + (nonNull(sender.getProtocol()) ? sender.getProtocol()
+                    : JavaMailSenderImpl.DEFAULT_PROTOCOL) + ".mailextension";
+            final Properties properties = sender.getJavaMailProperties();
+            final String extensions = properties.getProperty(property);
+            if (isNullOrEmpty(extensions)) {
+                properties.setProperty(property, BODY_8BITMIME);
+            } else if (!extensions.toUpperCase(Locale.ROOT).contains("BODY=")) {
+                properties.setProperty(property, extensions + ' ' + BODY_8BITMIME);
+            }
+        }
+        eightBitAccepted = true;
+    }
+
+    private static boolean acceptsEightBit(final JavaMailSenderImpl sender) {
+        try {
+            final Transport transport = sender.getSession().getTransport(
+                    nonNull(sender.getProtocol()) ? sender.getProtocol() : JavaMailSenderImpl.DEFAULT_PROTOCOL);
+            try {
+                transport.connect(sender.getHost(), sender.getPort(), sender.getUsername(), sender.getPassword());
+                return transport instanceof SMTPTransport && (((SMTPTransport) transport).supportsExtension("8BITMIME")
+                        || ((SMTPTransport) transport).supportsExtension("SMTPUTF8"));
+            } finally {
+                transport.close();
+            }
+        } catch (MessagingException e) {
+            log.warn("Cannot ask {}:{} for its extensions", sender.getHost(), sender.getPort(), e);
+            return false;
+        }
+    }
+
+    @lombok.Value
+    public static class TransferEncodingStatistics {
+
+        boolean eightBitAccepted;
+
+        long sevenBit;
+
+        long eightBit;
+
+        long quotedPrintable;
+
+        long base64;
+
+        long skipped;
+
+        /**
+         * Bytes saved against the encodings JavaMail would have picked, as estimated from the text.
+         */
+        long bytesSaved;
+
+    }
+
+}
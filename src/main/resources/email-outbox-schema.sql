@@ -0,0 +1,24 @@
+-- Schema of the JDBC email outbox, written for H2: other databases may need adjustments.
+
+CREATE TABLE IF NOT EXISTS email_outbox (
+    id           BIGINT AUTO_INCREMENT PRIMARY KEY,
+    partition_id INT     NOT NULL,
+    available_at BIGINT  NOT NULL,
+    attempts     INT     NOT NULL,
+    failed       BOOLEAN NOT NULL,
+    payload      BLOB    NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS email_outbox_dispatch ON email_outbox (partition_id, failed, id);
+
+CREATE TABLE IF NOT EXISTS email_outbox_partition (
+    partition_id INT PRIMARY KEY,
+    owner        VARCHAR(128),
+    lease_until  BIGINT NOT NULL,
+    version      BIGINT NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS email_outbox_dispatcher (
+    owner           VARCHAR(128) PRIMARY KEY,
+    heartbeat_until BIGINT NOT NULL
+);
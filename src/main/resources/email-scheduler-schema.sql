@@ -0,0 +1,7 @@
+-- Schema of the JDBC scheduled email store, written for H2: other databases may need adjustments.
+
+CREATE TABLE IF NOT EXISTS email_scheduled (
+    id      VARCHAR(64) PRIMARY KEY,
+    send_at BIGINT NOT NULL,
+    payload BLOB   NOT NULL
+);
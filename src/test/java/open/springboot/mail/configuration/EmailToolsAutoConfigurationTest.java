@@ -0,0 +1,215 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.configuration;
+
+import com.google.common.base.Throwables;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.service.EmailService;
+import open.springboot.mail.service.IdempotencyStore;
+import open.springboot.mail.service.PersistentIdempotencyStore;
+import open.springboot.mail.service.impl.EmailServiceImpl;
+import open.springboot.mail.service.impl.InMemoryIdempotencyStore;
+import open.springboot.mail.utils.AdaptiveConcurrencyLimiter;
+import open.springboot.mail.utils.EmailSizeLimiter;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@Slf4j
+public class EmailToolsAutoConfigurationTest {
+
+    private ConfigurableApplicationContext context;
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Test
+    public void shouldCreateTheEmailServiceLazilyWithoutScanning() {
+        //Arrange
+        context = start(AutoConfiguredApplication.class);
+
+        //Act
+        final boolean createdAtStartup = context.getBeanFactory().containsSingleton("emailService");
+        final EmailService emailService = context.getBean(EmailService.class);
+
+        //Assert
+        assertThat(createdAtStartup, is(false));
+        assertThat(emailService instanceof EmailServiceImpl, is(true));
+        assertThat(context.getBeanFactory().containsSingleton("emailService"), is(true));
+        assertThat(context.getBeansOfType(EmailSizeLimiter.class).isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldCreateTheEnabledFeaturesFromTheTypedProperties() {
+        //Arrange
+        context = start(AutoConfiguredApplication.class, "email.tools.concurrency-limit.enabled=true",
+                "email.tools.concurrency-limit.initial-limit=7", "email.tools.size-limit.enabled=true");
+
+        //Act
+        final AdaptiveConcurrencyLimiter concurrencyLimiter = context.getBean(AdaptiveConcurrencyLimiter.class);
+
+        //Assert
+        assertThat(concurrencyLimiter.getLimit(), is(7));
+        assertThat(context.getBean(EmailToolsProperties.class).getConcurrencyLimit().getInitialLimit(), is(7));
+        assertThat(context.getBeansOfType(EmailSizeLimiter.class).size(), is(1));
+    }
+
+    @Test
+    public void shouldBackOffWhenThePackageIsScanned() {
+        //Arrange
+        context = start(ScanningApplication.class);
+
+        //Act
+        final int emailServices = context.getBeansOfType(EmailService.class).size();
+
+        //Assert
+        assertThat(emailServices, is(1));
+        assertThat(context.getBeanFactory().containsBeanDefinition("emailService"), is(false));
+    }
+
+    @Test
+    public void shouldCreateTheEnabledFeaturesFromTheTypedPropertiesWhenThePackageIsScanned() {
+        //Arrange
+        context = start(ScanningApplication.class, "email.tools.concurrency-limit.enabled=true",
+                "email.tools.concurrency-limit.initial-limit=7");
+
+        //Act
+        final AdaptiveConcurrencyLimiter concurrencyLimiter = context.getBean(AdaptiveConcurrencyLimiter.class);
+
+        //Assert
+        assertThat(concurrencyLimiter.getLimit(), is(7));
+        assertThat(context.getBeansOfType(AdaptiveConcurrencyLimiter.class).size(), is(1));
+        assertThat(context.getBeansOfType(EmailSizeLimiter.class).isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldCreateFewerBeansAtStartupThanScanning() {
+        //Arrange
+        start(AutoConfiguredApplication.class).close();
+        final long scanningStart = System.nanoTime();
+        context = start(ScanningApplication.class);
+        final long scanningMillis = (System.nanoTime() - scanningStart) / 1_000_000;
+        final int scanningBeans = context.getBeanDefinitionCount();
+        final long scanningEmailBeans = countEmailToolsSingletons(context);
+        context.close();
+
+        //Act
+        final long autoConfigurationStart = System.nanoTime();
+        context = start(AutoConfiguredApplication.class);
+        final long autoConfigurationMillis = (System.nanoTime() - autoConfigurationStart) / 1_000_000;
+        final int autoConfigurationBeans = context.getBeanDefinitionCount();
+        final long autoConfigurationEmailBeans = countEmailToolsSingletons(context);
+
+        //Assert
+        log.info("Startup: component scanning {} ms, {} beans, {} email tools beans created; "
+                        + "auto-configuration {} ms, {} beans, {} email tools beans created",
+                scanningMillis, scanningBeans, scanningEmailBeans,
+                autoConfigurationMillis, autoConfigurationBeans, autoConfigurationEmailBeans);
+        assertThat(autoConfigurationEmailBeans, lessThan(scanningEmailBeans));
+    }
+
+    @Test
+    public void shouldFailWhenTheLanesAndTheDomainThrottlingAreBothEnabled() {
+        //Act
+        try {
+            context = start(AutoConfiguredApplication.class, "email.tools.lanes.enabled=true",
+                    "email.tools.domain-throttling.enabled=true");
+            fail("BeanCreationException expected");
+        } catch (BeanCreationException e) {
+            //Assert
+            assertThat(Throwables.getRootCause(e) instanceof IllegalStateException, is(true));
+        }
+    }
+
+    @Test
+    public void shouldKeepTheInMemoryDedupWindowInFrontOfAPersistentStore() {
+        //Arrange
+        context = start(PersistentIdempotencyApplication.class, "email.tools.idempotency.enabled=true");
+
+        //Act
+        final IdempotencyStore idempotencyStore = context.getBean(IdempotencyStore.class);
+
+        //Assert
+        assertThat(idempotencyStore instanceof InMemoryIdempotencyStore, is(true));
+        assertThat(idempotencyStore.putIfAbsent("key"), is(true));
+        verify(context.getBean(PersistentIdempotencyStore.class)).putIfAbsent("key");
+    }
+
+    private static ConfigurableApplicationContext start(final Class<?> application, final String... properties) {
+        return new SpringApplicationBuilder(application).web(false).properties(properties).run();
+    }
+
+    /**
+     * @return the number of beans of the email tools created, besides the configuration ones
+     */
+    private static long countEmailToolsSingletons(final ConfigurableApplicationContext context) {
+        return Arrays.stream(context.getBeanFactory().getSingletonNames())
+                .map(name -> context.getBeanFactory().getSingleton(name))
+                .filter(bean -> bean.getClass().getName().startsWith("open.springboot.mail.")
+                        && !bean.getClass().getName().startsWith("open.springboot.mail.configuration."))
+                .count();
+    }
+
+    @Configuration
+    @EnableAutoConfiguration
+    static class AutoConfiguredApplication {
+
+    }
+
+    @Configuration
+    @EnableAutoConfiguration
+    @ComponentScan(basePackages = "open.springboot.mail")
+    static class ScanningApplication {
+
+    }
+
+    @Configuration
+    @EnableAutoConfiguration
+    static class PersistentIdempotencyApplication {
+
+        @Bean
+        public PersistentIdempotencyStore persistentIdempotencyStore() {
+            final PersistentIdempotencyStore persistentStore = mock(PersistentIdempotencyStore.class);
+            when(persistentStore.putIfAbsent(anyString())).thenReturn(true);
+            return persistentStore;
+        }
+
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.model.impl;
+
+import com.google.common.collect.Lists;
+import open.springboot.mail.model.Email;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.springframework.http.MediaType;
+
+import javax.mail.internet.InternetAddress;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static open.springboot.mail.utils.EmailToMimeMessageTest.getSimpleMail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.fail;
+
+public class CompactEmailTest {
+
+    private static final int QUEUED_EMAILS = 100_000;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void testCompactEmailMustHaveFrom() throws Exception {
+        //Arrange
+        expectedException.expect(NullPointerException.class);
+
+        //Act
+        CompactEmail.builder()
+                .subject("subject")
+                .body("body")
+                .build();
+
+        //Assert
+        fail("Expected a NullPointerException for missing mandatory field");
+    }
+
+    @Test
+    public void testCopyOfKeepsContent() throws Exception {
+        //Arrange
+        final Email email = getSimpleMail();
+
+        //Act
+        final CompactEmail compactEmail = CompactEmail.copyOf(email);
+
+        //Assert
+        assertThat(compactEmail.getFrom(), is(email.getFrom()));
+        assertThat(compactEmail.getReplyTo(), is(email.getReplyTo()));
+        assertThat(new ArrayList<>(compactEmail.getTo()), is(new ArrayList<>(email.getTo())));
+        assertThat(new ArrayList<>(compactEmail.getCc()), is(new ArrayList<>(email.getCc())));
+        assertThat(new ArrayList<>(compactEmail.getBcc()), is(new ArrayList<>(email.getBcc())));
+        assertThat(compactEmail.getSubject(), is(email.getSubject()));
+        assertThat(compactEmail.getBody(), is(email.getBody()));
+        assertThat(compactEmail.getEncoding(), is(email.getEncoding()));
+        assertThat(compactEmail.getAttachments(), is(empty()));
+        assertThat(compactEmail.getSentAt(), is(nullValue()));
+    }
+
+    @Test
+    public void testRepeatedValuesAreShared() throws Exception {
+        //Arrange
+        final CompactEmail first = newCompactEmail(1);
+        final CompactEmail second = newCompactEmail(2);
+
+        //Assert
+        assertThat(first.getFrom(), sameInstance(second.getFrom()));
+        assertThat(first.getSubject(), sameInstance(second.getSubject()));
+        assertThat(first.getBody(), sameInstance(second.getBody()));
+        assertThat(first.getLocale(), sameInstance(second.getLocale()));
+    }
+
+    @Test
+    public void testAddressesWithDifferentPersonalAreNotShared() throws Exception {
+        //Act
+        final CompactEmail email = CompactEmail.builder()
+                .from(new InternetAddress("cicero@mala-tempora.currunt", "Marco Tullio Cicerone"))
+                .to(Lists.newArrayList(new InternetAddress("cicero@mala-tempora.currunt", "Cicero")))
+                .subject("subject")
+                .body("body")
+                .build();
+
+        //Assert
+        assertThat(email.getTo().iterator().next().getPersonal(), is("Cicero"));
+    }
+
+    @Test
+    public void testSentAtIsMutable() throws Exception {
+        //Arrange
+        final CompactEmail email = newCompactEmail(1);
+        final Date sentAt = new Date();
+
+        //Act
+        email.setSentAt(sentAt);
+
+        //Assert
+        assertThat(email.getSentAt(), is(sentAt));
+    }
+
+    @Test
+    public void testDeserializedEmailSharesValues() throws Exception {
+        //Arrange
+        final CompactEmail email = newCompactEmail(1);
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream)) {
+            objectOutputStream.writeObject(email);
+        }
+
+        //Act
+        final CompactEmail deserialized;
+        try (ObjectInputStream objectInputStream =
+                     new ObjectInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+            deserialized = (CompactEmail) objectInputStream.readObject();
+        }
+
+        //Assert
+        assertThat(deserialized, is(email));
+        assertThat(deserialized.getFrom(), sameInstance(email.getFrom()));
+        assertThat(new ArrayList<>(deserialized.getTo()), contains(email.getTo().toArray()));
+    }
+
+    @Test
+    public void testDeserializedEmailKeepsAttachments() throws Exception {
+        //Arrange
+        final EmailImpl emailImpl = newEmailImpl(1);
+        emailImpl.setAttachments(Lists.newArrayList(EmailAttachmentImpl.builder()
+                .attachmentName("de-amicitia.txt")
+                .attachmentData("O tempora, o mores!".getBytes(Charset.forName("UTF-8")))
+                .mediaType(MediaType.TEXT_PLAIN)
+                .build()));
+        final CompactEmail email = CompactEmail.copyOf(emailImpl);
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream)) {
+            objectOutputStream.writeObject(email);
+        }
+
+        //Act
+        final CompactEmail deserialized;
+        try (ObjectInputStream objectInputStream =
+                     new ObjectInputStream(new ByteArrayInputStream(outputStream.toByteArray()))) {
+            deserialized = (CompactEmail) objectInputStream.readObject();
+        }
+
+        //Assert
+        assertThat(new ArrayList<>(deserialized.getAttachments()), contains(email.getAttachments().toArray()));
+    }
+
+    @Test
+    public void testFootprintIsSmallerThanEmailImpl() throws Exception {
+        //Arrange
+        final long baseline = usedHeap();
+
+        //Act
+        final List<Email> emails = new ArrayList<>(QUEUED_EMAILS);
+        for (int i = 0; i < QUEUED_EMAILS; i++) {
+            emails.add(newEmailImpl(i));
+        }
+        final long emailImplFootprint = usedHeap() - baseline;
+        for (int i = 0; i < QUEUED_EMAILS; i++) {
+            emails.set(i, CompactEmail.copyOf(emails.get(i)));
+        }
+        final long compactEmailFootprint = usedHeap() - baseline;
+
+        //Assert
+        assertThat(emails.size(), is(QUEUED_EMAILS));
+        assertThat(compactEmailFootprint, lessThan(emailImplFootprint / 2));
+    }
+
+    private static CompactEmail newCompactEmail(final int id) throws Exception {
+        return CompactEmail.copyOf(newEmailImpl(id));
+    }
+
+    /**
+     * Create an email as it would come from a queue, i.e. without any instance shared with other emails.
+     */
+    private static EmailImpl newEmailImpl(final int id) throws Exception {
+        return EmailImpl.builder()
+                .from(new InternetAddress("newsletter@mala-tempora.currunt", "Marco Tullio Cicerone"))
+                .replyTo(new InternetAddress("tullius.cicero@urbs.aeterna", "Marcus Tullius Cicero"))
+                .to(Lists.newArrayList(new InternetAddress("reader" + (id % 100) + "@de-rerum.natura")))
+                .cc(Lists.newArrayList(new InternetAddress("info@de-rerum.natura", "Info Best Seller")))
+                .bcc(Lists.newArrayList(new InternetAddress("archive@urbs.aeterna")))
+                .subject(new String("Laelius de amicitia"))
+                .body(new String("Firmamentum autem stabilitatis constantiaeque eius, quam in amicitia quaerimus, fides est."))
+                .encoding(Charset.forName("UTF-8"))
+                .locale(new Locale("la"))
+                .build();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return memoryMXBean.getHeapMemoryUsage().getUsed();
+    }
+
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import com.google.common.collect.Lists;
+import open.springboot.mail.model.DigestEntry;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.impl.EmailImpl;
+import open.springboot.mail.service.DigestStatistics;
+import open.springboot.mail.service.EmailQueueService;
+import open.springboot.mail.service.EmailService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static open.springboot.mail.utils.EmailToMimeMessageTest.getSimpleMail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CoalescingEmailDigestServiceTest {
+
+    private static final String TEMPLATE = "digest.ftl";
+
+    private static final String SUBJECT = "%2$s: %1$d notifications";
+
+    @Mock
+    private EmailService emailService;
+
+    @Mock
+    private EmailQueueService emailQueueService;
+
+    private CoalescingEmailDigestService digestService;
+
+    private final MimeMessage digestMessage = new MimeMessage((Session) null);
+
+    private final MimeMessage singleMessage = new MimeMessage((Session) null);
+
+    @Before
+    public void setUp() throws Exception {
+        when(emailService.send(any(Email.class), anyString(), any(Map.class))).thenReturn(digestMessage);
+        when(emailService.send(any(Email.class))).thenReturn(singleMessage);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (digestService != null) {
+            digestService.shutdown();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testEmailsOfTheSameRecipientAndCategoryAreMerged() throws Exception {
+        //Arrange
+        digestService = new CoalescingEmailDigestService(emailService, TEMPLATE, SUBJECT, 60000, 50, 100, 100000, 2);
+        final List<CompletableFuture<MimeMessage>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(digestService.send(getMail("titus@de-rerum.natura", "alerts", "Alert " + i)));
+        }
+
+        //Act
+        digestService.flush();
+
+        //Assert
+        for (final CompletableFuture<MimeMessage> future : futures) {
+            assertThat(future.get(5, TimeUnit.SECONDS), is(sameInstance(digestMessage)));
+        }
+        final ArgumentCaptor<Email> email = ArgumentCaptor.forClass(Email.class);
+        final ArgumentCaptor<Map> model = ArgumentCaptor.forClass(Map.class);
+        verify(emailService).send(email.capture(), eq(TEMPLATE), model.capture());
+        assertThat(email.getValue().getSubject(), is("alerts: 3 notifications"));
+        assertThat(email.getValue().getTo().iterator().next().getAddress(), is("titus@de-rerum.natura"));
+        final List<DigestEntry> entries = (List<DigestEntry>) model.getValue().get("entries");
+        assertThat(entries.size(), is(3));
+        assertThat(entries.get(2).getSubject(), is("Alert 2"));
+        final DigestStatistics statistics = digestService.getStatistics();
+        assertThat(statistics.getSubmitted(), is(3L));
+        assertThat(statistics.getCoalesced(), is(3L));
+        assertThat(statistics.getSent(), is(1L));
+        assertThat(statistics.getBufferedEmails(), is(0));
+    }
+
+    @Test
+    public void testDifferentRecipientsAndCategoriesAreNotMerged() throws Exception {
+        //Arrange
+        digestService = new CoalescingEmailDigestService(emailService, TEMPLATE, SUBJECT, 60000, 50, 100, 100000, 2);
+        digestService.send(getMail("titus@de-rerum.natura", "alerts", "Alert"));
+        digestService.send(getMail("titus@de-rerum.natura", "reports", "Report"));
+        digestService.send(getMail("caius@urbs.aeterna", "alerts", "Alert"));
+
+        //Act
+        final MimeMessage notDigestible = digestService.send(getMail("titus@de-rerum.natura", null, "Reset"))
+                .get(5, TimeUnit.SECONDS);
+        digestService.flush();
+
+        //Assert
+        assertThat(notDigestible, is(sameInstance(singleMessage)));
+        verify(emailService, timeout(5000).times(4)).send(any(Email.class));
+        verify(emailService, never()).send(any(Email.class), anyString(), any(Map.class));
+        assertThat(digestService.getStatistics().getCoalesced(), is(0L));
+    }
+
+    @Test
+    public void testFullDigestIsFlushed() throws Exception {
+        //Arrange
+        digestService = new CoalescingEmailDigestService(emailService, TEMPLATE, SUBJECT, 60000, 2, 100, 100000, 2);
+        digestService.send(getMail("titus@de-rerum.natura", "alerts", "Alert 1"));
+
+        //Act
+        final MimeMessage sent = digestService.send(getMail("titus@de-rerum.natura", "alerts", "Alert 2"))
+                .get(5, TimeUnit.SECONDS);
+
+        //Assert
+        assertThat(sent, is(sameInstance(digestMessage)));
+        assertThat(digestService.getStatistics().getFlushedOnSize(), is(1L));
+    }
+
+    @Test
+    public void testDigestIsFlushedWhenItsWindowExpires() throws Exception {
+        //Arrange
+        digestService = new CoalescingEmailDigestService(emailService, TEMPLATE, SUBJECT, 100, 50, 100, 100000, 2);
+        digestService.send(getMail("titus@de-rerum.natura", "alerts", "Alert 1"));
+
+        //Act
+        final MimeMessage sent = digestService.send(getMail("titus@de-rerum.natura", "alerts", "Alert 2"))
+                .get(5, TimeUnit.SECONDS);
+
+        //Assert
+        assertThat(sent, is(sameInstance(digestMessage)));
+        assertThat(digestService.getStatistics().getFlushedOnTime(), is(1L));
+    }
+
+    @Test
+    public void testExpiredDigestsAreSentApartFromTheTimer() throws Exception {
+        //Arrange
+        digestService = new CoalescingEmailDigestService(emailService, TEMPLATE, SUBJECT, 100, 50, 100, 100000, 2);
+        final AtomicReference<String> sendingThread = new AtomicReference<>();
+        when(emailService.send(any(Email.class), anyString(), any(Map.class))).thenAnswer(invocation -> {
+            sendingThread.set(Thread.currentThread().getName());
+            return digestMessage;
+        });
+        digestService.send(getMail("titus@de-rerum.natura", "alerts", "Alert 1"));
+
+        //Act
+        digestService.send(getMail("titus@de-rerum.natura", "alerts", "Alert 2")).get(5, TimeUnit.SECONDS);
+
+        //Assert
+        assertThat(sendingThread.get(), startsWith("email-digest-sender-"));
+    }
+
+    @Test
+    public void testOldestDigestIsFlushedToStayWithinTheMemoryBounds() throws Exception {
+        //Arrange
+        digestService = new CoalescingEmailDigestService(emailService, TEMPLATE, SUBJECT, 60000, 50, 2, 100000, 2);
+        final CompletableFuture<MimeMessage> oldest = digestService.send(
+                getMail("titus@de-rerum.natura", "alerts", "Alert"));
+        digestService.send(getMail("caius@urbs.aeterna", "alerts", "Alert"));
+
+        //Act
+        digestService.send(getMail("marcus@urbs.aeterna", "alerts", "Alert"));
+
+        //Assert
+        //A digest of a single email is sent as the original email
+        assertThat(oldest.get(5, TimeUnit.SECONDS), is(sameInstance(singleMessage)));
+        final DigestStatistics statistics = digestService.getStatistics();
+        assertThat(statistics.getFlushedOnMemory(), is(1L));
+        assertThat(statistics.getPendingDigests(), is(2));
+        assertThat(statistics.getBufferedEmails(), is(2));
+    }
+
+    @Test
+    public void testShutdownFlushesThePendingDigestsToTheQueue() throws Exception {
+        //Arrange
+        digestService = new CoalescingEmailDigestService(emailService, TEMPLATE, SUBJECT, 60000, 50, 100, 100000, 2);
+        digestService.setEmailQueueService(emailQueueService);
+        when(emailQueueService.enqueue(any(Email.class), anyString(), any(Map.class)))
+                .thenReturn(CompletableFuture.completedFuture(digestMessage));
+        final CompletableFuture<MimeMessage> first = digestService.send(
+                getMail("titus@de-rerum.natura", "alerts", "Alert 1"));
+        digestService.send(getMail("titus@de-rerum.natura", "alerts", "Alert 2"));
+
+        //Act
+        digestService.shutdown();
+
+        //Assert
+        assertThat(first.isDone(), is(true));
+        verify(emailQueueService, times(1)).enqueue(any(Email.class), eq(TEMPLATE), any(Map.class));
+        verify(emailService, never()).send(any(Email.class), anyString(), any(Map.class));
+        assertThat(digestService.getStatistics().getFlushedOnShutdown(), is(1L));
+    }
+
+    @Test
+    public void testDigestsRejectedByTheQueueFailTheirEmails() throws Exception {
+        //Arrange
+        digestService = new CoalescingEmailDigestService(emailService, TEMPLATE, SUBJECT, 60000, 50, 100, 100000, 2);
+        digestService.setEmailQueueService(emailQueueService);
+        when(emailQueueService.enqueue(any(Email.class), anyString(), any(Map.class)))
+                .thenThrow(new RejectedExecutionException("The email queue is full"));
+        final CompletableFuture<MimeMessage> first = digestService.send(
+                getMail("titus@de-rerum.natura", "alerts", "Alert 1"));
+        final CompletableFuture<MimeMessage> second = digestService.send(
+                getMail("titus@de-rerum.natura", "alerts", "Alert 2"));
+
+        //Act
+        digestService.flush();
+
+        //Assert
+        for (final CompletableFuture<MimeMessage> future : Arrays.asList(first, second)) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("ExecutionException expected");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+            }
+        }
+        assertThat(digestService.getStatistics().getFailed(), is(1L));
+    }
+
+    @Test
+    public void testPassedThroughEmailsAreSentConcurrently() throws Exception {
+        //Arrange
+        digestService = new CoalescingEmailDigestService(emailService, TEMPLATE, SUBJECT, 60000, 50, 100, 100000, 2);
+        final CountDownLatch sending = new CountDownLatch(2);
+        final CountDownLatch released = new CountDownLatch(1);
+        when(emailService.send(any(Email.class))).thenAnswer(invocation -> {
+            sending.countDown();
+            released.await();
+            return singleMessage;
+        });
+
+        //Act
+        final CompletableFuture<MimeMessage> first = digestService.send(
+                getMail("titus@de-rerum.natura", null, "Invoice"));
+        final CompletableFuture<MimeMessage> second = digestService.send(
+                getMail("caius@urbs.aeterna", null, "Invoice"));
+
+        //Assert
+        try {
+            assertThat(sending.await(5, TimeUnit.SECONDS), is(true));
+        } finally {
+            released.countDown();
+        }
+        assertThat(first.get(5, TimeUnit.SECONDS), sameInstance(singleMessage));
+        assertThat(second.get(5, TimeUnit.SECONDS), sameInstance(singleMessage));
+    }
+
+    @Test
+    public void testEmailsAreRejectedOnceShutDown() throws Exception {
+        //Arrange
+        digestService = new CoalescingEmailDigestService(emailService, TEMPLATE, SUBJECT, 60000, 50, 100, 100000, 2);
+        digestService.shutdown();
+
+        //Act
+        try {
+            digestService.send(getMail("titus@de-rerum.natura", "alerts", "Alert"));
+            fail("RejectedExecutionException expected");
+        } catch (RejectedExecutionException e) {
+            //Assert
+            assertThat(digestService.getStatistics().getSubmitted(), is(0L));
+        }
+    }
+
+    private static Email getMail(final String to, final String category, final String subject) throws Exception {
+        final EmailImpl email = (EmailImpl) getSimpleMail();
+        email.setTo(Lists.newArrayList(new InternetAddress(to)));
+        email.setCc(null);
+        email.setBcc(null);
+        email.setSubject(subject);
+        email.setDigestCategory(category);
+        return email;
+    }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.impl.EmailImpl;
+import open.springboot.mail.service.DomainStatistics;
+import open.springboot.mail.service.EmailOutboxService;
+import open.springboot.mail.service.EmailService;
+import open.springboot.mail.service.Exception.CannotSendEmailException;
+import open.springboot.mail.service.impl.DomainThrottlingEmailQueueService.Limits;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static open.springboot.mail.utils.EmailToMimeMessageTest.getSimpleMail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DomainThrottlingEmailQueueServiceTest {
+
+    private static final String SLOW_DOMAIN = "urbs.aeterna";
+
+    private static final String FAST_DOMAIN = "de-rerum.natura";
+
+    private static final Limits UNLIMITED = new Limits(0, 4);
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Mock
+    private EmailService emailService;
+
+    @Mock
+    private EmailOutboxService emailOutboxService;
+
+    private DomainThrottlingEmailQueueService queueService;
+
+    private final CountDownLatch slowReleased = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        when(emailService.send(any(EmailImpl.class))).thenAnswer(invocation -> {
+            final EmailImpl email = (EmailImpl) invocation.getArguments()[0];
+            if (email.getTo().iterator().next().getAddress().endsWith(SLOW_DOMAIN)) {
+                slowReleased.await();
+            }
+            return new MimeMessage((Session) null);
+        });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        slowReleased.countDown();
+        if (queueService != null) {
+            queueService.shutdown();
+        }
+    }
+
+    @Test
+    public void testSlowDomainDoesNotStallTheOthers() throws Exception {
+        //Arrange
+        queueService = new DomainThrottlingEmailQueueService(emailService, 4, 1000, UNLIMITED,
+                ImmutableMap.of("Urbs.Aeterna", new Limits(0, 2)), 0, 1000);
+        for (int i = 0; i < 10; i++) {
+            queueService.enqueue(getMail(SLOW_DOMAIN));
+        }
+        final List<CompletableFuture<MimeMessage>> fastFutures = new ArrayList<>();
+
+        //Act
+        for (int i = 0; i < 20; i++) {
+            fastFutures.add(queueService.enqueue(getMail(FAST_DOMAIN)));
+        }
+        CompletableFuture.allOf(fastFutures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+        //Assert
+        final DomainStatistics slowStatistics = queueService.getStatistics(SLOW_DOMAIN).get();
+        assertThat(slowStatistics.getSubmitted(), is(10L));
+        assertThat(slowStatistics.getInFlight(), is(2));
+        assertThat(slowStatistics.getQueueDepth(), is(8));
+        assertThat(slowStatistics.getSent(), is(0L));
+        final DomainStatistics fastStatistics = queueService.getStatistics(FAST_DOMAIN).get();
+        assertThat(fastStatistics.getSent(), is(20L));
+        assertThat(fastStatistics.getQueueDepth(), is(0));
+        assertThat(queueService.getStatistics().size(), is(2));
+    }
+
+    @Test
+    public void testEmailsArePacedAtTheRateOfTheirDomain() throws Exception {
+        //Arrange
+        queueService = new DomainThrottlingEmailQueueService(emailService, 4, 1000, new Limits(50, 4),
+                Collections.emptyMap(), 0, 1000);
+        final List<CompletableFuture<MimeMessage>> futures = new ArrayList<>();
+        final long start = System.nanoTime();
+
+        //Act
+        for (int i = 0; i < 11; i++) {
+            futures.add(queueService.enqueue(getMail(FAST_DOMAIN)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+        //Assert
+        //The first email is sent at once, the next ones every 20 ms
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertThat(elapsedMillis, greaterThanOrEqualTo(190L));
+        assertThat(queueService.getStatistics(FAST_DOMAIN).get().getSent(), is(11L));
+    }
+
+    @Test
+    public void testDomainIsPausedAfterAFailure() throws Exception {
+        //Arrange
+        queueService = new DomainThrottlingEmailQueueService(emailService, 2, 1000, UNLIMITED,
+                Collections.emptyMap(), 200, 1000);
+        final AtomicBoolean failed = new AtomicBoolean();
+        doAnswer(invocation -> {
+            if (failed.compareAndSet(false, true)) {
+                throw new CannotSendEmailException("Deferred");
+            }
+            return new MimeMessage((Session) null);
+        }).when(emailService).send(any(EmailImpl.class));
+        final CompletableFuture<MimeMessage> failing = queueService.enqueue(getMail(FAST_DOMAIN));
+        try {
+            failing.get(5, TimeUnit.SECONDS);
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(CannotSendEmailException.class));
+        }
+        final long start = System.nanoTime();
+
+        //Act
+        queueService.enqueue(getMail(FAST_DOMAIN)).get(5, TimeUnit.SECONDS);
+
+        //Assert
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertThat(elapsedMillis, greaterThanOrEqualTo(150L));
+        final DomainStatistics statistics = queueService.getStatistics(FAST_DOMAIN).get();
+        assertThat(statistics.getFailed(), is(1L));
+        assertThat(statistics.getSent(), is(1L));
+        assertThat(statistics.getPauses(), is(1L));
+    }
+
+    @Test
+    public void testEmailsWaitForTheCapsOfAllTheirDomains() throws Exception {
+        //Arrange
+        queueService = new DomainThrottlingEmailQueueService(emailService, 4, 1000, UNLIMITED,
+                ImmutableMap.of(SLOW_DOMAIN, new Limits(0, 1)), 0, 1000);
+        final CompletableFuture<MimeMessage> slow = queueService.enqueue(getMail(SLOW_DOMAIN));
+        final EmailImpl copied = getMail(FAST_DOMAIN);
+        copied.setCc(Lists.newArrayList(new InternetAddress("titus@" + SLOW_DOMAIN)));
+        final CompletableFuture<MimeMessage> waiting = queueService.enqueue(copied);
+
+        //Act
+        queueService.enqueue(getMail(FAST_DOMAIN)).get(5, TimeUnit.SECONDS);
+
+        //Assert
+        assertThat(waiting.isDone(), is(false));
+        assertThat(queueService.getStatistics(FAST_DOMAIN).get().getQueueDepth(), is(1));
+        slowReleased.countDown();
+        slow.get(5, TimeUnit.SECONDS);
+        waiting.get(5, TimeUnit.SECONDS);
+        assertThat(queueService.getStatistics(SLOW_DOMAIN).get().getInFlight(), is(0));
+    }
+
+    @Test
+    public void testIdleDomainsAreDropped() throws Exception {
+        //Arrange
+        queueService = new DomainThrottlingEmailQueueService(emailService, 1, 10, UNLIMITED,
+                Collections.emptyMap(), 0, 1000);
+        queueService.enqueue(getMail(FAST_DOMAIN)).get(5, TimeUnit.SECONDS);
+
+        //Act
+        final int recent = queueService.evictIdleDomains(System.nanoTime());
+        final int idle = queueService.evictIdleDomains(System.nanoTime() + TimeUnit.MINUTES.toNanos(2));
+
+        //Assert
+        assertThat(recent, is(0));
+        assertThat(idle, is(1));
+        assertThat(queueService.getStatistics(FAST_DOMAIN).isPresent(), is(false));
+    }
+
+    @Test
+    public void testFullQueueRejectsEmails() throws Exception {
+        //Arrange
+        queueService = new DomainThrottlingEmailQueueService(emailService, 1, 5, new Limits(0, 1),
+                Collections.emptyMap(), 0, 1000);
+        expectedException.expect(RejectedExecutionException.class);
+
+        //Act
+        for (int i = 0; i < 10; i++) {
+            queueService.enqueue(getMail(SLOW_DOMAIN));
+        }
+    }
+
+    @Test
+    public void testShutdownStoresEmailsLeftAfterTheDeadline() throws Exception {
+        //Arrange
+        queueService = new DomainThrottlingEmailQueueService(emailService, 2, 1000, new Limits(0, 1),
+                Collections.emptyMap(), 0, 100);
+        queueService.setEmailOutboxService(emailOutboxService);
+        when(emailOutboxService.enqueue(any(Email.class))).thenReturn(CompletableFuture.completedFuture(null));
+        final List<CompletableFuture<MimeMessage>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(queueService.enqueue(getMail(SLOW_DOMAIN)));
+        }
+
+        //Act
+        queueService.shutdown();
+
+        //Assert
+        //The domain allows a single email in flight, stuck on the first one
+        assertThat(futures.stream().filter(CompletableFuture::isCancelled).count(), is(9L));
+        verify(emailOutboxService, times(9)).enqueue(any(Email.class));
+    }
+
+    @Test
+    public void testEmailsAreRejectedOnceShutDown() throws Exception {
+        //Arrange
+        queueService = new DomainThrottlingEmailQueueService(emailService, 1, 10, UNLIMITED,
+                Collections.emptyMap(), 0, 1000);
+        queueService.shutdown();
+        expectedException.expect(RejectedExecutionException.class);
+
+        //Act
+        queueService.enqueue(getMail(FAST_DOMAIN));
+    }
+
+    private static EmailImpl getMail(final String domain) throws Exception {
+        final EmailImpl email = (EmailImpl) getSimpleMail();
+        email.setTo(Lists.newArrayList(new InternetAddress("titus@" + domain, "Pomponius Atticus")));
+        email.setCc(null);
+        email.setBcc(null);
+        return email;
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import com.google.common.collect.Lists;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.impl.EmailImpl;
+import open.springboot.mail.service.TemplateService;
+import open.springboot.mail.utils.EmailToMimeMessage;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import testutils.EmailLoadTestHarness;
+import testutils.SmtpSinkServer;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.Properties;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Sends emails through a real SMTP conversation with an in-process {@linkplain SmtpSinkServer}.
+ * <p/>
+ * Raise the number of senders and emails to compare transport level changes.
+ */
+public class EmailServiceLoadTest {
+
+    private static final int SENDERS = 4;
+
+    private static final int EMAILS_PER_SENDER = 25;
+
+    private SmtpSinkServer sink;
+
+    @After
+    public void tearDown() throws Exception {
+        sink.close();
+    }
+
+    @Test
+    public void sendMailThroughSmtp() throws Exception {
+        //Arrange
+        sink = SmtpSinkServer.builder().eightBitMime(true).keepMessages(true).build();
+        final EmailServiceImpl emailService = emailService(new Properties());
+
+        //Act
+        final EmailLoadTestHarness.Report report = EmailLoadTestHarness.run(emailService, sink,
+                SENDERS, EMAILS_PER_SENDER, EmailServiceLoadTest::getMail);
+
+        //Assert
+        assertThat(report.getFailures(), is(0L));
+        assertThat(sink.getReceivedMessages(), is((long) SENDERS * EMAILS_PER_SENDER));
+        assertThat(report.getBytesOnTheWire(), greaterThan(0L));
+        assertThat(report.getEmailsPerSecond(), greaterThan(0.0));
+        final SmtpSinkServer.ReceivedMessage message = sink.getMessages().get(0);
+        assertThat(message.getFrom(), is("<cicero@mala-tempora.currunt>"));
+        assertThat(message.getContent(), containsString("Subject: Laelius de amicitia"));
+    }
+
+    @Test
+    public void sendMailThroughSmtpWithStartTls() throws Exception {
+        //Arrange
+        sink = SmtpSinkServer.builder().startTls(true).build();
+        final Properties properties = new Properties();
+        properties.put("mail.smtp.starttls.enable", "true");
+        properties.put("mail.smtp.starttls.required", "true");
+        properties.put("mail.smtp.ssl.trust", "*");
+        final EmailServiceImpl emailService = emailService(properties);
+
+        //Act
+        final EmailLoadTestHarness.Report report = EmailLoadTestHarness.run(emailService, sink,
+                SENDERS, EMAILS_PER_SENDER, EmailServiceLoadTest::getMail);
+
+        //Assert
+        assertThat(report.getFailures(), is(0L));
+        assertThat(sink.getReceivedMessages(), is((long) SENDERS * EMAILS_PER_SENDER));
+    }
+
+    @Test
+    public void sendMailThroughSmtpWithFailures() throws Exception {
+        //Arrange
+        sink = SmtpSinkServer.builder().latencyMillis(1).failureRate(0.2).seed(42L).build();
+        final EmailServiceImpl emailService = emailService(new Properties());
+
+        //Act
+        final EmailLoadTestHarness.Report report = EmailLoadTestHarness.run(emailService, sink,
+                SENDERS, EMAILS_PER_SENDER, EmailServiceLoadTest::getMail);
+
+        //Assert
+        assertThat(report.getFailures(), greaterThan(0L));
+        assertThat(report.getFailures(), is(sink.getRejectedMessages()));
+        assertThat(report.getFailures() + sink.getReceivedMessages(), is((long) SENDERS * EMAILS_PER_SENDER));
+    }
+
+    private EmailServiceImpl emailService(final Properties properties) {
+        final JavaMailSenderImpl javaMailSender = new JavaMailSenderImpl();
+        javaMailSender.setHost("localhost");
+        javaMailSender.setPort(sink.getPort());
+        javaMailSender.setJavaMailProperties(properties);
+        final TemplateService templateService = (template, model) -> "";
+        return new EmailServiceImpl(javaMailSender, templateService, new EmailToMimeMessage(javaMailSender));
+    }
+
+    private static Email getMail(final int id) {
+        try {
+            return EmailImpl.builder()
+                    .from(new InternetAddress("cicero@mala-tempora.currunt", "Marco Tullio Cicerone"))
+                    .to(Lists.newArrayList(new InternetAddress("reader" + id + "@de-rerum.natura")))
+                    .subject("Laelius de amicitia")
+                    .body("Firmamentum autem stabilitatis constantiaeque eius, quam in amicitia quaerimus, fides est.")
+                    .encoding(Charset.forName("UTF-8")).build();
+        } catch (UnsupportedEncodingException | AddressException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -17,14 +17,22 @@
 package open.springboot.mail.service.impl;
 
 
+import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
 import freemarker.template.TemplateException;
+import open.springboot.mail.exceptions.DuplicateEmailException;
+import open.springboot.mail.exceptions.EmailTooLargeException;
+import open.springboot.mail.exceptions.TemplateBudgetExceededException;
 import open.springboot.mail.model.Email;
 import open.springboot.mail.model.ImageType;
 import open.springboot.mail.model.InlinePicture;
+import open.springboot.mail.model.impl.EmailImpl;
 import open.springboot.mail.model.impl.InlinePictureImpl;
 import open.springboot.mail.service.Exception.CannotSendEmailException;
 import open.springboot.mail.service.TemplateService;
+import open.springboot.mail.utils.AdaptiveConcurrencyLimiter;
+import open.springboot.mail.utils.EmailSizeEstimator;
+import open.springboot.mail.utils.EmailSizeLimiter;
 import open.springboot.mail.utils.EmailToMimeMessage;
 import org.junit.Before;
 import org.junit.Rule;
@@ -33,6 +41,7 @@ import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.javamail.JavaMailSender;
 
 import javax.mail.MessagingException;
@@ -45,6 +54,7 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.Map;
 
+import static open.springboot.mail.exceptions.TemplateBudgetExceededException.Budget.OUTPUT_SIZE;
 import static open.springboot.mail.utils.EmailToMimeMessageTest.getSimpleMail;
 import static open.springboot.mail.utils.EmailToMimeMessageTest.validateBcc;
 import static open.springboot.mail.utils.EmailToMimeMessageTest.validateBody;
@@ -55,11 +65,15 @@ import static open.springboot.mail.utils.EmailToMimeMessageTest.validateSubject;
 import static open.springboot.mail.utils.EmailToMimeMessageTest.validateTo;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -178,6 +192,30 @@ public class EmailServiceTest {
         verify(templateService, times(1)).mergeTemplateIntoString(any(String.class), any(Map.class));
     }
 
+    @Test
+    public void sendMailWithTemplateAndSamePictureTwiceShouldEmbedItOnce() throws Exception {
+        //Arrange
+        final Email email = getSimpleMail();
+        final String imageName = "100_percent_free.jpg";
+        when(templateService.mergeTemplateIntoString(any(String.class), any(Map.class)))
+                .thenReturn("<img src=\"logo.jpg\" /><img src=\"footer.jpg\" />");
+
+        final File inlineImageFile = new File(getClass().getClassLoader()
+                .getResource("images" + File.separator + imageName).getFile());
+
+        //Act
+        final MimeMessage sentMessage = mailService.send(email, "never_called.ftl", Maps.newHashMap(),
+                getInlinePicture(inlineImageFile, "logo.jpg"), getInlinePicture(inlineImageFile, "footer.jpg"));
+
+        //Assert
+        final MimeMultipart content = (MimeMultipart) sentMessage.getContent();
+        assertThat(content.getCount(), is(2));
+        final String imageId = ((MimeBodyPart) content.getBodyPart(0)).getContentID();
+        final String cid = "cid:" + imageId.substring(1, imageId.length() - 1);
+        assertThat(content.getBodyPart(1).getContent(),
+                is("<img src=\"" + cid + "\" /><img src=\"" + cid + "\" />"));
+    }
+
     @Test
     public void sendMailWithoutTemplateShouldThrowWhenEmailIsNull() {
         //Arrange
@@ -230,6 +268,128 @@ public class EmailServiceTest {
         mailService.send(email, "never_called.ftl", Maps.newHashMap(), null);
     }
 
+    @Test
+    public void sendMailWithSameIdempotencyKeyShouldBeSentOnce() throws Exception {
+        //Arrange
+        mailService.setIdempotencyStore(new InMemoryIdempotencyStore(10, 60));
+        final EmailImpl email = (EmailImpl) getSimpleMail();
+        email.setIdempotencyKey("reset-password-42");
+
+        //Act
+        final MimeMessage first = mailService.send(email);
+        try {
+            mailService.send(email);
+            fail("DuplicateEmailException expected");
+        } catch (DuplicateEmailException e) {
+            //Assert
+            assertThat(e.getIdempotencyKey(), is("reset-password-42"));
+        }
+        assertThat(first, not(is(nullValue())));
+        verify(javaMailSender, times(1)).send(any(MimeMessage.class));
+    }
+
+    @Test
+    public void sendMailWithIdempotencyKeyShouldBeRetriedAfterFailure() throws Exception {
+        //Arrange
+        mailService.setIdempotencyStore(new InMemoryIdempotencyStore(10, 60));
+        final EmailImpl email = (EmailImpl) getSimpleMail();
+        email.setIdempotencyKey("reset-password-42");
+        doThrow(new MailSendException("Relay unavailable")).doNothing()
+                .when(javaMailSender).send(any(MimeMessage.class));
+        try {
+            mailService.send(email);
+            fail("MailSendException expected");
+        } catch (MailSendException e) {
+            //Expected
+        }
+
+        //Act
+        final MimeMessage retried = mailService.send(email);
+
+        //Assert
+        assertThat(retried, not(is(nullValue())));
+        verify(javaMailSender, times(2)).send(any(MimeMessage.class));
+    }
+
+    @Test
+    public void sendMailTooLargeShouldBeRejectedBeforeBeingBuilt() throws Exception {
+        //Arrange
+        mailService.setEmailSizeLimiter(new EmailSizeLimiter(new EmailSizeEstimator(), 100, false, 0));
+        final Email email = getSimpleMail();
+
+        //Act
+        try {
+            mailService.send(email);
+            fail("EmailTooLargeException expected");
+        } catch (EmailTooLargeException e) {
+            //Assert
+            assertThat(e.getMaximumSize(), is(100L));
+        }
+        verify(javaMailSender, never()).createMimeMessage();
+        verify(javaMailSender, never()).send(any(MimeMessage.class));
+    }
+
+    @Test
+    public void sendMailWithTemplateTooLargeOnceRenderedShouldThrowWithTheSizeAsCause() throws Exception {
+        //Arrange
+        final Email email = getSimpleMail();
+        final EmailSizeEstimator emailSizeEstimator = new EmailSizeEstimator();
+        mailService.setEmailSizeLimiter(new EmailSizeLimiter(emailSizeEstimator,
+                emailSizeEstimator.estimate(email) + 100, false, 0));
+        when(templateService.mergeTemplateIntoString(any(String.class), any(Map.class)))
+                .thenReturn(Strings.repeat("<p>Firmamentum autem stabilitatis</p>", 100));
+
+        //Act
+        try {
+            mailService.send(email, "long.ftl", Maps.newHashMap());
+            fail("CannotSendEmailException expected");
+        } catch (CannotSendEmailException e) {
+            //Assert
+            assertThat(e.getCause(), instanceOf(EmailTooLargeException.class));
+        }
+        verify(javaMailSender, never()).send(any(MimeMessage.class));
+    }
+
+    @Test
+    public void sendMailWithTemplateOverItsBudgetShouldThrowWithTheBudgetAsCause() throws Exception {
+        //Arrange
+        final Email email = getSimpleMail();
+        when(templateService.mergeTemplateIntoString(any(String.class), any(Map.class)))
+                .thenThrow(new TemplateBudgetExceededException("huge.ftl", OUTPUT_SIZE, 100, 101));
+
+        //Act
+        try {
+            mailService.send(email, "huge.ftl", Maps.newHashMap());
+            fail("CannotSendEmailException expected");
+        } catch (CannotSendEmailException e) {
+            //Assert
+            assertThat(e.getCause(), instanceOf(TemplateBudgetExceededException.class));
+            assertThat(((TemplateBudgetExceededException) e.getCause()).getBudget(), is(OUTPUT_SIZE));
+        }
+        verify(javaMailSender, never()).send(any(MimeMessage.class));
+    }
+
+    @Test
+    public void sendMailShouldGoThroughTheConcurrencyLimiter() throws Exception {
+        //Arrange
+        final AdaptiveConcurrencyLimiter concurrencyLimiter = new AdaptiveConcurrencyLimiter(4, 2, 8, 2, 0.5, 0);
+        mailService.setConcurrencyLimiter(concurrencyLimiter);
+        doThrow(new MailSendException("Relay unavailable")).when(javaMailSender).send(any(MimeMessage.class));
+
+        //Act
+        try {
+            mailService.send(getSimpleMail());
+            fail("MailSendException expected");
+        } catch (MailSendException e) {
+            //Expected
+        }
+
+        //Assert
+        assertThat(concurrencyLimiter.getCongestionCount(), is(1L));
+        assertThat(concurrencyLimiter.getLimit(), is(2));
+        assertThat(concurrencyLimiter.getInFlight(), is(0));
+    }
+
     private InlinePicture getInlinePicture(final File inlineImageFile, final String imageName) {
         return InlinePictureImpl.builder()
                 .file(inlineImageFile)
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import open.springboot.mail.service.PersistentIdempotencyStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class InMemoryIdempotencyStoreTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Mock
+    private PersistentIdempotencyStore persistentStore;
+
+    @Test
+    public void testPutIfAbsentRecognizesDuplicates() throws Exception {
+        //Arrange
+        final InMemoryIdempotencyStore store = new InMemoryIdempotencyStore(10, 60);
+
+        //Act
+        final boolean first = store.putIfAbsent("key");
+        final boolean second = store.putIfAbsent("key");
+
+        //Assert
+        assertThat(first, is(true));
+        assertThat(second, is(false));
+        assertThat(store.getDuplicateCount(), is(1L));
+    }
+
+    @Test
+    public void testRemoveAllowsRetry() throws Exception {
+        //Arrange
+        final InMemoryIdempotencyStore store = new InMemoryIdempotencyStore(10, 60);
+        store.putIfAbsent("key");
+
+        //Act
+        store.remove("key");
+
+        //Assert
+        assertThat(store.putIfAbsent("key"), is(true));
+        assertThat(store.getDuplicateCount(), is(0L));
+    }
+
+    @Test
+    public void testStoreIsBounded() throws Exception {
+        //Arrange
+        final InMemoryIdempotencyStore store = new InMemoryIdempotencyStore(2, 60);
+
+        //Act
+        store.putIfAbsent("first");
+        store.putIfAbsent("second");
+        store.putIfAbsent("third");
+
+        //Assert
+        assertThat(store.size(), is(2L));
+    }
+
+    @Test
+    public void testPersistentStoreIsConsultedOnMiss() throws Exception {
+        //Arrange
+        final InMemoryIdempotencyStore store = new InMemoryIdempotencyStore(10, 60);
+        store.setPersistentStore(persistentStore);
+        when(persistentStore.putIfAbsent("key")).thenReturn(false);
+
+        //Act
+        final boolean first = store.putIfAbsent("key");
+        final boolean second = store.putIfAbsent("key");
+
+        //Assert
+        assertThat(first, is(false));
+        assertThat(second, is(false));
+        assertThat(store.getDuplicateCount(), is(2L));
+        verify(persistentStore, times(1)).putIfAbsent("key");
+    }
+
+    @Test
+    public void testMaximumSizeMustBePositive() throws Exception {
+        //Arrange
+        expectedException.expect(IllegalArgumentException.class);
+
+        //Act
+        new InMemoryIdempotencyStore(0, 60);
+    }
+
+}
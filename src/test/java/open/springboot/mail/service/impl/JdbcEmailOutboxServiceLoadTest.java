@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import testutils.RecordingEmailService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static open.springboot.mail.service.impl.JdbcEmailOutboxServiceTest.getMail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static testutils.RecordingEmailService.await;
+
+/**
+ * Drains a pre-filled outbox stored in an embedded H2 database with 1, 4 and 8 concurrent dispatchers, each one
+ * acting as a node, with a transport emulated to take one millisecond per email.
+ * <p/>
+ * Raise the number of emails to compare changes of the claiming strategy.
+ */
+@Slf4j
+public class JdbcEmailOutboxServiceLoadTest {
+
+    private static final int EMAILS = 2_000;
+
+    private static final long LATENCY_MICROS = 1_000;
+
+    @Test
+    public void drainOutboxWithConcurrentDispatchers() throws Exception {
+        //Act
+        final double one = emailsPerSecond(1);
+        final double four = emailsPerSecond(4);
+        final double eight = emailsPerSecond(8);
+
+        //Assert
+        log.info("Outbox throughput: 1 dispatcher {} emails/s, 4 dispatchers {} emails/s, 8 dispatchers {} emails/s",
+                Math.round(one), Math.round(four), Math.round(eight));
+        assertThat(four, greaterThan(one));
+        assertThat(eight, greaterThan(one));
+    }
+
+    private static double emailsPerSecond(final int dispatchers) throws Exception {
+        final EmbeddedDatabase database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2)
+                .setName("outbox-" + UUID.randomUUID()).build();
+        final RecordingEmailService emailService = new RecordingEmailService();
+        emailService.setLatencyMicros(LATENCY_MICROS);
+        try {
+            final JdbcEmailOutboxService storing = new JdbcEmailOutboxService(database, emailService, "storing", 0,
+                    64, 100, EMAILS, 300, 20, 5, 0, 30_000, true);
+            final List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < EMAILS; i++) {
+                futures.add(storing.enqueue(getMail("Email " + i)));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+            storing.shutdown();
+
+            final long start = System.nanoTime();
+            final List<JdbcEmailOutboxService> nodes = new ArrayList<>();
+            for (int i = 0; i < dispatchers; i++) {
+                nodes.add(new JdbcEmailOutboxService(database, emailService, "node-" + i, 1,
+                        64, 100, EMAILS, 300, 20, 5, 0, 30_000, true));
+            }
+            assertThat(await(() -> emailService.getSentSubjects().size() >= EMAILS, 60_000), is(true));
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            for (final JdbcEmailOutboxService node : nodes) {
+                node.shutdown();
+            }
+            assertThat(emailService.getSentSubjects().elementSet().size(), is(EMAILS));
+            assertThat(emailService.getSentSubjects().size(), is(EMAILS));
+            return EMAILS / seconds;
+        } finally {
+            database.shutdown();
+        }
+    }
+
+}
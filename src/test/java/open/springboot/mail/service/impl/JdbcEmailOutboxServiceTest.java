@@ -0,0 +1,255 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.ImageType;
+import open.springboot.mail.model.InlinePicture;
+import open.springboot.mail.model.impl.EmailAttachmentImpl;
+import open.springboot.mail.model.impl.EmailImpl;
+import open.springboot.mail.model.impl.InlinePictureImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import testutils.RecordingEmailService;
+
+import javax.mail.internet.InternetAddress;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static testutils.RecordingEmailService.await;
+
+public class JdbcEmailOutboxServiceTest {
+
+    private static final int PARTITIONS = 16;
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<JdbcEmailOutboxService> outboxes = new ArrayList<>();
+
+    private final RecordingEmailService emailService = new RecordingEmailService();
+
+    private EmbeddedDatabase database;
+
+    @Before
+    public void setUp() {
+        database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2)
+                .setName("outbox-" + UUID.randomUUID()).build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (final JdbcEmailOutboxService outbox : outboxes) {
+            outbox.shutdown();
+        }
+        database.shutdown();
+    }
+
+    @Test
+    public void testStoredEmailsAreSentOnce() throws Exception {
+        //Arrange
+        final JdbcEmailOutboxService outbox = outbox("node", 2, 5);
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        //Act
+        for (int i = 0; i < 100; i++) {
+            futures.add(outbox.enqueue(getMail("Email " + i)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+        //Assert
+        assertThat(outbox.getStoredCount(), is(100L));
+        assertThat(await(() -> outbox.getSentCount() == 100, TIMEOUT_MILLIS), is(true));
+        assertThat(emailService.getSentSubjects().size(), is(100));
+        assertThat(emailService.getSentSubjects().elementSet().size(), is(100));
+        assertThat(await(() -> countRows() == 0, TIMEOUT_MILLIS), is(true));
+    }
+
+    @Test
+    public void testTemplateEmailsAreStoredWithTheirModel() throws Exception {
+        //Arrange
+        final JdbcEmailOutboxService outbox = outbox("node", 1, 5);
+        final Map<String, Object> model = ImmutableMap.of("name", "Titus", "age", 42);
+        final File file = temporaryFolder.newFile("logo.png");
+        final byte[] content = "a picture".getBytes(Charset.forName("UTF-8"));
+        Files.write(file.toPath(), content);
+        final InlinePicture picture = InlinePictureImpl.builder().imageType(ImageType.PNG)
+                .file(file).templateName("images/logo.png").build();
+
+        //Act
+        outbox.enqueue(getMail("Template"), "email_template.ftl", model, picture).join();
+        assertThat(file.delete(), is(true));
+
+        //Assert
+        assertThat(await(() -> outbox.getSentCount() == 1, TIMEOUT_MILLIS), is(true));
+        final Object[] send = emailService.getTemplateSends().get(0);
+        assertThat(send[0], is("email_template.ftl"));
+        assertThat(send[1], is(model));
+        final InlinePicture sentPicture = ((InlinePicture[]) send[2])[0];
+        assertThat(sentPicture.getImageType(), is(ImageType.PNG));
+        assertThat(sentPicture.getTemplateName(), is("images/logo.png"));
+        assertThat(sentPicture.getFile().getName(), is("logo.png"));
+        assertThat(Files.readAllBytes(sentPicture.getFile().toPath()), is(content));
+    }
+
+    @Test
+    public void testEmailsAreStoredWithTheirAttachments() throws Exception {
+        //Arrange
+        final JdbcEmailOutboxService outbox = outbox("node", 1, 5);
+        final EmailAttachmentImpl attachment = EmailAttachmentImpl.builder().attachmentName("de-amicitia.txt")
+                .attachmentData("O tempora, o mores!".getBytes(Charset.forName("UTF-8")))
+                .mediaType(MediaType.TEXT_PLAIN).build();
+        final EmailImpl email = (EmailImpl) getMail("Attachment");
+        email.setAttachments(Lists.newArrayList(attachment));
+
+        //Act
+        outbox.enqueue(email).join();
+
+        //Assert
+        assertThat(await(() -> outbox.getSentCount() == 1, TIMEOUT_MILLIS), is(true));
+        assertThat(new ArrayList<>(emailService.getSentEmails().get(0).getAttachments()), contains(attachment));
+    }
+
+    @Test
+    public void testShutdownStopsWaitingAtTheDrainDeadline() throws Exception {
+        //Arrange
+        emailService.setLatencyMicros(TimeUnit.SECONDS.toMicros(3));
+        final JdbcEmailOutboxService outbox = new JdbcEmailOutboxService(database, emailService, "node", 1,
+                PARTITIONS, 50, 10_000, 300, 10, 5, 0, 100, true);
+        outbox.enqueue(getMail("Slow")).join();
+        Thread.sleep(200);
+
+        //Act
+        final long start = System.nanoTime();
+        outbox.shutdown();
+
+        //Assert
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(2_000L));
+        assertThat(await(() -> outbox.getSentCount() == 1, TIMEOUT_MILLIS), is(true));
+    }
+
+    @Test
+    public void testFailedEmailsAreRetriedThenKept() throws Exception {
+        //Arrange
+        emailService.setFailing(true);
+        final JdbcEmailOutboxService outbox = outbox("node", 1, 2);
+
+        //Act
+        outbox.enqueue(getMail("Failing")).join();
+
+        //Assert
+        assertThat(await(() -> outbox.getFailedCount() == 1, TIMEOUT_MILLIS), is(true));
+        assertThat(outbox.getRetriedCount(), is(1L));
+        assertThat(outbox.getSentCount(), is(0L));
+        assertThat(new JdbcTemplate(database).queryForObject(
+                "SELECT COUNT(*) FROM email_outbox WHERE failed = TRUE AND attempts = 2", Integer.class), is(1));
+    }
+
+    @Test
+    public void testPartitionsAreRebalancedWhenNodesComeAndGo() throws Exception {
+        //Arrange
+        final JdbcEmailOutboxService first = outbox("first", 1, 5);
+        assertThat(await(() -> first.getOwnedPartitions().size() == PARTITIONS, TIMEOUT_MILLIS), is(true));
+
+        //Act
+        final JdbcEmailOutboxService second = outbox("second", 1, 5);
+
+        //Assert
+        assertThat(await(() -> first.getOwnedPartitions().size() == PARTITIONS / 2
+                && second.getOwnedPartitions().size() == PARTITIONS / 2, TIMEOUT_MILLIS), is(true));
+        final Set<Integer> shared = new HashSet<>(first.getOwnedPartitions());
+        shared.retainAll(second.getOwnedPartitions());
+        assertThat(shared, is(empty()));
+
+        //Act
+        first.shutdown();
+
+        //Assert
+        assertThat(await(() -> second.getOwnedPartitions().size() == PARTITIONS, TIMEOUT_MILLIS), is(true));
+    }
+
+    @Test
+    public void testEmailsStoredByANodeAreSentByTheOthers() throws Exception {
+        //Arrange
+        final JdbcEmailOutboxService storingOnly = outbox("storing", 0, 5);
+        final JdbcEmailOutboxService dispatching = outbox("dispatching", 2, 5);
+
+        //Act
+        for (int i = 0; i < 20; i++) {
+            storingOnly.enqueue(getMail("Email " + i)).join();
+        }
+
+        //Assert
+        assertThat(await(() -> dispatching.getSentCount() == 20, TIMEOUT_MILLIS), is(true));
+        assertThat(storingOnly.getOwnedPartitions(), hasSize(0));
+        assertThat(storingOnly.getSentCount(), is(0L));
+    }
+
+    private JdbcEmailOutboxService outbox(final String nodeId, final int dispatchers, final int maxAttempts) {
+        final JdbcEmailOutboxService outbox = new JdbcEmailOutboxService(database, emailService, nodeId, dispatchers,
+                PARTITIONS, 50, 10_000, 300, 10, maxAttempts, 0, 5_000, true);
+        outboxes.add(outbox);
+        return outbox;
+    }
+
+    private int countRows() {
+        return new JdbcTemplate(database).queryForObject("SELECT COUNT(*) FROM email_outbox", Integer.class);
+    }
+
+    static Email getMail(final String subject) {
+        try {
+            return EmailImpl.builder()
+                    .from(new InternetAddress("cicero@mala-tempora.currunt"))
+                    .to(Lists.newArrayList(new InternetAddress("titus@de-rerum.natura")))
+                    .subject(subject)
+                    .body("Firmamentum autem stabilitatis constantiaeque eius, quam in amicitia quaerimus, fides est.")
+                    .encoding(Charset.forName("UTF-8")).build();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.ScheduledEmail;
+import open.springboot.mail.model.impl.EmailAttachmentImpl;
+import open.springboot.mail.model.impl.EmailImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static open.springboot.mail.utils.EmailToMimeMessageTest.getSimpleMail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+public class JdbcScheduledEmailStoreTest {
+
+    private EmbeddedDatabase database;
+
+    @Before
+    public void setUp() {
+        database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2)
+                .setName("scheduler-" + UUID.randomUUID()).build();
+    }
+
+    @After
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    public void testSavedEmailsAreFoundByAnotherStore() throws Exception {
+        //Arrange
+        final Email email = getSimpleMail();
+        new JdbcScheduledEmailStore(database, true).save(new ScheduledEmail("later", email, new Date(2_000),
+                "email_template.ftl", ImmutableMap.of("name", "Titus"), null));
+        new JdbcScheduledEmailStore(database, true).save(new ScheduledEmail("sooner", email, new Date(1_000),
+                null, null, null));
+
+        //Act
+        final List<ScheduledEmail> restored = new ArrayList<>(new JdbcScheduledEmailStore(database, true).findAll());
+
+        //Assert
+        assertThat(restored.size(), is(2));
+        assertThat(restored.get(0).getId(), is("sooner"));
+        final ScheduledEmail later = restored.get(1);
+        assertThat(later.getSendAt(), is(new Date(2_000)));
+        assertThat(later.getTemplate(), is("email_template.ftl"));
+        assertThat(later.getModelObject().get("name"), is("Titus"));
+        assertThat(later.getEmail().getSubject(), is(email.getSubject()));
+        assertThat(later.getEmail().getTo().iterator().next(), is(email.getTo().iterator().next()));
+    }
+
+    @Test
+    public void testSavedEmailsKeepTheirAttachments() throws Exception {
+        //Arrange
+        final EmailAttachmentImpl attachment = EmailAttachmentImpl.builder().attachmentName("de-amicitia.txt")
+                .attachmentData("O tempora, o mores!".getBytes(Charset.forName("UTF-8")))
+                .mediaType(MediaType.TEXT_PLAIN).build();
+        final EmailImpl email = (EmailImpl) getSimpleMail();
+        email.setAttachments(Lists.newArrayList(attachment));
+        new JdbcScheduledEmailStore(database, true).save(new ScheduledEmail("attached", email, new Date(1_000),
+                null, null, null));
+
+        //Act
+        final List<ScheduledEmail> restored = new ArrayList<>(new JdbcScheduledEmailStore(database, true).findAll());
+
+        //Assert
+        assertThat(restored.size(), is(1));
+        assertThat(new ArrayList<>(restored.get(0).getEmail().getAttachments()), contains(attachment));
+    }
+
+    @Test
+    public void testDeletedEmailsAreNotFound() throws Exception {
+        //Arrange
+        final JdbcScheduledEmailStore store = new JdbcScheduledEmailStore(database, true);
+        store.save(new ScheduledEmail("sent", getSimpleMail(), new Date(1_000), null, null, null));
+
+        //Act
+        store.delete("sent");
+
+        //Assert
+        assertThat(store.findAll().isEmpty(), is(true));
+    }
+
+}
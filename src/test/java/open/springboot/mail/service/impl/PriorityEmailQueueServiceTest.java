@@ -0,0 +1,302 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import com.google.common.collect.Maps;
+import open.springboot.mail.model.EmailPriority;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.impl.EmailImpl;
+import open.springboot.mail.service.EmailOutboxService;
+import open.springboot.mail.service.EmailService;
+import open.springboot.mail.service.Exception.CannotSendEmailException;
+import open.springboot.mail.service.LaneStatistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static open.springboot.mail.utils.EmailToMimeMessageTest.getSimpleMail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PriorityEmailQueueServiceTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Mock
+    private EmailService emailService;
+
+    @Mock
+    private EmailOutboxService emailOutboxService;
+
+    private PriorityEmailQueueService queueService;
+
+    private final CountDownLatch bulkReleased = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        when(emailService.send(any(EmailImpl.class))).thenAnswer(invocation -> {
+            final EmailImpl email = (EmailImpl) invocation.getArguments()[0];
+            if (email.getPriority() == EmailPriority.BULK) {
+                bulkReleased.await();
+            }
+            return new MimeMessage((Session) null);
+        });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        bulkReleased.countDown();
+        if (queueService != null) {
+            queueService.shutdown();
+        }
+    }
+
+    @Test
+    public void testTransactionalEmailsAreNotStarvedByBulkEmails() throws Exception {
+        //Arrange
+        queueService = new PriorityEmailQueueService(emailService, 1, 10, 1000, 2, 1000, 1000);
+        final List<CompletableFuture<MimeMessage>> bulkFutures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            bulkFutures.add(queueService.enqueue(getMail(EmailPriority.BULK)));
+        }
+
+        //Act
+        final MimeMessage sent = queueService.enqueue(getMail(EmailPriority.TRANSACTIONAL)).get(5, TimeUnit.SECONDS);
+
+        //Assert
+        assertThat(sent, not(is(nullValue())));
+        assertThat(bulkFutures.stream().anyMatch(CompletableFuture::isDone), is(false));
+        final LaneStatistics bulkStatistics = queueService.getStatistics(EmailPriority.BULK);
+        assertThat(bulkStatistics.getSubmitted(), is(100L));
+        assertThat(bulkStatistics.getQueueDepth(), is(98));
+        final LaneStatistics transactionalStatistics = queueService.getStatistics(EmailPriority.TRANSACTIONAL);
+        assertThat(transactionalStatistics.getSent(), is(1L));
+        assertThat(transactionalStatistics.getQueueDepth(), is(0));
+    }
+
+    @Test
+    public void testBulkEmailsAreSentWhenCapacityIsLeft() throws Exception {
+        //Arrange
+        queueService = new PriorityEmailQueueService(emailService, 1, 10, 1000, 2, 1000, 1000);
+        bulkReleased.countDown();
+
+        //Act
+        final MimeMessage sent = queueService.enqueue(getMail(EmailPriority.BULK)).get(5, TimeUnit.SECONDS);
+
+        //Assert
+        assertThat(sent, not(is(nullValue())));
+        assertThat(queueService.getStatistics(EmailPriority.BULK).getSent(), is(1L));
+    }
+
+    @Test
+    public void testEmailsWithoutPriorityAreQueuedAsBulk() throws Exception {
+        //Arrange
+        queueService = new PriorityEmailQueueService(emailService, 1, 10, 1000, 1, 10, 1000);
+        bulkReleased.countDown();
+
+        //Act
+        queueService.enqueue(getMail(null)).get(5, TimeUnit.SECONDS);
+
+        //Assert
+        assertThat(queueService.getStatistics(EmailPriority.BULK).getSent(), is(1L));
+        assertThat(queueService.getStatistics(EmailPriority.TRANSACTIONAL).getSubmitted(), is(0L));
+    }
+
+    @Test
+    public void testEnqueueWithTemplate() throws Exception {
+        //Arrange
+        queueService = new PriorityEmailQueueService(emailService, 1, 10, 1000, 1, 10, 1000);
+        final MimeMessage mimeMessage = new MimeMessage((Session) null);
+        when(emailService.send(any(EmailImpl.class), anyString(), anyMapOf(String.class, Object.class))).thenReturn(mimeMessage);
+
+        //Act
+        final MimeMessage sent = queueService.enqueue(getMail(EmailPriority.TRANSACTIONAL),
+                "never_called.ftl", Maps.newHashMap()).get(5, TimeUnit.SECONDS);
+
+        //Assert
+        assertThat(sent, is(mimeMessage));
+    }
+
+    @Test
+    public void testFailureIsReportedThroughTheFuture() throws Exception {
+        //Arrange
+        queueService = new PriorityEmailQueueService(emailService, 1, 10, 1000, 1, 10, 1000);
+        when(emailService.send(any(EmailImpl.class), anyString(), anyMapOf(String.class, Object.class)))
+                .thenThrow(new CannotSendEmailException("Broken template"));
+
+        //Act
+        try {
+            queueService.enqueue(getMail(EmailPriority.TRANSACTIONAL),
+                    "never_called.ftl", Maps.newHashMap()).get(5, TimeUnit.SECONDS);
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            //Assert
+            assertThat(e.getCause(), instanceOf(CannotSendEmailException.class));
+        }
+        assertThat(queueService.getStatistics(EmailPriority.TRANSACTIONAL).getFailed(), is(1L));
+    }
+
+    @Test
+    public void testFullLaneRejectsEmails() throws Exception {
+        //Arrange
+        queueService = new PriorityEmailQueueService(emailService, 1, 10, 1000, 1, 1, 1000);
+        expectedException.expect(RejectedExecutionException.class);
+
+        //Act
+        for (int i = 0; i < 10; i++) {
+            queueService.enqueue(getMail(EmailPriority.BULK));
+        }
+    }
+
+    @Test
+    public void testShutdownDrainsQueuedEmails() throws Exception {
+        //Arrange
+        queueService = new PriorityEmailQueueService(emailService, 1, 10, 1000, 1, 10, 5000);
+        final List<CompletableFuture<MimeMessage>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(queueService.enqueue(getMail(EmailPriority.BULK)));
+        }
+        new Thread(() -> {
+            sleep(100);
+            bulkReleased.countDown();
+        }).start();
+
+        //Act
+        queueService.shutdown();
+
+        //Assert
+        assertThat(futures.stream().allMatch(future -> future.isDone() && !future.isCancelled()), is(true));
+        final LaneStatistics statistics = queueService.getStatistics(EmailPriority.BULK);
+        assertThat(statistics.getDrained(), is(10L));
+        assertThat(statistics.getSent(), is(10L));
+        assertThat(statistics.getAbandoned(), is(0L));
+    }
+
+    @Test
+    public void testShutdownStoresEmailsLeftAfterTheDeadline() throws Exception {
+        //Arrange
+        queueService = new PriorityEmailQueueService(emailService, 1, 10, 1000, 1, 10, 100);
+        queueService.setEmailOutboxService(emailOutboxService);
+        when(emailOutboxService.enqueue(any(Email.class))).thenReturn(CompletableFuture.completedFuture(null));
+        final List<CompletableFuture<MimeMessage>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(queueService.enqueue(getMail(EmailPriority.BULK)));
+        }
+
+        //Act
+        queueService.shutdown();
+
+        //Assert
+        //The only bulk worker is stuck on the first email
+        assertThat(futures.stream().filter(CompletableFuture::isCancelled).count(), is(9L));
+        final LaneStatistics statistics = queueService.getStatistics(EmailPriority.BULK);
+        assertThat(statistics.getAbandoned(), is(9L));
+        assertThat(statistics.getPersisted(), is(9L));
+        verify(emailOutboxService, times(9)).enqueue(any(Email.class));
+    }
+
+    @Test
+    public void testEmailsAreRejectedOnceShutDown() throws Exception {
+        //Arrange
+        queueService = new PriorityEmailQueueService(emailService, 1, 10, 1000, 1, 10, 1000);
+        queueService.shutdown();
+        expectedException.expect(RejectedExecutionException.class);
+
+        //Act
+        queueService.enqueue(getMail(EmailPriority.TRANSACTIONAL));
+    }
+
+    @Test
+    public void testNoEmailIsLeftInTheLanesWhenShuttingDownWhileEnqueuing() throws Exception {
+        //Arrange
+        queueService = new PriorityEmailQueueService(emailService, 2, 100_000, 1000, 1, 10, 1000);
+        final Queue<CompletableFuture<MimeMessage>> futures = new ConcurrentLinkedQueue<>();
+        final List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            producers.add(new Thread(() -> {
+                while (true) {
+                    try {
+                        futures.add(queueService.enqueue(getMail(EmailPriority.TRANSACTIONAL)));
+                    } catch (RejectedExecutionException e) {
+                        if (!queueService.isAccepting()) {
+                            return;
+                        }
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }));
+        }
+        producers.forEach(Thread::start);
+        sleep(50);
+
+        //Act
+        queueService.shutdown();
+        for (final Thread producer : producers) {
+            producer.join();
+        }
+
+        //Assert
+        assertThat(futures.isEmpty(), is(false));
+        assertThat(futures.stream().allMatch(CompletableFuture::isDone), is(true));
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static EmailImpl getMail(final EmailPriority priority) throws Exception {
+        final EmailImpl email = (EmailImpl) getSimpleMail();
+        email.setPriority(priority);
+        return email;
+    }
+
+}
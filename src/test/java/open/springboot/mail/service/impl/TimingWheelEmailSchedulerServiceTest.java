@@ -0,0 +1,262 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.service.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import open.springboot.mail.exceptions.DuplicateEmailException;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.ScheduledEmail;
+import open.springboot.mail.service.EmailQueueService;
+import open.springboot.mail.service.EmailService;
+import open.springboot.mail.service.ScheduledEmailStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.MailSendException;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import static open.springboot.mail.utils.EmailToMimeMessageTest.getSimpleMail;
+import static testutils.RecordingEmailService.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TimingWheelEmailSchedulerServiceTest {
+
+    @Mock
+    private EmailService emailService;
+
+    @Mock
+    private EmailQueueService emailQueueService;
+
+    @Mock
+    private ScheduledEmailStore scheduledEmailStore;
+
+    private TimingWheelEmailSchedulerService schedulerService;
+
+    @Before
+    public void setUp() {
+        schedulerService = new TimingWheelEmailSchedulerService(emailService, 10, 64, 10, 2, 1_000);
+        schedulerService.setScheduledEmailStore(scheduledEmailStore);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        schedulerService.shutdown();
+    }
+
+    @Test
+    public void testEmailIsSentOnlyWhenDue() throws Exception {
+        //Arrange
+        final Email email = getSimpleMail();
+        final long sendAt = System.currentTimeMillis() + 60_000;
+        schedulerService.schedule(email, new Date(sendAt));
+
+        //Act
+        schedulerService.tick(sendAt - 1_000);
+        verify(emailService, never()).send(email);
+        schedulerService.tick(sendAt + 1_000);
+
+        //Assert
+        verify(emailService, timeout(1_000)).send(email);
+        assertThat(schedulerService.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void testScheduledEmailIsStoredUntilSent() throws Exception {
+        //Arrange
+        final Email email = getSimpleMail();
+        final long sendAt = System.currentTimeMillis() + 60_000;
+
+        //Act
+        final String id = schedulerService.schedule(email, new Date(sendAt), "never_called.ftl", Maps.newHashMap());
+        schedulerService.tick(sendAt + 1_000);
+
+        //Assert
+        final ArgumentCaptor<ScheduledEmail> scheduledEmail = ArgumentCaptor.forClass(ScheduledEmail.class);
+        verify(scheduledEmailStore).save(scheduledEmail.capture());
+        assertThat(scheduledEmail.getValue().getId(), is(id));
+        verify(emailService, timeout(1_000)).send(any(Email.class), anyString(), any(Map.class));
+        verify(scheduledEmailStore, timeout(1_000)).delete(id);
+    }
+
+    @Test
+    public void testCancelledEmailIsNotSent() throws Exception {
+        //Arrange
+        final Email email = getSimpleMail();
+        final long sendAt = System.currentTimeMillis() + 60_000;
+        final String id = schedulerService.schedule(email, new Date(sendAt));
+
+        //Act
+        final boolean cancelled = schedulerService.cancel(id);
+        schedulerService.tick(sendAt + 1_000);
+
+        //Assert
+        assertThat(cancelled, is(true));
+        assertThat(schedulerService.cancel(id), is(false));
+        verify(scheduledEmailStore).delete(id);
+        Thread.sleep(100);
+        verify(emailService, never()).send(email);
+    }
+
+    @Test
+    public void testStoredEmailsAreRestoredAtStartup() throws Exception {
+        //Arrange
+        final Email email = getSimpleMail();
+        when(scheduledEmailStore.findAll()).thenReturn(ImmutableList.of(
+                new ScheduledEmail("restored", email, new Date(0), null, null, null)));
+
+        //Act
+        schedulerService.start();
+
+        //Assert
+        verify(emailService, timeout(1_000)).send(email);
+        verify(scheduledEmailStore, timeout(1_000)).delete("restored");
+    }
+
+    @Test
+    public void testDueEmailsAreHandedToTheQueue() throws Exception {
+        //Arrange
+        schedulerService.setEmailQueueService(emailQueueService);
+        final Email email = getSimpleMail();
+        when(emailQueueService.enqueue(email))
+                .thenReturn(CompletableFuture.completedFuture(new MimeMessage((Session) null)));
+        final long sendAt = System.currentTimeMillis() + 60_000;
+        final String id = schedulerService.schedule(email, new Date(sendAt));
+
+        //Act
+        schedulerService.tick(sendAt + 1_000);
+
+        //Assert
+        verify(emailQueueService, timeout(1_000)).enqueue(email);
+        verify(scheduledEmailStore, timeout(1_000)).delete(id);
+        verify(emailService, never()).send(email);
+    }
+
+    @Test
+    public void testEmailsRejectedByAShutDownQueueAreKeptInTheStore() throws Exception {
+        //Arrange
+        schedulerService.setEmailQueueService(emailQueueService);
+        final Email email = getSimpleMail();
+        when(emailQueueService.enqueue(email)).thenThrow(new RejectedExecutionException("Shut down"));
+        when(emailQueueService.isAccepting()).thenReturn(false);
+        final long sendAt = System.currentTimeMillis() + 60_000;
+        final String id = schedulerService.schedule(email, new Date(sendAt));
+
+        //Act
+        schedulerService.tick(sendAt + 1_000);
+
+        //Assert
+        verify(emailQueueService, timeout(1_000)).enqueue(email);
+        Thread.sleep(100);
+        assertThat(schedulerService.getPendingCount(), is(0));
+        verify(scheduledEmailStore, never()).delete(id);
+    }
+
+    @Test
+    public void testTransientFailuresAreRetriedUpToTheMaximumAttempts() throws Exception {
+        //Arrange
+        final Email email = getSimpleMail();
+        when(emailService.send(email)).thenThrow(new MailSendException("Connection refused"));
+        final long sendAt = System.currentTimeMillis() + 60_000;
+        final String id = schedulerService.schedule(email, new Date(sendAt));
+
+        //Act
+        schedulerService.tick(sendAt + 1_000);
+        verify(emailService, timeout(1_000)).send(email);
+        assertThat(await(() -> schedulerService.getPendingCount() == 1, 1_000), is(true));
+        verify(scheduledEmailStore, never()).delete(id);
+        schedulerService.tick(sendAt + 2_000);
+
+        //Assert
+        verify(emailService, timeout(1_000).times(2)).send(email);
+        verify(scheduledEmailStore, timeout(1_000)).delete(id);
+        assertThat(schedulerService.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void testPermanentFailuresAreNotRetried() throws Exception {
+        //Arrange
+        final Email email = getSimpleMail();
+        when(emailService.send(email)).thenThrow(new MailParseException("Illegal address"));
+        final long sendAt = System.currentTimeMillis() + 60_000;
+        final String id = schedulerService.schedule(email, new Date(sendAt));
+
+        //Act
+        schedulerService.tick(sendAt + 1_000);
+
+        //Assert
+        verify(scheduledEmailStore, timeout(1_000)).delete(id);
+        verify(emailService, times(1)).send(email);
+        assertThat(schedulerService.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void testDuplicatesAreNotRetried() throws Exception {
+        //Arrange
+        final Email email = getSimpleMail();
+        when(emailService.send(email)).thenThrow(new DuplicateEmailException("reset-password-42"));
+        final long sendAt = System.currentTimeMillis() + 60_000;
+        final String id = schedulerService.schedule(email, new Date(sendAt));
+
+        //Act
+        schedulerService.tick(sendAt + 1_000);
+
+        //Assert
+        verify(scheduledEmailStore, timeout(1_000)).delete(id);
+        verify(emailService, times(1)).send(email);
+        assertThat(schedulerService.getPendingCount(), is(0));
+    }
+
+    @Test
+    public void testDueEmailsAreKeptInTheStoreOnceShutDown() throws Exception {
+        //Arrange
+        final Email email = getSimpleMail();
+        final long sendAt = System.currentTimeMillis() + 60_000;
+        final String id = schedulerService.schedule(email, new Date(sendAt));
+        schedulerService.shutdown();
+
+        //Act
+        schedulerService.tick(sendAt + 1_000);
+
+        //Assert
+        Thread.sleep(100);
+        verify(emailService, never()).send(email);
+        verify(scheduledEmailStore, never()).delete(id);
+    }
+
+}
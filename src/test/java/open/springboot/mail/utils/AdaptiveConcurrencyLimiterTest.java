@@ -0,0 +1,206 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableMap;
+import open.springboot.mail.exceptions.ConcurrencyLimitExceededException;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.MailSendException;
+
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.fail;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testLimitGrowsWhileSendsAreHealthy() throws Exception {
+        //Arrange
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 8, 100, 0.9, 10_000);
+        final List<Future<?>> futures = new ArrayList<>();
+
+        //Act
+        for (int i = 0; i < 400; i++) {
+            futures.add(executor.submit(() -> limiter.run(() -> sleep(1))));
+        }
+        for (final Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+
+        //Assert
+        assertThat(limiter.getLimit(), greaterThan(2));
+        assertThat(limiter.getInFlight(), is(0));
+        assertThat(limiter.getRejectedCount(), is(0L));
+    }
+
+    @Test
+    public void testLimitIsCutOnFailures() throws Exception {
+        //Arrange
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 2, 20, 2, 0.5, 0);
+
+        //Act
+        for (int i = 0; i < 10; i++) {
+            try {
+                limiter.run(() -> {
+                    throw new MailSendException("421 Service not available");
+                });
+                fail("MailSendException expected");
+            } catch (MailSendException e) {
+                //Expected
+            }
+        }
+
+        //Assert
+        assertThat(limiter.getLimit(), is(2));
+        assertThat(limiter.getCongestionCount(), is(10L));
+        assertThat(limiter.getInFlight(), is(0));
+    }
+
+    @Test
+    public void testBrokenMessagesAreNotCongestion() throws Exception {
+        //Arrange
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 2, 20, 2, 0.5, 0);
+
+        //Act
+        try {
+            limiter.run(() -> {
+                throw new MailParseException("Broken address");
+            });
+            fail("MailParseException expected");
+        } catch (MailParseException e) {
+            //Expected
+        }
+
+        //Assert
+        assertThat(limiter.getLimit(), is(10));
+        assertThat(limiter.getCongestionCount(), is(0L));
+    }
+
+    @Test
+    public void testRejectedRecipientsAreNotCongestion() throws Exception {
+        //Arrange
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 2, 20, 2, 0.5, 0);
+        final SendFailedException invalidRecipient = new SendFailedException("Invalid Addresses", null,
+                new Address[0], new Address[0], new Address[]{new InternetAddress("nobody@example.com")});
+
+        //Act
+        for (int i = 0; i < 5; i++) {
+            try {
+                limiter.run(() -> {
+                    throw new MailSendException(ImmutableMap.of(new Object(), invalidRecipient));
+                });
+                fail("MailSendException expected");
+            } catch (MailSendException e) {
+                //Expected
+            }
+        }
+
+        //Assert
+        assertThat(limiter.getLimit(), is(10));
+        assertThat(limiter.getCongestionCount(), is(0L));
+        assertThat(limiter.getInFlight(), is(0));
+    }
+
+    @Test
+    public void testLimitIsCutWhenLatencyRises() throws Exception {
+        //Arrange
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 20, 2, 0.9, 0);
+        for (int i = 0; i < 20; i++) {
+            limiter.run(() -> sleep(1));
+        }
+
+        //Act
+        for (int i = 0; i < 5; i++) {
+            limiter.run(() -> sleep(20));
+        }
+
+        //Assert
+        assertThat(limiter.getLimit(), lessThan(10));
+        assertThat(limiter.getCongestionCount(), greaterThan(0L));
+    }
+
+    @Test
+    public void testSendsWaitForASlotThenAreRejected() throws Exception {
+        //Arrange
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 1, 2, 0.9, 50);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final Future<?> blocking = executor.submit(() -> limiter.run(() -> {
+            started.countDown();
+            await(finish);
+        }));
+        started.await();
+
+        //Act
+        try {
+            limiter.run(() -> fail("No slot expected"));
+            fail("ConcurrencyLimitExceededException expected");
+        } catch (ConcurrencyLimitExceededException e) {
+            //Assert
+            assertThat(e.getLimit(), is(1));
+        }
+        final Future<?> waiting = executor.submit(() -> limiter.run(() -> {
+        }));
+        finish.countDown();
+
+        //Assert
+        blocking.get(5, TimeUnit.SECONDS);
+        waiting.get(5, TimeUnit.SECONDS);
+        assertThat(limiter.getRejectedCount(), is(1L));
+        assertThat(limiter.getInFlight(), is(0));
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import open.springboot.mail.utils.BufferPool.BufferPoolStatistics;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class BufferPoolTest {
+
+    private final BufferPool bufferPool = new BufferPool(1, 8L * 1024 * 1024);
+
+    @Test
+    public void testBorrowRoundsUpToSizeClass() throws Exception {
+        //Act
+        final byte[] small = bufferPool.borrow(10);
+        final byte[] medium = bufferPool.borrow(BufferPool.MIN_BUFFER_SIZE + 1);
+        final byte[] exact = bufferPool.borrow(64 * 1024);
+
+        //Assert
+        assertThat(small.length, is(BufferPool.MIN_BUFFER_SIZE));
+        assertThat(medium.length, is(2 * BufferPool.MIN_BUFFER_SIZE));
+        assertThat(exact.length, is(64 * 1024));
+        assertThat(bufferPool.getStatistics().getOutstandingBytes(), is(
+                (long) BufferPool.MIN_BUFFER_SIZE * 3 + 64 * 1024));
+    }
+
+    @Test
+    public void testReleasedBufferIsReused() throws Exception {
+        //Arrange
+        final byte[] buffer = bufferPool.borrow(20_000);
+        bufferPool.release(buffer);
+
+        //Act
+        final byte[] reused = bufferPool.borrow(30_000);
+
+        //Assert
+        assertThat(reused, is(sameInstance(buffer)));
+        final BufferPoolStatistics statistics = bufferPool.getStatistics();
+        assertThat(statistics.getBorrowed(), is(2L));
+        assertThat(statistics.getHits(), is(1L));
+        assertThat(statistics.getMisses(), is(1L));
+        assertThat(statistics.getHitRate(), is(closeTo(0.5, 0.001)));
+        assertThat(statistics.getOutstandingBytes(), is(32L * 1024));
+        assertThat(statistics.getPooledBytes(), is(0L));
+    }
+
+    @Test
+    public void testOversizedBuffersAreNotRetained() throws Exception {
+        //Arrange
+        final byte[] buffer = bufferPool.borrow(BufferPool.MAX_BUFFER_SIZE + 1);
+
+        //Act
+        bufferPool.release(buffer);
+
+        //Assert
+        assertThat(buffer.length, is(BufferPool.MAX_BUFFER_SIZE + 1));
+        final BufferPoolStatistics statistics = bufferPool.getStatistics();
+        assertThat(statistics.getDiscarded(), is(1L));
+        assertThat(statistics.getOutstandingBytes(), is(0L));
+        assertThat(statistics.getPooledBytes(), is(0L));
+    }
+
+    @Test
+    public void testRetainedMemoryIsBounded() throws Exception {
+        //Arrange
+        final List<byte[]> buffers = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            buffers.add(bufferPool.borrow(BufferPool.MAX_BUFFER_SIZE));
+        }
+
+        //Act
+        buffers.forEach(bufferPool::release);
+
+        //Assert
+        final BufferPoolStatistics statistics = bufferPool.getStatistics();
+        assertThat(statistics.getOutstandingBytes(), is(0L));
+        assertThat(statistics.getPooledBytes(), is((long) BufferPool.MAX_BUFFER_SIZE));
+        assertThat(statistics.getDiscarded(), is(99L));
+    }
+
+    @Test
+    public void testSizeClasses() throws Exception {
+        //Assert
+        assertThat(BufferPool.sizeClassOf(0), is(0));
+        assertThat(BufferPool.sizeClassOf(BufferPool.MIN_BUFFER_SIZE), is(0));
+        assertThat(BufferPool.sizeClassOf(BufferPool.MIN_BUFFER_SIZE + 1), is(1));
+        assertThat(BufferPool.sizeClassOf(BufferPool.MAX_BUFFER_SIZE), is(8));
+    }
+
+}
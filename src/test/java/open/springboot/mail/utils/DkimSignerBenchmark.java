@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.OutputStream;
+import java.security.KeyPairGenerator;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of the DKIM signing, by writing the same message with and without signature.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=open.springboot.mail.utils.DkimSignerBenchmark}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DkimSignerBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    private int bodySize;
+
+    private final OutputStream nullOutputStream = ByteStreams.nullOutputStream();
+
+    private MimeMessage unsigned;
+
+    private MimeMessage signed;
+
+    @Setup
+    public void setUp() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        final DkimSigner signer = new DkimSigner("mala-tempora.currunt", "mail", generator.generateKeyPair().getPrivate(),
+                ImmutableList.of("From", "To", "Subject", "Date", "Message-ID", "MIME-Version", "Content-Type"));
+        final Session session = Session.getInstance(new Properties());
+        unsigned = prepare(new MimeMessage(session));
+        signed = prepare(new DkimSignedMimeMessage(session, signer));
+    }
+
+    @Benchmark
+    public void writeUnsigned() throws Exception {
+        unsigned.writeTo(nullOutputStream);
+    }
+
+    @Benchmark
+    public void writeSigned() throws Exception {
+        signed.writeTo(nullOutputStream);
+    }
+
+    private MimeMessage prepare(final MimeMessage message) throws Exception {
+        message.setFrom(new InternetAddress("titus@lucretius.carus"));
+        message.setRecipient(Message.RecipientType.TO, new InternetAddress("tito@de-rerum.natura"));
+        message.setSubject("Benchmark");
+        final String line = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor.\r\n";
+        message.setText(Strings.repeat(line, bodySize / line.length() + 1).substring(0, bodySize), "UTF-8");
+        message.saveChanges();
+        return message;
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DkimSignerBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableList;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.impl.EmailAttachmentImpl;
+import open.springboot.mail.model.impl.EmailImpl;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+import java.util.Random;
+
+import static open.springboot.mail.utils.EmailToMimeMessageTest.getSimpleMail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+
+public class EmailSizeEstimatorTest {
+
+    private final EmailSizeEstimator emailSizeEstimator = new EmailSizeEstimator();
+
+    private final EmailToMimeMessage emailToMimeMessage = new EmailToMimeMessage(new JavaMailSenderImpl());
+
+    @Test
+    public void testSimpleEmailEstimateIsClose() throws Exception {
+        //Arrange
+        final Email email = getSimpleMail();
+
+        //Act
+        final long estimate = emailSizeEstimator.estimate(email);
+
+        //Assert
+        assertThat((double) estimate, closeTo(actualSize(email), actualSize(email) * 0.25));
+    }
+
+    @Test
+    public void testLargeAttachmentsEstimateIsClose() throws Exception {
+        //Arrange
+        final EmailImpl email = (EmailImpl) getSimpleMail();
+        email.setAttachments(ImmutableList.of(attachment("report.pdf", 1_000_000), attachment("data.bin", 300_000)));
+
+        //Act
+        final long estimate = emailSizeEstimator.estimate(email);
+
+        //Assert
+        assertThat((double) estimate, closeTo(actualSize(email), actualSize(email) * 0.01));
+    }
+
+    @Test
+    public void testNonAsciiBodyEstimateIsClose() throws Exception {
+        //Arrange
+        final EmailImpl email = (EmailImpl) getSimpleMail();
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            body.append("Ἀρχὴ ἥμισυ παντός. ");
+        }
+        email.setBody(body.toString());
+
+        //Act
+        final long estimate = emailSizeEstimator.estimate(email);
+
+        //Assert
+        assertThat((double) estimate, closeTo(actualSize(email), actualSize(email) * 0.05));
+    }
+
+    @Test
+    public void testBase64Size() throws Exception {
+        //Assert
+        assertThat(EmailSizeEstimator.base64Size(0), is(0L));
+        assertThat(EmailSizeEstimator.base64Size(1), is(6L));
+        assertThat(EmailSizeEstimator.base64Size(57), is(78L));
+        assertThat(EmailSizeEstimator.base64Size(58), is(84L));
+    }
+
+    private double actualSize(final Email email) throws Exception {
+        email.setSentAt(new Date());
+        final MimeMessage mimeMessage = emailToMimeMessage.apply(email);
+        mimeMessage.saveChanges();
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        mimeMessage.writeTo(outputStream);
+        return outputStream.size();
+    }
+
+    static EmailAttachmentImpl attachment(final String name, final int size) {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return new EmailAttachmentImpl(name, data, MediaType.APPLICATION_OCTET_STREAM);
+    }
+
+}
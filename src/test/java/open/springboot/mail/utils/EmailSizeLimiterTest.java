@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableList;
+import open.springboot.mail.exceptions.EmailTooLargeException;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.impl.EmailAttachmentImpl;
+import open.springboot.mail.model.impl.EmailImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static open.springboot.mail.utils.EmailSizeEstimatorTest.attachment;
+import static open.springboot.mail.utils.EmailToMimeMessageTest.getSimpleMail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class EmailSizeLimiterTest {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    private final EmailSizeEstimator emailSizeEstimator = new EmailSizeEstimator();
+
+    @Test
+    public void testEmailWithinLimitIsReturnedAsIs() throws Exception {
+        //Arrange
+        final EmailSizeLimiter limiter = new EmailSizeLimiter(emailSizeEstimator, 10_000, true, 0);
+        final Email email = getSimpleMail();
+
+        //Act
+        final Email enforced = limiter.enforce(email);
+
+        //Assert
+        assertThat(enforced, sameInstance(email));
+        assertThat(limiter.getRejectedCount(), is(0L));
+    }
+
+    @Test
+    public void testEmailOverLimitIsRejected() throws Exception {
+        //Arrange
+        final EmailSizeLimiter limiter = new EmailSizeLimiter(emailSizeEstimator, 100_000, false, 0);
+        final EmailImpl email = (EmailImpl) getSimpleMail();
+        email.setAttachments(ImmutableList.of(attachment("large.bin", 100_000)));
+
+        //Assert
+        thrown.expect(EmailTooLargeException.class);
+
+        //Act
+        limiter.enforce(email);
+    }
+
+    @Test
+    public void testLargeAttachmentsAreCompressed() throws Exception {
+        //Arrange
+        final EmailSizeLimiter limiter = new EmailSizeLimiter(emailSizeEstimator, 100_000, true, 10_000);
+        final EmailImpl email = (EmailImpl) getSimpleMail();
+        final byte[] compressible = new byte[200_000];
+        Arrays.fill(compressible, (byte) 'a');
+        email.setAttachments(ImmutableList.of(
+                new EmailAttachmentImpl("log.txt", compressible, MediaType.TEXT_PLAIN),
+                new EmailAttachmentImpl("log.txt", compressible, MediaType.TEXT_PLAIN),
+                attachment("small.bin", 1_000)));
+
+        //Act
+        final Email enforced = limiter.enforce(email);
+
+        //Assert
+        final List<EmailAttachmentImpl> attachments = new ArrayList<>(enforced.getAttachments());
+        assertThat(attachments.size(), is(2));
+        assertThat(attachments.get(0).getAttachmentName(), is("small.bin"));
+        assertThat(attachments.get(1).getAttachmentName(), is(EmailSizeLimiter.ARCHIVE_NAME));
+        assertThat(entries(attachments.get(1).getAttachmentData()), contains("log.txt", "log-1.txt"));
+        assertThat(enforced.getTo(), is(email.getTo()));
+        assertThat(enforced.getSubject(), is(email.getSubject()));
+        assertThat(limiter.getCompressedCount(), is(1L));
+    }
+
+    @Test
+    public void testIncompressibleAttachmentsAreRejected() throws Exception {
+        //Arrange
+        final EmailSizeLimiter limiter = new EmailSizeLimiter(emailSizeEstimator, 100_000, true, 10_000);
+        final EmailImpl email = (EmailImpl) getSimpleMail();
+        email.setAttachments(ImmutableList.of(attachment("random.bin", 200_000)));
+
+        //Assert
+        thrown.expect(EmailTooLargeException.class);
+
+        //Act
+        limiter.enforce(email);
+    }
+
+    private static List<String> entries(final byte[] archive) throws Exception {
+        final List<String> names = new ArrayList<>();
+        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            for (ZipEntry entry = zipInputStream.getNextEntry(); entry != null; entry = zipInputStream.getNextEntry()) {
+                names.add(entry.getName());
+            }
+        }
+        return names;
+    }
+
+}
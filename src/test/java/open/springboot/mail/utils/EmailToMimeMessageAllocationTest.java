@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.sun.management.ThreadMXBean;
+import open.springboot.mail.model.Email;
+import org.junit.Test;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import java.lang.management.ManagementFactory;
+
+import static open.springboot.mail.utils.EmailToMimeMessageTest.getSimpleMail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Guards the bytes allocated per conversion against regressions, see {@linkplain EmailToMimeMessageBenchmark} for the
+ * details.
+ */
+public class EmailToMimeMessageAllocationTest {
+
+    /**
+     * About 6.5KB are allocated per conversion, the MIME message itself being most of them.
+     */
+    private static final long MAXIMUM_BYTES_PER_CONVERSION = 7_500;
+
+    private static final int WARM_UP_CONVERSIONS = 20_000;
+
+    private static final int MEASURED_CONVERSIONS = 10_000;
+
+    @Test
+    public void testAllocatedBytesPerConversion() throws Exception {
+        //Arrange
+        final ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported() && threadMXBean.isThreadAllocatedMemoryEnabled());
+        final EmailToMimeMessage emailToMimeMessage = new EmailToMimeMessage(new JavaMailSenderImpl());
+        final Email email = getSimpleMail();
+        for (int i = 0; i < WARM_UP_CONVERSIONS; i++) {
+            emailToMimeMessage.apply(email);
+        }
+        final long threadId = Thread.currentThread().getId();
+
+        //Act
+        final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_CONVERSIONS; i++) {
+            emailToMimeMessage.apply(email);
+        }
+        final long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        //Assert
+        assertThat(allocated / MEASURED_CONVERSIONS, lessThan(MAXIMUM_BYTES_PER_CONVERSION));
+    }
+
+}
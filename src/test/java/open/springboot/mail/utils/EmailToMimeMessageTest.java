@@ -18,19 +18,23 @@ package open.springboot.mail.utils;
 
 import com.google.common.collect.Lists;
 import open.springboot.mail.model.Email;
+import open.springboot.mail.model.impl.EmailAttachmentImpl;
 import open.springboot.mail.model.impl.EmailImpl;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.http.MediaType;
 import org.springframework.mail.javamail.JavaMailSender;
 
 import javax.mail.Address;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
@@ -38,6 +42,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
 import static java.util.stream.Collectors.toList;
 import static javax.mail.Message.RecipientType.BCC;
@@ -145,4 +150,26 @@ public class EmailToMimeMessageTest {
         verify(javaMailSender, times(1)).createMimeMessage();
     }
 
+    @Test
+    public void sendMailWithAttachmentShouldSelectTheTransferEncodingOfTheText() throws Exception {
+        // Arrange
+        when(javaMailSender.createMimeMessage()).thenReturn(new MimeMessage((Session) null));
+        emailToMimeMessage.setTransferEncodingSelector(
+                new TransferEncodingSelector(javaMailSender, TransferEncodingSelector.EightBitMime.ALWAYS));
+        final EmailImpl email = (EmailImpl) getSimpleMail();
+        email.setBody("Quid est enim, per deos, optabilius sapientia? Cicerone è il più grande oratore.");
+        email.setAttachments(Lists.newArrayList(EmailAttachmentImpl.builder().attachmentName("amicitia.txt")
+                .attachmentData("Laelius".getBytes(UTF_8)).mediaType(MediaType.TEXT_PLAIN).build()));
+
+        // Act
+        final MimeMessage sentMessage = emailToMimeMessage.apply(email);
+        sentMessage.saveChanges();
+
+        // Assert
+        final MimeBodyPart textPart = (MimeBodyPart) ((MimeMultipart) ((MimeMultipart) sentMessage.getContent())
+                .getBodyPart(0).getContent()).getBodyPart(0);
+        assertThat(textPart.getEncoding(), is("8bit"));
+        assertThat(textPart.getContent(), is(email.getBody()));
+    }
+
 }
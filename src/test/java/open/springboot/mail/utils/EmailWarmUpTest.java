@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import testutils.SmtpSinkServer;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class EmailWarmUpTest {
+
+    private SmtpSinkServer sink;
+
+    private EmailWarmUp warmUp;
+
+    @Before
+    public void setUp() throws Exception {
+        sink = SmtpSinkServer.builder().build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (warmUp != null) {
+            warmUp.shutdown();
+        }
+        sink.close();
+    }
+
+    @Test
+    public void shouldOpenTheConnectionsAndBecomeReady() throws Exception {
+        //Arrange
+        warmUp = new EmailWarmUp(sender(sink.getPort()), 3, 10_000);
+
+        //Act
+        warmUp.start();
+
+        //Assert
+        assertThat(warmUp.awaitReady(10, TimeUnit.SECONDS), is(true));
+        assertThat(warmUp.isReady(), is(true));
+        final EmailWarmUp.WarmUpStatistics statistics = warmUp.getStatistics();
+        assertThat(statistics.getOpenedConnections(), is(3L));
+        assertThat(statistics.getFailedConnections(), is(0L));
+        assertThat(sink.getConnections(), is(3L));
+    }
+
+    @Test
+    public void shouldWarmUpEachRelay() throws Exception {
+        //Arrange
+        final LoadBalancingJavaMailSender loadBalancingJavaMailSender = new LoadBalancingJavaMailSender(
+                ImmutableList.of(new LoadBalancingJavaMailSender.Relay("first", sender(sink.getPort()), 1),
+                        new LoadBalancingJavaMailSender.Relay("second", sender(sink.getPort()), 1)),
+                3, 1_000, 0);
+        warmUp = new EmailWarmUp(loadBalancingJavaMailSender, 2, 10_000);
+
+        //Act
+        warmUp.start();
+
+        //Assert
+        assertThat(warmUp.awaitReady(10, TimeUnit.SECONDS), is(true));
+        assertThat(warmUp.getStatistics().getOpenedConnections(), is(4L));
+    }
+
+    @Test
+    public void shouldBecomeReadyEvenWhenTheRelayIsUnreachable() throws Exception {
+        //Arrange
+        final int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        warmUp = new EmailWarmUp(sender(closedPort), 2, 10_000);
+
+        //Act
+        warmUp.start();
+
+        //Assert
+        assertThat(warmUp.awaitReady(10, TimeUnit.SECONDS), is(true));
+        final EmailWarmUp.WarmUpStatistics statistics = warmUp.getStatistics();
+        assertThat(statistics.isReady(), is(true));
+        assertThat(statistics.getOpenedConnections(), is(0L));
+        assertThat(statistics.getFailedConnections(), is(2L));
+    }
+
+    @Test
+    public void shouldBecomeReadyWhenShutDownDuringTheWarmUp() throws Exception {
+        //Arrange
+        try (ServerSocket silentRelay = new ServerSocket(0)) {
+            warmUp = new EmailWarmUp(sender(silentRelay.getLocalPort()), 2, 10_000);
+            warmUp.start();
+            //The relay never greets, the connections hang
+            try (Socket firstConnection = silentRelay.accept(); Socket secondConnection = silentRelay.accept()) {
+
+                //Act
+                warmUp.shutdown();
+
+                //Assert
+                assertThat(warmUp.awaitReady(5, TimeUnit.SECONDS), is(true));
+                assertThat(warmUp.isReady(), is(true));
+            }
+        }
+    }
+
+    @Test
+    public void shouldCountTheConnectionsTimedOutAsFailed() throws Exception {
+        //Arrange
+        try (ServerSocket silentRelay = new ServerSocket(0)) {
+            warmUp = new EmailWarmUp(sender(silentRelay.getLocalPort()), 2, 200);
+
+            //Act
+            warmUp.start();
+            //The relay never greets
+            try (Socket firstConnection = silentRelay.accept(); Socket secondConnection = silentRelay.accept()) {
+
+                //Assert
+                assertThat(warmUp.awaitReady(5, TimeUnit.SECONDS), is(true));
+                assertThat(warmUp.getStatistics().getFailedConnections(), is(2L));
+            }
+        }
+    }
+
+    private static JavaMailSenderImpl sender(final int port) {
+        final JavaMailSenderImpl sender = new JavaMailSenderImpl();
+        sender.setHost("localhost");
+        sender.setPort(port);
+        return sender;
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multiset;
+import freemarker.cache.FileTemplateLoader;
+import freemarker.cache.TemplateLoader;
+import freemarker.template.Configuration;
+import open.springboot.mail.service.impl.FreemarkerTemplateService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.ui.freemarker.FreeMarkerTemplateUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+
+public class FreemarkerTemplateWatcherTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final Multiset<String> lookups = ConcurrentHashMultiset.create();
+
+    private Path directory;
+
+    private Configuration configuration;
+
+    private FreemarkerTemplateWatcher watcher;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = temporaryFolder.getRoot().toPath();
+        write("main.ftl", "<#include \"parts/header.ftl\">, ${name}");
+        write("parts/header.ftl", "<#import \"../macros.ftl\" as m>Ave");
+        write("macros.ftl", "<#macro bold>**</#macro>");
+        write("other.ftl", "Vale, ${name}");
+        configuration = new Configuration(Configuration.VERSION_2_3_23);
+        configuration.setTemplateLoader(new CountingTemplateLoader(new FileTemplateLoader(directory.toFile())));
+        watcher = new FreemarkerTemplateWatcher(configuration, ImmutableList.of(directory));
+        watcher.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        watcher.stop();
+    }
+
+    @Test
+    public void testRendersDoNotCheckTheTemplates() throws Exception {
+        //Arrange
+        render("main.ftl");
+        lookups.clear();
+
+        //Act
+        final String body = render("main.ftl");
+
+        //Assert
+        assertThat(body, is("Ave, Titus"));
+        assertThat(lookups.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testChangedIncludeIsReloaded() throws Exception {
+        //Arrange
+        render("main.ftl");
+        render("other.ftl");
+        lookups.clear();
+
+        //Act
+        write("parts/header.ftl", "Salve");
+        final String body = renderUntilChanged("main.ftl", "Ave, Titus");
+
+        //Assert
+        assertThat(body, is("Salve, Titus"));
+        assertThat(render("other.ftl"), is("Vale, Titus"));
+        assertThat(lookups.count("other.ftl"), is(0));
+    }
+
+    @Test
+    public void testOnlyIncludersAreInvalidated() throws Exception {
+        //Act
+        final Set<String> invalidated = watcher.invalidate("macros.ftl");
+
+        //Assert
+        assertThat(invalidated, containsInAnyOrder("macros.ftl", "parts/header.ftl", "main.ftl"));
+    }
+
+    @Test
+    public void testLocalizedVariantInvalidatesTheTemplate() throws Exception {
+        //Act
+        final Set<String> invalidated = watcher.invalidate("other_it.ftl");
+
+        //Assert
+        assertThat(invalidated, containsInAnyOrder("other_it.ftl", "other.ftl"));
+    }
+
+    @Test
+    public void testIncludesAreResolvedAsFreemarkerDoes() throws Exception {
+        //Assert
+        assertThat(FreemarkerTemplateWatcher.resolve("main.ftl", "parts/header.ftl"), is("parts/header.ftl"));
+        assertThat(FreemarkerTemplateWatcher.resolve("parts/header.ftl", "../macros.ftl"), is("macros.ftl"));
+        assertThat(FreemarkerTemplateWatcher.resolve("parts/header.ftl", "footer.ftl"), is("parts/footer.ftl"));
+        assertThat(FreemarkerTemplateWatcher.resolve("parts/header.ftl", "/macros.ftl"), is("macros.ftl"));
+    }
+
+    private String renderUntilChanged(final String template, final String previous) throws Exception {
+        final long deadline = System.currentTimeMillis() + 5_000;
+        String body = render(template);
+        while (body.equals(previous) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            body = render(template);
+        }
+        return body;
+    }
+
+    private String render(final String template) throws Exception {
+        return FreeMarkerTemplateUtils.processTemplateIntoString(
+                configuration.getTemplate(template, FreemarkerTemplateService.TEMPLATE_ENCODING),
+                ImmutableMap.of("name", "Titus"));
+    }
+
+    private void write(final String name, final String content) throws IOException {
+        final Path file = directory.resolve(name.replace('/', File.separatorChar));
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(UTF_8));
+    }
+
+    /**
+     * Counts the lookups of the templates on disk, without the localized variants.
+     */
+    private class CountingTemplateLoader implements TemplateLoader {
+
+        private final TemplateLoader delegate;
+
+        private CountingTemplateLoader(final TemplateLoader delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object findTemplateSource(final String name) throws IOException {
+            lookups.add(name.replaceAll("_[a-z]{2}(_[A-Z]{2})?\\.", "."));
+            return delegate.findTemplateSource(name);
+        }
+
+        @Override
+        public long getLastModified(final Object templateSource) {
+            return delegate.getLastModified(templateSource);
+        }
+
+        @Override
+        public Reader getReader(final Object templateSource, final String encoding) throws IOException {
+            return delegate.getReader(templateSource, encoding);
+        }
+
+        @Override
+        public void closeTemplateSource(final Object templateSource) throws IOException {
+            delegate.closeTemplateSource(templateSource);
+        }
+    }
+
+}
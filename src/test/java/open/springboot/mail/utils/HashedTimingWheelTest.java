@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+public class HashedTimingWheelTest {
+
+    private static final long START = 1_000_000L;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void testEntriesExpireAtTheirDeadline() throws Exception {
+        //Arrange
+        final HashedTimingWheel<String> timingWheel = new HashedTimingWheel<>(10, TimeUnit.MILLISECONDS, 8, START);
+        timingWheel.schedule("first", START + 25);
+        timingWheel.schedule("second", START + 55);
+
+        //Act
+        final List<String> early = timingWheel.expire(START + 20);
+        final List<String> first = timingWheel.expire(START + 30);
+        final List<String> second = timingWheel.expire(START + 60);
+
+        //Assert
+        assertThat(early, is(empty()));
+        assertThat(first, contains("first"));
+        assertThat(second, contains("second"));
+        assertThat(timingWheel.size(), is(0));
+    }
+
+    @Test
+    public void testEntriesBeyondOneRevolutionWaitForTheirRound() throws Exception {
+        //Arrange
+        final HashedTimingWheel<String> timingWheel = new HashedTimingWheel<>(10, TimeUnit.MILLISECONDS, 4, START);
+        timingWheel.schedule("near", START + 15);
+        timingWheel.schedule("far", START + 15 + 3 * 40);
+
+        //Act
+        final List<String> near = timingWheel.expire(START + 40);
+        final List<String> stillWaiting = timingWheel.expire(START + 120);
+        final List<String> far = timingWheel.expire(START + 140);
+
+        //Assert
+        assertThat(near, contains("near"));
+        assertThat(stillWaiting, is(empty()));
+        assertThat(far, contains("far"));
+    }
+
+    @Test
+    public void testPastDeadlinesExpireAtTheNextTick() throws Exception {
+        //Arrange
+        final HashedTimingWheel<String> timingWheel = new HashedTimingWheel<>(10, TimeUnit.MILLISECONDS, 8, START);
+        timingWheel.expire(START + 100);
+
+        //Act
+        timingWheel.schedule("late", START);
+        final List<String> expired = timingWheel.expire(START + 110);
+
+        //Assert
+        assertThat(expired, contains("late"));
+    }
+
+    @Test
+    public void testCancelledEntriesDoNotExpire() throws Exception {
+        //Arrange
+        final HashedTimingWheel<String> timingWheel = new HashedTimingWheel<>(10, TimeUnit.MILLISECONDS, 8, START);
+        final HashedTimingWheel.Timeout<String> first = timingWheel.schedule("first", START + 25);
+        timingWheel.schedule("second", START + 25);
+        final HashedTimingWheel.Timeout<String> third = timingWheel.schedule("third", START + 25);
+
+        //Act
+        final boolean cancelled = first.cancel();
+        final boolean cancelledTwice = first.cancel();
+        third.cancel();
+        final List<String> expired = timingWheel.expire(START + 30);
+
+        //Assert
+        assertThat(cancelled, is(true));
+        assertThat(cancelledTwice, is(false));
+        assertThat(expired, contains("second"));
+        assertThat(timingWheel.size(), is(0));
+    }
+
+    @Test
+    public void testManyEntries() throws Exception {
+        //Arrange
+        final HashedTimingWheel<Integer> timingWheel = new HashedTimingWheel<>(1, TimeUnit.MILLISECONDS, 512, START);
+        for (int i = 0; i < 1_000_000; i++) {
+            timingWheel.schedule(i, START + i % 10_000);
+        }
+
+        //Act
+        final List<Integer> expired = timingWheel.expire(START + 5_000);
+
+        //Assert
+        assertThat(expired, hasSize(500_000));
+        assertThat(timingWheel.size(), is(500_000));
+        assertThat(timingWheel.expire(START + 5_001), hasSize(100));
+    }
+
+    @Test
+    public void testTickDurationMustBePositive() throws Exception {
+        //Arrange
+        expectedException.expect(IllegalArgumentException.class);
+
+        //Act
+        new HashedTimingWheel<>(0, TimeUnit.MILLISECONDS, 8, START);
+    }
+
+}
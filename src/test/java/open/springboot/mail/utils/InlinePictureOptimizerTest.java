@@ -0,0 +1,185 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import open.springboot.mail.model.ImageType;
+import open.springboot.mail.model.impl.InlinePictureImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class InlinePictureOptimizerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final InlinePictureOptimizer optimizer = new InlinePictureOptimizer(600, 0.7f);
+
+    @Test
+    public void testLargeJpegIsDownscaledAndSmaller() throws Exception {
+        //Arrange
+        final byte[] picture = picture(2400, 1600, "jpg", 1.0f);
+
+        //Act
+        final byte[] optimized = optimizer.optimize(picture, ImageType.JPG);
+
+        //Assert
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(optimized));
+        assertThat(optimized.length, lessThan(picture.length));
+        assertThat(image.getWidth(), is(600));
+        assertThat(image.getHeight(), is(400));
+    }
+
+    @Test
+    public void testLargePngStaysPng() throws Exception {
+        //Arrange
+        final byte[] picture = picture(1800, 1200, "png", null);
+
+        //Act
+        final byte[] optimized = optimizer.optimize(picture, ImageType.PNG);
+
+        //Assert
+        assertThat(optimized.length, lessThan(picture.length));
+        assertThat(ImageIO.getImageReaders(ImageIO.createImageInputStream(new ByteArrayInputStream(optimized)))
+                .next().getFormatName().toLowerCase(), is("png"));
+        assertThat(ImageIO.read(new ByteArrayInputStream(optimized)).getWidth(), is(600));
+    }
+
+    @Test
+    public void testGifAndUndecodablePicturesAreLeftUntouched() throws Exception {
+        //Arrange
+        final byte[] gif = picture(1800, 1200, "gif", null);
+        final byte[] garbage = new byte[]{1, 2, 3, 4};
+
+        //Act
+        final byte[] optimizedGif = optimizer.optimize(gif, ImageType.GIF);
+        final byte[] optimizedGarbage = optimizer.optimize(garbage, ImageType.JPG);
+
+        //Assert
+        assertThat(optimizedGif, sameInstance(gif));
+        assertThat(optimizedGarbage, sameInstance(garbage));
+    }
+
+    @Test
+    public void testRegistryOptimizesEachPictureOnce() throws Exception {
+        //Arrange
+        final InlinePictureOptimizer spiedOptimizer = spy(optimizer);
+        final InlinePictureRegistry registry = new InlinePictureRegistry();
+        registry.setOptimizer(spiedOptimizer);
+        final byte[] picture = picture(2400, 1600, "jpg", 1.0f);
+        final File file = temporaryFolder.newFile("large.jpg");
+        Files.write(file.toPath(), picture);
+        final File copy = temporaryFolder.newFile("copy.jpg");
+        Files.write(copy.toPath(), picture);
+
+        //Act
+        final InlinePictureRegistry.EncodedPicture first = registry.encode(inlinePicture(file));
+        final InlinePictureRegistry.EncodedPicture second = registry.encode(inlinePicture(file));
+        final InlinePictureRegistry.EncodedPicture copied = registry.encode(inlinePicture(copy));
+
+        //Assert
+        verify(spiedOptimizer, times(1)).optimize(any(byte[].class), any(ImageType.class));
+        assertThat(second, sameInstance(first));
+        assertThat(copied, sameInstance(first));
+        assertThat(first.getEncodedSize(), lessThan(Base64.getMimeEncoder().encode(picture).length));
+    }
+
+    @Test
+    public void testDifferentSettingsAreCachedSeparately() throws Exception {
+        //Arrange
+        final InlinePictureRegistry registry = new InlinePictureRegistry();
+        final File file = temporaryFolder.newFile("large.jpg");
+        Files.write(file.toPath(), picture(2400, 1600, "jpg", 1.0f));
+        registry.setOptimizer(optimizer);
+        final String small = registry.encode(inlinePicture(file)).getContentId();
+
+        //Act
+        registry.setOptimizer(new InlinePictureOptimizer(1200, 0.7f));
+        final String large = registry.encode(inlinePicture(file)).getContentId();
+
+        //Assert
+        assertThat(large, not(is(small)));
+    }
+
+    private static InlinePictureImpl inlinePicture(final File file) {
+        return InlinePictureImpl.builder()
+                .file(file)
+                .imageType(ImageType.JPG)
+                .templateName(file.getName())
+                .build();
+    }
+
+    /**
+     * Generate a picture with a gradient, and some noise for lossy formats so that it does not compress too well.
+     */
+    private static byte[] picture(final int width, final int height, final String format, final Float quality)
+            throws Exception {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.ORANGE, width, height, Color.BLUE));
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        final Random random = new Random(42);
+        for (int i = 0; quality != null && i < width * height / 50; i++) {
+            image.setRGB(random.nextInt(width), random.nextInt(height), random.nextInt());
+        }
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        if (quality == null) {
+            ImageIO.write(image, format, outputStream);
+        } else {
+            final ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            try (ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(outputStream)) {
+                writer.setOutput(imageOutputStream);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+        }
+        return outputStream.toByteArray();
+    }
+
+}
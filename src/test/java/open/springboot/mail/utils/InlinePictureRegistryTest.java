@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import open.springboot.mail.model.ImageType;
+import open.springboot.mail.model.InlinePicture;
+import open.springboot.mail.model.impl.InlinePictureImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import testutils.TestUtils;
+
+import javax.mail.internet.MimeBodyPart;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class InlinePictureRegistryTest {
+
+    private final String imagePath = "images" + File.separator + "100_percent_free.jpg";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testIdenticalPicturesShareContentIdAndEncoding() throws Exception {
+        //Arrange
+        final InlinePictureRegistry registry = new InlinePictureRegistry();
+        final File copy = temporaryFolder.newFile("copy.jpg");
+        Files.write(copy.toPath(), TestUtils.loadFileIntoByte(imagePath));
+
+        //Act
+        final InlinePictureRegistry.EncodedPicture original = registry.encode(getInlinePicture(TestUtils.loadFile(imagePath)));
+        final InlinePictureRegistry.EncodedPicture copied = registry.encode(getInlinePicture(copy));
+
+        //Assert
+        assertThat(copied, sameInstance(original));
+        assertThat(registry.getCacheStatistics().hitCount(), is(1L));
+    }
+
+    @Test
+    public void testChangedFileGetsNewContentId() throws Exception {
+        //Arrange
+        final InlinePictureRegistry registry = new InlinePictureRegistry();
+        final File file = temporaryFolder.newFile("changing.jpg");
+        Files.write(file.toPath(), TestUtils.loadFileIntoByte(imagePath));
+        final String before = registry.encode(getInlinePicture(file)).getContentId();
+
+        //Act
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+        file.setLastModified(file.lastModified() + 2_000);
+        final String after = registry.encode(getInlinePicture(file)).getContentId();
+
+        //Assert
+        assertThat(after, not(is(before)));
+    }
+
+    @Test
+    public void testBodyPartIsWrittenFromTheEncodedBytes() throws Exception {
+        //Arrange
+        final InlinePictureRegistry registry = new InlinePictureRegistry();
+        final InlinePictureRegistry.EncodedPicture encodedPicture =
+                registry.encode(getInlinePicture(TestUtils.loadFile(imagePath)));
+
+        //Act
+        final MimeBodyPart bodyPart = encodedPicture.toMimeBodyPart("image/jpeg", "100_percent_free.jpg");
+
+        //Assert
+        assertThat(encodedPicture.getContentId().matches("[0-9a-f]{64}@email-tools"), is(true));
+        assertThat(bodyPart.getContentID(), is('<' + encodedPicture.getContentId() + '>'));
+        assertThat(bodyPart.getDisposition(), is(MimeBodyPart.INLINE));
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        bodyPart.getDataHandler().writeTo(decoded);
+        assertThat(decoded.toByteArray(), is(TestUtils.loadFileIntoByte(imagePath)));
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        bodyPart.writeTo(written);
+        assertThat(written.toString("US-ASCII"), containsString("Content-Transfer-Encoding: base64"));
+    }
+
+    private static InlinePicture getInlinePicture(final File file) {
+        return InlinePictureImpl.builder()
+                .file(file)
+                .imageType(ImageType.JPG)
+                .templateName(file.getName()).build();
+    }
+
+}
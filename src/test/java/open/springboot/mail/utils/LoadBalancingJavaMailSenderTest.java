@@ -0,0 +1,235 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+
+import javax.mail.Address;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LoadBalancingJavaMailSenderTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Mock
+    private JavaMailSender primary;
+
+    @Mock
+    private JavaMailSender secondary;
+
+    private final MimeMessage mimeMessage = new MimeMessage((Session) null);
+
+    private LoadBalancingJavaMailSender sender;
+
+    @Before
+    public void setUp() {
+        sender = new LoadBalancingJavaMailSender(ImmutableList.of(
+                new LoadBalancingJavaMailSender.Relay("primary", primary, 3),
+                new LoadBalancingJavaMailSender.Relay("secondary", secondary, 1)), 2, 60_000, 0);
+    }
+
+    @Test
+    public void testMessagesGoToTheRelayWithTheLowestLoad() throws Exception {
+        //Act
+        sender.send(mimeMessage);
+
+        //Assert
+        verify(primary).send(mimeMessage);
+        verify(secondary, never()).send(any(MimeMessage.class));
+        final List<RelayStatistics> statistics = sender.getStatistics();
+        assertThat(statistics.get(0).getSent(), is(1L));
+        assertThat(statistics.get(0).getOutstanding(), is(0));
+        assertThat(statistics.get(1).getSent(), is(0L));
+    }
+
+    @Test
+    public void testTransientErrorsFailOver() throws Exception {
+        //Arrange
+        doThrow(new MailSendException("Connection refused")).when(primary).send(mimeMessage);
+
+        //Act
+        sender.send(mimeMessage);
+
+        //Assert
+        verify(primary).send(mimeMessage);
+        verify(secondary).send(mimeMessage);
+        assertThat(sender.getStatistics().get(0).getFailed(), is(1L));
+        assertThat(sender.getStatistics().get(1).getSent(), is(1L));
+    }
+
+    @Test
+    public void testErrorsDependingOnTheMessageDoNotFailOver() throws Exception {
+        //Arrange
+        final SendFailedException invalidAddress = new SendFailedException("Invalid address", null, null, null,
+                new Address[]{new InternetAddress("nobody@de-rerum.natura")});
+        doThrow(new MailSendException(ImmutableMap.of(mimeMessage, invalidAddress))).when(primary).send(mimeMessage);
+        expectedException.expect(MailSendException.class);
+
+        //Act
+        try {
+            sender.send(mimeMessage);
+        } finally {
+            //Assert
+            verify(secondary, never()).send(any(MimeMessage.class));
+        }
+    }
+
+    @Test
+    public void testPermanentSmtpRepliesDoNotFailOver() throws Exception {
+        //Arrange
+        final SMTPSendFailedException rejected = new SMTPSendFailedException("DATA", 554, "554 Message rejected",
+                null, null, null, null);
+        doThrow(new MailSendException(ImmutableMap.of(mimeMessage, rejected))).when(primary).send(mimeMessage);
+        expectedException.expect(MailSendException.class);
+
+        //Act
+        try {
+            sender.send(mimeMessage);
+        } finally {
+            //Assert
+            verify(secondary, never()).send(any(MimeMessage.class));
+        }
+    }
+
+    @Test
+    public void testErrorsDependingOnTheMessageDoNotEjectTheRelay() throws Exception {
+        //Arrange
+        doThrow(new MailParseException("Broken message")).when(primary).send(mimeMessage);
+
+        //Act
+        for (int i = 0; i < 3; i++) {
+            try {
+                sender.send(mimeMessage);
+                fail("MailParseException expected");
+            } catch (MailParseException e) {
+                //Expected
+            }
+        }
+
+        //Assert
+        assertThat(sender.getStatistics().get(0).isEjected(), is(false));
+        assertThat(sender.getStatistics().get(0).getFailed(), is(0L));
+        verify(primary, times(3)).send(mimeMessage);
+    }
+
+    @Test
+    public void testParseErrorsDoNotFailOver() throws Exception {
+        //Arrange
+        doThrow(new MailParseException("Broken message")).when(primary).send(mimeMessage);
+        expectedException.expect(MailParseException.class);
+
+        //Act
+        sender.send(mimeMessage);
+    }
+
+    @Test
+    public void testFailingRelayIsEjected() throws Exception {
+        //Arrange
+        doThrow(new MailSendException("Connection refused")).when(primary).send(mimeMessage);
+
+        //Act
+        sender.send(mimeMessage);
+        sender.send(mimeMessage);
+        sender.send(mimeMessage);
+
+        //Assert
+        verify(primary, times(2)).send(mimeMessage);
+        verify(secondary, times(3)).send(mimeMessage);
+        assertThat(sender.getStatistics().get(0).isEjected(), is(true));
+    }
+
+    @Test
+    public void testEjectedRelayIsUsedWhenNoOtherIsLeft() throws Exception {
+        //Arrange
+        doThrow(new MailSendException("Connection refused")).when(primary).send(mimeMessage);
+        doThrow(new MailSendException("Connection refused")).when(secondary).send(mimeMessage);
+        for (int i = 0; i < 2; i++) {
+            try {
+                sender.send(mimeMessage);
+                fail("MailSendException expected");
+            } catch (MailSendException e) {
+                //Expected
+            }
+        }
+
+        //Act
+        try {
+            sender.send(mimeMessage);
+            fail("MailSendException expected");
+        } catch (MailSendException e) {
+            //Assert
+            verify(primary, times(3)).send(mimeMessage);
+            verify(secondary, times(3)).send(mimeMessage);
+        }
+    }
+
+    @Test
+    public void testEjectedRelayIsBroughtBack() throws Exception {
+        //Arrange
+        sender = new LoadBalancingJavaMailSender(ImmutableList.of(
+                new LoadBalancingJavaMailSender.Relay("primary", primary, 3),
+                new LoadBalancingJavaMailSender.Relay("secondary", secondary, 1)), 1, 50, 0);
+        doThrow(new MailSendException("Connection refused")).doNothing().when(primary).send(mimeMessage);
+        sender.send(mimeMessage);
+
+        //Act
+        Thread.sleep(100);
+        sender.send(mimeMessage);
+
+        //Assert
+        verify(primary, times(2)).send(mimeMessage);
+        assertThat(sender.getStatistics().get(0).isEjected(), is(false));
+    }
+
+    @Test
+    public void testAtLeastARelayIsNeeded() throws Exception {
+        //Arrange
+        expectedException.expect(IllegalArgumentException.class);
+
+        //Act
+        new LoadBalancingJavaMailSender(ImmutableList.of(), 1, 1, 1);
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableMap;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import org.junit.Test;
+import org.springframework.mail.MailAuthenticationException;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.MailPreparationException;
+import org.springframework.mail.MailSendException;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.net.ConnectException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class MailFailuresTest {
+
+    private final MimeMessage mimeMessage = new MimeMessage((Session) null);
+
+    @Test
+    public void testMessageErrorsArePermanent() throws Exception {
+        //Arrange
+        final SendFailedException invalidAddress = new SendFailedException("Invalid address", null, null, null,
+                new Address[]{new InternetAddress("nobody@de-rerum.natura")});
+
+        //Act
+        final boolean parse = MailFailures.isPermanent(new MailParseException("Broken message"));
+        final boolean preparation = MailFailures.isPermanent(new MailPreparationException("Broken message"));
+        final boolean recipient = MailFailures.isPermanent(send(invalidAddress));
+
+        //Assert
+        assertThat(parse, is(true));
+        assertThat(preparation, is(true));
+        assertThat(recipient, is(true));
+    }
+
+    @Test
+    public void testRelayErrorsAreNotPermanent() throws Exception {
+        //Arrange
+        final MessagingException connection = new MessagingException("Could not connect", new ConnectException());
+
+        //Act
+        final boolean authentication = MailFailures.isPermanent(new MailAuthenticationException("Bad credentials"));
+        final boolean refused = MailFailures.isPermanent(send(connection));
+        final boolean unknown = MailFailures.isPermanent(new MailSendException("Connection refused"));
+
+        //Assert
+        assertThat(authentication, is(false));
+        assertThat(refused, is(false));
+        assertThat(unknown, is(false));
+    }
+
+    @Test
+    public void testSmtpRepliesArePermanentOnlyWhen5xx() throws Exception {
+        //Arrange
+        final SMTPSendFailedException rejected = new SMTPSendFailedException("DATA", 554, "554 Message rejected",
+                null, null, null, null);
+        final SMTPSendFailedException deferred = new SMTPSendFailedException("DATA", 451, "451 Try again later",
+                null, null, null, null);
+        final SendFailedException greylisted = new SendFailedException("Invalid Addresses",
+                new SMTPAddressFailedException(new InternetAddress("titus@de-rerum.natura"), "RCPT TO", 450,
+                        "450 Greylisted"));
+
+        //Act
+        final boolean permanent = MailFailures.isPermanent(send(rejected));
+        final boolean temporary = MailFailures.isPermanent(send(deferred));
+        final boolean temporaryRecipient = MailFailures.isPermanent(send(greylisted));
+
+        //Assert
+        assertThat(permanent, is(true));
+        assertThat(temporary, is(false));
+        assertThat(temporaryRecipient, is(false));
+    }
+
+    private MailSendException send(final Exception failure) {
+        return new MailSendException(ImmutableMap.of(mimeMessage, failure));
+    }
+
+}
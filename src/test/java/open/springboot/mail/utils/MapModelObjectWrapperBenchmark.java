@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableMap;
+import freemarker.cache.ClassTemplateLoader;
+import freemarker.cache.MultiTemplateLoader;
+import freemarker.cache.StringTemplateLoader;
+import freemarker.cache.TemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.ObjectWrapper;
+import freemarker.template.Template;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static open.springboot.mail.service.impl.FreemarkerTemplateService.TEMPLATE_ENCODING;
+
+/**
+ * Compares the rendering of the test template, and of a template listing a catalogue, with the default
+ * {@linkplain ObjectWrapper} of the Freemarker configuration and with the {@linkplain MapModelObjectWrapper}.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=open.springboot.mail.utils.MapModelObjectWrapperBenchmark}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapModelObjectWrapperBenchmark {
+
+    private static final String CATALOGUE = "<#list items as item><p>${item.name}: ${item.price}"
+            + "<#list item.tags as tag> #${tag}</#list></p></#list><p>${customer.name}, ${customer.city}</p>";
+
+    @Param({"email_template.ftl", "catalogue.ftl"})
+    private String templateName;
+
+    private Template template;
+
+    private Map<String, Object> model;
+
+    private ObjectWrapper defaultWrapper;
+
+    private ObjectWrapper mapModelWrapper;
+
+    @Setup
+    public void setUp() throws Exception {
+        final StringTemplateLoader stringTemplateLoader = new StringTemplateLoader();
+        stringTemplateLoader.putTemplate("catalogue.ftl", CATALOGUE);
+        final Configuration configuration = new Configuration(Configuration.VERSION_2_3_23);
+        configuration.setTemplateLoader(new MultiTemplateLoader(new TemplateLoader[]{
+                new ClassTemplateLoader(getClass(), "/templates/"), stringTemplateLoader}));
+        template = configuration.getTemplate(templateName, TEMPLATE_ENCODING);
+        defaultWrapper = configuration.getObjectWrapper();
+        mapModelWrapper = new MapModelObjectWrapper(configuration.getIncompatibleImprovements(), true);
+
+        final List<Map<String, Object>> items = IntStream.range(0, 50)
+                .mapToObj(i -> ImmutableMap.<String, Object>of("name", "Item " + i, "price", i * 1.5,
+                        "tags", IntStream.range(0, 3).mapToObj(j -> "tag" + j).collect(Collectors.toList())))
+                .collect(Collectors.toList());
+        model = ImmutableMap.of("name", "Titus", "items", items,
+                "customer", ImmutableMap.of("name", "Titus", "city", "Roma"));
+    }
+
+    @Benchmark
+    public String renderWithDefaultWrapper() throws Exception {
+        return render(defaultWrapper);
+    }
+
+    @Benchmark
+    public String renderWithMapModelWrapper() throws Exception {
+        return render(mapModelWrapper);
+    }
+
+    private String render(final ObjectWrapper wrapper) throws Exception {
+        final StringWriter writer = new StringWriter();
+        template.process(model, writer, wrapper);
+        return writer.toString();
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MapModelObjectWrapperBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
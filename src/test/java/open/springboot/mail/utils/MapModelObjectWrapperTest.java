@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import freemarker.cache.StringTemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.ObjectWrapper;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+
+public class MapModelObjectWrapperTest {
+
+    private static final String TEMPLATE = "<#list items as item>${item.name}:${item.price}<#if item.available>+</#if>"
+            + "<#list item.tags as tag>[${tag}]</#list>;</#list> ${customer.name} ${customer.greeting()}"
+            + " ${customer.address.city} <#list cities as city>${city}</#list> ${missing!\"none\"}"
+            + " <#list items[0]?keys as key>${key}</#list> ${items?size}";
+
+    private Configuration configuration;
+
+    private final AtomicInteger nameReads = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        final StringTemplateLoader templateLoader = new StringTemplateLoader();
+        templateLoader.putTemplate("catalogue.ftl", TEMPLATE);
+        templateLoader.putTemplate("twice.ftl", "${customer.name} ${customer.name}");
+        templateLoader.putTemplate("pojo.ftl", "${customer.address} ${customer.address?size}"
+                + " <#list customer.address?keys as key>${key},</#list>");
+        configuration = new Configuration(Configuration.VERSION_2_3_23);
+        configuration.setTemplateLoader(templateLoader);
+    }
+
+    @Test
+    public void shouldRenderLikeTheDefaultWrapper() throws Exception {
+        //Arrange
+        final Map<String, Object> model = model();
+
+        //Act
+        final String expected = render("catalogue.ftl", model, configuration.getObjectWrapper());
+        final String text = render("catalogue.ftl", model,
+                new MapModelObjectWrapper(Configuration.VERSION_2_3_23, true));
+
+        //Assert
+        assertThat(text, is(expected));
+        assertThat(text, is("Lucretius:12.5+[poem][latin];Cicero:7; Titus Ave Titus Roma RomaPompeii "
+                + "none nametagspriceavailable 2"));
+    }
+
+    @Test
+    public void shouldRenderLikeTheDefaultWrapperWithoutTheIntrospectionCache() throws Exception {
+        //Arrange
+        final Map<String, Object> model = model();
+
+        //Act
+        final String expected = render("catalogue.ftl", model, configuration.getObjectWrapper());
+        final String text = render("catalogue.ftl", model,
+                new MapModelObjectWrapper(Configuration.VERSION_2_3_23, false));
+
+        //Assert
+        assertThat(text, is(expected));
+    }
+
+    @Test
+    public void shouldReadEachValueOnceDuringARendering() throws Exception {
+        //Arrange
+        final Map<String, Object> model = model();
+        final MapModelObjectWrapper wrapper = new MapModelObjectWrapper(Configuration.VERSION_2_3_23, true);
+
+        //Act
+        final String text = render("twice.ftl", model, wrapper);
+
+        //Assert
+        assertThat(text, is("Titus Titus"));
+        assertThat(nameReads.get(), is(1));
+    }
+
+    @Test
+    public void shouldConvertObjectsLikeTheDefaultWrapper() throws Exception {
+        //Arrange
+        final Map<String, Object> model = model();
+
+        //Act
+        final String expected = render("pojo.ftl", model, configuration.getObjectWrapper());
+        final String text = render("pojo.ftl", model, new MapModelObjectWrapper(Configuration.VERSION_2_3_23, true));
+
+        //Assert
+        assertThat(text, is(expected));
+        assertThat(text, startsWith("Roma "));
+        assertThat(text, containsString("city,"));
+    }
+
+    private String render(final String name, final Map<String, Object> model, final ObjectWrapper wrapper)
+            throws Exception {
+        final StringWriter writer = new StringWriter();
+        configuration.getTemplate(name).process(model, writer, wrapper);
+        return writer.toString();
+    }
+
+    private Map<String, Object> model() {
+        return ImmutableMap.of(
+                "items", ImmutableList.of(
+                        ImmutableMap.of("name", "Lucretius", "tags", ImmutableList.of("poem", "latin"),
+                                "price", 12.5, "available", true),
+                        ImmutableMap.of("name", "Cicero", "tags", ImmutableList.of(),
+                                "price", 7, "available", false)),
+                "customer", new Customer("Titus", new Address("Roma")),
+                "cities", ImmutableSet.of("Roma", "Pompeii"));
+    }
+
+    public class Customer {
+
+        private final String name;
+
+        private final Address address;
+
+        Customer(final String name, final Address address) {
+            this.name = name;
+            this.address = address;
+        }
+
+        public String getName() {
+            nameReads.incrementAndGet();
+            return name;
+        }
+
+        public Address getAddress() {
+            return address;
+        }
+
+        public String greeting() {
+            return "Ave " + name;
+        }
+
+    }
+
+    public static class Address {
+
+        private final String city;
+
+        Address(final String city) {
+            this.city = city;
+        }
+
+        public String getCity() {
+            return city;
+        }
+
+        @Override
+        public String toString() {
+            return city;
+        }
+
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import open.springboot.mail.model.impl.EmailAttachmentImpl;
+import open.springboot.mail.model.impl.EmailImpl;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import javax.mail.BodyPart;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static open.springboot.mail.utils.EmailToMimeMessageTest.getSimpleMail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class ParallelAttachmentEncoderTest {
+
+    private final ParallelAttachmentEncoder parallelAttachmentEncoder = new ParallelAttachmentEncoder(4, 2, 2, 1024);
+
+    @After
+    public void tearDown() {
+        parallelAttachmentEncoder.shutdown();
+    }
+
+    @Test
+    public void testParallelPartsMatchSerialOnes() throws Exception {
+        //Arrange
+        final List<EmailAttachmentImpl> attachments = attachments(24);
+        final EmailToMimeMessage serial = new EmailToMimeMessage(new JavaMailSenderImpl());
+        final EmailToMimeMessage parallel = new EmailToMimeMessage(new JavaMailSenderImpl());
+        parallel.setParallelAttachmentEncoder(parallelAttachmentEncoder);
+
+        //Act
+        final MimeMessage serialMessage = reparse(serial.apply(email(attachments)));
+        final MimeMessage parallelMessage = reparse(parallel.apply(email(attachments)));
+
+        //Assert
+        final Multipart serialMultipart = (Multipart) serialMessage.getContent();
+        final Multipart parallelMultipart = (Multipart) parallelMessage.getContent();
+        assertThat(parallelMultipart.getCount(), is(attachments.size() + 1));
+        assertThat(parallelMultipart.getCount(), is(serialMultipart.getCount()));
+        for (int i = 1; i < parallelMultipart.getCount(); i++) {
+            final BodyPart expected = serialMultipart.getBodyPart(i);
+            final BodyPart actual = parallelMultipart.getBodyPart(i);
+            assertThat(actual.getFileName(), is(attachments.get(i - 1).getAttachmentName()));
+            assertThat(actual.getFileName(), is(expected.getFileName()));
+            //JavaMail labels the serial text parts with the default charset, which is only a guess
+            assertThat(new ContentType(actual.getContentType()).getBaseType(),
+                    is(new ContentType(expected.getContentType()).getBaseType()));
+            assertThat(actual.getDisposition(), is(Part.ATTACHMENT));
+            assertThat(ByteStreams.toByteArray(actual.getInputStream()), is(attachments.get(i - 1).getAttachmentData()));
+        }
+    }
+
+    @Test
+    public void testSmallEmailsAreNotWorthParallelizing() throws Exception {
+        //Arrange
+        final List<EmailAttachmentImpl> attachments = attachments(3);
+
+        //Assert
+        assertThat(parallelAttachmentEncoder.isWorthParallelizing(attachments), is(true));
+        assertThat(parallelAttachmentEncoder.isWorthParallelizing(attachments.subList(0, 1)), is(false));
+        assertThat(parallelAttachmentEncoder.isWorthParallelizing(ImmutableList.of(
+                new EmailAttachmentImpl("tiny.txt", "tiny".getBytes(UTF_8), null),
+                new EmailAttachmentImpl("small.txt", "small".getBytes(UTF_8), null))), is(false));
+    }
+
+    @Test(timeout = 5_000)
+    public void testAttachmentsAreEncodedSeriallyOnceShutDown() throws Exception {
+        //Arrange
+        final List<EmailAttachmentImpl> attachments = attachments(8);
+        parallelAttachmentEncoder.shutdown();
+
+        //Act
+        final List<MimeBodyPart> bodyParts = parallelAttachmentEncoder.encode(attachments);
+
+        //Assert
+        assertThat(bodyParts.size(), is(8));
+        assertThat(bodyParts.get(7).getFileName(), is(attachments.get(7).getAttachmentName()));
+    }
+
+    private static EmailImpl email(final List<EmailAttachmentImpl> attachments) throws Exception {
+        final EmailImpl email = (EmailImpl) getSimpleMail();
+        email.setAttachments(attachments);
+        return email;
+    }
+
+    /**
+     * Alternate text, PDF and binary attachments, left to the content type detection.
+     */
+    private static List<EmailAttachmentImpl> attachments(final int count) {
+        final Random random = new Random(count);
+        final List<EmailAttachmentImpl> attachments = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final byte[] data = new byte[1_000 + random.nextInt(50_000)];
+            random.nextBytes(data);
+            switch (i % 3) {
+                case 0:
+                    final byte[] text = new String(data, 0, data.length, UTF_8).replaceAll("[^a-z ]", "a").getBytes(UTF_8);
+                    attachments.add(new EmailAttachmentImpl("notes-" + i + ".txt", text, null));
+                    break;
+                case 1:
+                    System.arraycopy("%PDF-1.4\n".getBytes(UTF_8), 0, data, 0, 9);
+                    attachments.add(new EmailAttachmentImpl("report-" + i + ".pdf", data, null));
+                    break;
+                default:
+                    attachments.add(new EmailAttachmentImpl("data-" + i + ".bin", data, null));
+            }
+        }
+        return attachments;
+    }
+
+    private static MimeMessage reparse(final MimeMessage mimeMessage) throws Exception {
+        mimeMessage.saveChanges();
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        mimeMessage.writeTo(outputStream);
+        return new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(outputStream.toByteArray()));
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.Maps;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import open.springboot.mail.model.ImageType;
+import open.springboot.mail.model.impl.EmailAttachmentImpl;
+import open.springboot.mail.model.impl.EmailImpl;
+import open.springboot.mail.model.impl.InlinePictureImpl;
+import open.springboot.mail.service.TemplateService;
+import open.springboot.mail.service.impl.EmailServiceImpl;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mail.javamail.JavaMailSender;
+import testutils.TestUtils;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static open.springboot.mail.utils.EmailToMimeMessageTest.getSimpleMail;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PipelineEventsTest {
+
+    private static final String[] EVENT_NAMES = {
+            "open.springboot.mail.TemplateMerge",
+            "open.springboot.mail.MimeConversion",
+            "open.springboot.mail.ContentDetection",
+            "open.springboot.mail.InlinePicture",
+            "open.springboot.mail.SmtpTransmission"
+    };
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private EmailServiceImpl emailService;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue(PipelineEvents.isAvailable());
+        final JavaMailSender javaMailSender = mock(JavaMailSender.class);
+        when(javaMailSender.createMimeMessage()).thenReturn(new MimeMessage((Session) null));
+        final TemplateService templateService = mock(TemplateService.class);
+        when(templateService.mergeTemplateIntoString(anyString(), any(Map.class))).thenReturn("<img src=\"logo\"/>");
+        emailService = new EmailServiceImpl(javaMailSender, templateService, new EmailToMimeMessage(javaMailSender));
+    }
+
+    @Test
+    public void testDisabledEventsAreShared() throws Exception {
+        //Act
+        final PipelineEvent event = PipelineEvents.begin(PipelineStage.TEMPLATE_MERGE);
+
+        //Assert
+        assertThat(event, sameInstance(PipelineEvent.DISABLED));
+        assertThat(event.isRecorded(), is(false));
+    }
+
+    @Test
+    public void testSendPipelineIsRecorded() throws Exception {
+        //Arrange
+        final EmailImpl email = (EmailImpl) getSimpleMail();
+        email.setAttachments(Collections.singletonList(
+                new EmailAttachmentImpl("notes.txt", "Carpe diem".getBytes(UTF_8), null)));
+        final File picture = TestUtils.loadFile("images" + File.separator + "100_percent_free.jpg");
+        final Path recordingFile = temporaryFolder.newFile("pipeline.jfr").toPath();
+
+        //Act
+        try (Recording recording = new Recording()) {
+            for (final String eventName : EVENT_NAMES) {
+                recording.enable(eventName);
+            }
+            recording.start();
+            emailService.send(email, "welcome.ftl", Maps.newHashMap(), InlinePictureImpl.builder()
+                    .file(picture).imageType(ImageType.JPG).templateName("logo").build());
+            recording.stop();
+            recording.dump(recordingFile);
+        }
+
+        //Assert
+        final List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile);
+        assertThat(events.stream().map(event -> event.getEventType().getName()).collect(Collectors.toList()),
+                contains(EVENT_NAMES[0], EVENT_NAMES[2], EVENT_NAMES[1], EVENT_NAMES[3], EVENT_NAMES[4]));
+        final RecordedEvent merge = events.get(0);
+        assertThat(merge.getString("templateName"), is("welcome.ftl"));
+        final RecordedEvent detection = events.get(1);
+        assertThat(detection.getString("fileName"), is("notes.txt"));
+        assertThat(detection.getString("mediaType"), is("text/plain"));
+        final RecordedEvent conversion = events.get(2);
+        assertThat(conversion.getInt("recipients"), is(4));
+        assertThat(conversion.getLong("bytes"), is(10L));
+        assertThat(conversion.getString("templateName"), is(nullValue()));
+        final RecordedEvent inlinePicture = events.get(3);
+        assertThat(inlinePicture.getString("fileName"), is(picture.getName()));
+        assertThat(inlinePicture.getLong("bytes"), greaterThan(picture.length()));
+        final RecordedEvent transmission = events.get(4);
+        assertThat(transmission.getInt("recipients"), is(4));
+        assertThat(events.stream().filter(event -> event.getBoolean("successful")).collect(Collectors.toList()),
+                hasSize(5));
+    }
+
+}
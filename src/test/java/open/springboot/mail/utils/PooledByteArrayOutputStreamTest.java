@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class PooledByteArrayOutputStreamTest {
+
+    private final BufferPool bufferPool = new BufferPool(1, 8L * 1024 * 1024);
+
+    @Test
+    public void testContentSpanningSeveralBuffers() throws Exception {
+        //Arrange
+        final byte[] content = new byte[100_000];
+        new Random(42).nextBytes(content);
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        //Act
+        final byte[] bytes;
+        try (PooledByteArrayOutputStream outputStream = new PooledByteArrayOutputStream(bufferPool)) {
+            outputStream.write(content[0]);
+            outputStream.write(content, 1, 5000);
+            outputStream.write(content, 5001, content.length - 5001);
+            bytes = outputStream.toByteArray();
+            outputStream.writeTo(copy);
+            assertThat(outputStream.size(), is(content.length));
+        }
+
+        //Assert
+        assertThat(bytes, is(content));
+        assertThat(copy.toByteArray(), is(content));
+        assertThat(bufferPool.getStatistics().getOutstandingBytes(), is(0L));
+    }
+
+    @Test
+    public void testBuffersAreReusedAcrossStreams() throws Exception {
+        //Arrange
+        final byte[] content = new byte[50_000];
+        try (PooledByteArrayOutputStream outputStream = new PooledByteArrayOutputStream(bufferPool)) {
+            outputStream.write(content);
+        }
+
+        //Act
+        try (PooledByteArrayOutputStream outputStream = new PooledByteArrayOutputStream(bufferPool)) {
+            outputStream.write(content);
+        }
+
+        //Assert
+        //4, 8, 16 and 32 KB buffers, borrowed twice
+        assertThat(bufferPool.getStatistics().getBorrowed(), is(8L));
+        assertThat(bufferPool.getStatistics().getHits(), is(4L));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteAfterClose() throws Exception {
+        //Arrange
+        final PooledByteArrayOutputStream outputStream = new PooledByteArrayOutputStream(bufferPool);
+        outputStream.close();
+
+        //Act
+        outputStream.write(1);
+    }
+
+}
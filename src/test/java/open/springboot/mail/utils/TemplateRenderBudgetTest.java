@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.collect.ImmutableMap;
+import freemarker.cache.StringTemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import open.springboot.mail.exceptions.TemplateBudgetExceededException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static open.springboot.mail.exceptions.TemplateBudgetExceededException.Budget.OUTPUT_SIZE;
+import static open.springboot.mail.exceptions.TemplateBudgetExceededException.Budget.RENDER_TIME;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+public class TemplateRenderBudgetTest {
+
+    private Configuration configuration;
+
+    @Before
+    public void setUp() {
+        final StringTemplateLoader templateLoader = new StringTemplateLoader();
+        templateLoader.putTemplate("list.ftl", "<#list items as item>${item.name} </#list>");
+        configuration = new Configuration(Configuration.VERSION_2_3_23);
+        configuration.setTemplateLoader(templateLoader);
+    }
+
+    @Test
+    public void shouldRenderWithinTheBudgetAndRecordTheCost() throws Exception {
+        //Arrange
+        final TemplateRenderBudget budget = new TemplateRenderBudget(
+                new TemplateRenderBudget.Limits(10_000, 1_000), Collections.emptyMap());
+
+        //Act
+        final String text = render(budget, "list.ftl", items(3, 0));
+        render(budget, "list.ftl", items(1, 0));
+
+        //Assert
+        assertThat(text, is("item0 item1 item2 "));
+        final TemplateRenderBudget.TemplateRenderStatistics statistics = budget.getStatistics("list.ftl").get();
+        assertThat(statistics.getRenderCount(), is(2L));
+        assertThat(statistics.getAbortedCount(), is(0L));
+        assertThat(statistics.getTotalOutputChars(), is(24L));
+        assertThat(statistics.getMaxOutputChars(), is(18L));
+        assertThat(statistics.getAverageOutputChars(), is(12L));
+        assertThat(statistics.getMaxRenderNanos(), greaterThan(0L));
+        assertThat(budget.getStatistics().keySet(), is(Collections.singleton("list.ftl")));
+    }
+
+    @Test
+    public void shouldAbortWhenTheOutputExceedsTheBudget() throws Exception {
+        //Arrange
+        final TemplateRenderBudget budget = new TemplateRenderBudget(
+                new TemplateRenderBudget.Limits(0, 1_000), Collections.emptyMap());
+
+        //Act
+        try {
+            render(budget, "list.ftl", items(1_000_000, 0));
+            fail("TemplateBudgetExceededException expected");
+        } catch (TemplateBudgetExceededException e) {
+            //Assert
+            assertThat(e.getTemplate(), is("list.ftl"));
+            assertThat(e.getBudget(), is(OUTPUT_SIZE));
+            assertThat(e.getLimit(), is(1_000L));
+            assertThat(e.getActual(), greaterThan(1_000L));
+        }
+        assertThat(budget.getStatistics("list.ftl").get().getAbortedCount(), is(1L));
+    }
+
+    @Test
+    public void shouldAbortWhenTheRenderTimeExceedsTheBudget() throws Exception {
+        //Arrange
+        final TemplateRenderBudget budget = new TemplateRenderBudget(
+                new TemplateRenderBudget.Limits(50, 0), Collections.emptyMap());
+
+        //Act
+        try {
+            render(budget, "list.ftl", items(1_000, 5));
+            fail("TemplateBudgetExceededException expected");
+        } catch (TemplateBudgetExceededException e) {
+            //Assert
+            assertThat(e.getBudget(), is(RENDER_TIME));
+            assertThat(e.getActual(), greaterThanOrEqualTo(50L));
+        }
+        final TemplateRenderBudget.TemplateRenderStatistics statistics = budget.getStatistics("list.ftl").get();
+        assertThat(statistics.getAbortedCount(), is(1L));
+        assertThat(statistics.getMaxRenderNanos(), greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50)));
+    }
+
+    @Test
+    public void shouldApplyThePerTemplateLimits() throws Exception {
+        //Arrange
+        final TemplateRenderBudget budget = new TemplateRenderBudget(new TemplateRenderBudget.Limits(0, 10),
+                ImmutableMap.of("list.ftl", new TemplateRenderBudget.Limits(0, 0)));
+
+        //Act
+        final String text = render(budget, "list.ftl", items(100, 0));
+
+        //Assert
+        assertThat(text.length(), is(690));
+        assertThat(budget.getLimits("other.ftl").getMaxOutputChars(), is(10L));
+    }
+
+    private String render(final TemplateRenderBudget budget, final String name, final Map<String, Object> model)
+            throws Exception {
+        final Template template = configuration.getTemplate(name);
+        return budget.render(name, writer -> template.process(model, writer));
+    }
+
+    private static Map<String, Object> items(final int count, final long delayMillis) {
+        final List<Item> items = IntStream.range(0, count)
+                .mapToObj(i -> new Item("item" + i, delayMillis))
+                .collect(Collectors.toList());
+        return ImmutableMap.of("items", items);
+    }
+
+    public static class Item {
+
+        private final String name;
+
+        private final long delayMillis;
+
+        Item(final String name, final long delayMillis) {
+            this.name = name;
+            this.delayMillis = delayMillis;
+        }
+
+        public String getName() {
+            if (delayMillis > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+            }
+            return name;
+        }
+
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package open.springboot.mail.utils;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import testutils.SmtpSinkServer;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Properties;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static open.springboot.mail.utils.TransferEncodingSelector.EightBitMime.ALWAYS;
+import static open.springboot.mail.utils.TransferEncodingSelector.EightBitMime.AUTO;
+import static open.springboot.mail.utils.TransferEncodingSelector.EightBitMime.NEVER;
+import static open.springboot.mail.utils.TransferEncodingSelector.TransferEncoding.BASE64;
+import static open.springboot.mail.utils.TransferEncodingSelector.TransferEncoding.EIGHT_BIT;
+import static open.springboot.mail.utils.TransferEncodingSelector.TransferEncoding.QUOTED_PRINTABLE;
+import static open.springboot.mail.utils.TransferEncodingSelector.TransferEncoding.SEVEN_BIT;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.mock;
+
+public class TransferEncodingSelectorTest {
+
+    private static final String HTML = "<html><body><p>Cicerone è il più grande oratore di Roma.</p></body></html>";
+
+    @Test
+    public void shouldSelectSevenBitForShortAsciiLines() throws Exception {
+        //Arrange
+        final TransferEncodingSelector selector = selector(ALWAYS);
+
+        //Act
+        final TransferEncodingSelector.TransferEncoding encoding = selector.select("Laelius de amicitia\r\n", UTF_8);
+
+        //Assert
+        assertThat(encoding, is(SEVEN_BIT));
+        assertThat(selector.getStatistics().getBytesSaved(), is(0L));
+    }
+
+    @Test
+    public void shouldSelectEightBitWhenAccepted() throws Exception {
+        //Arrange
+        final TransferEncodingSelector eightBit = selector(ALWAYS);
+        final TransferEncodingSelector sevenBit = selector(NEVER);
+
+        //Act
+        final TransferEncodingSelector.TransferEncoding eightBitEncoding = eightBit.select(HTML, UTF_8);
+        final TransferEncodingSelector.TransferEncoding sevenBitEncoding = sevenBit.select(HTML, UTF_8);
+
+        //Assert
+        assertThat(eightBitEncoding, is(EIGHT_BIT));
+        assertThat(eightBit.getStatistics().getEightBit(), is(1L));
+        assertThat(eightBit.getStatistics().getBytesSaved(), greaterThan(0L));
+        assertThat(sevenBitEncoding, is(QUOTED_PRINTABLE));
+        assertThat(sevenBit.getStatistics().getBytesSaved(), is(0L));
+    }
+
+    @Test
+    public void shouldPreferBase64WhenSmallerThanQuotedPrintable() throws Exception {
+        //Arrange
+        final TransferEncodingSelector selector = selector(NEVER);
+
+        //Act
+        final TransferEncodingSelector.TransferEncoding encoding = selector.select(Strings.repeat("abcé", 100), UTF_8);
+
+        //Assert
+        assertThat(encoding, is(BASE64));
+        assertThat(selector.getStatistics().getBytesSaved(), greaterThan(0L));
+    }
+
+    @Test
+    public void shouldNotSelectEightBitForLongLinesNorNul() throws Exception {
+        //Arrange
+        final TransferEncodingSelector selector = selector(ALWAYS);
+
+        //Act
+        final TransferEncodingSelector.TransferEncoding longLine =
+                selector.select(Strings.repeat("è", 999), ISO_8859_1);
+        final TransferEncodingSelector.TransferEncoding nul = selector.select("Laelius de amicitia\u0000è", UTF_8);
+
+        //Assert
+        assertThat(longLine, is(BASE64));
+        assertThat(nul, is(QUOTED_PRINTABLE));
+        assertThat(selector.getStatistics().getEightBit(), is(0L));
+    }
+
+    @Test
+    public void shouldLeaveMultiByteCharsetsToJavaMail() throws Exception {
+        //Arrange
+        final TransferEncodingSelector selector = selector(ALWAYS);
+
+        //Act
+        final TransferEncodingSelector.TransferEncoding encoding = selector.select(HTML, Charset.forName("Shift_JIS"));
+
+        //Assert
+        assertThat(encoding, is(nullValue()));
+        assertThat(selector.getStatistics().getSkipped(), is(1L));
+    }
+
+    @Test
+    public void shouldKeepTheSelectedEncodingWhenWritten() throws Exception {
+        //Arrange
+        final TransferEncodingSelector selector = selector(ALWAYS);
+        final MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setText(HTML, UTF_8.name(), "html");
+
+        //Act
+        selector.apply(message, HTML, UTF_8);
+        message.saveChanges();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        message.writeTo(output);
+
+        //Assert
+        assertThat(message.getEncoding(), is("8bit"));
+        assertThat(new String(output.toByteArray(), UTF_8), containsString(HTML));
+    }
+
+    @Test
+    public void shouldAskTheRelaysWhetherTheyAcceptEightBit() throws Exception {
+        //Arrange
+        try (SmtpSinkServer eightBitSink = SmtpSinkServer.builder().eightBitMime(true).build();
+             SmtpSinkServer sevenBitSink = SmtpSinkServer.builder().build()) {
+            final TransferEncodingSelector eightBit = new TransferEncodingSelector(sender(eightBitSink), AUTO);
+            final TransferEncodingSelector sevenBit = new TransferEncodingSelector(sender(sevenBitSink), AUTO);
+
+            //Act
+            eightBit.probeRelays();
+            sevenBit.probeRelays();
+
+            //Assert
+            assertThat(eightBit.isEightBitAccepted(), is(true));
+            assertThat(sevenBit.isEightBitAccepted(), is(false));
+        }
+    }
+
+    @Test
+    public void shouldDeclareEightBitBodiesToTheRelays() throws Exception {
+        //Arrange
+        try (SmtpSinkServer sink = SmtpSinkServer.builder().eightBitMime(true).keepMessages(true).build()) {
+            final JavaMailSenderImpl sender = sender(sink);
+            final TransferEncodingSelector selector = new TransferEncodingSelector(sender, AUTO);
+            selector.probeRelays();
+            final MimeMessage message = sender.createMimeMessage();
+            message.setFrom("cicero@example.com");
+            message.setRecipients(Message.RecipientType.TO, "atticus@example.com");
+            message.setText(HTML, UTF_8.name(), "html");
+            selector.apply(message, HTML, UTF_8);
+
+            //Act
+            sender.send(message);
+
+            //Assert
+            assertThat(sink.getMessages().get(0).getFrom(), containsString("BODY=8BITMIME"));
+        }
+    }
+
+    @Test
+    public void shouldNotSelectEightBitForSignedEmails() throws Exception {
+        //Arrange
+        final TransferEncodingSelector selector = selector(ALWAYS);
+        selector.setDkimSigner(mock(DkimSigner.class));
+
+        //Act
+        final TransferEncodingSelector.TransferEncoding encoding = selector.select(HTML, UTF_8);
+
+        //Assert
+        assertThat(encoding, is(QUOTED_PRINTABLE));
+    }
+
+    private static TransferEncodingSelector selector(final TransferEncodingSelector.EightBitMime eightBitMime) {
+        return new TransferEncodingSelector(new JavaMailSenderImpl(), eightBitMime);
+    }
+
+    private static JavaMailSenderImpl sender(final SmtpSinkServer sink) {
+        final JavaMailSenderImpl sender = new JavaMailSenderImpl();
+        sender.setHost("localhost");
+        sender.setPort(sink.getPort());
+        return sender;
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package testutils;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.service.EmailService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Drives an {@linkplain EmailService} with concurrent senders, measuring throughput and latency of each send.
+ * <p/>
+ * Meant to be used with a {@linkplain SmtpSinkServer}, which provides the number of bytes sent on the wire.
+ */
+@Slf4j
+public final class EmailLoadTestHarness {
+
+    private EmailLoadTestHarness() {
+    }
+
+    /**
+     * Send emails from the given number of threads and report the figures.
+     *
+     * @param emailService      the service sending the emails
+     * @param sink              the SMTP server receiving the emails
+     * @param senders           the number of concurrent senders
+     * @param emailsPerSender   the number of emails sent by each sender
+     * @param emailFactory      create the i-th email to be sent
+     * @return the report of the run
+     */
+    public static Report run(final EmailService emailService, final SmtpSinkServer sink,
+                             final int senders, final int emailsPerSender,
+                             final IntFunction<Email> emailFactory) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(senders);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong failures = new AtomicLong();
+        final long bytesBefore = sink.getReceivedBytes();
+        final List<Future<long[]>> futures = new ArrayList<>();
+        for (int s = 0; s < senders; s++) {
+            final int sender = s;
+            futures.add(executor.submit((Callable<long[]>) () -> {
+                final long[] latencies = new long[emailsPerSender];
+                start.await();
+                for (int i = 0; i < emailsPerSender; i++) {
+                    final Email email = emailFactory.apply(sender * emailsPerSender + i);
+                    final long begin = System.nanoTime();
+                    try {
+                        emailService.send(email);
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                    latencies[i] = System.nanoTime() - begin;
+                }
+                return latencies;
+            }));
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        final long[] latencies = new long[senders * emailsPerSender];
+        for (int s = 0; s < senders; s++) {
+            System.arraycopy(futures.get(s).get(), 0, latencies, s * emailsPerSender, emailsPerSender);
+        }
+        final long elapsed = System.nanoTime() - begin;
+        executor.shutdown();
+
+        Arrays.sort(latencies);
+        final Report report = new Report(senders, latencies.length, failures.get(),
+                latencies.length / (elapsed / 1e9),
+                percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+                TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length - 1]) / 1e3,
+                sink.getReceivedBytes() - bytesBefore);
+        log.info("{}", report);
+        return report;
+    }
+
+    private static double percentile(final long[] sortedLatencies, final double percentile) {
+        final int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sortedLatencies[Math.max(0, index)]) / 1e3;
+    }
+
+    @Value
+    public static class Report {
+
+        int senders;
+
+        int emails;
+
+        long failures;
+
+        double emailsPerSecond;
+
+        double p50Millis;
+
+        double p90Millis;
+
+        double p99Millis;
+
+        double maxMillis;
+
+        long bytesOnTheWire;
+
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package testutils;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+import lombok.Getter;
+import lombok.Setter;
+import open.springboot.mail.model.Email;
+import open.springboot.mail.model.InlinePicture;
+import open.springboot.mail.service.EmailService;
+
+import javax.mail.internet.MimeMessage;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * An {@linkplain EmailService} recording the emails it is asked to send, optionally slowed down to emulate the SMTP
+ * conversation, or failing.
+ */
+public class RecordingEmailService implements EmailService {
+
+    @Getter
+    private final Multiset<String> sentSubjects = ConcurrentHashMultiset.create();
+
+    @Getter
+    private final List<Email> sentEmails = new CopyOnWriteArrayList<>();
+
+    @Getter
+    private final List<Object[]> templateSends = new CopyOnWriteArrayList<>();
+
+    @Setter
+    private volatile long latencyMicros;
+
+    @Setter
+    private volatile boolean failing;
+
+    @Override
+    public MimeMessage send(final Email mimeEmail) {
+        emulateTransport();
+        sentSubjects.add(mimeEmail.getSubject());
+        sentEmails.add(mimeEmail);
+        return null;
+    }
+
+    @Override
+    public MimeMessage send(final Email mimeEmail, final String template, final Map<String, Object> modelObject,
+                            final InlinePicture... inlinePictures) {
+        emulateTransport();
+        sentSubjects.add(mimeEmail.getSubject());
+        sentEmails.add(mimeEmail);
+        templateSends.add(new Object[]{template, modelObject, inlinePictures});
+        return null;
+    }
+
+    /**
+     * Wait until the given condition holds, for at most the given time.
+     *
+     * @return true if the condition holds
+     */
+    public static boolean await(final BooleanSupplier condition, final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    private void emulateTransport() {
+        if (latencyMicros > 0) {
+            //Waiting, not spinning, as the transport mostly waits for the server
+            final long end = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+            for (long remaining = end - System.nanoTime(); remaining > 0; remaining = end - System.nanoTime()) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+        if (failing) {
+            throw new IllegalStateException("Relay unavailable");
+        }
+    }
+
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright 2012-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package testutils;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Builder;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * An in-process SMTP server speaking ESMTP, which accepts and counts every message without delivering it.
+ * <p/>
+ * It optionally supports STARTTLS, adds a latency before answering the end of each message and fails a share
+ * of the messages with a transient error.
+ */
+@Slf4j
+public class SmtpSinkServer implements Closeable {
+
+    private static final String KEYSTORE = "smtp-sink.jks";
+
+    private static final char[] KEYSTORE_PASSWORD = "changeit".toCharArray();
+
+    private final long latencyMillis;
+
+    private final double failureRate;
+
+    private final boolean startTls;
+
+    private final boolean eightBitMime;
+
+    private final boolean smtpUtf8;
+
+    private final boolean keepMessages;
+
+    private final Random random;
+
+    private final ServerSocket serverSocket;
+
+    private final SSLContext sslContext;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("smtp-sink-%d").setDaemon(true).build());
+
+    private final AtomicLong connections = new AtomicLong();
+
+    private final AtomicLong receivedMessages = new AtomicLong();
+
+    private final AtomicLong rejectedMessages = new AtomicLong();
+
+    private final AtomicLong receivedBytes = new AtomicLong();
+
+    private final Queue<ReceivedMessage> messages = new ConcurrentLinkedQueue<>();
+
+    @Builder
+    private SmtpSinkServer(final long latencyMillis, final double failureRate, final boolean startTls,
+                           final boolean eightBitMime, final boolean smtpUtf8, final boolean keepMessages,
+                           final Long seed) throws Exception {
+        this.latencyMillis = latencyMillis;
+        this.failureRate = failureRate;
+        this.startTls = startTls;
+        this.eightBitMime = eightBitMime;
+        this.smtpUtf8 = smtpUtf8;
+        this.keepMessages = keepMessages;
+        this.random = isNull(seed) ? new Random() : new Random(seed);
+        this.sslContext = startTls ? sslContext() : null;
+        serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        executor.execute(this::accept);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getConnections() {
+        return connections.get();
+    }
+
+    public long getReceivedMessages() {
+        return receivedMessages.get();
+    }
+
+    public long getRejectedMessages() {
+        return rejectedMessages.get();
+    }
+
+    /**
+     * Return the number of bytes read from the clients, after TLS decryption if any.
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * Return the messages received so far, only if the server has been built with {@code keepMessages}.
+     */
+    public List<ReceivedMessage> getMessages() {
+        return new ArrayList<>(messages);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static SSLContext sslContext() throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream inputStream = SmtpSinkServer.class.getClassLoader().getResourceAsStream(KEYSTORE)) {
+            keyStore.load(inputStream, KEYSTORE_PASSWORD);
+        }
+        final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, KEYSTORE_PASSWORD);
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), null, null);
+        return context;
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log.error("Cannot accept SMTP connection", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            Session session = new Session(socket);
+            session.reply("220 localhost ESMTP smtp-sink");
+            String from = null;
+            final List<String> recipients = new ArrayList<>();
+            boolean secured = false;
+            String line;
+            while (nonNull(line = session.readLine())) {
+                final String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+                switch (command) {
+                    case "EHLO":
+                        session.reply(ehlo(secured));
+                        break;
+                    case "HELO":
+                        session.reply("250 localhost");
+                        break;
+                    case "STAR":
+                        if (!startTls || secured) {
+                            session.reply("502 5.5.1 Command not implemented");
+                            break;
+                        }
+                        session.reply("220 2.0.0 Ready to start TLS");
+                        socket = startTls(socket);
+                        session = new Session(socket);
+                        secured = true;
+                        from = null;
+                        recipients.clear();
+                        break;
+                    case "MAIL":
+                        from = argument(line);
+                        recipients.clear();
+                        session.reply("250 2.1.0 Ok");
+                        break;
+                    case "RCPT":
+                        recipients.add(argument(line));
+                        session.reply("250 2.1.5 Ok");
+                        break;
+                    case "DATA":
+                        if (isNull(from) || recipients.isEmpty()) {
+                            session.reply("503 5.5.1 Bad sequence of commands");
+                            break;
+                        }
+                        session.reply("354 End data with <CR><LF>.<CR><LF>");
+                        final byte[] data = session.readData();
+                        if (latencyMillis > 0) {
+                            Thread.sleep(latencyMillis);
+                        }
+                        if (failureRate > 0 && nextDouble() < failureRate) {
+                            rejectedMessages.incrementAndGet();
+                            session.reply("451 4.3.0 Injected transient failure");
+                        } else {
+                            receivedMessages.incrementAndGet();
+                            if (keepMessages) {
+                                messages.add(new ReceivedMessage(from, new ArrayList<>(recipients), data));
+                            }
+                            session.reply("250 2.0.0 Ok: queued");
+                        }
+                        from = null;
+                        recipients.clear();
+                        break;
+                    case "RSET":
+                        from = null;
+                        recipients.clear();
+                        session.reply("250 2.0.0 Ok");
+                        break;
+                    case "NOOP":
+                        session.reply("250 2.0.0 Ok");
+                        break;
+                    case "QUIT":
+                        session.reply("221 2.0.0 Bye");
+                        return;
+                    default:
+                        session.reply("502 5.5.2 Command not recognized");
+                }
+            }
+        } catch (SocketException e) {
+            log.debug("SMTP connection closed", e);
+        } catch (IOException e) {
+            log.error("SMTP session failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Cannot close SMTP connection", e);
+            }
+        }
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    private String ehlo(final boolean secured) {
+        final StringBuilder reply = new StringBuilder("250-localhost\r\n250-PIPELINING\r\n250-SIZE 52428800\r\n");
+        if (eightBitMime) {
+            reply.append("250-8BITMIME\r\n");
+        }
+        if (smtpUtf8) {
+            reply.append("250-SMTPUTF8\r\n");
+        }
+        if (startTls && !secured) {
+            reply.append("250-STARTTLS\r\n");
+        }
+        return reply.append("250 ENHANCEDSTATUSCODES").toString();
+    }
+
+    private Socket startTls(final Socket socket) throws IOException {
+        final SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory()
+                .createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        sslSocket.setUseClientMode(false);
+        sslSocket.startHandshake();
+        return sslSocket;
+    }
+
+    private static String argument(final String line) {
+        final int colon = line.indexOf(':');
+        return colon < 0 ? "" : line.substring(colon + 1).trim();
+    }
+
+    /**
+     * A message accepted by the server, with the envelope addresses and the raw content.
+     */
+    @Value
+    public static class ReceivedMessage {
+
+        String from;
+
+        List<String> recipients;
+
+        byte[] data;
+
+        public String getContent() {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final class Session {
+
+        private final InputStream inputStream;
+
+        private final OutputStream outputStream;
+
+        private final byte[] buffer = new byte[8192];
+
+        private int position;
+
+        private int limit;
+
+        private Session(final Socket socket) throws IOException {
+            inputStream = socket.getInputStream();
+            outputStream = socket.getOutputStream();
+        }
+
+        private void reply(final String reply) throws IOException {
+            outputStream.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+        }
+
+        private String readLine() throws IOException {
+            final byte[] line = readLineBytes();
+            return isNull(line) ? null : new String(line, StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * Read the message content up to the terminating dot, removing the dot stuffing.
+         */
+        private byte[] readData() throws IOException {
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] line;
+            while (nonNull(line = readLineBytes())) {
+                if (line.length == 1 && line[0] == '.') {
+                    return data.toByteArray();
+                }
+                final int offset = line.length > 0 && line[0] == '.' ? 1 : 0;
+                data.write(line, offset, line.length - offset);
+                data.write('\r');
+                data.write('\n');
+            }
+            throw new SocketException("Connection closed while reading the message");
+        }
+
+        /**
+         * Read a line terminated by CRLF, without the terminator.
+         */
+        private byte[] readLineBytes() throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            while (true) {
+                if (position == limit) {
+                    limit = inputStream.read(buffer);
+                    position = 0;
+                    if (limit < 0) {
+                        limit = 0;
+                        return line.size() == 0 ? null : line.toByteArray();
+                    }
+                    receivedBytes.addAndGet(limit);
+                }
+                final byte b = buffer[position++];
+                if (b == '\n') {
+                    final byte[] bytes = line.toByteArray();
+                    final int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                    final byte[] result = new byte[length];
+                    System.arraycopy(bytes, 0, result, 0, length);
+                    return result;
+                }
+                line.write(b);
+            }
+        }
+    }
+
+}